@@ -0,0 +1,174 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+
+package com.serenegiant.usb;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * base class of IPipeline implementations that hold native pipeline object.
+ * Native side of UVCCamera and other pipelines keep raw pointer of the pipeline object
+ * that is set via #setPipeline/DistributePipeline#addPipeline/UVCCamera#setPipeline,
+ * so this class tracks them and detaches this pipeline from them before destroying native object.
+ */
+public abstract class AbstractPipeline implements IPipeline {
+	private static boolean isLoaded;
+	static {
+		if (!isLoaded) {
+			System.loadLibrary("uvc");
+			System.loadLibrary("UVCCamera");
+			isLoaded = true;
+		}
+	}
+
+	/**
+	 * object that passes frames to AbstractPipeline,
+	 * #detachPipeline is called when the pipeline is released
+	 */
+	/*package*/ interface PipelineHolder {
+		/**
+		 * remove the pipeline from native side, this should not return until the native side
+		 * stops using the pipeline
+		 */
+		public void detachPipeline(final AbstractPipeline pipeline);
+	}
+
+	// these fields are accessed from native code and do not change name and remove
+	protected long mNativePtr;
+	protected final int mType;
+	// until here
+	/** objects that hold this pipeline, this pipeline is detached from them on #release */
+	private final Set<PipelineHolder> mHolders = new CopyOnWriteArraySet<PipelineHolder>();
+	/** pipeline that is set via #setPipeline */
+	private IPipeline mNext;
+	private final PipelineHolder mHolder = new PipelineHolder() {
+		@Override
+		public void detachPipeline(final AbstractPipeline pipeline) {
+			synchronized (AbstractPipeline.this) {
+				if ((mNext == pipeline) && (mNativePtr != 0)) {
+					nativeSetPipeline(mNativePtr, null);
+					mNext = null;
+				}
+			}
+		}
+	};
+
+	protected AbstractPipeline(final int type) {
+		mType = type;
+	}
+
+	@Override
+	public int getType() {
+		return mType;
+	}
+
+	@Override
+	public synchronized int getState() {
+		return mNativePtr != 0 ? nativeGetState(mNativePtr) : PIPELINE_STATE_UNINITIALIZED;
+	}
+
+	@Override
+	public synchronized void setPipeline(final IPipeline pipeline) {
+		if (mNativePtr != 0) {
+			nativeSetPipeline(mNativePtr, pipeline);
+			if (mNext != pipeline) {
+				removeHolder(mNext, mHolder);
+				addHolder(pipeline, mHolder);
+				mNext = pipeline;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void start() {
+		if (mNativePtr != 0) {
+			nativeStart(mNativePtr);
+		}
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (mNativePtr != 0) {
+			nativeStop(mNativePtr);
+		}
+	}
+
+	/**
+	 * detach this pipeline from all holders, then stop and release native pipeline object
+	 */
+	@Override
+	public synchronized void release() {
+		if (mNativePtr != 0) {
+			for (final PipelineHolder holder: mHolders) {
+				holder.detachPipeline(this);
+			}
+			mHolders.clear();
+			removeHolder(mNext, mHolder);
+			mNext = null;
+			onRelease();
+			nativeDestroy(mNativePtr);
+			mNativePtr = 0;
+		}
+	}
+
+	/**
+	 * called from #release before destroying native pipeline object
+	 */
+	protected void onRelease() {
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * register holder of the pipeline, do nothing if pipeline is not AbstractPipeline
+	 */
+	/*package*/ static void addHolder(final IPipeline pipeline, final PipelineHolder holder) {
+		if (pipeline instanceof AbstractPipeline) {
+			((AbstractPipeline)pipeline).mHolders.add(holder);
+		}
+	}
+
+	/*package*/ static void removeHolder(final IPipeline pipeline, final PipelineHolder holder) {
+		if (pipeline instanceof AbstractPipeline) {
+			((AbstractPipeline)pipeline).mHolders.remove(holder);
+		}
+	}
+
+	// #nativeDestroy is implemented for each pipeline type and is not static method.
+	protected abstract void nativeDestroy(final long id_pipeline);
+
+	// these are not static methods because native side refers mType to get native pipeline object
+	private final native int nativeGetState(final long id_pipeline);
+	private final native int nativeSetPipeline(final long id_pipeline, final IPipeline pipeline);
+	private final native int nativeStart(final long id_pipeline);
+	private final native int nativeStop(final long id_pipeline);
+}
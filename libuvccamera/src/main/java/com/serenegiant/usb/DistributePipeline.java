@@ -0,0 +1,92 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * pipeline that passes each frame to all of the added pipelines.
+ * Each frame is copied into the frame pool of this pipeline and shared by the added pipelines
+ * with reference counting, the frame returns to the pool after all of them released it.
+ */
+public class DistributePipeline extends AbstractPipeline {
+
+	/** pipelines that are added via #addPipeline */
+	private final List<IPipeline> mPipelines = new ArrayList<IPipeline>();
+	private final PipelineHolder mHolder = new PipelineHolder() {
+		@Override
+		public void detachPipeline(final AbstractPipeline pipeline) {
+			removePipeline(pipeline);
+		}
+	};
+
+	/**
+	 * @param queueDepth max number of frames that this pipeline can queue,
+	 * 			this also limits frames that the added pipelines keep
+	 */
+	public DistributePipeline(final int queueDepth) {
+		super(PIPELINE_TYPE_DISTRIBUTE);
+		mNativePtr = nativeCreate(queueDepth);
+	}
+
+	/**
+	 * add pipeline that receives frames from this pipeline
+	 * @param pipeline
+	 */
+	public synchronized void addPipeline(final IPipeline pipeline) {
+		if ((mNativePtr != 0) && (pipeline != null)) {
+			nativeAddPipeline(mNativePtr, pipeline);
+			if (!mPipelines.contains(pipeline)) {
+				mPipelines.add(pipeline);
+				addHolder(pipeline, mHolder);
+			}
+		}
+	}
+
+	public synchronized void removePipeline(final IPipeline pipeline) {
+		if ((mNativePtr != 0) && (pipeline != null)) {
+			nativeRemovePipeline(mNativePtr, pipeline);
+			if (mPipelines.remove(pipeline)) {
+				removeHolder(pipeline, mHolder);
+			}
+		}
+	}
+
+	@Override
+	protected void onRelease() {
+		for (final IPipeline pipeline: mPipelines) {
+			removeHolder(pipeline, mHolder);
+		}
+		mPipelines.clear();
+	}
+
+	// #nativeCreate and #nativeDestroy are not static methods.
+	private final native long nativeCreate(final int queueDepth);
+	@Override
+	protected final native void nativeDestroy(final long id_pipeline);
+
+	private static final native int nativeAddPipeline(final long id_pipeline, final IPipeline pipeline);
+	private static final native int nativeRemovePipeline(final long id_pipeline, final IPipeline pipeline);
+}
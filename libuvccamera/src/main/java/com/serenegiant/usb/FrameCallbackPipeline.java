@@ -0,0 +1,61 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+/**
+ * pipeline that calls IFrameCallback#onFrame on it's own thread.
+ * Only the latest frame is passed to the callback if it takes a time.
+ */
+public class FrameCallbackPipeline extends AbstractPipeline {
+
+	/**
+	 * @param queueDepth max number of frames that this pipeline can queue
+	 */
+	public FrameCallbackPipeline(final int queueDepth) {
+		super(PIPELINE_TYPE_CALLBACK);
+		mNativePtr = nativeCreate(queueDepth);
+	}
+
+	/**
+	 * set frame callback
+	 * if pixelFormat is UVCCamera#PIXEL_FORMAT_RAW, frame data is shared with other pipelines
+	 * and the ByteBuffer passed to the callback is read-only.
+	 * In any case the ByteBuffer refers native memory that is reused after IFrameCallback#onFrame returns,
+	 * so it is valid only during the callback and you should copy the content if you need it later.
+	 * @param callback
+	 * @param pixelFormat one of UVCCamera#PIXEL_FORMAT_XXX
+	 */
+	public synchronized void setFrameCallback(final IFrameCallback callback, final int pixelFormat) {
+		if (mNativePtr != 0) {
+			nativeSetFrameCallback(mNativePtr, callback, pixelFormat);
+		}
+	}
+
+	// #nativeCreate and #nativeDestroy are not static methods.
+	private final native long nativeCreate(final int queueDepth);
+	@Override
+	protected final native void nativeDestroy(final long id_pipeline);
+
+	private static final native int nativeSetFrameCallback(final long id_pipeline, final IFrameCallback callback, final int pixelFormat);
+}
@@ -0,0 +1,51 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+/**
+ * Callback interface for UVCCamera class that receives multiple frames at once.
+ * Frames are collected into a batch on the capture thread and delivered on a dedicated thread,
+ * so JNI transition happens once per batch instead of once per frame
+ * and slow callback does not block capturing.
+ * Frames that are collected but not delivered yet are discarded when the callback is removed or preview stops.
+ */
+public interface IBatchFrameCallback {
+	/**
+	 * This method is called from native library via JNI on the batch delivering thread.
+	 * Frames are dropped while this method is running and the next batch is already full.
+	 * @param frames direct ByteBuffer that contains count frames, i-th frame starts at i * frameBytes.
+	 * 		This library keeps and reuses it, so you should copy the content if you need it after returning.
+	 * 		This library does not change position/limit.
+	 * @param count number of frames in this batch
+	 * @param frameBytes number of bytes of each frame
+	 * @param pixelFormat one of UVCCamera#PIXEL_FORMAT_XXX
+	 * @param width width of the frames
+	 * @param height height of the frames
+	 * @param sequences frame numbers, only first count elements are valid
+	 * @param presentationTimeUs capture time of each frame [micro seconds] in the same clock as System#nanoTime,
+	 * 		see IPooledFrameCallback, only first count elements are valid
+	 */
+	public void onFrames(ByteBuffer frames, int count, int frameBytes, int pixelFormat, int width, int height, int[] sequences, long[] presentationTimeUs);
+}
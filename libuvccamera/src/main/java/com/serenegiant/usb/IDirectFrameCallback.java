@@ -0,0 +1,58 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+/**
+ * Callback interface for UVCCamera class that supplies the ByteBuffer each frame is written into.
+ * This library converts/copies frame data directly into the ByteBuffer returned by #obtainBuffer,
+ * e.g. input buffer of MediaCodec, so frame data is not copied again on Java side.
+ */
+public interface IDirectFrameCallback {
+	/**
+	 * This method is called from native library via JNI on the capture thread
+	 * just before the frame is converted/copied.
+	 * @param size number of bytes that the frame needs
+	 * @return direct ByteBuffer whose capacity is size or more, frame data is written from its head.
+	 * 		return null to skip this frame. The ByteBuffer should not be released/reused
+	 * 		until it comes back with #onFrame.
+	 */
+	public ByteBuffer obtainBuffer(int size);
+	/**
+	 * This method is called from native library via JNI on the capture thread
+	 * after frame data was written into the ByteBuffer returned by #obtainBuffer.
+	 * This is always called once for each ByteBuffer that #obtainBuffer returned.
+	 * @param frame ByteBuffer returned by #obtainBuffer.
+	 * 		This library does not change position/limit, use size instead of them.
+	 * @param size number of bytes of frame data from the head of the ByteBuffer,
+	 * 		0 if this library could not write the frame(the ByteBuffer is not direct or too small)
+	 * @param pixelFormat one of UVCCamera#PIXEL_FORMAT_XXX
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @param sequence frame number
+	 * @param presentationTimeUs capture time of the frame [micro seconds] in the same clock as System#nanoTime,
+	 * 		translated from PTS/SCR of the device or the time the first payload was received if the device does not send them
+	 */
+	public void onFrame(ByteBuffer frame, int size, int pixelFormat, int width, int height, int sequence, long presentationTimeUs);
+}
@@ -0,0 +1,50 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+/**
+ * Callback interface for UVCCamera class that receives frame data with frame information.
+ * Unlike IFrameCallback, this library does not create new ByteBuffer for each frame
+ * but reuses fixed number(bufferNum of UVCCamera#setFrameCallback) of direct ByteBuffers
+ * in round robin manner, so this does not produce garbage on each frame.
+ */
+public interface IPooledFrameCallback {
+	/**
+	 * This method is called from native library via JNI on the capture thread.
+	 * Some frames may drops if this method takes a time.
+	 * @param frame direct ByteBuffer that this library keeps and reuses.
+	 * 		Content is overwritten when the same buffer is used again after bufferNum frames,
+	 * 		so you should copy it or finish using it before that if you keep the ByteBuffer.
+	 * 		This library does not change position/limit, use size instead of them.
+	 * @param size number of bytes of frame data from the head of the ByteBuffer
+	 * @param pixelFormat one of UVCCamera#PIXEL_FORMAT_XXX
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @param sequence frame number
+	 * @param presentationTimeUs capture time of the frame [micro seconds] in the same clock as System#nanoTime,
+	 * 		translated from PTS/SCR of the device or the time the first payload was received if the device does not send them
+	 */
+	public void onFrame(ByteBuffer frame, int size, int pixelFormat, int width, int height, int sequence, long presentationTimeUs);
+}
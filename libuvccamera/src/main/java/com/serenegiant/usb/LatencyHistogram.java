@@ -0,0 +1,90 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.Locale;
+
+/**
+ * Rolling histogram of latency of one stage for the last frames(256 frames), see UVCCamera#getLatencyHistogram.
+ * Latency is measured from receiving the first USB payload of each frame with monotonic clock.
+ * This is available only while latency trace is enabled with UVCCamera#setLatencyTrace.
+ */
+public final class LatencyHistogram {
+	/** the frame was assembled from USB payloads */
+	public static final int STAGE_COMPLETE = 0;
+	/** the preview thread took the frame from the queue */
+	public static final int STAGE_DEQUEUE = 1;
+	/** the frame was converted for preview display */
+	public static final int STAGE_CONVERT = 2;
+	/** the frame was posted to the preview Surface */
+	public static final int STAGE_DISPLAY = 3;
+	/** IFrameCallback#onFrame returned */
+	public static final int STAGE_CALLBACK = 4;
+	public static final int NUM_STAGES = 5;
+
+	/** upper bound of each bucket [milli seconds], the last bucket has no upper bound */
+	public static final int[] BUCKET_UPPER_BOUNDS_MS = { 1, 2, 4, 8, 16, 32, 64, 128, 256, };
+	/*package*/ static final int NUM_BUCKETS = BUCKET_UPPER_BOUNDS_MS.length + 1;
+	/** number of values, the order should be same as nativeGetLatencyHistogram */
+	/*package*/ static final int NUM_VALUES = 7 + NUM_BUCKETS;
+
+	public final int stage;
+	/** number of frames that reached the stage in the window */
+	public final int count;
+	/** latency [micro seconds] */
+	public final long minUs, avgUs, maxUs;
+	public final long p50Us, p95Us, p99Us;
+	/** number of frames in each bucket, see BUCKET_UPPER_BOUNDS_MS */
+	public final long[] buckets;
+
+	/*package*/ LatencyHistogram(final int stage, final long[] values) {
+		this.stage = stage;
+		count = (int)values[0];
+		minUs = values[1];
+		avgUs = values[2];
+		maxUs = values[3];
+		p50Us = values[4];
+		p95Us = values[5];
+		p99Us = values[6];
+		buckets = new long[NUM_BUCKETS];
+		System.arraycopy(values, 7, buckets, 0, NUM_BUCKETS);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			if (i > 0) sb.append(',');
+			if (i < BUCKET_UPPER_BOUNDS_MS.length) {
+				sb.append('<').append(BUCKET_UPPER_BOUNDS_MS[i]).append("ms:");
+			} else {
+				sb.append(">=").append(BUCKET_UPPER_BOUNDS_MS[i - 1]).append("ms:");
+			}
+			sb.append(buckets[i]);
+		}
+		return String.format(Locale.US,
+			"LatencyHistogram(stage=%d,count=%d,min=%dus,avg=%dus,max=%dus,p50=%dus,p95=%dus,p99=%dus,[%s])",
+			stage, count, minUs, avgUs, maxUs, p50Us, p95Us, p99Us, sb.toString());
+	}
+}
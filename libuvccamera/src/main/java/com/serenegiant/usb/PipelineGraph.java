@@ -0,0 +1,218 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.view.Surface;
+
+/**
+ * Helper class to feed several consumers(preview, encoder, analysis etc.) off a single USB stream.
+ * Raw frames from UVCCamera are copied once into the frame pool of the root DistributePipeline
+ * and it passes each frame to every branch. Each branch has it's own thread and queue depth,
+ * a branch that can not keep up drops frames that exceed its queue depth.
+ * Frames are shared by all branches with reference counting instead of copying,
+ * so queue depth of the root pipeline limits the number of frames in flight in the whole graph.
+ * A branch keeps up to its queue depth + 1 frames, while it keeps them they are not returned to
+ * the root pipeline. If the root pipeline runs out of frames, it drops incoming frames for all branches.
+ * Set queue depth of the root pipeline larger than the sum of (queue depth + 1) of the branches
+ * so that a slow consumer does not stall other consumers.
+ * <pre>
+ * final PipelineGraph graph = new PipelineGraph(12);
+ * graph.addPreview(surface, 4);
+ * graph.addFrameCallback(callback, UVCCamera.PIXEL_FORMAT_NV21, 2);
+ * graph.attach(camera);
+ * graph.start();
+ * camera.startPreview();
+ * </pre>
+ */
+public class PipelineGraph {
+	private final DistributePipeline mRoot;
+	// all pipelines that this graph created/added, these are released with this graph
+	private final List<IPipeline> mNodes = new ArrayList<IPipeline>();
+	private UVCCamera mCamera;
+	private boolean mIsRunning;
+
+	public PipelineGraph() {
+		this(IPipeline.DEFAULT_QUEUE_DEPTH);
+	}
+
+	/**
+	 * @param queueDepth queue depth of the root pipeline, this should be larger than
+	 * 			the sum of (queue depth + 1) of the branches
+	 */
+	public PipelineGraph(final int queueDepth) {
+		mRoot = new DistributePipeline(queueDepth);
+	}
+
+	/**
+	 * set the root pipeline of this graph to the camera
+	 * @param camera
+	 */
+	public synchronized void attach(final UVCCamera camera) {
+		detach();
+		mCamera = camera;
+		if (camera != null) {
+			camera.setPipeline(mRoot);
+		}
+	}
+
+	/**
+	 * remove the root pipeline of this graph from the camera
+	 */
+	public synchronized void detach() {
+		if (mCamera != null) {
+			mCamera.setPipeline(null);
+			mCamera = null;
+		}
+	}
+
+	/**
+	 * add a branch that draws frames into the Surface
+	 * @param surface
+	 * @param queueDepth
+	 * @return
+	 */
+	public synchronized PreviewPipeline addPreview(final Surface surface, final int queueDepth) {
+		final PreviewPipeline pipeline = new PreviewPipeline(queueDepth);
+		pipeline.setCaptureDisplay(surface);
+		add(pipeline);
+		return pipeline;
+	}
+
+	/**
+	 * add a branch that calls IFrameCallback#onFrame on it's own thread
+	 * @param callback
+	 * @param pixelFormat one of UVCCamera#PIXEL_FORMAT_XXX
+	 * @param queueDepth
+	 * @return
+	 */
+	public synchronized FrameCallbackPipeline addFrameCallback(final IFrameCallback callback,
+		final int pixelFormat, final int queueDepth) {
+
+		final FrameCallbackPipeline pipeline = new FrameCallbackPipeline(queueDepth);
+		pipeline.setFrameCallback(callback, pixelFormat);
+		add(pipeline);
+		return pipeline;
+	}
+
+	/**
+	 * add a branch that converts frames to the pixel format and passes them to the next pipeline
+	 * @param pixelFormat one of UVCCamera#PIXEL_FORMAT_XXX
+	 * @param next pipeline that receives converted frames, this is also released with this graph
+	 * @param queueDepth
+	 * @return
+	 */
+	public synchronized ConvertPipeline addConvert(final int pixelFormat, final IPipeline next, final int queueDepth) {
+		final ConvertPipeline pipeline = new ConvertPipeline(pixelFormat, queueDepth);
+		if (next != null) {
+			if (!mNodes.contains(next)) {
+				mNodes.add(next);
+				if (mIsRunning) {
+					next.start();
+				}
+			}
+			pipeline.setPipeline(next);
+		}
+		add(pipeline);
+		return pipeline;
+	}
+
+	/**
+	 * add pipeline as a branch of this graph
+	 * @param pipeline
+	 */
+	public synchronized void add(final IPipeline pipeline) {
+		if ((pipeline != null) && (pipeline != mRoot)) {
+			if (!mNodes.contains(pipeline)) {
+				mNodes.add(pipeline);
+			}
+			if (mIsRunning) {
+				pipeline.start();
+			}
+			mRoot.addPipeline(pipeline);
+		}
+	}
+
+	/**
+	 * remove the branch from this graph, the removed pipeline is stopped but not released
+	 * @param pipeline
+	 */
+	public synchronized void remove(final IPipeline pipeline) {
+		if (pipeline != null) {
+			mRoot.removePipeline(pipeline);
+			if (mNodes.remove(pipeline)) {
+				pipeline.stop();
+			}
+		}
+	}
+
+	/**
+	 * start all pipelines in this graph
+	 */
+	public synchronized void start() {
+		if (!mIsRunning) {
+			mIsRunning = true;
+			// start downstream first so that no frame is dropped
+			for (final IPipeline pipeline: mNodes) {
+				pipeline.start();
+			}
+			mRoot.start();
+		}
+	}
+
+	/**
+	 * stop all pipelines in this graph
+	 */
+	public synchronized void stop() {
+		if (mIsRunning) {
+			mIsRunning = false;
+			mRoot.stop();
+			for (final IPipeline pipeline: mNodes) {
+				pipeline.stop();
+			}
+		}
+	}
+
+	public synchronized boolean isRunning() {
+		return mIsRunning;
+	}
+
+	/**
+	 * detach from camera and release all pipelines in this graph
+	 */
+	public synchronized void release() {
+		detach();
+		stop();
+		for (final IPipeline pipeline: mNodes) {
+			mRoot.removePipeline(pipeline);
+		}
+		mRoot.release();
+		for (final IPipeline pipeline: mNodes) {
+			pipeline.release();
+		}
+		mNodes.clear();
+	}
+}
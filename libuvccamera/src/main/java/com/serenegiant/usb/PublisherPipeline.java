@@ -0,0 +1,114 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.Locale;
+
+/**
+ * pipeline that publishes frames to subscribers with zmq.
+ * The address selects the transport, "tcp://" for remote subscribers,
+ * "ipc://" for a subscriber process on the same device and "inproc://" for a subscriber in this process.
+ * The native implementation is only available when libUVCCamera is built with
+ * USE_PUBLISHER_PIPELINE=1 (see UVCCamera/Android.mk), otherwise the constructor throws UnsatisfiedLinkError.
+ */
+public class PublisherPipeline extends AbstractPipeline {
+	/** default high water mark of the send queue */
+	public static final int DEFAULT_HWM = 4;
+
+	/**
+	 * Snapshot of publisher statistics
+	 */
+	public static final class Stats {
+		/** number of values, the order should be same as nativeGetStats */
+		/*package*/ static final int NUM_VALUES = 6;
+
+		/** number of frames and bytes sent to zmq */
+		public final long framesSent, bytesSent;
+		/** number of frames dropped because the send queue reached high water mark */
+		public final long framesDropped;
+		/** number of errors while sending */
+		public final long sendErrors;
+		/** number of zero copy frames that zmq has not released yet and its maximum */
+		public final int inFlight, maxInFlight;
+
+		/*package*/ Stats(final long[] values) {
+			framesSent = values[0];
+			bytesSent = values[1];
+			framesDropped = values[2];
+			sendErrors = values[3];
+			inFlight = (int)values[4];
+			maxInFlight = (int)values[5];
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"Stats(sent=%d/%dbytes,dropped=%d,errors=%d,inFlight=%d,maxInFlight=%d)",
+				framesSent, bytesSent, framesDropped, sendErrors, inFlight, maxInFlight);
+		}
+	}
+
+	/**
+	 * Constructor with default high water mark that copies frames into messages
+	 * @param address address to bind, e.g. "tcp://*:5555", "ipc:///data/local/tmp/uvc", "inproc://uvc"
+	 * @param subscriptionId topic of each message
+	 */
+	public PublisherPipeline(final String address, final String subscriptionId) {
+		this(address, subscriptionId, DEFAULT_HWM, false);
+	}
+
+	/**
+	 * @param address address to bind, e.g. "tcp://*:5555", "ipc:///data/local/tmp/uvc", "inproc://uvc"
+	 * @param subscriptionId topic of each message
+	 * @param hwm high water mark of the send queue, 0 or negative value means DEFAULT_HWM
+	 * @param zeroCopy true: send frame data without copying, the frame is kept until zmq releases it
+	 */
+	public PublisherPipeline(final String address, final String subscriptionId,
+		final int hwm, final boolean zeroCopy) {
+
+		super(PIPELINE_TYPE_PUBLISHER);
+		mNativePtr = nativeCreate(address, subscriptionId, hwm, zeroCopy);
+	}
+
+	/**
+	 * @return null if this pipeline is already released
+	 */
+	public synchronized Stats getStats() {
+		if (mNativePtr != 0) {
+			final long[] values = new long[Stats.NUM_VALUES];
+			if (nativeGetStats(mNativePtr, values) == 0) {
+				return new Stats(values);
+			}
+		}
+		return null;
+	}
+
+	// #nativeCreate and #nativeDestroy are not static methods.
+	private final native long nativeCreate(final String address,
+		final String subscriptionId, final int hwm, final boolean zeroCopy);
+	@Override
+	protected final native void nativeDestroy(final long id_pipeline);
+
+	private static final native int nativeGetStats(final long id_pipeline, final long[] values);
+}
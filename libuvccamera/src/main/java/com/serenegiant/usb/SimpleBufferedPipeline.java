@@ -0,0 +1,43 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+/**
+ * pipeline that just buffers frames on it's own thread and passes them to the next pipeline
+ */
+public class SimpleBufferedPipeline extends AbstractPipeline {
+
+	/**
+	 * @param queueDepth max number of frames that this pipeline can queue
+	 */
+	public SimpleBufferedPipeline(final int queueDepth) {
+		super(PIPELINE_TYPE_SIMPLE_BUFFERED);
+		mNativePtr = nativeCreate(queueDepth);
+	}
+
+	// #nativeCreate and #nativeDestroy are not static methods.
+	private final native long nativeCreate(final int queueDepth);
+	@Override
+	protected final native void nativeDestroy(final long id_pipeline);
+}
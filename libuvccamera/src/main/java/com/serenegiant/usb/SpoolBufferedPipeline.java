@@ -0,0 +1,138 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.Locale;
+
+/**
+ * store-and-forward pipeline that appends frames to fixed-size memory mapped segment files
+ * and passes them to the next pipeline in the order of arrival.
+ * Unconsumed frames are kept in the directory and replayed after the pipeline is re-created,
+ * so this pipeline can buffer frames while the consumer or network is not available.
+ * Queued frames survive a crash of the app process. On power loss, the latest frames that
+ * were not written back to the storage yet may be lost and consumed frames may be replayed again.
+ */
+public class SpoolBufferedPipeline extends AbstractPipeline {
+	/** default size of each segment file, all segment files are memory mapped at the same time */
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	/** default maximum number of segment files */
+	public static final int DEFAULT_MAX_SEGMENTS = 4;
+	/** default retention time [milli seconds] */
+	public static final long DEFAULT_RETENTION_MS = 30000;
+
+	/**
+	 * Snapshot of spool statistics
+	 */
+	public static final class Stats {
+		/** number of values, the order should be same as nativeGetStats */
+		/*package*/ static final int NUM_VALUES = 8;
+
+		/** number of frames and bytes appended to segment files */
+		public final long framesWritten, bytesWritten;
+		/** number of frames and bytes passed to the next pipeline */
+		public final long framesRead, bytesRead;
+		/** number of frames dropped because the spool was full */
+		public final long framesDropped;
+		/** number of frames discarded because they were older than retention time */
+		public final long framesExpired;
+		/** number of unconsumed frames found in existing segment files */
+		public final long framesRecovered;
+		/** number of segment files currently in use */
+		public final int segments;
+
+		/*package*/ Stats(final long[] values) {
+			framesWritten = values[0];
+			bytesWritten = values[1];
+			framesRead = values[2];
+			bytesRead = values[3];
+			framesDropped = values[4];
+			framesExpired = values[5];
+			framesRecovered = values[6];
+			segments = (int)values[7];
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"Stats(written=%d/%dbytes,read=%d/%dbytes,dropped=%d,expired=%d,recovered=%d,segments=%d)",
+				framesWritten, bytesWritten, framesRead, bytesRead,
+				framesDropped, framesExpired, framesRecovered, segments);
+		}
+	}
+
+	/**
+	 * Constructor with default segment size/number and retention time
+	 * @param dirPath directory to place segment files
+	 */
+	public SpoolBufferedPipeline(final String dirPath) {
+		this(dirPath, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS, DEFAULT_RETENTION_MS);
+	}
+
+	/**
+	 * @param dirPath directory to place segment files
+	 * @param segmentSize size of each segment file in bytes, frames larger than this are dropped.
+	 * 		0 or negative value means DEFAULT_SEGMENT_SIZE
+	 * @param maxSegments maximum number of segment files, new frames are dropped while spool is full.
+	 * 		0 or negative value means DEFAULT_MAX_SEGMENTS. this is reduced so that
+	 * 		all segment files fit in 128MB on 32bit devices and 1GB on 64bit devices
+	 * @param retentionMs frames older than this are discarded, 0 means never, negative value means DEFAULT_RETENTION_MS
+	 */
+	public SpoolBufferedPipeline(final String dirPath,
+		final int segmentSize, final int maxSegments, final long retentionMs) {
+
+		super(PIPELINE_TYPE_SPOOL_BUFFERED);
+		mNativePtr = nativeCreate(dirPath, segmentSize, maxSegments, retentionMs);
+	}
+
+	/**
+	 * discard all spooled frames and remove segment files, this is ignored while running
+	 */
+	public synchronized void clear() {
+		if (mNativePtr != 0) {
+			nativeClear(mNativePtr);
+		}
+	}
+
+	/**
+	 * @return null if this pipeline is already released
+	 */
+	public synchronized Stats getStats() {
+		if (mNativePtr != 0) {
+			final long[] values = new long[Stats.NUM_VALUES];
+			if (nativeGetStats(mNativePtr, values) == 0) {
+				return new Stats(values);
+			}
+		}
+		return null;
+	}
+
+	// #nativeCreate and #nativeDestroy are not static methods.
+	private final native long nativeCreate(final String dirPath,
+		final int segmentSize, final int maxSegments, final long retentionMs);
+	@Override
+	protected final native void nativeDestroy(final long id_pipeline);
+
+	private static final native int nativeClear(final long id_pipeline);
+	private static final native int nativeGetStats(final long id_pipeline, final long[] values);
+}
@@ -0,0 +1,91 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of USB streaming statistics since preview started, see UVCCamera#getStreamStats.
+ * Errors of transfers/packets and incomplete frames mean USB bandwidth or device problem,
+ * overwritten/queue dropped frames mean the consumer can not keep up.
+ */
+public final class StreamStats {
+	/** number of values, the order should be same as nativeGetStreamStats */
+	/*package*/ static final int NUM_VALUES = 15;
+
+	/** number of USB transfers completed/failed(error, timeout, stall or overflow) */
+	public final long transfersCompleted, transfersFailed;
+	/** number of isochronous packets with error status */
+	public final long isoPacketErrors;
+	/** number of payload headers with error bit */
+	public final long headerErrors;
+	/** number of payloads shorter than their header */
+	public final long bogusHeaders;
+	/** received bytes including payload headers */
+	public final long bytes;
+	/** throughput during the last second */
+	public final long bytesPerSecond;
+	/** number of frames assembled from payloads */
+	public final long framesAssembled;
+	/** number of frames with error or shorter than expected, these are not usable */
+	public final long framesIncomplete;
+	/** number of frames dropped in libuvc because previous frame was not taken yet */
+	public final long framesOverwritten;
+	/** smoothed interval between assembled frames and its variation [micro seconds] */
+	public final long frameIntervalUs, frameJitterUs;
+	/** number of USB transfers currently in use */
+	public final int transferBuffers;
+	/** number of frames dropped because of unexpected size/format */
+	public final long framesBroken;
+	/** number of frames dropped because preview thread could not keep up */
+	public final long framesQueueDropped;
+
+	/*package*/ StreamStats(final long[] values) {
+		transfersCompleted = values[0];
+		transfersFailed = values[1];
+		isoPacketErrors = values[2];
+		headerErrors = values[3];
+		bogusHeaders = values[4];
+		bytes = values[5];
+		bytesPerSecond = values[6];
+		framesAssembled = values[7];
+		framesIncomplete = values[8];
+		framesOverwritten = values[9];
+		frameIntervalUs = values[10];
+		frameJitterUs = values[11];
+		transferBuffers = (int)values[12];
+		framesBroken = values[13];
+		framesQueueDropped = values[14];
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US,
+			"StreamStats(transfers=%d/failed=%d,isoErr=%d,headerErr=%d,bogus=%d,bytes=%d,%dB/s,"
+			+ "frames=%d/incomplete=%d,overwritten=%d,broken=%d,queueDrop=%d,interval=%dus,jitter=%dus,buffers=%d)",
+			transfersCompleted, transfersFailed, isoPacketErrors, headerErrors, bogusHeaders, bytes, bytesPerSecond,
+			framesAssembled, framesIncomplete, framesOverwritten, framesBroken, framesQueueDropped,
+			frameIntervalUs, frameJitterUs, transferBuffers);
+	}
+}
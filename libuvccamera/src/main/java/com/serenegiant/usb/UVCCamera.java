@@ -50,6 +50,31 @@ public class UVCCamera {
 	public static final int DEFAULT_PREVIEW_MIN_FPS = 1;
 	public static final int DEFAULT_PREVIEW_MAX_FPS = 30;
 	public static final float DEFAULT_BANDWIDTH = 1.0f;
+	public static final int DEFAULT_FRAME_QUEUE_DEPTH = 4;
+	public static final int DEFAULT_FRAME_POOL_SIZE = DEFAULT_FRAME_QUEUE_DEPTH + 2;
+	public static final int MAX_FRAME_QUEUE_DEPTH = 32;
+	public static final int MAX_CONVERT_THREADS = 8;
+	/** use the default number of transfer buffers/packets per transfer of libuvc */
+	public static final int DEFAULT_TRANSFER_BUFFERS = 0;
+	public static final int DEFAULT_PACKETS_PER_TRANSFER = 0;
+	/** adjust the number of transfer buffers by incomplete frames while streaming */
+	public static final int TRANSFER_BUFFERS_ADAPTIVE = -1;
+	public static final int MIN_TRANSFER_BUFFERS = 2;
+	public static final int MAX_TRANSFER_BUFFERS = 32;
+	public static final int MAX_PACKETS_PER_TRANSFER = 128;
+	/** max bufferNum of #setFrameCallback(IPooledFrameCallback, int, int) */
+	public static final int MAX_CALLBACK_BUFFERS = 8;
+	/** frames from camera to the preview thread */
+	public static final int QUEUE_CONSUMER_PREVIEW = 0;
+	/** frames from the preview thread to capture Surface and frame callback */
+	public static final int QUEUE_CONSUMER_CAPTURE = 1;
+	/** FIFO, drop incoming frame when the queue is full */
+	public static final int QUEUE_POLICY_DROP_NEWEST = 0;
+	/** consumer always gets the latest frame and older frames are dropped, for low latency display */
+	public static final int QUEUE_POLICY_LATEST_WINS = 1;
+	/** FIFO, producer waits for free space until timeout and then drops incoming frame, for recording */
+	public static final int QUEUE_POLICY_BLOCK = 2;
+	public static final int MAX_QUEUE_TIMEOUT_MS = 1000;
 
 	public static final int FRAME_FORMAT_YUYV  = 0;
 	public static final int FRAME_FORMAT_MJPEG = 1;
@@ -65,6 +90,9 @@ public class UVCCamera {
 	public static final int PIXEL_FORMAT_YUV420SP = 4;
 	public static final int PIXEL_FORMAT_NV21 = 5;		// = YVU420SemiPlanar
 
+	public static final int STILL_FORMAT_JPEG = 0;
+	public static final int STILL_FORMAT_PNG = 1;
+
 	//--------------------------------------------------------------------------------
     public static final int	CTRL_SCANNING		= 0x00000001;	// D0:  Scanning Mode
     public static final int CTRL_AE				= 0x00000002;	// D1:  Auto-Exposure Mode
@@ -129,13 +157,33 @@ public class UVCCamera {
 	}
 
 	private UsbControlBlock mCtrlBlock;
+	/** pipeline that is set via #setPipeline, this is detached when the pipeline is released */
+	private IPipeline mPipeline;
+	private final AbstractPipeline.PipelineHolder mPipelineHolder = new AbstractPipeline.PipelineHolder() {
+		@Override
+		public void detachPipeline(final AbstractPipeline pipeline) {
+			synchronized (UVCCamera.this) {
+				if (mPipeline == pipeline) {
+					setPipeline(null);
+				}
+			}
+		}
+	};
     protected long mControlSupports;			// カメラコントロールでサポートしている機能フラグ
     protected long mProcSupports;				// プロセッシングユニットでサポートしている機能フラグ
     protected int mCurrentFrameFormat = FRAME_FORMAT_MJPEG;
 	protected int mCurrentWidth = DEFAULT_PREVIEW_WIDTH, mCurrentHeight = DEFAULT_PREVIEW_HEIGHT;
 	protected float mCurrentBandwidthFactor = DEFAULT_BANDWIDTH;
+	protected int mCurrentTransferBuffers = DEFAULT_TRANSFER_BUFFERS;
+	protected int mCurrentPacketsPerTransfer = DEFAULT_PACKETS_PER_TRANSFER;
     protected String mSupportedSize;
     protected List<Size> mCurrentSizeList;
+	/** guards mRawFrameAvailable/mRawFrameCallers, #captureRawFrame waits without holding the instance lock */
+	private final Object mRawFrameSync = new Object();
+	/** true while the camera is opened and #captureRawFrame can enter native code */
+	private boolean mRawFrameAvailable;
+	/** number of threads that are in native code of #captureRawFrame */
+	private int mRawFrameCallers;
 	// these fields from here are accessed from native code and do not change name and remove
     protected long mNativePtr;
     protected int mScanningModeMin, mScanningModeMax, mScanningModeDef;
@@ -175,6 +223,7 @@ public class UVCCamera {
     protected int mMultiplierLimitMin, mMultiplierLimitMax, mMultiplierLimitDef;
     protected int mAnalogVideoStandardMin, mAnalogVideoStandardMax, mAnalogVideoStandardDef;
     protected int mAnalogVideoLockStateMin, mAnalogVideoLockStateMax, mAnalogVideoLockStateDef;
+    protected int mPoolMissCount, mPoolOverflowCount, mQueueDropCount;
     // until here
     /**
      * the sonctructor of this class should be call within the thread that has a looper
@@ -211,7 +260,11 @@ public class UVCCamera {
     		mSupportedSize = nativeGetSupportedSize(mNativePtr);
     	}
 		nativeSetPreviewSize(mNativePtr, DEFAULT_PREVIEW_WIDTH, DEFAULT_PREVIEW_HEIGHT,
-			DEFAULT_PREVIEW_MIN_FPS, DEFAULT_PREVIEW_MAX_FPS, DEFAULT_PREVIEW_MODE, DEFAULT_BANDWIDTH);
+			DEFAULT_PREVIEW_MIN_FPS, DEFAULT_PREVIEW_MAX_FPS, DEFAULT_PREVIEW_MODE, DEFAULT_BANDWIDTH,
+			mCurrentTransferBuffers, mCurrentPacketsPerTransfer);
+		synchronized (mRawFrameSync) {
+			mRawFrameAvailable = true;
+		}
     }
 
 	/**
@@ -238,7 +291,13 @@ public class UVCCamera {
      * close and release UVC camera
      */
     public synchronized void close() {
+		synchronized (mRawFrameSync) {
+			mRawFrameAvailable = false;
+		}
+    	// this also fails and wakes up callers of #captureRawFrame that are waiting
     	stopPreview();
+    	waitRawFrameCallers();
+    	setPipeline(null);
     	if (mNativePtr != 0) {
     		nativeRelease(mNativePtr);
 //    		mNativePtr = 0;	// nativeDestroyを呼ぶのでここでクリアしちゃダメ
@@ -324,16 +383,48 @@ public class UVCCamera {
 	 * @param bandwidthFactor
 	 */
 	public void setPreviewSize(final int width, final int height, final int min_fps, final int max_fps, final int frameFormat, final float bandwidthFactor) {
+		setPreviewSize(width, height, min_fps, max_fps, frameFormat, bandwidthFactor,
+			mCurrentTransferBuffers, mCurrentPacketsPerTransfer);
+	}
+
+	/**
+	 * Set preview size and preview mode with USB transfer settings,
+	 * transfer settings are applied when preview starts next time.
+	 * More transfer buffers are robust to scheduling delays under load,
+	 * fewer transfer buffers and packets reduce latency.
+	 * @param width
+	 * @param height
+	 * @param min_fps
+	 * @param max_fps
+	 * @param frameFormat either FRAME_FORMAT_YUYV(0) or FRAME_FORMAT_MJPEG(1)
+	 * @param bandwidthFactor
+	 * @param transferBuffers [MIN_TRANSFER_BUFFERS, MAX_TRANSFER_BUFFERS], DEFAULT_TRANSFER_BUFFERS
+	 * 		or TRANSFER_BUFFERS_ADAPTIVE
+	 * @param packetsPerTransfer upper limit of isochronous packets per transfer [1, MAX_PACKETS_PER_TRANSFER]
+	 * 		or DEFAULT_PACKETS_PER_TRANSFER
+	 */
+	public void setPreviewSize(final int width, final int height, final int min_fps, final int max_fps,
+		final int frameFormat, final float bandwidthFactor,
+		final int transferBuffers, final int packetsPerTransfer) {
+
 		if ((width == 0) || (height == 0))
 			throw new IllegalArgumentException("invalid preview size");
+		if ((transferBuffers != TRANSFER_BUFFERS_ADAPTIVE) && (transferBuffers != DEFAULT_TRANSFER_BUFFERS)
+			&& ((transferBuffers < MIN_TRANSFER_BUFFERS) || (transferBuffers > MAX_TRANSFER_BUFFERS)))
+			throw new IllegalArgumentException("invalid number of transfer buffers");
+		if ((packetsPerTransfer < DEFAULT_PACKETS_PER_TRANSFER) || (packetsPerTransfer > MAX_PACKETS_PER_TRANSFER))
+			throw new IllegalArgumentException("invalid number of packets per transfer");
 		if (mNativePtr != 0) {
-			final int result = nativeSetPreviewSize(mNativePtr, width, height, min_fps, max_fps, frameFormat, bandwidthFactor);
+			final int result = nativeSetPreviewSize(mNativePtr, width, height, min_fps, max_fps, frameFormat, bandwidthFactor,
+				transferBuffers, packetsPerTransfer);
 			if (result != 0)
 				throw new IllegalArgumentException("Failed to set preview size");
 			mCurrentFrameFormat = frameFormat;
 			mCurrentWidth = width;
 			mCurrentHeight = height;
 			mCurrentBandwidthFactor = bandwidthFactor;
+			mCurrentTransferBuffers = transferBuffers;
+			mCurrentPacketsPerTransfer = packetsPerTransfer;
 		}
 	}
 
@@ -415,6 +506,118 @@ public class UVCCamera {
     	}
     }
 
+    /**
+     * set frame callback that reuses direct ByteBuffers and receives frame information
+     * @param callback
+     * @param pixelFormat
+     * @param bufferNum number of ByteBuffers to reuse [1, MAX_CALLBACK_BUFFERS]
+     * @throws IllegalArgumentException if bufferNum is out of range
+     */
+    public void setFrameCallback(final IPooledFrameCallback callback, final int pixelFormat, final int bufferNum) {
+    	if ((callback != null) && ((bufferNum < 1) || (bufferNum > MAX_CALLBACK_BUFFERS))) {
+    		throw new IllegalArgumentException("invalid number of callback buffers:" + bufferNum);
+    	}
+    	if (mNativePtr != 0) {
+        	nativeSetPooledFrameCallback(mNativePtr, callback, pixelFormat, bufferNum);
+    	}
+    }
+
+    /**
+     * set frame callback that supplies the ByteBuffer each frame is converted/copied into,
+     * e.g. input buffer of MediaCodec, so that frame data is not copied again on Java side.
+     * this replaces IFrameCallback/IPooledFrameCallback
+     * @param callback null to remove
+     * @param pixelFormat
+     */
+    public void setDirectFrameCallback(final IDirectFrameCallback callback, final int pixelFormat) {
+    	if (mNativePtr != 0) {
+        	nativeSetDirectFrameCallback(mNativePtr, callback, pixelFormat);
+    	}
+    }
+
+    /**
+     * set frame callback that receives multiple frames at once on a dedicated thread.
+     * this can be used together with IFrameCallback/IPooledFrameCallback
+     * @param callback null to remove
+     * @param pixelFormat
+     * @param maxFrames max number of frames in one batch [1, 64]
+     * @param windowMs deliver the batch when this period elapsed since its first frame even if it is not full, 0: only when full
+     */
+    public void setFrameCallback(final IBatchFrameCallback callback, final int pixelFormat, final int maxFrames, final int windowMs) {
+    	if (mNativePtr != 0) {
+        	nativeSetBatchFrameCallback(mNativePtr, callback, pixelFormat, maxFrames, windowMs);
+    	}
+    }
+
+    /**
+     * capture still image from the next frame asynchronously.
+     * encoding and file writing run on native worker threads, the result is notified via callback.
+     * requesting several times in a row captures consecutive frames.
+     * @param path path of the output file
+     * @param format STILL_FORMAT_JPEG or STILL_FORMAT_PNG
+     * @param quality JPEG quality [1, 100], for PNG higher value means higher compression level
+     * @param callback can be null
+     * @return 0 if the request was accepted, otherwise negative value and callback is never called
+     */
+    public synchronized int captureStill(final String path, final int format, final int quality, final IStillCaptureCallback callback) {
+    	if (mCtrlBlock != null) {
+    		return nativeCaptureStill(mNativePtr, path, format, quality, callback);
+    	}
+    	return -1;
+    }
+
+    /**
+     * get the next frame from the camera in full resolution without any preview surface/view.
+     * this blocks the caller until the next frame arrives, preview stops or timeout.
+     * this method is not synchronized so that waiting does not block other camera operations.
+     * close/destroy wait until this returns, so they never release the native object while this uses it.
+     * @param pixelFormat PIXEL_FORMAT_XXX, PIXEL_FORMAT_RAW returns MJPEG payload as it is in MJPEG mode(no re-encoding)
+     * @param timeoutMs max wait time for the next frame [milliseconds], must be positive
+     * @return frame data, the size is same as the preview size, null if timeout, preview stopped or failed
+     * @throws IllegalArgumentException if timeoutMs is 0 or negative
+     */
+    public byte[] captureRawFrame(final int pixelFormat, final int timeoutMs) {
+    	if (timeoutMs <= 0) {
+    		throw new IllegalArgumentException("timeoutMs should be positive:" + timeoutMs);
+    	}
+    	final long nativePtr;
+    	synchronized (mRawFrameSync) {
+    		nativePtr = mNativePtr;
+    		if (!mRawFrameAvailable || (nativePtr == 0)) {
+    			return null;
+    		}
+    		mRawFrameCallers++;
+    	}
+    	try {
+    		return nativeCaptureRawFrame(nativePtr, pixelFormat, timeoutMs);
+    	} finally {
+    		synchronized (mRawFrameSync) {
+    			mRawFrameCallers--;
+    			mRawFrameSync.notifyAll();
+    		}
+    	}
+    }
+
+    /**
+     * wait until all callers of #captureRawFrame leave native code
+     */
+    private void waitRawFrameCallers() {
+    	boolean interrupted = false;
+    	synchronized (mRawFrameSync) {
+    		for ( ; mRawFrameCallers > 0 ; ) {
+    			try {
+    				mRawFrameSync.wait();
+    			} catch (final InterruptedException e) {
+    				// the native object must not be released while it is in use
+    				interrupted = true;
+    			}
+    		}
+    	}
+    	if (interrupted) {
+    		Thread.currentThread().interrupt();
+    	}
+    }
+
     /**
      * start preview
      */
@@ -429,6 +632,7 @@ public class UVCCamera {
      */
     public synchronized void stopPreview() {
     	setFrameCallback(null, 0);
+    	setFrameCallback((IBatchFrameCallback)null, 0, 0, 0);
     	if (mCtrlBlock != null) {
     		nativeStopPreview(mNativePtr);
     	}
@@ -1042,12 +1246,17 @@ public class UVCCamera {
 	private static final native int nativeSetStatusCallback(final long mNativePtr, final IStatusCallback callback);
 	private static final native int nativeSetButtonCallback(final long mNativePtr, final IButtonCallback callback);
 
-    private static final native int nativeSetPreviewSize(final long id_camera, final int width, final int height, final int min_fps, final int max_fps, final int mode, final float bandwidth);
+    private static final native int nativeSetPreviewSize(final long id_camera, final int width, final int height, final int min_fps, final int max_fps, final int mode, final float bandwidth, final int transfer_bufs, final int packets_per_transfer);
     private static final native String nativeGetSupportedSize(final long id_camera);
     private static final native int nativeStartPreview(final long id_camera);
     private static final native int nativeStopPreview(final long id_camera);
     private static final native int nativeSetPreviewDisplay(final long id_camera, final Surface surface);
     private static final native int nativeSetFrameCallback(final long mNativePtr, final IFrameCallback callback, final int pixelFormat);
+    private static final native int nativeSetPooledFrameCallback(final long mNativePtr, final IPooledFrameCallback callback, final int pixelFormat, final int bufferNum);
+    private static final native int nativeSetDirectFrameCallback(final long mNativePtr, final IDirectFrameCallback callback, final int pixelFormat);
+    private static final native int nativeSetBatchFrameCallback(final long mNativePtr, final IBatchFrameCallback callback, final int pixelFormat, final int maxFrames, final int windowMs);
+    private static final native byte[] nativeCaptureRawFrame(final long mNativePtr, final int pixelFormat, final int timeoutMs);
+    private static final native int nativeCaptureStill(final long mNativePtr, final String path, final int format, final int quality, final IStillCaptureCallback callback);
 
 //**********************************************************************
     /**
@@ -1071,6 +1280,164 @@ public class UVCCamera {
     }
     private static final native int nativeSetCaptureDisplay(final long id_camera, final Surface surface);
 
+    /**
+     * set pipeline that receives raw frames from this camera,
+     * preview can start without preview display while pipeline is set
+     * @param pipeline null to remove
+     * @see PipelineGraph
+     */
+    public synchronized void setPipeline(final IPipeline pipeline) {
+    	final int result = mNativePtr != 0 ? nativeSetPipeline(mNativePtr, pipeline) : -1;
+    	if (((result == 0) || (pipeline == null)) && (mPipeline != pipeline)) {
+    		AbstractPipeline.removeHolder(mPipeline, mPipelineHolder);
+    		AbstractPipeline.addHolder(pipeline, mPipelineHolder);
+    		mPipeline = pipeline;
+    	}
+    }
+    private static final native int nativeSetPipeline(final long id_camera, final IPipeline pipeline);
+
+    /**
+     * set sizing policy of frame buffers for preview, call this after #open
+     * @param queueDepth max number of frames waiting for preview thread [1, MAX_FRAME_QUEUE_DEPTH],
+     * 		larger value reduces dropping frames on high fps but increases latency and memory usage
+     * @param poolSize max number of frames kept for reuse, frames over this are freed
+     * @param preallocate if true, allocate poolSize frames when preview starts
+     * 		instead of allocating on the thread that receives frames from camera
+     */
+    public synchronized void setBufferPolicy(final int queueDepth, final int poolSize, final boolean preallocate) {
+    	if (mNativePtr != 0) {
+    		final int result = nativeSetBufferPolicy(mNativePtr, queueDepth, poolSize, preallocate);
+			if (result != 0)
+				throw new IllegalArgumentException("Failed to set buffer policy");
+    	}
+    }
+    private static final native int nativeSetBufferPolicy(final long id_camera, final int queueDepth, final int poolSize, final boolean preallocate);
+
+    /**
+     * set how frame queue behaves when the consumer can not keep up with the camera, call this after #open.
+     * as default, QUEUE_CONSUMER_PREVIEW is QUEUE_POLICY_DROP_NEWEST and QUEUE_CONSUMER_CAPTURE is QUEUE_POLICY_LATEST_WINS
+     * @param consumer QUEUE_CONSUMER_PREVIEW or QUEUE_CONSUMER_CAPTURE
+     * @param policy QUEUE_POLICY_DROP_NEWEST, QUEUE_POLICY_LATEST_WINS or QUEUE_POLICY_BLOCK
+     * @param queueDepth max number of frames in the queue [1, MAX_FRAME_QUEUE_DEPTH], ignored for QUEUE_POLICY_LATEST_WINS
+     * @param timeoutMs max wait time for free space with QUEUE_POLICY_BLOCK [0, MAX_QUEUE_TIMEOUT_MS],
+     * 		blocking QUEUE_CONSUMER_PREVIEW delays handling of USB transfers, so keep this short
+     */
+    public synchronized void setQueuePolicy(final int consumer, final int policy, final int queueDepth, final int timeoutMs) {
+    	if (mNativePtr != 0) {
+    		final int result = nativeSetQueuePolicy(mNativePtr, consumer, policy, queueDepth, timeoutMs);
+			if (result != 0)
+				throw new IllegalArgumentException("Failed to set queue policy");
+    	}
+    }
+    private static final native int nativeSetQueuePolicy(final long id_camera, final int consumer, final int policy, final int queueDepth, final int timeoutMs);
+
+    /**
+     * set number of threads that convert pixel format of a frame for preview display and frame callback.
+     * large frames(720p and larger) of YUYV/UYVY(including frames decoded from MJPEG)
+     * are split into horizontal stripes and converted in parallel.
+     * @param threadNum [1, MAX_CONVERT_THREADS], 1 means no parallel conversion(default)
+     */
+    public synchronized void setConvertThreads(final int threadNum) {
+    	if (mNativePtr != 0) {
+    		final int result = nativeSetConvertThreads(mNativePtr, threadNum);
+			if (result != 0)
+				throw new IllegalArgumentException("Failed to set convert threads");
+    	}
+    }
+    private static final native int nativeSetConvertThreads(final long id_camera, final int threadNum);
+
+    /**
+     * update frame buffer statistics since preview started,
+     * you can get them with #getPoolMissCount, #getPoolOverflowCount and #getQueueDropCount
+     */
+    public synchronized void updateBufferStats() {
+    	if (mNativePtr != 0) {
+    		nativeUpdateBufferStats(mNativePtr);
+    	}
+    }
+    private final native int nativeUpdateBufferStats(final long id_camera);
+
+    /**
+     * @return number of times frame pool had no frame for the request,
+     * frames that libuvc could not get from the pool are dropped and the pool is refilled on the preview thread
+     */
+    public int getPoolMissCount() {
+    	return mPoolMissCount;
+    }
+
+    /**
+     * @return number of frames freed because frame pool was full
+     */
+    public int getPoolOverflowCount() {
+    	return mPoolOverflowCount;
+    }
+
+    /**
+     * @return number of frames dropped because preview thread could not keep up
+     */
+    public int getQueueDropCount() {
+    	return mQueueDropCount;
+    }
+
+    /**
+     * get USB streaming statistics since preview started
+     * @return null if preview is not running
+     */
+    public synchronized StreamStats getStreamStats() {
+    	if (mNativePtr != 0) {
+    		final long[] values = new long[StreamStats.NUM_VALUES];
+    		if (nativeGetStreamStats(mNativePtr, values) == 0) {
+    			return new StreamStats(values);
+    		}
+    	}
+    	return null;
+    }
+    private static final native int nativeGetStreamStats(final long id_camera, final long[] values);
+
+    /**
+     * enable/disable recording latency of each frame from receiving its first USB payload
+     * to preview display and IFrameCallback, call this after #open.
+     * this adds a few clock readings per frame
+     */
+    public synchronized void setLatencyTrace(final boolean enabled) {
+    	if (mNativePtr != 0) {
+    		nativeSetLatencyTrace(mNativePtr, enabled);
+    	}
+    }
+    private static final native int nativeSetLatencyTrace(final long id_camera, final boolean enabled);
+
+    /**
+     * get rolling histogram of latency for the last frames
+     * @param stage one of LatencyHistogram.STAGE_XXX
+     * @return null if the camera is not opened
+     */
+    public synchronized LatencyHistogram getLatencyHistogram(final int stage) {
+    	if ((stage < 0) || (stage >= LatencyHistogram.NUM_STAGES)) {
+    		throw new IllegalArgumentException("unknown stage:" + stage);
+    	}
+    	if (mNativePtr != 0) {
+    		final long[] values = new long[LatencyHistogram.NUM_VALUES];
+    		if (nativeGetLatencyHistogram(mNativePtr, stage, values) == 0) {
+    			return new LatencyHistogram(stage, values);
+    		}
+    	}
+    	return null;
+    }
+    private static final native int nativeGetLatencyHistogram(final long id_camera, final int stage, final long[] values);
+
+    /**
+     * write latency of each stage for the last frames to the file as csv
+     * @param path path of the file, the app needs the permission to write it
+     * @return true if succeeded
+     */
+    public synchronized boolean dumpLatencyTrace(final String path) {
+    	if ((mNativePtr != 0) && (path != null)) {
+    		return nativeDumpLatencyTrace(mNativePtr, path) == 0;
+    	}
+    	return false;
+    }
+    private static final native int nativeDumpLatencyTrace(final long id_camera, final String path);
+
     private static final native long nativeGetCtrlSupports(final long id_camera);
     private static final native long nativeGetProcSupports(final long id_camera);
 
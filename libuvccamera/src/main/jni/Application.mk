@@ -27,6 +27,7 @@
 #NDK_TOOLCHAIN_VERSION := 4.9
 
 APP_PLATFORM := android-14
+APP_STL := gnustl_static
 APP_ABI := armeabi armeabi-v7a x86 mips
 #APP_OPTIM := debug
 APP_OPTIM := release
@@ -35,6 +35,7 @@ CFLAGS := -Werror
 
 LOCAL_C_INCLUDES := \
 		$(LOCAL_PATH)/ \
+		$(LOCAL_PATH)/pipeline \
 		$(LOCAL_PATH)/../ \
 		$(LOCAL_PATH)/../rapidjson/include \
 
@@ -42,13 +43,26 @@ LOCAL_CFLAGS := $(LOCAL_C_INCLUDES:%=-I%)
 LOCAL_CFLAGS += -DANDROID_NDK
 LOCAL_CFLAGS += -DLOG_NDEBUG
 LOCAL_CFLAGS += -DACCESS_RAW_DESCRIPTORS
+# pass frames between preview/capture threads with lock free queue,
+# remove this to use mutex/condition variable instead
+LOCAL_CFLAGS += -DUSE_SPSC_QUEUE
+# let libuvc assemble payloads into pooled frames directly,
+# remove this to copy each frame from the buffer of libuvc instead
+LOCAL_CFLAGS += -DUSE_POOL_FRAME_ASSEMBLY
 LOCAL_CFLAGS += -O3 -fstrict-aliasing -fprefetch-loop-arrays
+# pipeline classes use std::list/auto and catch exceptions in their handler thread
+LOCAL_CPPFLAGS += -std=c++11
+LOCAL_CPP_FEATURES += exceptions
 
 LOCAL_LDLIBS := -L$(SYSROOT)/usr/lib -ldl
 LOCAL_LDLIBS += -llog
 LOCAL_LDLIBS += -landroid
+# zlib for PNG encoding of still images
+LOCAL_LDLIBS += -lz
 
 LOCAL_SHARED_LIBRARIES += usb100 uvc
+# TurboJPEG for JPEG encoding of still images
+LOCAL_SHARED_LIBRARIES += jpeg-turbo1500
 
 LOCAL_ARM_MODE := arm
 
@@ -57,10 +71,45 @@ LOCAL_SRC_FILES := \
 		utilbase.cpp \
 		UVCCamera.cpp \
 		UVCPreview.cpp \
+		framequeue.cpp \
 		UVCButtonCallback.cpp \
 		UVCStatusCallback.cpp \
+		BatchFrameCallback.cpp \
+		StillCapture.cpp \
+		StripeConverter.cpp \
+		LatencyTracer.cpp \
 		Parameters.cpp \
+		common_utils.cpp \
+		pipeline/IPipeline.cpp \
+		pipeline/SharedFrame.cpp \
+		pipeline/AbstractBufferedPipeline.cpp \
+		pipeline/SimpleBufferedPipeline.cpp \
+		pipeline/SpoolBufferedPipeline.cpp \
+		pipeline/DistributePipeline.cpp \
+		pipeline/ConvertPipeline.cpp \
+		pipeline/CaptureBasePipeline.cpp \
+		pipeline/CallbackPipeline.cpp \
+		pipeline/PreviewPipeline.cpp \
+		pipeline/pipeline_helper.cpp \
 		serenegiant_usb_UVCCamera.cpp
 
+# PublisherPipeline depends on libzmq/zmq.hpp and pupilmobile_defs.h/endian_unaligned.h
+# that are not in this tree, so it is not built by default. to build it, run ndk-build with
+# USE_PUBLISHER_PIPELINE=1 PUBLISHER_DEPS_DIR=<absolute path of the directory that has
+# include/(above headers) and lib/$(TARGET_ARCH_ABI)/libzmq.so>
+ifeq ($(USE_PUBLISHER_PIPELINE),1)
+LOCAL_CFLAGS += -DUSE_PUBLISHER_PIPELINE
+LOCAL_SRC_FILES += pipeline/PublisherPipeline.cpp
+LOCAL_SHARED_LIBRARIES += zmq
+endif
+
 LOCAL_MODULE    := UVCCamera
 include $(BUILD_SHARED_LIBRARY)
+
+ifeq ($(USE_PUBLISHER_PIPELINE),1)
+include $(CLEAR_VARS)
+LOCAL_MODULE := zmq
+LOCAL_SRC_FILES := $(PUBLISHER_DEPS_DIR)/lib/$(TARGET_ARCH_ABI)/libzmq.so
+LOCAL_EXPORT_C_INCLUDES := $(PUBLISHER_DEPS_DIR)/include
+include $(PREBUILT_SHARED_LIBRARY)
+endif
@@ -0,0 +1,339 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: BatchFrameCallback.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include <stdlib.h>
+#include <string.h>
+#include "utilbase.h"
+#include "BatchFrameCallback.h"
+
+BatchFrameCallback::BatchFrameCallback(jobject callback_obj, jmethodID on_frames,
+	int pixel_format, int max_frames, int window_ms)
+:	mCallbackObj(callback_obj),
+	onFrames(on_frames),
+	mPixelFormat(pixel_format),
+	mConvFunc(NULL),
+	mMaxFrames(max_frames < 1 ? 1 : (max_frames > MAX_BATCH_FRAMES ? MAX_BATCH_FRAMES : max_frames)),
+	mWindowNs(window_ms > 0 ? ms2ns(window_ms) : 0),
+	mIsRunning(false),
+	mDropCount(0),
+	mFilling(&mBatches[0]),
+	mFree(&mBatches[1]),
+	mPending(NULL) {
+
+	ENTER();
+	memset(mBatches, 0, sizeof(mBatches));
+	switch (mPixelFormat) {
+	case PIXEL_FORMAT_RGB565:
+		mConvFunc = uvc_any2rgb565;
+		break;
+	case PIXEL_FORMAT_RGBX:
+		mConvFunc = uvc_any2rgbx;
+		break;
+	case PIXEL_FORMAT_YUV20SP:
+		mConvFunc = uvc_yuyv2iyuv420SP;
+		break;
+	case PIXEL_FORMAT_NV21:
+		mConvFunc = uvc_yuyv2yuv420SP;
+		break;
+	}
+	pthread_mutex_init(&batch_mutex, NULL);
+	pthread_cond_init(&batch_sync, NULL);
+	EXIT();
+}
+
+BatchFrameCallback::~BatchFrameCallback() {
+	ENTER();
+	pthread_mutex_destroy(&batch_mutex);
+	pthread_cond_destroy(&batch_sync);
+	EXIT();
+}
+
+int BatchFrameCallback::start() {
+	ENTER();
+
+	int result = EXIT_FAILURE;
+	if (!mIsRunning) {
+		mIsRunning = true;
+		result = pthread_create(&deliver_thread, NULL, deliver_thread_func, (void *)this);
+		if (UNLIKELY(result != EXIT_SUCCESS)) {
+			LOGW("BatchFrameCallback::could not create thread");
+			mIsRunning = false;
+		}
+	}
+	RETURN(result, int);
+}
+
+/**
+ * stop deliver thread and delete all global references, frames in batch are discarded.
+ */
+void BatchFrameCallback::release(JNIEnv *env) {
+	ENTER();
+
+	if (mIsRunning) {
+		mIsRunning = false;
+		pthread_mutex_lock(&batch_mutex);
+		pthread_cond_signal(&batch_sync);
+		pthread_mutex_unlock(&batch_mutex);
+		if (pthread_join(deliver_thread, NULL) != EXIT_SUCCESS) {
+			LOGW("BatchFrameCallback::terminate deliver thread: pthread_join failed");
+		}
+	}
+	releaseBatch(env, &mBatches[0]);
+	releaseBatch(env, &mBatches[1]);
+	if (mCallbackObj) {
+		env->DeleteGlobalRef(mCallbackObj);
+		mCallbackObj = NULL;
+	}
+
+	EXIT();
+}
+
+/**
+ * bytes of one frame in the batch
+ */
+size_t BatchFrameCallback::getFrameBytes(const uvc_frame_t *frame) const {
+	const size_t sz = frame->width * frame->height;
+	switch (mPixelFormat) {
+	case PIXEL_FORMAT_RGBX:
+		return sz * 4;
+	case PIXEL_FORMAT_YUV20SP:
+	case PIXEL_FORMAT_NV21:
+		return (sz * 3) / 2;
+	default:
+		return sz * 2;
+	}
+}
+
+/**
+ * allocate buffers of the batch if they do not exist or frame size changed,
+ * ByteBuffer is allocated on Java side so it is safe even if Java code keeps it.
+ * @return false if failed to allocate
+ */
+bool BatchFrameCallback::prepareBatch(JNIEnv *env, frame_batch_t *batch, size_t frame_bytes) {
+	if (UNLIKELY(!batch->buffer || (batch->frame_bytes != frame_bytes))) {
+		if (batch->buffer) {
+			env->DeleteGlobalRef(batch->buffer);
+		}
+		batch->buffer = NULL;
+		batch->data = NULL;
+		batch->frame_bytes = 0;
+		jclass clazz = env->FindClass("java/nio/ByteBuffer");
+		if (LIKELY(clazz)) {
+			jmethodID allocateDirect = env->GetStaticMethodID(clazz, "allocateDirect", "(I)Ljava/nio/ByteBuffer;");
+			jobject local = allocateDirect
+				? env->CallStaticObjectMethod(clazz, allocateDirect, (jint)(frame_bytes * mMaxFrames)) : NULL;
+			if (local && !env->ExceptionCheck()) {
+				batch->data = (uint8_t *)env->GetDirectBufferAddress(local);
+				if (LIKELY(batch->data)) {
+					batch->buffer = env->NewGlobalRef(local);
+					batch->frame_bytes = frame_bytes;
+				}
+			}
+			env->ExceptionClear();
+			if (local) {
+				env->DeleteLocalRef(local);
+			}
+			env->DeleteLocalRef(clazz);
+		}
+		env->ExceptionClear();
+	}
+	if (UNLIKELY(!batch->sequences)) {
+		jintArray local = env->NewIntArray(mMaxFrames);
+		if (LIKELY(local)) {
+			batch->sequences = (jintArray)env->NewGlobalRef(local);
+			env->DeleteLocalRef(local);
+		}
+		env->ExceptionClear();
+	}
+	if (UNLIKELY(!batch->pts)) {
+		jlongArray local = env->NewLongArray(mMaxFrames);
+		if (LIKELY(local)) {
+			batch->pts = (jlongArray)env->NewGlobalRef(local);
+			env->DeleteLocalRef(local);
+		}
+		env->ExceptionClear();
+	}
+	return batch->buffer && batch->sequences && batch->pts;
+}
+
+void BatchFrameCallback::releaseBatch(JNIEnv *env, frame_batch_t *batch) {
+	if (batch->buffer) {
+		env->DeleteGlobalRef(batch->buffer);
+	}
+	if (batch->sequences) {
+		env->DeleteGlobalRef(batch->sequences);
+	}
+	if (batch->pts) {
+		env->DeleteGlobalRef(batch->pts);
+	}
+	memset(batch, 0, sizeof(frame_batch_t));
+}
+
+/**
+ * pass the filling batch to the deliver thread if it is not busy
+ * @return false if the deliver thread is still delivering previous batch
+ */
+bool BatchFrameCallback::handOff() {
+	bool result = false;
+	pthread_mutex_lock(&batch_mutex);
+	{
+		if (mFree) {
+			mPending = mFilling;
+			mFilling = mFree;
+			mFree = NULL;
+			mFilling->count = 0;
+			pthread_cond_signal(&batch_sync);
+			result = true;
+		}
+	}
+	pthread_mutex_unlock(&batch_mutex);
+	return result;
+}
+
+/**
+ * convert/copy the frame into the batch, called from the capture thread.
+ * this does not recycle the frame
+ */
+void BatchFrameCallback::addFrame(JNIEnv *env, uvc_frame_t *frame) {
+	ENTER();
+
+	const size_t frame_bytes = getFrameBytes(frame);
+	frame_batch_t *batch = mFilling;
+	if (batch->count && ((batch->frame_bytes != frame_bytes) || (batch->count >= mMaxFrames))) {
+		if (handOff()) {
+			batch = mFilling;
+		} else if (batch->frame_bytes != frame_bytes) {
+			// frame size changed, discard collected frames
+			mDropCount += batch->count;
+			batch->count = 0;
+		} else {
+			// batch is full and deliver thread is busy
+			mDropCount++;
+			EXIT();
+		}
+	}
+	if (!batch->count) {
+		if (UNLIKELY(!prepareBatch(env, batch, frame_bytes))) {
+			LOGW("failed to allocate batch buffer");
+			mDropCount++;
+			EXIT();
+		}
+		batch->width = frame->width;
+		batch->height = frame->height;
+		batch->start_time = systemTime();
+	}
+	uint8_t *dst = batch->data + batch->count * frame_bytes;
+	if (mConvFunc) {
+		uvc_frame_t out;
+		memset(&out, 0, sizeof(out));
+		out.data = dst;
+		out.data_bytes = frame_bytes;
+		out.library_owns_data = 0;
+		int b = mConvFunc(frame, &out);
+		if (UNLIKELY(b)) {
+			LOGW("failed to convert for batch:%d", b);
+			mDropCount++;
+			EXIT();
+		}
+	} else {
+		memcpy(dst, frame->data, frame->actual_bytes < frame_bytes ? frame->actual_bytes : frame_bytes);
+	}
+	batch->seq_values[batch->count] = frame->sequence;
+	batch->pts_values[batch->count] = (jlong)frame->presentation_time_us;
+	batch->count++;
+	if ((batch->count >= mMaxFrames)
+		|| (mWindowNs && (systemTime() - batch->start_time >= mWindowNs))) {
+		// if deliver thread is busy, try again on next frame
+		handOff();
+	}
+
+	EXIT();
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+// static
+void *BatchFrameCallback::deliver_thread_func(void *vptr_args) {
+	ENTER();
+	BatchFrameCallback *callback = reinterpret_cast<BatchFrameCallback *>(vptr_args);
+	if (LIKELY(callback)) {
+		JavaVM *vm = getVM();
+		JNIEnv *env;
+		// attach to JavaVM
+		vm->AttachCurrentThread(&env, NULL);
+		callback->do_deliver(env);	// never return until released
+		// detach from JavaVM
+		vm->DetachCurrentThread();
+		MARK("DetachCurrentThread");
+	}
+	PRE_EXIT();
+	pthread_exit(NULL);
+}
+
+void BatchFrameCallback::do_deliver(JNIEnv *env) {
+	ENTER();
+
+	for ( ; mIsRunning ; ) {
+		frame_batch_t *batch;
+		pthread_mutex_lock(&batch_mutex);
+		{
+			if (!mPending && mIsRunning) {
+				pthread_cond_wait(&batch_sync, &batch_mutex);
+			}
+			batch = mPending;
+			mPending = NULL;
+		}
+		pthread_mutex_unlock(&batch_mutex);
+		if (batch) {
+			if (LIKELY(mIsRunning && batch->count)) {
+				env->SetIntArrayRegion(batch->sequences, 0, batch->count, batch->seq_values);
+				env->SetLongArrayRegion(batch->pts, 0, batch->count, batch->pts_values);
+				env->CallVoidMethod(mCallbackObj, onFrames, batch->buffer,
+					(jint)batch->count, (jint)batch->frame_bytes, (jint)mPixelFormat,
+					(jint)batch->width, (jint)batch->height, batch->sequences, batch->pts);
+				env->ExceptionClear();
+			}
+			batch->count = 0;
+			pthread_mutex_lock(&batch_mutex);
+			{
+				mFree = batch;
+			}
+			pthread_mutex_unlock(&batch_mutex);
+		}
+	}
+
+	EXIT();
+}
@@ -0,0 +1,91 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: BatchFrameCallback.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef BATCHFRAMECALLBACK_H_
+#define BATCHFRAMECALLBACK_H_
+
+#include <pthread.h>
+#include "libUVCCamera.h"
+#include "Timers.h"
+
+#pragma interface
+
+#define MAX_BATCH_FRAMES 64
+
+// frames that are delivered to IBatchFrameCallback#onFrames at once
+typedef struct frame_batch {
+	jobject buffer;			// global reference of direct ByteBuffer
+	uint8_t *data;
+	size_t frame_bytes;		// bytes of each frame in buffer
+	jintArray sequences;	// global reference
+	jlongArray pts;			// global reference
+	jint seq_values[MAX_BATCH_FRAMES];
+	jlong pts_values[MAX_BATCH_FRAMES];
+	int count;
+	int width, height;
+	nsecs_t start_time;		// time when the first frame was added
+} frame_batch_t;
+
+/**
+ * collect frames into a batch on the capture thread
+ * and call IBatchFrameCallback#onFrames on it's own thread,
+ * so the Java callback never blocks the capture thread.
+ * One batch is filled while the other one is delivered.
+ */
+class BatchFrameCallback {
+private:
+	jobject mCallbackObj;			// global reference of IBatchFrameCallback
+	jmethodID onFrames;
+	const int mPixelFormat;
+	convFunc_t mConvFunc;
+	const int mMaxFrames;
+	const nsecs_t mWindowNs;
+	volatile bool mIsRunning;
+	volatile uint32_t mDropCount;
+	pthread_t deliver_thread;
+	pthread_mutex_t batch_mutex;
+	pthread_cond_t batch_sync;
+	frame_batch_t mBatches[2];
+	frame_batch_t *mFilling;		// accessed only from the capture thread
+	frame_batch_t *mFree;			// NULL while the deliver thread uses it
+	frame_batch_t *mPending;		// batch waiting for delivery
+	static void *deliver_thread_func(void *vptr_args);
+	void do_deliver(JNIEnv *env);
+	size_t getFrameBytes(const uvc_frame_t *frame) const;
+	bool prepareBatch(JNIEnv *env, frame_batch_t *batch, size_t frame_bytes);
+	void releaseBatch(JNIEnv *env, frame_batch_t *batch);
+	bool handOff();
+public:
+	/**
+	 * @param callback_obj global reference of IBatchFrameCallback, this object deletes it on #release
+	 */
+	BatchFrameCallback(jobject callback_obj, jmethodID on_frames, int pixel_format, int max_frames, int window_ms);
+	~BatchFrameCallback();
+	int start();
+	void release(JNIEnv *env);
+	void addFrame(JNIEnv *env, uvc_frame_t *frame);
+	inline uint32_t getDropCount() const { return mDropCount; };
+};
+
+#endif /* BATCHFRAMECALLBACK_H_ */
@@ -0,0 +1,76 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: Condition.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef CONDITION_H_
+#define CONDITION_H_
+
+#include <pthread.h>
+#include <sys/time.h>
+#include <errno.h>
+
+#include "Mutex.h"
+#include "Timers.h"
+
+// thin wrapper of pthread_cond_t, compatible with android::Condition of libutils
+namespace android {
+
+class Condition {
+private:
+	pthread_cond_t mCond;
+	// force inhibiting copy/assignment
+	Condition(const Condition &src);
+	Condition &operator =(const Condition &src);
+public:
+	inline Condition() { pthread_cond_init(&mCond, NULL); }
+	inline ~Condition() { pthread_cond_destroy(&mCond); }
+	inline int wait(Mutex &mutex) { return -pthread_cond_wait(&mCond, &mutex.mMutex); }
+	/**
+	 * wait at most reltime nano seconds
+	 * @return 0: signaled, -ETIMEDOUT: timeout
+	 */
+	inline int waitRelative(Mutex &mutex, nsecs_t reltime) {
+		struct timespec ts;
+#if _POSIX_TIMERS > 0
+		clock_gettime(CLOCK_REALTIME, &ts);
+#else
+		struct timeval tv;
+		gettimeofday(&tv, NULL);
+		ts.tv_sec = tv.tv_sec;
+		ts.tv_nsec = tv.tv_usec * 1000;
+#endif
+		ts.tv_sec += reltime / 1000000000;
+		ts.tv_nsec += reltime % 1000000000;
+		if (ts.tv_nsec >= 1000000000) {
+			ts.tv_nsec -= 1000000000;
+			ts.tv_sec += 1;
+		}
+		return -pthread_cond_timedwait(&mCond, &mutex.mMutex, &ts);
+	}
+	inline void signal() { pthread_cond_signal(&mCond); }
+	inline void broadcast() { pthread_cond_broadcast(&mCond); }
+};
+
+}	// namespace android
+
+#endif /* CONDITION_H_ */
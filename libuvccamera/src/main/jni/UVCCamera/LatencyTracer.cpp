@@ -0,0 +1,189 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: LatencyTracer.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include <stdlib.h>
+#include <stdio.h>
+#include <string.h>
+#include <time.h>
+#include <algorithm>
+#include "utilbase.h"
+#include "LatencyTracer.h"
+
+#define WINDOW_MASK (LATENCY_TRACE_WINDOW - 1)
+
+static const char *STAGE_NAMES[LATENCY_STAGE_NUM] = {
+	"complete", "dequeue", "convert", "display", "callback",
+};
+
+LatencyTracer::LatencyTracer()
+:	mEnabled(false) {
+
+	reset();
+}
+
+LatencyTracer::~LatencyTracer() {
+}
+
+uint64_t LatencyTracer::now_us() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000ULL + ts.tv_nsec / 1000;
+}
+
+void LatencyTracer::setEnabled(const bool enabled) {
+	if (enabled && !mEnabled) {
+		reset();
+	}
+	mEnabled = enabled;
+}
+
+void LatencyTracer::reset() {
+	memset(mRecords, 0, sizeof(mRecords));
+}
+
+void LatencyTracer::start(const uvc_frame_t *frame) {
+	if (!mEnabled || UNLIKELY(!frame->payload_time_us)) return;
+
+	latency_record_t *record = &mRecords[frame->sequence & WINDOW_MASK];
+	// invalidate the record while it is rewritten
+	record->payload_time_us = 0;
+	record->sequence = frame->sequence;
+	memset(record->elapsed_us, 0, sizeof(record->elapsed_us));
+	if (LIKELY(frame->complete_time_us >= frame->payload_time_us)) {
+		record->elapsed_us[LATENCY_STAGE_COMPLETE] = (uint32_t)(frame->complete_time_us - frame->payload_time_us);
+	}
+	record->elapsed_us[LATENCY_STAGE_DEQUEUE] = (uint32_t)(now_us() - frame->payload_time_us);
+	__atomic_store_n(&record->payload_time_us, frame->payload_time_us, __ATOMIC_RELEASE);
+}
+
+void LatencyTracer::mark(const uint32_t sequence, const int stage) {
+	if (!mEnabled) return;
+
+	latency_record_t *record = &mRecords[sequence & WINDOW_MASK];
+	const uint64_t payload_time_us = __atomic_load_n(&record->payload_time_us, __ATOMIC_ACQUIRE);
+	if (LIKELY(payload_time_us && (record->sequence == sequence))) {
+		record->elapsed_us[stage] = (uint32_t)(now_us() - payload_time_us);
+	}
+}
+
+/**
+ * calculate the histogram of latency of the stage in the window
+ * @return 0 if succeeded, EXIT_FAILURE if the stage is wrong
+ */
+int LatencyTracer::getHistogram(const int stage, latency_histogram_t &histogram) {
+	ENTER();
+
+	memset(&histogram, 0, sizeof(histogram));
+	if (UNLIKELY((stage < 0) || (stage >= LATENCY_STAGE_NUM))) {
+		RETURN(EXIT_FAILURE, int);
+	}
+	uint32_t samples[LATENCY_TRACE_WINDOW];
+	uint32_t n = 0;
+	uint64_t total = 0;
+	for (int i = 0; i < LATENCY_TRACE_WINDOW; i++) {
+		const latency_record_t *record = &mRecords[i];
+		const uint32_t elapsed = record->elapsed_us[stage];
+		if (record->payload_time_us && elapsed) {
+			samples[n++] = elapsed;
+			total += elapsed;
+			int bucket = 0;
+			for (uint32_t bound = 1000; (bucket < LATENCY_HISTOGRAM_BUCKETS - 1) && (elapsed >= bound); bound <<= 1) {
+				bucket++;
+			}
+			histogram.buckets[bucket]++;
+		}
+	}
+	if (n) {
+		std::sort(samples, samples + n);
+		histogram.count = n;
+		histogram.min_us = samples[0];
+		histogram.max_us = samples[n - 1];
+		histogram.avg_us = (uint32_t)(total / n);
+		histogram.p50_us = samples[(n - 1) * 50 / 100];
+		histogram.p95_us = samples[(n - 1) * 95 / 100];
+		histogram.p99_us = samples[(n - 1) * 99 / 100];
+	}
+
+	RETURN(0, int);
+}
+
+static bool compare_sequence(const latency_record_t &a, const latency_record_t &b) {
+	return (int32_t)(a.sequence - b.sequence) < 0;
+}
+
+/**
+ * @return 0 if succeeded, -1 if failed to write the file
+ */
+int LatencyTracer::dump(const char *path) {
+	ENTER();
+
+	latency_record_t *records = new latency_record_t[LATENCY_TRACE_WINDOW];
+	int n = 0;
+	for (int i = 0; i < LATENCY_TRACE_WINDOW; i++) {
+		if (mRecords[i].payload_time_us) {
+			records[n++] = mRecords[i];
+		}
+	}
+	std::sort(records, records + n, compare_sequence);
+
+	int result = -1;
+	FILE *fp = fopen(path, "w");
+	if (LIKELY(fp)) {
+		fprintf(fp, "sequence,payload_time_us");
+		for (int j = 0; j < LATENCY_STAGE_NUM; j++) {
+			fprintf(fp, ",%s_us", STAGE_NAMES[j]);
+		}
+		fprintf(fp, "\n");
+		for (int i = 0; i < n; i++) {
+			fprintf(fp, "%u,%llu", records[i].sequence, (unsigned long long)records[i].payload_time_us);
+			for (int j = 0; j < LATENCY_STAGE_NUM; j++) {
+				// empty column if the frame did not reach the stage
+				if (records[i].elapsed_us[j]) {
+					fprintf(fp, ",%u", records[i].elapsed_us[j]);
+				} else {
+					fprintf(fp, ",");
+				}
+			}
+			fprintf(fp, "\n");
+		}
+		result = ferror(fp) ? -1 : 0;
+		fclose(fp);
+	} else {
+		LOGE("failed to open %s", path);
+	}
+	SAFE_DELETE_ARRAY(records);
+
+	RETURN(result, int);
+}
@@ -0,0 +1,92 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: LatencyTracer.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef LATENCYTRACER_H_
+#define LATENCYTRACER_H_
+
+#include "libUVCCamera.h"
+
+#pragma interface
+
+// number of frames kept for the rolling histogram, should be power of 2
+#define LATENCY_TRACE_WINDOW 256
+// upper bound of each bucket is 1, 2, 4, ... 256 milli seconds, the last bucket has no upper bound
+#define LATENCY_HISTOGRAM_BUCKETS 10
+
+// points that latency is measured from receiving the first payload of the frame
+enum latency_stage {
+	LATENCY_STAGE_COMPLETE = 0,	// the frame was assembled in libuvc
+	LATENCY_STAGE_DEQUEUE,		// the preview thread took the frame from the queue
+	LATENCY_STAGE_CONVERT,		// the frame was converted for preview display
+	LATENCY_STAGE_DISPLAY,		// the frame was posted to the preview Surface
+	LATENCY_STAGE_CALLBACK,		// IFrameCallback#onFrame returned
+	LATENCY_STAGE_NUM,
+};
+
+typedef struct latency_record {
+	uint32_t sequence;
+	uint64_t payload_time_us;		// 0 means this record is not used
+	uint32_t elapsed_us[LATENCY_STAGE_NUM];	// 0 means the frame did not reach the stage
+} latency_record_t;
+
+typedef struct latency_histogram {
+	uint32_t count;					// number of frames that reached the stage in the window
+	uint32_t min_us, avg_us, max_us;
+	uint32_t p50_us, p95_us, p99_us;
+	uint32_t buckets[LATENCY_HISTOGRAM_BUCKETS];
+} latency_histogram_t;
+
+/**
+ * record monotonic time of each stage per frame for the last LATENCY_TRACE_WINDOW frames.
+ * frames are identified by uvc_frame_t#sequence, that is kept through conversions.
+ * records are written by the preview/capture thread without lock,
+ * so the histogram may contain a frame that is being updated, it is just for diagnostics.
+ */
+class LatencyTracer {
+private:
+	volatile bool mEnabled;
+	latency_record_t mRecords[LATENCY_TRACE_WINDOW];
+	static uint64_t now_us();
+public:
+	LatencyTracer();
+	~LatencyTracer();
+	inline const bool isEnabled() const { return mEnabled; }
+	void setEnabled(const bool enabled);
+	void reset();
+	/**
+	 * start tracing the frame that the preview thread took from the queue
+	 */
+	void start(const uvc_frame_t *frame);
+	/**
+	 * record that the frame with the sequence number reached the stage
+	 */
+	void mark(const uint32_t sequence, const int stage);
+	int getHistogram(const int stage, latency_histogram_t &histogram);
+	/**
+	 * write records in the window to the file as csv
+	 */
+	int dump(const char *path);
+};
+
+#endif /* LATENCYTRACER_H_ */
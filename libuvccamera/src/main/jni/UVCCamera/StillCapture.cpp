@@ -0,0 +1,419 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: StillCapture.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include <stdlib.h>
+#include <stdio.h>
+#include <string.h>
+#include <zlib.h>
+#include <turbojpeg.h>
+#include "utilbase.h"
+#include "StillCapture.h"
+
+#define PNG_OUT_BUF_SZ (64 * 1024)
+
+StillCapture::StillCapture(const int &num_workers)
+:	mNumWorkers(num_workers < 1 ? 1 : (num_workers > MAX_STILL_WORKERS ? MAX_STILL_WORKERS : num_workers)),
+	mIsRunning(false),
+	mWaitingNum(0) {
+
+	ENTER();
+	pthread_mutex_init(&request_mutex, NULL);
+	pthread_cond_init(&request_sync, NULL);
+	EXIT();
+}
+
+StillCapture::~StillCapture() {
+	ENTER();
+	pthread_mutex_destroy(&request_mutex);
+	pthread_cond_destroy(&request_sync);
+	EXIT();
+}
+
+int StillCapture::start() {
+	ENTER();
+
+	int result = EXIT_FAILURE;
+	if (!mIsRunning) {
+		mIsRunning = true;
+		int i;
+		for (i = 0; i < mNumWorkers; i++) {
+			result = pthread_create(&mWorkers[i], NULL, worker_thread_func, (void *)this);
+			if (UNLIKELY(result != EXIT_SUCCESS)) {
+				LOGW("StillCapture::could not create thread");
+				break;
+			}
+		}
+		if (UNLIKELY(!i)) {
+			mIsRunning = false;
+		} else if (UNLIKELY(i < mNumWorkers)) {
+			// works with fewer workers
+			mNumWorkers = i;
+			result = EXIT_SUCCESS;
+		}
+	}
+	RETURN(result, int);
+}
+
+/**
+ * stop worker threads, requests that are not finished yet are completed with error
+ */
+void StillCapture::release(JNIEnv *env) {
+	ENTER();
+
+	if (mIsRunning) {
+		mIsRunning = false;
+		pthread_mutex_lock(&request_mutex);
+		pthread_cond_broadcast(&request_sync);
+		pthread_mutex_unlock(&request_mutex);
+		for (int i = 0; i < mNumWorkers; i++) {
+			if (pthread_join(mWorkers[i], NULL) != EXIT_SUCCESS) {
+				LOGW("StillCapture::terminate worker thread: pthread_join failed");
+			}
+		}
+	}
+	cancel(env);
+	for (; !mJobs.empty(); ) {
+		still_request_t *req = mJobs.front();
+		mJobs.pop_front();
+		complete(env, req, UVC_ERROR_INTERRUPTED);
+	}
+
+	EXIT();
+}
+
+int StillCapture::request(JNIEnv *env, jobject callback_obj,
+	const char *path, const int &format, const int &quality) {
+
+	ENTER();
+
+	int result = -1;
+	jmethodID onCaptureStill = NULL;
+	if (callback_obj) {
+		jclass clazz = env->GetObjectClass(callback_obj);
+		if (LIKELY(clazz)) {
+			onCaptureStill = env->GetMethodID(clazz,
+				"onCaptureStill", "(Ljava/lang/String;I)V");
+			env->DeleteLocalRef(clazz);
+		}
+		env->ExceptionClear();
+		if (UNLIKELY(!onCaptureStill)) {
+			LOGE("Can't find IStillCaptureCallback#onCaptureStill");
+			env->DeleteGlobalRef(callback_obj);
+			RETURN(result, int);
+		}
+	}
+	pthread_mutex_lock(&request_mutex);
+	{
+		if (LIKELY(mIsRunning && path
+			&& (mWaiting.size() + mJobs.size() < MAX_STILL_REQUESTS))) {
+
+			still_request_t *req = new still_request_t;
+			req->callback = callback_obj;
+			req->onCaptureStill = onCaptureStill;
+			req->path = strdup(path);
+			req->format = format;
+			req->quality = quality < 1 ? 1 : (quality > 100 ? 100 : quality);
+			req->frame = NULL;
+			mWaiting.push_back(req);
+			mWaitingNum = mWaiting.size();
+			result = 0;
+		}
+	}
+	pthread_mutex_unlock(&request_mutex);
+	if (UNLIKELY(result && callback_obj)) {
+		env->DeleteGlobalRef(callback_obj);
+	}
+
+	RETURN(result, int);
+}
+
+void StillCapture::cancel(JNIEnv *env) {
+	ENTER();
+
+	std::list<still_request_t *> canceled;
+	pthread_mutex_lock(&request_mutex);
+	{
+		canceled.swap(mWaiting);
+		mWaitingNum = 0;
+	}
+	pthread_mutex_unlock(&request_mutex);
+	for (auto iter = canceled.begin(); iter != canceled.end(); iter++) {
+		complete(env, *iter, UVC_ERROR_INTERRUPTED);
+	}
+
+	EXIT();
+}
+
+/**
+ * assign a copy of the frame to the oldest waiting request and pass it to the workers.
+ * frame is still MJPEG when it is passed through from the preview thread, it is decoded on the worker.
+ */
+void StillCapture::addFrame(JNIEnv *env, uvc_frame_t *frame) {
+	ENTER();
+
+	still_request_t *req = NULL;
+	pthread_mutex_lock(&request_mutex);
+	{
+		if (!mWaiting.empty()) {
+			req = mWaiting.front();
+			mWaiting.pop_front();
+			mWaitingNum = mWaiting.size();
+		}
+	}
+	pthread_mutex_unlock(&request_mutex);
+	if (LIKELY(req)) {
+		req->frame = uvc_allocate_frame(frame->data_bytes);
+		if (LIKELY(req->frame) && UNLIKELY(uvc_duplicate_frame(frame, req->frame))) {
+			uvc_free_frame(req->frame);
+			req->frame = NULL;
+		}
+		if (LIKELY(req->frame)) {
+			pthread_mutex_lock(&request_mutex);
+			{
+				mJobs.push_back(req);
+				pthread_cond_signal(&request_sync);
+			}
+			pthread_mutex_unlock(&request_mutex);
+		} else {
+			complete(env, req, UVC_ERROR_NO_MEM);
+		}
+	}
+
+	EXIT();
+}
+
+/**
+ * call IStillCaptureCallback#onCaptureStill and delete the request
+ */
+void StillCapture::complete(JNIEnv *env, still_request_t *req, const int &result) {
+	ENTER();
+
+	if (req->callback) {
+		if (LIKELY(env)) {
+			jstring path = env->NewStringUTF(req->path);
+			env->CallVoidMethod(req->callback, req->onCaptureStill, path, result);
+			env->ExceptionClear();
+			env->DeleteLocalRef(path);
+			env->DeleteGlobalRef(req->callback);
+		}
+		req->callback = NULL;
+	}
+	if (req->frame) {
+		uvc_free_frame(req->frame);
+		req->frame = NULL;
+	}
+	free(req->path);
+	delete req;
+
+	EXIT();
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+static int write_jpeg(const char *path, tjhandle &tj, uvc_frame_t *rgb, const int &quality) {
+	int result = UVC_ERROR_OTHER;
+	if (!tj) {
+		tj = tjInitCompress();
+	}
+	if (LIKELY(tj)) {
+		unsigned char *jpeg = NULL;
+		unsigned long jpeg_bytes = 0;
+		if (LIKELY(!tjCompress2(tj, (unsigned char *)rgb->data, rgb->width, 0, rgb->height, TJPF_RGB,
+			&jpeg, &jpeg_bytes, TJSAMP_420, quality, TJFLAG_FASTDCT))) {
+
+			FILE *fp = fopen(path, "wb");
+			if (LIKELY(fp)) {
+				if (fwrite(jpeg, 1, jpeg_bytes, fp) == jpeg_bytes) {
+					result = UVC_SUCCESS;
+				}
+				fclose(fp);
+			}
+		} else {
+			LOGW("tjCompress2 failed:%s", tjGetErrorStr());
+		}
+		if (jpeg) {
+			tjFree(jpeg);
+		}
+	}
+	return result;
+}
+
+static inline void put_be32(uint8_t *p, const uint32_t &v) {
+	p[0] = (uint8_t)(v >> 24); p[1] = (uint8_t)(v >> 16); p[2] = (uint8_t)(v >> 8); p[3] = (uint8_t)v;
+}
+
+static bool write_png_chunk(FILE *fp, const char *type, const uint8_t *data, const uint32_t &bytes) {
+	uint8_t buf[4];
+	put_be32(buf, bytes);
+	uLong crc = crc32(0L, (const Bytef *)type, 4);
+	if (bytes) {
+		crc = crc32(crc, data, bytes);
+	}
+	bool result = (fwrite(buf, 1, 4, fp) == 4) && (fwrite(type, 1, 4, fp) == 4)
+		&& (!bytes || (fwrite(data, 1, bytes, fp) == bytes));
+	put_be32(buf, (uint32_t)crc);
+	return result && (fwrite(buf, 1, 4, fp) == 4);
+}
+
+/**
+ * write 8bit RGB PNG with zlib, each row is filtered with "Sub" filter
+ * that is cheap and compresses camera images much better than no filter.
+ */
+static int write_png(const char *path, uvc_frame_t *rgb, const int &quality) {
+	static const uint8_t PNG_SIGNATURE[8] = { 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	int result = UVC_ERROR_OTHER;
+	const uint32_t width = rgb->width, height = rgb->height;
+	const size_t stride = width * 3;
+	FILE *fp = fopen(path, "wb");
+	if (UNLIKELY(!fp)) {
+		return result;
+	}
+	uint8_t *row = (uint8_t *)malloc(stride + 1);
+	uint8_t *out = (uint8_t *)malloc(PNG_OUT_BUF_SZ);
+	z_stream zs;
+	memset(&zs, 0, sizeof(zs));
+	// map quality(1-100) to compression level(1-9)
+	const int level = 1 + ((quality - 1) * 8) / 99;
+	if (LIKELY(row && out && (deflateInit(&zs, level) == Z_OK))) {
+		uint8_t ihdr[13];
+		put_be32(ihdr, width);
+		put_be32(ihdr + 4, height);
+		ihdr[8] = 8;	// bit depth
+		ihdr[9] = 2;	// color type: RGB
+		ihdr[10] = ihdr[11] = ihdr[12] = 0;	// compression, filter, interlace
+		bool ok = (fwrite(PNG_SIGNATURE, 1, sizeof(PNG_SIGNATURE), fp) == sizeof(PNG_SIGNATURE))
+			&& write_png_chunk(fp, "IHDR", ihdr, sizeof(ihdr));
+		const uint8_t *src = (const uint8_t *)rgb->data;
+		for (uint32_t y = 0; ok && (y <= height); y++) {
+			const bool last = (y == height);
+			if (!last) {
+				row[0] = 1;	// filter type: Sub
+				memcpy(row + 1, src, 3);
+				for (size_t i = 3; i < stride; i++) {
+					row[1 + i] = src[i] - src[i - 3];
+				}
+				src += stride;
+				zs.next_in = row;
+				zs.avail_in = stride + 1;
+			}
+			int ret;
+			do {
+				zs.next_out = out;
+				zs.avail_out = PNG_OUT_BUF_SZ;
+				ret = deflate(&zs, last ? Z_FINISH : Z_NO_FLUSH);
+				const uint32_t bytes = PNG_OUT_BUF_SZ - zs.avail_out;
+				if (bytes) {
+					ok = write_png_chunk(fp, "IDAT", out, bytes);
+				}
+			} while (ok && (last ? (ret == Z_OK) : !zs.avail_out));
+		}
+		deflateEnd(&zs);
+		if (ok && write_png_chunk(fp, "IEND", NULL, 0)) {
+			result = UVC_SUCCESS;
+		}
+	}
+	free(row);
+	free(out);
+	fclose(fp);
+	return result;
+}
+
+void *StillCapture::worker_thread_func(void *vptr_args) {
+	ENTER();
+
+	StillCapture *capture = reinterpret_cast<StillCapture *>(vptr_args);
+	if (LIKELY(capture)) {
+		JavaVM *vm = getVM();
+		JNIEnv *env;
+		// attach to JavaVM
+		vm->AttachCurrentThread(&env, NULL);
+		capture->do_work(env);
+		// detach from JavaVM
+		vm->DetachCurrentThread();
+		MARK("DetachCurrentThread");
+	}
+
+	PRE_EXIT();
+	pthread_exit(NULL);
+}
+
+void StillCapture::do_work(JNIEnv *env) {
+	ENTER();
+
+	tjhandle tj = NULL;	// TurboJPEG compressor is not thread safe, use one for each worker
+	// allocated with the size of the first request and reused, uvc_any2rgb resizes it when the size changes.
+	// uvc_allocate_frame(0) does not set data/library_owns_data on Android because it skips memset.
+	uvc_frame_t *rgb = NULL;
+	for (; LIKELY(mIsRunning); ) {
+		still_request_t *req = NULL;
+		pthread_mutex_lock(&request_mutex);
+		{
+			if (mJobs.empty()) {
+				pthread_cond_wait(&request_sync, &request_mutex);
+			}
+			if (LIKELY(mIsRunning && !mJobs.empty())) {
+				req = mJobs.front();
+				mJobs.pop_front();
+			}
+		}
+		pthread_mutex_unlock(&request_mutex);
+		if (!req) continue;
+
+		int result = UVC_ERROR_NO_MEM;
+		if (UNLIKELY(!rgb)) {
+			rgb = uvc_allocate_frame(req->frame->width * req->frame->height * 3);
+		}
+		if (LIKELY(rgb) && !(result = uvc_any2rgb(req->frame, rgb))) {
+			uvc_free_frame(req->frame);
+			req->frame = NULL;
+			if (req->format == STILL_FORMAT_PNG) {
+				result = write_png(req->path, rgb, req->quality);
+			} else {
+				result = write_jpeg(req->path, tj, rgb, req->quality);
+			}
+		}
+		complete(env, req, result);
+	}
+	if (tj) {
+		tjDestroy(tj);
+	}
+	if (rgb) {
+		uvc_free_frame(rgb);
+	}
+
+	EXIT();
+}
@@ -0,0 +1,87 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: StillCapture.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef STILLCAPTURE_H_
+#define STILLCAPTURE_H_
+
+#include <pthread.h>
+#include <list>
+#include "libUVCCamera.h"
+
+#pragma interface
+
+// these values should be same as UVCCamera.STILL_FORMAT_XXX
+#define STILL_FORMAT_JPEG 0
+#define STILL_FORMAT_PNG 1
+
+#define DEFAULT_STILL_WORKERS 2
+#define MAX_STILL_WORKERS 4
+#define MAX_STILL_REQUESTS 8
+
+typedef struct still_request {
+	jobject callback;		// global reference of IStillCaptureCallback, may be NULL
+	jmethodID onCaptureStill;
+	char *path;
+	int format;
+	int quality;
+	uvc_frame_t *frame;		// copy of raw frame, NULL while waiting for frame
+} still_request_t;
+
+/**
+ * encode still images on worker threads so that the capture thread
+ * and the Java camera thread are never blocked by encoding and file I/O.
+ * Each request takes the next raw frame from the capture thread,
+ * so several requests in a row become a burst of consecutive frames.
+ */
+class StillCapture {
+private:
+	int mNumWorkers;
+	volatile bool mIsRunning;
+	volatile int mWaitingNum;		// number of requests waiting for frame
+	pthread_t mWorkers[MAX_STILL_WORKERS];
+	pthread_mutex_t request_mutex;
+	pthread_cond_t request_sync;
+	std::list<still_request_t *> mWaiting;	// requests waiting for frame
+	std::list<still_request_t *> mJobs;		// requests waiting for encoding
+	static void *worker_thread_func(void *vptr_args);
+	void do_work(JNIEnv *env);
+	void complete(JNIEnv *env, still_request_t *req, const int &result);
+public:
+	StillCapture(const int &num_workers = DEFAULT_STILL_WORKERS);
+	~StillCapture();
+	int start();
+	void release(JNIEnv *env);
+	/**
+	 * @param callback_obj global reference of IStillCaptureCallback or NULL, this object deletes it
+	 * @param quality JPEG quality(1-100), for PNG higher value means higher compression level
+	 */
+	int request(JNIEnv *env, jobject callback_obj, const char *path, const int &format, const int &quality);
+	/** fail all requests that are still waiting for frame */
+	void cancel(JNIEnv *env);
+	/** called from the capture thread, frame is copied and not modified */
+	void addFrame(JNIEnv *env, uvc_frame_t *frame);
+	inline bool isWaiting() const { return mWaitingNum > 0; };
+};
+
+#endif /* STILLCAPTURE_H_ */
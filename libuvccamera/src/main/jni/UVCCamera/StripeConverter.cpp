@@ -0,0 +1,268 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: StripeConverter.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include <stdlib.h>
+#include <string.h>
+#include "utilbase.h"
+#include "StripeConverter.h"
+
+/**
+ * bytes per pixel of the output of convert function that can be split into stripes
+ * @return 0 if the function can not be split
+ */
+static size_t get_stripe_pixel_bytes(convFunc_t func) {
+	if ((func == uvc_any2rgbx) || (func == uvc_yuyv2rgbx) || (func == uvc_uyvy2rgbx))
+		return 4;
+	if ((func == uvc_any2rgb565) || (func == uvc_yuyv2rgb565) || (func == uvc_uyvy2rgb565))
+		return 2;
+	if ((func == uvc_any2rgb) || (func == uvc_any2bgr)
+		|| (func == uvc_yuyv2rgb) || (func == uvc_yuyv2bgr)
+		|| (func == uvc_uyvy2rgb) || (func == uvc_uyvy2bgr))
+		return 3;
+	return 0;
+}
+
+StripeConverter::StripeConverter(int thread_num)
+:	mRequestThreadNum(1),
+	mThreadNum(1),
+	mIsRunning(false),
+	mJobSeq(0),
+	mDoneCount(0),
+	mFunc(NULL),
+	mIn(NULL),
+	mOut(NULL),
+	mPixelBytes(0),
+	mStripeRows(0),
+	mResult(0) {
+
+	ENTER();
+	memset(mWorkers, 0, sizeof(mWorkers));
+	pthread_mutex_init(&worker_mutex, NULL);
+	pthread_cond_init(&job_sync, NULL);
+	pthread_cond_init(&done_sync, NULL);
+	setThreadNum(thread_num);
+	EXIT();
+}
+
+StripeConverter::~StripeConverter() {
+	ENTER();
+	stopWorkers();
+	pthread_mutex_destroy(&worker_mutex);
+	pthread_cond_destroy(&job_sync);
+	pthread_cond_destroy(&done_sync);
+	EXIT();
+}
+
+void StripeConverter::setThreadNum(int thread_num) {
+	mRequestThreadNum = thread_num < 1 ? 1
+		: (thread_num > MAX_CONVERT_THREADS ? MAX_CONVERT_THREADS : thread_num);
+}
+
+void StripeConverter::startWorkers(int thread_num) {
+	ENTER();
+
+	mIsRunning = true;
+	mThreadNum = 1;
+	for (int i = 1; i < thread_num; i++) {
+		stripe_worker_t *worker = &mWorkers[i];
+		worker->converter = this;
+		worker->index = i;
+		worker->job_seq = mJobSeq;	// new worker should not handle jobs before it starts
+		if (UNLIKELY(pthread_create(&worker->thread, NULL, worker_thread_func, (void *)worker))) {
+			LOGW("StripeConverter::could not create worker thread");
+			break;
+		}
+		mThreadNum++;
+	}
+
+	EXIT();
+}
+
+void StripeConverter::stopWorkers() {
+	ENTER();
+
+	if (mThreadNum > 1) {
+		pthread_mutex_lock(&worker_mutex);
+		{
+			mIsRunning = false;
+			pthread_cond_broadcast(&job_sync);
+		}
+		pthread_mutex_unlock(&worker_mutex);
+		for (int i = 1; i < mThreadNum; i++) {
+			if (pthread_join(mWorkers[i].thread, NULL) != EXIT_SUCCESS) {
+				LOGW("StripeConverter::terminate worker thread: pthread_join failed");
+			}
+		}
+	}
+	mIsRunning = false;
+	mThreadNum = 1;
+
+	EXIT();
+}
+
+/**
+ * convert the frame with func
+ * @return same as func
+ */
+int StripeConverter::convert(convFunc_t func, uvc_frame_t *in, uvc_frame_t *out) {
+	const int request = mRequestThreadNum;
+	if (UNLIKELY(request != mThreadNum)) {
+		stopWorkers();
+		if (request > 1) {
+			startWorkers(request);
+		}
+	}
+	const size_t pixel_bytes = mThreadNum > 1 ? get_stripe_pixel_bytes(func) : 0;
+	if (!pixel_bytes
+		|| ((in->frame_format != UVC_FRAME_FORMAT_YUYV) && (in->frame_format != UVC_FRAME_FORMAT_UYVY))
+		|| (in->width * in->height < MIN_STRIPE_CONVERT_PIXELS)
+		|| (in->width % 8)	// the scalar conversion processes 8 pixels at once
+		|| (in->step < in->width * 2)
+		|| (in->data_bytes < in->step * in->height)) {
+
+		return func(in, out);
+	}
+	// prepare output frame here because each stripe only knows part of it
+	if (UNLIKELY(uvc_ensure_frame_size(out, in->width * in->height * pixel_bytes) < 0))
+		return UVC_ERROR_NO_MEM;
+	if (out->library_owns_data || !out->step)
+		out->step = in->width * pixel_bytes;
+	if (UNLIKELY(out->data_bytes < out->step * in->height))
+		return UVC_ERROR_NO_MEM;
+
+	pthread_mutex_lock(&worker_mutex);
+	{
+		mFunc = func;
+		mIn = in;
+		mOut = out;
+		mPixelBytes = pixel_bytes;
+		mStripeRows = (in->height + mThreadNum - 1) / mThreadNum;
+		mResult = 0;
+		mDoneCount = 0;
+		mJobSeq++;
+		pthread_cond_broadcast(&job_sync);
+	}
+	pthread_mutex_unlock(&worker_mutex);
+
+	int result = convertStripe(0);
+
+	pthread_mutex_lock(&worker_mutex);
+	{
+		for ( ; mDoneCount < mThreadNum - 1 ; ) {
+			pthread_cond_wait(&done_sync, &worker_mutex);
+		}
+		if (!result) {
+			result = mResult;
+		}
+		mFunc = NULL;
+		mIn = mOut = NULL;
+	}
+	pthread_mutex_unlock(&worker_mutex);
+
+	if (LIKELY(!result)) {
+		out->width = in->width;
+		out->height = in->height;
+		out->sequence = in->sequence;
+		out->capture_time = in->capture_time;
+		out->presentation_time_us = in->presentation_time_us;
+		out->source = in->source;
+	}
+	return result;
+}
+
+/**
+ * convert one stripe as a sub frame that shares the buffer of mIn/mOut
+ */
+int StripeConverter::convertStripe(int index) {
+	const int top = mStripeRows * index;
+	const int rows = top + mStripeRows <= (int)mIn->height ? mStripeRows : (int)mIn->height - top;
+	if (rows <= 0) return 0;
+
+	uvc_frame_t in = *mIn;
+	in.data = (uint8_t *)mIn->data + mIn->step * top;
+	in.height = rows;
+	in.data_bytes = in.actual_bytes = mIn->step * rows;
+	in.library_owns_data = 0;
+	uvc_frame_t out;
+	memset(&out, 0, sizeof(out));
+	out.data = (uint8_t *)mOut->data + mOut->step * top;
+	out.width = mIn->width;
+	out.height = rows;
+	out.step = mOut->step;
+	out.data_bytes = mOut->step * rows;
+	out.library_owns_data = 0;
+	const int result = mFunc(&in, &out);
+	if (!index) {
+		mOut->frame_format = out.frame_format;
+	}
+	return result;
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+// static
+void *StripeConverter::worker_thread_func(void *vptr_args) {
+	stripe_worker_t *worker = reinterpret_cast<stripe_worker_t *>(vptr_args);
+	if (LIKELY(worker)) {
+		worker->converter->do_work(worker);
+	}
+	pthread_exit(NULL);
+}
+
+void StripeConverter::do_work(stripe_worker_t *worker) {
+	ENTER();
+
+	pthread_mutex_lock(&worker_mutex);
+	for ( ; ; ) {
+		for ( ; mIsRunning && (worker->job_seq == mJobSeq) ; ) {
+			pthread_cond_wait(&job_sync, &worker_mutex);
+		}
+		if (UNLIKELY(!mIsRunning)) break;
+		worker->job_seq = mJobSeq;
+		pthread_mutex_unlock(&worker_mutex);
+		const int result = convertStripe(worker->index);
+		pthread_mutex_lock(&worker_mutex);
+		if (UNLIKELY(result)) {
+			mResult = result;
+		}
+		if (++mDoneCount >= mThreadNum - 1) {
+			pthread_cond_signal(&done_sync);
+		}
+	}
+	pthread_mutex_unlock(&worker_mutex);
+
+	EXIT();
+}
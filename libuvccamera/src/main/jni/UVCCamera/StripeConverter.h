@@ -0,0 +1,87 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: StripeConverter.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef STRIPECONVERTER_H_
+#define STRIPECONVERTER_H_
+
+#include <pthread.h>
+#include "libUVCCamera.h"
+
+#pragma interface
+
+#define MAX_CONVERT_THREADS 8
+// frames smaller than this are always converted on the calling thread
+#define MIN_STRIPE_CONVERT_PIXELS (1280 * 720)
+
+class StripeConverter;
+
+typedef struct stripe_worker {
+	StripeConverter *converter;
+	int index;			// index of the stripe that this worker converts
+	uint32_t job_seq;	// sequence number of the last job that this worker handled
+	pthread_t thread;
+} stripe_worker_t;
+
+/**
+ * convert a frame by splitting it into horizontal stripes and converting them in parallel.
+ * the calling thread converts the first stripe and worker threads convert the rest.
+ * only packed output formats(RGBX/RGB565/RGB/BGR) from YUYV/UYVY are split,
+ * other conversions(MJPEG decoding, YUV420SP output etc.) are executed on the calling thread.
+ * each instance should be used from one thread at a time.
+ */
+class StripeConverter {
+private:
+	volatile int mRequestThreadNum;
+	int mThreadNum;				// number of stripes, worker threads are mThreadNum - 1
+	stripe_worker_t mWorkers[MAX_CONVERT_THREADS];
+	pthread_mutex_t worker_mutex;
+	pthread_cond_t job_sync;
+	pthread_cond_t done_sync;
+	volatile bool mIsRunning;
+	uint32_t mJobSeq;
+	int mDoneCount;
+	// current job
+	convFunc_t mFunc;
+	uvc_frame_t *mIn;
+	uvc_frame_t *mOut;
+	size_t mPixelBytes;
+	int mStripeRows;
+	int mResult;
+	static void *worker_thread_func(void *vptr_args);
+	void do_work(stripe_worker_t *worker);
+	void startWorkers(int thread_num);
+	void stopWorkers();
+	int convertStripe(int index);
+public:
+	StripeConverter(int thread_num = 1);
+	~StripeConverter();
+	/**
+	 * set number of threads including the calling thread, applied on next #convert
+	 */
+	void setThreadNum(int thread_num);
+	inline int getThreadNum() const { return mRequestThreadNum; };
+	int convert(convFunc_t func, uvc_frame_t *in, uvc_frame_t *out);
+};
+
+#endif /* STRIPECONVERTER_H_ */
@@ -0,0 +1,59 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: Timers.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef TIMERS_H_
+#define TIMERS_H_
+
+#include <stdint.h>
+#include <time.h>
+
+// subset of android/utils/Timers.h that pipeline classes need
+
+typedef int64_t nsecs_t;	// nano-seconds
+
+static inline nsecs_t seconds_to_nanoseconds(nsecs_t secs) { return secs * 1000000000; }
+static inline nsecs_t milliseconds_to_nanoseconds(nsecs_t secs) { return secs * 1000000; }
+static inline nsecs_t microseconds_to_nanoseconds(nsecs_t secs) { return secs * 1000; }
+static inline nsecs_t nanoseconds_to_seconds(nsecs_t secs) { return secs / 1000000000; }
+static inline nsecs_t nanoseconds_to_milliseconds(nsecs_t secs) { return secs / 1000000; }
+static inline nsecs_t nanoseconds_to_microseconds(nsecs_t secs) { return secs / 1000; }
+
+#define s2ns(v)		seconds_to_nanoseconds(v)
+#define ms2ns(v)	milliseconds_to_nanoseconds(v)
+#define us2ns(v)	microseconds_to_nanoseconds(v)
+#define ns2s(v)		nanoseconds_to_seconds(v)
+#define ns2ms(v)	nanoseconds_to_milliseconds(v)
+#define ns2us(v)	nanoseconds_to_microseconds(v)
+
+/**
+ * return current time of CLOCK_MONOTONIC as nano seconds
+ */
+static inline nsecs_t systemTime() {
+	struct timespec t;
+	t.tv_sec = t.tv_nsec = 0;
+	clock_gettime(CLOCK_MONOTONIC, &t);
+	return nsecs_t(t.tv_sec) * 1000000000LL + t.tv_nsec;
+}
+
+#endif /* TIMERS_H_ */
@@ -251,12 +251,15 @@ char *UVCCamera::getSupportedSize() {
 	RETURN(NULL, char *);
 }
 
-int UVCCamera::setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth) {
+int UVCCamera::setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth,
+	int transfer_bufs, int packets_per_transfer) {
+
 	ENTER();
 
 	int result = EXIT_FAILURE;
 	if (mPreview) {
-		result = mPreview->setPreviewSize(width, height, min_fps, max_fps, mode, bandwidth);
+		result = mPreview->setPreviewSize(width, height, min_fps, max_fps, mode, bandwidth,
+			transfer_bufs, packets_per_transfer);
 	}
 	RETURN(result, int);
 }
@@ -270,15 +273,44 @@ int UVCCamera::setPreviewDisplay(ANativeWindow *preview_window) {
 	RETURN(result, int);
 }
 
-int UVCCamera::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format) {
+int UVCCamera::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int buffer_num) {
 	ENTER();
 	int result = EXIT_FAILURE;
 	if (mPreview) {
-		result = mPreview->setFrameCallback(env, frame_callback_obj, pixel_format);
+		result = mPreview->setFrameCallback(env, frame_callback_obj, pixel_format, buffer_num);
 	}
 	RETURN(result, int);
 }
 
+int UVCCamera::setBatchFrameCallback(JNIEnv *env, jobject batch_callback_obj, int pixel_format, int max_frames, int window_ms) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setBatchFrameCallback(env, batch_callback_obj, pixel_format, max_frames, window_ms);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::captureStill(JNIEnv *env, jobject callback_obj, const char *path, int format, int quality) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->captureStill(env, callback_obj, path, format, quality);
+	} else if (callback_obj) {
+		env->DeleteGlobalRef(callback_obj);
+	}
+	RETURN(result, int);
+}
+
+jbyteArray UVCCamera::captureRawFrame(JNIEnv *env, int pixel_format, int timeout_ms) {
+	ENTER();
+	jbyteArray result = NULL;
+	if (mPreview) {
+		result = mPreview->captureRawFrame(env, pixel_format, timeout_ms);
+	}
+	RETURN(result, jbyteArray);
+}
+
 int UVCCamera::startPreview() {
 	ENTER();
 
@@ -306,6 +338,88 @@ int UVCCamera::setCaptureDisplay(ANativeWindow *capture_window) {
 	RETURN(result, int);
 }
 
+int UVCCamera::setPipeline(IPipeline *pipeline) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setPipeline(pipeline);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setBufferPolicy(int queue_depth, int pool_size, bool preallocate) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setBufferPolicy(queue_depth, pool_size, preallocate);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setQueuePolicy(int consumer, int policy, int queue_depth, int timeout_ms) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setQueuePolicy(consumer, policy, queue_depth, timeout_ms);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setConvertThreads(int thread_num) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setConvertThreads(thread_num);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::getBufferStats(uint32_t &pool_miss, uint32_t &pool_overflow, uint32_t &queue_drop) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		mPreview->getBufferStats(pool_miss, pool_overflow, queue_drop);
+		result = 0;
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::getStreamStats(uvc_stream_stats_t *stats, uint32_t &broken_frames, uint32_t &queue_drop) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->getStreamStats(stats, broken_frames, queue_drop);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setLatencyTrace(bool enabled) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setLatencyTrace(enabled);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::getLatencyHistogram(int stage, latency_histogram_t &histogram) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->getLatencyHistogram(stage, histogram);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::dumpLatencyTrace(const char *path) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->dumpLatencyTrace(path);
+	}
+	RETURN(result, int);
+}
+
 //======================================================================
 // カメラのサポートしているコントロール機能を取得する
 int UVCCamera::getCtrlSupports(uint64_t *supports) {
@@ -188,12 +188,25 @@ public:
 	int setButtonCallback(JNIEnv *env, jobject button_callback_obj);
 
 	char *getSupportedSize();
-	int setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth = DEFAULT_BANDWIDTH);
+	int setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth = DEFAULT_BANDWIDTH,
+		int transfer_bufs = 0, int packets_per_transfer = 0);
 	int setPreviewDisplay(ANativeWindow *preview_window);
-	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
+	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int buffer_num = 0);
+	int setBatchFrameCallback(JNIEnv *env, jobject batch_callback_obj, int pixel_format, int max_frames, int window_ms);
+	int captureStill(JNIEnv *env, jobject callback_obj, const char *path, int format, int quality);
+	jbyteArray captureRawFrame(JNIEnv *env, int pixel_format, int timeout_ms);
 	int startPreview();
 	int stopPreview();
 	int setCaptureDisplay(ANativeWindow *capture_window);
+	int setPipeline(IPipeline *pipeline);
+	int setBufferPolicy(int queue_depth, int pool_size, bool preallocate);
+	int setQueuePolicy(int consumer, int policy, int queue_depth, int timeout_ms);
+	int setConvertThreads(int thread_num);
+	int getBufferStats(uint32_t &pool_miss, uint32_t &pool_overflow, uint32_t &queue_drop);
+	int getStreamStats(uvc_stream_stats_t *stats, uint32_t &broken_frames, uint32_t &queue_drop);
+	int setLatencyTrace(bool enabled);
+	int getLatencyHistogram(int stage, latency_histogram_t &histogram);
+	int dumpLatencyTrace(const char *path);
 
 	int getCtrlSupports(uint64_t *supports);
 	int getProcSupports(uint64_t *supports);
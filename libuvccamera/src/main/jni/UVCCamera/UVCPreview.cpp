@@ -25,6 +25,7 @@
 #include <stdlib.h>
 #include <linux/time.h>
 #include <unistd.h>
+#include <errno.h>
 
 #if 1	// set 1 if you don't need debug log
 	#ifndef LOG_NDEBUG
@@ -42,9 +43,7 @@
 #include "libuvc_internal.h"
 
 #define	LOCAL_DEBUG 0
-#define MAX_FRAME 4
 #define PREVIEW_PIXEL_BYTES 4	// RGBA/RGBX
-#define FRAME_POOL_SZ MAX_FRAME + 2
 
 UVCPreview::UVCPreview(uvc_device_handle_t *devh)
 :	mPreviewWindow(NULL),
@@ -56,53 +55,108 @@ UVCPreview::UVCPreview(uvc_device_handle_t *devh)
 	requestMaxFps(DEFAULT_PREVIEW_FPS_MAX),
 	requestMode(DEFAULT_PREVIEW_MODE),
 	requestBandwidth(DEFAULT_BANDWIDTH),
+	requestTransferBufs(0),
+	requestPacketsPerTransfer(0),
 	frameWidth(DEFAULT_PREVIEW_WIDTH),
 	frameHeight(DEFAULT_PREVIEW_HEIGHT),
 	frameBytes(DEFAULT_PREVIEW_WIDTH * DEFAULT_PREVIEW_HEIGHT * 2),	// YUYV
 	frameMode(0),
 	previewBytes(DEFAULT_PREVIEW_WIDTH * DEFAULT_PREVIEW_HEIGHT * PREVIEW_PIXEL_BYTES),
+	poolFrameBytes(DEFAULT_PREVIEW_WIDTH * DEFAULT_PREVIEW_HEIGHT * PREVIEW_PIXEL_BYTES),
 	previewFormat(WINDOW_FORMAT_RGBA_8888),
 	mIsRunning(false),
 	mIsCapturing(false),
-	captureQueu(NULL),
+	mPreviewQueue(&preview_mutex, &preview_sync, QUEUE_POLICY_DROP_NEWEST, DEFAULT_QUEUE_DEPTH,
+		&mIsRunning, uvc_preview_recycle_frame, this),
+	mCaptureQueue(&capture_mutex, &capture_sync, QUEUE_POLICY_LATEST_WINS, DEFAULT_QUEUE_DEPTH,
+		&mIsRunning, uvc_preview_recycle_frame, this),
 	mFrameCallbackObj(NULL),
 	mFrameCallbackFunc(NULL),
-	callbackPixelBytes(2) {
+	callbackPixelBytes(2),
+	mCallbackBufferNum(0),
+	mCallbackBufferIx(0),
+	mBatchCallback(NULL),
+	mStillCapture(NULL),
+	mRawFrameWaiting(0),
+	mRawFrameCallers(0),
+	mPoolSize(DEFAULT_POOL_SZ),
+	mPreallocate(false),
+	mPoolMissCount(0),
+	mPoolStarved(false),
+	mPoolRequestBytes(0),
+	mPoolOverflowCount(0),
+	mBrokenFrameCount(0),
+	mPipeline(NULL) {
 
 	ENTER();
+	memset(mCallbackBuffers, 0, sizeof(mCallbackBuffers));
 	pthread_cond_init(&preview_sync, NULL);
 	pthread_mutex_init(&preview_mutex, NULL);
 //
 	pthread_cond_init(&capture_sync, NULL);
 	pthread_mutex_init(&capture_mutex, NULL);
+	pthread_mutex_init(&batch_callback_mutex, NULL);
+	pthread_mutex_init(&still_capture_mutex, NULL);
+	pthread_cond_init(&raw_frame_sync, NULL);
+	pthread_mutex_init(&raw_frame_mutex, NULL);
 //	
 	pthread_mutex_init(&pool_mutex, NULL);
+//
+	pthread_mutex_init(&pipeline_mutex, NULL);
 	EXIT();
 }
 
 UVCPreview::~UVCPreview() {
 
 	ENTER();
+	// fail the callers of captureRawFrame and wait until they leave because they use the frame pool
+	pthread_mutex_lock(&raw_frame_mutex);
+	{
+		mIsRunning = false;
+		cancelRawFrames();
+		for ( ; mRawFrameCallers > 0 ; ) {
+			pthread_cond_wait(&raw_frame_sync, &raw_frame_mutex);
+		}
+	}
+	pthread_mutex_unlock(&raw_frame_mutex);
 	if (mPreviewWindow)
 		ANativeWindow_release(mPreviewWindow);
 	mPreviewWindow = NULL;
 	if (mCaptureWindow)
 		ANativeWindow_release(mCaptureWindow);
 	mCaptureWindow = NULL;
-	clearPreviewFrame();
-	clearCaptureFrame();
+	frame_queue_clear(mPreviewQueue);
+	frame_queue_clear(mCaptureQueue);
 	clear_pool();
+	JNIEnv *env = getEnv();
+	if (LIKELY(env)) {
+		clearCallbackBuffers(env);
+		if (mBatchCallback) {
+			mBatchCallback->release(env);
+		}
+		if (mStillCapture) {
+			mStillCapture->release(env);
+		}
+	}
+	SAFE_DELETE(mBatchCallback);
+	SAFE_DELETE(mStillCapture);
 	pthread_mutex_destroy(&preview_mutex);
 	pthread_cond_destroy(&preview_sync);
 	pthread_mutex_destroy(&capture_mutex);
 	pthread_cond_destroy(&capture_sync);
+	pthread_mutex_destroy(&batch_callback_mutex);
+	pthread_mutex_destroy(&still_capture_mutex);
+	pthread_mutex_destroy(&raw_frame_mutex);
+	pthread_cond_destroy(&raw_frame_sync);
 	pthread_mutex_destroy(&pool_mutex);
+	pthread_mutex_destroy(&pipeline_mutex);
 	EXIT();
 }
 
 /**
  * get uvc_frame_t from frame pool
- * if pool is empty, create new frame
+ * if pool is empty, create new frame with poolFrameBytes at least
+ * so that the frame can be reused for any format after recycled.
  * this function does not confirm the frame size
  * and you may need to confirm the size
  */
@@ -117,19 +171,84 @@ uvc_frame_t *UVCPreview::get_frame(size_t data_bytes) {
 	pthread_mutex_unlock(&pool_mutex);
 	if UNLIKELY(!frame) {
 		LOGW("allocate new frame");
-		frame = uvc_allocate_frame(data_bytes);
+		__sync_add_and_fetch(&mPoolMissCount, 1);
+		frame = uvc_allocate_frame(data_bytes > poolFrameBytes ? data_bytes : poolFrameBytes);
+	}
+	return frame;
+}
+
+/**
+ * get uvc_frame_t that has data_bytes at least from frame pool without allocating memory.
+ * this is called on the thread handling libusb events, so this returns NULL when the pool
+ * does not have such frame and the preview thread refills the pool with #refill_pool
+ * libuvc drops payloads until it gets a frame
+ */
+uvc_frame_t *UVCPreview::get_pooled_frame(size_t data_bytes) {
+	uvc_frame_t *frame = NULL;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		// frames may have been shrunk by conversion, search from the last to keep LIFO order
+		for (int i = mFramePool.size() - 1; i >= 0; i--) {
+			if (mFramePool[i]->data_bytes >= data_bytes) {
+				frame = mFramePool.remove(i);
+				break;
+			}
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	if UNLIKELY(!frame) {
+		__sync_add_and_fetch(&mPoolMissCount, 1);
+		mPoolRequestBytes = data_bytes;
+		mPoolStarved = true;
+		// wake up the preview thread waiting for frames to refill the pool
+		pthread_mutex_lock(mPreviewQueue.mutex);
+		pthread_cond_broadcast(mPreviewQueue.sync);
+		pthread_mutex_unlock(mPreviewQueue.mutex);
 	}
 	return frame;
 }
 
+/**
+ * add frames to the pool after #get_pooled_frame could not provide a frame,
+ * this is called on the preview thread so that the thread handling libusb events never allocates memory
+ */
+void UVCPreview::refill_pool() {
+	if (LIKELY(!mPoolStarved)) return;
+	mPoolStarved = false;
+	if (poolFrameBytes < mPoolRequestBytes) {
+		poolFrameBytes = mPoolRequestBytes;
+	}
+	const size_t data_bytes = poolFrameBytes;
+	int n = 0;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		// reserve so that #recycle_frame does not need to expand the array on the thread of libusb
+		if (mFramePool.capacity() < mPoolSize + POOL_REFILL_NUM) {
+			mFramePool.size(mPoolSize + POOL_REFILL_NUM);
+		}
+		for (int i = 0; i < mFramePool.size(); i++) {
+			if (mFramePool[i]->data_bytes >= data_bytes) n++;
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	for (; n < POOL_REFILL_NUM; n++) {
+		uvc_frame_t *frame = uvc_allocate_frame(data_bytes);
+		if (UNLIKELY(!frame)) break;
+		pthread_mutex_lock(&pool_mutex);
+		mFramePool.put(frame);
+		pthread_mutex_unlock(&pool_mutex);
+	}
+}
+
 void UVCPreview::recycle_frame(uvc_frame_t *frame) {
 	pthread_mutex_lock(&pool_mutex);
-	if (LIKELY(mFramePool.size() < FRAME_POOL_SZ)) {
+	if (LIKELY(mFramePool.size() < mPoolSize)) {
 		mFramePool.put(frame);
 		frame = NULL;
 	}
 	pthread_mutex_unlock(&pool_mutex);
 	if (UNLIKELY(frame)) {
+		__sync_add_and_fetch(&mPoolOverflowCount, 1);
 		uvc_free_frame(frame);
 	}
 }
@@ -141,7 +260,8 @@ void UVCPreview::init_pool(size_t data_bytes) {
 	clear_pool();
 	pthread_mutex_lock(&pool_mutex);
 	{
-		for (int i = 0; i < FRAME_POOL_SZ; i++) {
+		const int n = mPoolSize;
+		for (int i = 0; i < n; i++) {
 			mFramePool.put(uvc_allocate_frame(data_bytes));
 		}
 	}
@@ -167,10 +287,151 @@ void UVCPreview::clear_pool() {
 
 inline const bool UVCPreview::isRunning() const {return mIsRunning; }
 
-int UVCPreview::setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth) {
+/**
+ * set sizing policy of frame queue and frame pool
+ * @param queue_depth max number of frames waiting for the preview thread, [1, MAX_QUEUE_DEPTH]
+ * @param pool_size max number of frames kept in the frame pool, frames over this are freed when recycled
+ * @param preallocate if true, allocate pool_size frames when preview size is determined on starting preview
+ * 			to avoid allocating memory on the thread of libuvc
+ */
+int UVCPreview::setBufferPolicy(int queue_depth, int pool_size, bool preallocate) {
+	ENTER();
+
+	if (UNLIKELY((queue_depth < 1) || (queue_depth > MAX_QUEUE_DEPTH) || (pool_size < 1))) {
+		RETURN(EXIT_FAILURE, int);
+	}
+	mPreviewQueue.depth = queue_depth;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		mPoolSize = pool_size;
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	mPreallocate = preallocate;
+
+	RETURN(0, int);
+}
+
+/**
+ * set how frame queue behaves when the consumer can not keep up with the producer
+ * @param consumer QUEUE_CONSUMER_PREVIEW or QUEUE_CONSUMER_CAPTURE
+ * @param policy QUEUE_POLICY_DROP_NEWEST, QUEUE_POLICY_LATEST_WINS or QUEUE_POLICY_BLOCK
+ * @param queue_depth max number of frames in the queue, [1, MAX_QUEUE_DEPTH], ignored for QUEUE_POLICY_LATEST_WINS
+ * @param timeout_ms max wait time of the producer for QUEUE_POLICY_BLOCK, [0, MAX_QUEUE_TIMEOUT_MS]
+ * 			note that the producer of QUEUE_CONSUMER_PREVIEW is the thread of libuvc
+ * 			and blocking it delays handling of USB transfers
+ */
+int UVCPreview::setQueuePolicy(int consumer, int policy, int queue_depth, int timeout_ms) {
+	ENTER();
+
+	frame_queue_t *queue;
+	switch (consumer) {
+	case QUEUE_CONSUMER_PREVIEW:
+		queue = &mPreviewQueue;
+		break;
+	case QUEUE_CONSUMER_CAPTURE:
+		queue = &mCaptureQueue;
+		break;
+	default:
+		RETURN(EXIT_FAILURE, int);
+	}
+	if (UNLIKELY((policy < QUEUE_POLICY_DROP_NEWEST) || (policy > QUEUE_POLICY_BLOCK)
+		|| (queue_depth < 1) || (queue_depth > MAX_QUEUE_DEPTH)
+		|| (timeout_ms < 0) || (timeout_ms > MAX_QUEUE_TIMEOUT_MS))) {
+		RETURN(EXIT_FAILURE, int);
+	}
+	queue->depth = queue_depth;
+	queue->timeout_ms = timeout_ms;
+	queue->policy = policy;
+
+	RETURN(0, int);
+}
+
+/**
+ * enable/disable recording latency of each frame from receiving its first payload
+ */
+int UVCPreview::setLatencyTrace(bool enabled) {
+	ENTER();
+
+	mLatencyTracer.setEnabled(enabled);
+
+	RETURN(0, int);
+}
+
+/**
+ * get rolling histogram of latency at the stage for the last LATENCY_TRACE_WINDOW frames
+ * @param stage one of latency_stage
+ */
+int UVCPreview::getLatencyHistogram(int stage, latency_histogram_t &histogram) {
+	ENTER();
+
+	int result = mLatencyTracer.getHistogram(stage, histogram);
+
+	RETURN(result, int);
+}
+
+/**
+ * write latency of the last LATENCY_TRACE_WINDOW frames to the file as csv
+ */
+int UVCPreview::dumpLatencyTrace(const char *path) {
+	ENTER();
+
+	int result = mLatencyTracer.dump(path);
+
+	RETURN(result, int);
+}
+
+/**
+ * set number of threads that convert a frame for preview display and frame callback
+ * @param thread_num [1, MAX_CONVERT_THREADS], 1 means the conversion is executed only on preview/capture thread
+ */
+int UVCPreview::setConvertThreads(int thread_num) {
+	ENTER();
+
+	if (UNLIKELY((thread_num < 1) || (thread_num > MAX_CONVERT_THREADS))) {
+		RETURN(EXIT_FAILURE, int);
+	}
+	mPreviewConverter.setThreadNum(thread_num);
+	mCaptureConverter.setThreadNum(thread_num);
+
+	RETURN(0, int);
+}
+
+/**
+ * get frame buffer statistics since preview started
+ */
+void UVCPreview::getBufferStats(uint32_t &pool_miss, uint32_t &pool_overflow, uint32_t &queue_drop) {
+	pool_miss = mPoolMissCount;
+	pool_overflow = mPoolOverflowCount;
+	queue_drop = mPreviewQueue.drop_count;
+}
+
+/**
+ * get USB streaming statistics of libuvc and frames dropped on this side
+ * @return 0 if preview is running, otherwise UVC_ERROR_NOT_FOUND
+ */
+int UVCPreview::getStreamStats(uvc_stream_stats_t *stats, uint32_t &broken_frames, uint32_t &queue_drop) {
+	ENTER();
+
+	if (UNLIKELY(!isRunning())) {
+		RETURN(UVC_ERROR_INVALID_MODE, int);
+	}
+	// libuvc locks the stream list, the stream may be stopped concurrently
+	int result = uvc_get_stream_stats(mDeviceHandle, stats);
+	broken_frames = mBrokenFrameCount;
+	queue_drop = mPreviewQueue.drop_count;
+
+	RETURN(result, int);
+}
+
+int UVCPreview::setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth,
+	int transfer_bufs, int packets_per_transfer) {
+
 	ENTER();
 
 	int result = 0;
+	// these are applied when preview starts next time
+	requestTransferBufs = transfer_bufs;
+	requestPacketsPerTransfer = packets_per_transfer;
 	if ((requestWidth != width) || (requestHeight != height) || (requestMode != mode)) {
 		requestWidth = width;
 		requestHeight = height;
@@ -206,20 +467,38 @@ int UVCPreview::setPreviewDisplay(ANativeWindow *preview_window) {
 	RETURN(0, int);
 }
 
-int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format) {
+/**
+ * set frame callback
+ * @param frame_callback_obj global reference of IFrameCallback or IPooledFrameCallback
+ * @param pixel_format
+ * @param buffer_num 0: frame_callback_obj is IFrameCallback, new direct ByteBuffer is created for each frame
+ * 			CALLBACK_BUFFER_DIRECT: frame_callback_obj is IDirectFrameCallback
+ * 			[1, MAX_CALLBACK_BUFFER_NUM]: frame_callback_obj is IPooledFrameCallback, buffer_num direct ByteBuffers are reused
+ * @return 0 on success, -1 if buffer_num is out of range, the current callback is not changed then
+ */
+int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int buffer_num) {
 	
 	ENTER();
+	if (UNLIKELY((buffer_num > MAX_CALLBACK_BUFFER_NUM) || ((buffer_num < 0) && (buffer_num != CALLBACK_BUFFER_DIRECT)))) {
+		LOGW("setFrameCallback:invalid buffer_num %d", buffer_num);
+		if (frame_callback_obj) {
+			env->DeleteGlobalRef(frame_callback_obj);
+		}
+		RETURN(-1, int);
+	}
 	pthread_mutex_lock(&capture_mutex);
 	{
 		if (isRunning() && isCapturing()) {
 			mIsCapturing = false;
 			if (mFrameCallbackObj) {
-				pthread_cond_signal(&capture_sync);
+				pthread_cond_broadcast(&capture_sync);
 				pthread_cond_wait(&capture_sync, &capture_mutex);	// wait finishing capturing
 			}
 		}
-		if (!env->IsSameObject(mFrameCallbackObj, frame_callback_obj))	{
+		if (!env->IsSameObject(mFrameCallbackObj, frame_callback_obj)
+			|| ((buffer_num < 0) != (mCallbackBufferNum < 0)))	{
 			iframecallback_fields.onFrame = NULL;
+			iframecallback_fields.obtainBuffer = NULL;
 			if (mFrameCallbackObj) {
 				env->DeleteGlobalRef(mFrameCallbackObj);
 			}
@@ -228,8 +507,18 @@ int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pi
 				// get method IDs of Java object for callback
 				jclass clazz = env->GetObjectClass(frame_callback_obj);
 				if (LIKELY(clazz)) {
-					iframecallback_fields.onFrame = env->GetMethodID(clazz,
-						"onFrame",	"(Ljava/nio/ByteBuffer;)V");
+					iframecallback_fields.onFrame = buffer_num != 0
+						? env->GetMethodID(clazz,	// IPooledFrameCallback/IDirectFrameCallback
+							"onFrame",	"(Ljava/nio/ByteBuffer;IIIIIJ)V")
+						: env->GetMethodID(clazz,	// IFrameCallback
+							"onFrame",	"(Ljava/nio/ByteBuffer;)V");
+					if (buffer_num < 0) {
+						iframecallback_fields.obtainBuffer = env->GetMethodID(clazz,	// IDirectFrameCallback
+							"obtainBuffer",	"(I)Ljava/nio/ByteBuffer;");
+						if (!iframecallback_fields.obtainBuffer) {
+							iframecallback_fields.onFrame = NULL;
+						}
+					}
 				} else {
 					LOGW("failed to get object class");
 				}
@@ -241,15 +530,255 @@ int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pi
 				}
 			}
 		}
+		if (!frame_callback_obj || (buffer_num != mCallbackBufferNum)) {
+			clearCallbackBuffers(env);
+		}
 		if (frame_callback_obj) {
 			mPixelFormat = pixel_format;
+			mCallbackBufferNum = buffer_num;
 			callbackPixelFormatChanged();
+		} else {
+			mCallbackBufferNum = 0;
 		}
 	}
 	pthread_mutex_unlock(&capture_mutex);
 	RETURN(0, int);
 }
 
+/**
+ * set IBatchFrameCallback, frames are collected into batches on capture thread
+ * and delivered on the dedicated thread of BatchFrameCallback.
+ * this can be used with/without IFrameCallback.
+ * @param batch_callback_obj global reference of IBatchFrameCallback or NULL to remove
+ * @param max_frames max number of frames in one batch
+ * @param window_ms deliver the batch when this period elapsed since the first frame in it, 0: only when it is full
+ */
+int UVCPreview::setBatchFrameCallback(JNIEnv *env, jobject batch_callback_obj,
+	int pixel_format, int max_frames, int window_ms) {
+
+	ENTER();
+	int result = 0;
+	BatchFrameCallback *callback = NULL;
+	if (batch_callback_obj) {
+		jmethodID onFrames = NULL;
+		jclass clazz = env->GetObjectClass(batch_callback_obj);
+		if (LIKELY(clazz)) {
+			onFrames = env->GetMethodID(clazz,
+				"onFrames", "(Ljava/nio/ByteBuffer;IIIII[I[J)V");
+			env->DeleteLocalRef(clazz);
+		} else {
+			LOGW("failed to get object class");
+		}
+		env->ExceptionClear();
+		if (onFrames) {
+			callback = new BatchFrameCallback(batch_callback_obj, onFrames, pixel_format, max_frames, window_ms);
+			if (UNLIKELY(callback->start())) {
+				callback->release(env);
+				SAFE_DELETE(callback);
+				result = -1;
+			}
+		} else {
+			LOGE("Can't find IBatchFrameCallback#onFrames");
+			env->DeleteGlobalRef(batch_callback_obj);
+			result = -1;
+		}
+	}
+	BatchFrameCallback *prev;
+	pthread_mutex_lock(&batch_callback_mutex);
+	{
+		prev = mBatchCallback;
+		mBatchCallback = callback;
+	}
+	pthread_mutex_unlock(&batch_callback_mutex);
+	if (prev) {
+		prev->release(env);
+		delete prev;
+	}
+	RETURN(result, int);
+}
+
+/**
+ * request still image of the next frame, the frame is encoded and written on the worker threads
+ * of StillCapture and IStillCaptureCallback#onCaptureStill is called on the worker thread.
+ * @param callback_obj global reference of IStillCaptureCallback or NULL
+ * @param format STILL_FORMAT_JPEG or STILL_FORMAT_PNG
+ */
+int UVCPreview::captureStill(JNIEnv *env, jobject callback_obj, const char *path, int format, int quality) {
+
+	ENTER();
+	int result = -1;
+	if (LIKELY(isRunning())) {
+		pthread_mutex_lock(&still_capture_mutex);
+		{
+			if (!mStillCapture) {
+				StillCapture *capture = new StillCapture();
+				if (LIKELY(!capture->start())) {
+					mStillCapture = capture;
+				} else {
+					capture->release(env);
+					delete capture;
+				}
+			}
+		}
+		pthread_mutex_unlock(&still_capture_mutex);
+		if (LIKELY(mStillCapture)) {
+			result = mStillCapture->request(env, callback_obj, path, format, quality);
+			callback_obj = NULL;	// request deletes it
+		}
+	}
+	if (UNLIKELY(callback_obj)) {
+		env->DeleteGlobalRef(callback_obj);
+	}
+	RETURN(result, int);
+}
+
+/**
+ * wait for the next frame from the camera and return it as full resolution byte array.
+ * the frame is taken on the preview thread before any decoding/scaling,
+ * so this does not need any preview surface and PIXEL_FORMAT_RAW returns MJPEG payload as it is.
+ * this blocks the caller but never blocks the preview thread and the capture thread.
+ * @param pixel_format PIXEL_FORMAT_XXX
+ * @param timeout_ms max wait time for the next frame, 0 or negative value is rejected
+ * @return local reference of byte array, NULL if timeout, preview stopped or failed to convert
+ */
+jbyteArray UVCPreview::captureRawFrame(JNIEnv *env, int pixel_format, int timeout_ms) {
+
+	ENTER();
+
+	jbyteArray result = NULL;
+	if (UNLIKELY(timeout_ms <= 0)) {
+		LOGW("captureRawFrame:invalid timeout %d", timeout_ms);
+		RETURN(result, jbyteArray);
+	}
+	raw_frame_request_t req;
+	req.frame = NULL;
+	req.done = false;
+	struct timespec ts;
+	clock_gettime(CLOCK_REALTIME, &ts);
+	ts.tv_sec += timeout_ms / 1000;
+	ts.tv_nsec += (timeout_ms % 1000) * 1000000;
+	if (ts.tv_nsec >= 1000000000) {
+		ts.tv_nsec -= 1000000000;
+		ts.tv_sec += 1;
+	}
+	pthread_mutex_lock(&raw_frame_mutex);
+	{
+		mRawFrameCallers++;
+		// stopPreview/destructor clear mIsRunning before they cancel requests while holding raw_frame_mutex,
+		// so a request is never added after it was cancelled
+		if (LIKELY(isRunning())) {
+			mRawFrameRequests.put(&req);
+			mRawFrameWaiting = mRawFrameRequests.size();
+			for ( ; !req.done ; ) {
+				if (pthread_cond_timedwait(&raw_frame_sync, &raw_frame_mutex, &ts) == ETIMEDOUT) break;
+			}
+			if (!req.done) {
+				mRawFrameRequests.removeObject(&req);
+				mRawFrameWaiting = mRawFrameRequests.size();
+			}
+		}
+	}
+	pthread_mutex_unlock(&raw_frame_mutex);
+	if (req.frame) {
+		uvc_frame_t *frame = req.frame;
+		const size_t sz = frame->width * frame->height;
+		convFunc_t func = NULL;
+		size_t bytes = 0;
+		switch (pixel_format) {
+		case PIXEL_FORMAT_YUV:
+			func = uvc_any2yuyv;
+			bytes = sz * 2;
+			break;
+		case PIXEL_FORMAT_RGB565:
+			func = uvc_any2rgb565;
+			bytes = sz * 2;
+			break;
+		case PIXEL_FORMAT_RGBX:
+			func = uvc_any2rgbx;
+			bytes = sz * 4;
+			break;
+		case PIXEL_FORMAT_YUV20SP:
+			func = uvc_any2iyuv420SP;
+			bytes = (sz * 3) / 2;
+			break;
+		case PIXEL_FORMAT_NV21:
+			func = uvc_any2yuv420SP;
+			bytes = (sz * 3) / 2;
+			break;
+		default:
+			// PIXEL_FORMAT_RAW, MJPEG payload or YUYV as it came from the camera
+			break;
+		}
+		if (func) {
+			uvc_frame_t *converted = get_frame(bytes);
+			if (LIKELY(converted) && UNLIKELY(func(frame, converted))) {
+				LOGW("failed to convert raw frame");
+				recycle_frame(converted);
+				converted = NULL;
+			}
+			recycle_frame(frame);
+			frame = converted;
+		}
+		if (LIKELY(frame)) {
+			result = env->NewByteArray(frame->actual_bytes);
+			if (LIKELY(result)) {
+				env->SetByteArrayRegion(result, 0, frame->actual_bytes, (const jbyte *)frame->data);
+			}
+			env->ExceptionClear();
+			recycle_frame(frame);
+		}
+	}
+	pthread_mutex_lock(&raw_frame_mutex);
+	{
+		// the destructor may be waiting for this, do not touch any member after this
+		mRawFrameCallers--;
+		pthread_cond_broadcast(&raw_frame_sync);
+	}
+	pthread_mutex_unlock(&raw_frame_mutex);
+	RETURN(result, jbyteArray);
+}
+
+/**
+ * pass a copy of the frame to all callers of captureRawFrame that are waiting
+ * called only from the preview thread, this does not recycle the frame
+ */
+void UVCPreview::offerRawFrame(uvc_frame_t *frame) {
+	pthread_mutex_lock(&raw_frame_mutex);
+	{
+		const int n = mRawFrameRequests.size();
+		for (int i = 0; i < n; i++) {
+			raw_frame_request_t *req = mRawFrameRequests[i];
+			uvc_frame_t *copy = get_frame(frame->data_bytes);
+			if (LIKELY(copy) && UNLIKELY(uvc_duplicate_frame(frame, copy))) {
+				recycle_frame(copy);
+				copy = NULL;
+			}
+			req->frame = copy;
+			req->done = true;
+		}
+		mRawFrameRequests.clear();
+		mRawFrameWaiting = 0;
+		pthread_cond_broadcast(&raw_frame_sync);
+	}
+	pthread_mutex_unlock(&raw_frame_mutex);
+}
+
+/**
+ * fail all callers of captureRawFrame that are waiting and wake them up
+ * must be called while holding raw_frame_mutex
+ */
+void UVCPreview::cancelRawFrames() {
+	const int n = mRawFrameRequests.size();
+	for (int i = 0; i < n; i++) {
+		raw_frame_request_t *req = mRawFrameRequests[i];
+		req->frame = NULL;
+		req->done = true;
+	}
+	mRawFrameRequests.clear();
+	mRawFrameWaiting = 0;
+	pthread_cond_broadcast(&raw_frame_sync);
+}
+
 void UVCPreview::callbackPixelFormatChanged() {
 	mFrameCallbackFunc = NULL;
 	const size_t sz = requestWidth * requestHeight;
@@ -274,12 +803,12 @@ void UVCPreview::callbackPixelFormatChanged() {
 		break;
 	  case PIXEL_FORMAT_YUV20SP:
 		LOGI("PIXEL_FORMAT_YUV20SP:");
-		mFrameCallbackFunc = uvc_yuyv2iyuv420SP;
+		mFrameCallbackFunc = uvc_any2iyuv420SP;
 		callbackPixelBytes = (sz * 3) / 2;
 		break;
 	  case PIXEL_FORMAT_NV21:
 		LOGI("PIXEL_FORMAT_NV21:");
-		mFrameCallbackFunc = uvc_yuyv2yuv420SP;
+		mFrameCallbackFunc = uvc_any2yuv420SP;
 		callbackPixelBytes = (sz * 3) / 2;
 		break;
 	}
@@ -331,15 +860,18 @@ int UVCPreview::startPreview() {
 	int result = EXIT_FAILURE;
 	if (!isRunning()) {
 		mIsRunning = true;
+		mPoolMissCount = mPoolOverflowCount = mBrokenFrameCount = 0;
+		mPreviewQueue.drop_count = mCaptureQueue.drop_count = 0;
+		mLatencyTracer.reset();
 		pthread_mutex_lock(&preview_mutex);
 		{
-			if (LIKELY(mPreviewWindow)) {
-				result = pthread_create(&preview_thread, NULL, preview_thread_func, (void *)this);
-			}
+			// we can start streaming without preview window, frames are still passed to
+			// the pipeline, frame callbacks, still capture and captureRawFrame
+			result = pthread_create(&preview_thread, NULL, preview_thread_func, (void *)this);
 		}
 		pthread_mutex_unlock(&preview_mutex);
 		if (UNLIKELY(result != EXIT_SUCCESS)) {
-			LOGW("UVCCamera::window does not exist/already running/could not create thread etc.");
+			LOGW("UVCCamera::already running/could not create thread etc.");
 			mIsRunning = false;
 			pthread_mutex_lock(&preview_mutex);
 			{
@@ -356,8 +888,17 @@ int UVCPreview::stopPreview() {
 	bool b = isRunning();
 	if (LIKELY(b)) {
 		mIsRunning = false;
-		pthread_cond_signal(&preview_sync);
-		pthread_cond_signal(&capture_sync);
+		// wake up both of the producer and the consumer that may wait on the frame queues
+		pthread_mutex_lock(&preview_mutex);
+		pthread_cond_broadcast(&preview_sync);
+		pthread_mutex_unlock(&preview_mutex);
+		pthread_mutex_lock(&capture_mutex);
+		pthread_cond_broadcast(&capture_sync);
+		pthread_mutex_unlock(&capture_mutex);
+		// callers of captureRawFrame will never get a frame
+		pthread_mutex_lock(&raw_frame_mutex);
+		cancelRawFrames();
+		pthread_mutex_unlock(&raw_frame_mutex);
 		if (pthread_join(capture_thread, NULL) != EXIT_SUCCESS) {
 			LOGW("UVCPreview::terminate capture thread: pthread_join failed");
 		}
@@ -366,8 +907,12 @@ int UVCPreview::stopPreview() {
 		}
 		clearDisplay();
 	}
-	clearPreviewFrame();
-	clearCaptureFrame();
+	if (mStillCapture) {
+		// requests that did not get frame will never get it
+		mStillCapture->cancel(getEnv());
+	}
+	frame_queue_clear(mPreviewQueue);
+	frame_queue_clear(mCaptureQueue);
 	pthread_mutex_lock(&preview_mutex);
 	if (mPreviewWindow) {
 		ANativeWindow_release(mPreviewWindow);
@@ -386,6 +931,46 @@ int UVCPreview::stopPreview() {
 //**********************************************************************
 //
 //**********************************************************************
+/**
+ * called from libuvc and frame queues to return a frame that was dropped or not used
+ */
+void UVCPreview::uvc_preview_recycle_frame(uvc_frame_t *frame, void *vptr_args) {
+	UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
+	preview->recycle_frame(frame);
+}
+
+#if defined(USE_POOL_FRAME_ASSEMBLY)
+/**
+ * called from libuvc to get a frame that payloads are assembled into
+ */
+uvc_frame_t *UVCPreview::uvc_preview_obtain_frame(size_t data_bytes, void *vptr_args) {
+	UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
+	return preview->get_pooled_frame(data_bytes);
+}
+
+/**
+ * libuvc assembled payloads into the pooled frame directly,
+ * this callback owns the frame and passes it to the preview thread without copying
+ */
+void UVCPreview::uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args) {
+	UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
+	if (UNLIKELY(!frame)) return;
+	if (UNLIKELY(!preview->isRunning() || !frame->frame_format || !frame->data || !frame->data_bytes
+		|| ((frame->frame_format != UVC_FRAME_FORMAT_MJPEG) && (frame->actual_bytes < preview->frameBytes))
+		|| (frame->width != preview->frameWidth) || (frame->height != preview->frameHeight) )) {
+
+#if LOCAL_DEBUG
+		LOGD("broken frame!:format=%d,actual_bytes=%d/%d(%d,%d/%d,%d)",
+			frame->frame_format, frame->actual_bytes, preview->frameBytes,
+			frame->width, frame->height, preview->frameWidth, preview->frameHeight);
+#endif
+		__sync_add_and_fetch(&preview->mBrokenFrameCount, 1);
+		preview->recycle_frame(frame);
+		return;
+	}
+	frame_queue_put(preview->mPreviewQueue, frame);
+}
+#else
 void UVCPreview::uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args) {
 	UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
 	if UNLIKELY(!preview->isRunning() || !frame || !frame->frame_format || !frame->data || !frame->data_bytes) return;
@@ -398,6 +983,7 @@ void UVCPreview::uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args)
 			frame->frame_format, frame->actual_bytes, preview->frameBytes,
 			frame->width, frame->height, preview->frameWidth, preview->frameHeight);
 #endif
+		__sync_add_and_fetch(&preview->mBrokenFrameCount, 1);
 		return;
 	}
 	if (LIKELY(preview->isRunning())) {
@@ -413,48 +999,10 @@ void UVCPreview::uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args)
 			preview->recycle_frame(copy);
 			return;
 		}
-		preview->addPreviewFrame(copy);
-	}
-}
-
-void UVCPreview::addPreviewFrame(uvc_frame_t *frame) {
-
-	pthread_mutex_lock(&preview_mutex);
-	if (isRunning() && (previewFrames.size() < MAX_FRAME)) {
-		previewFrames.put(frame);
-		frame = NULL;
-		pthread_cond_signal(&preview_sync);
-	}
-	pthread_mutex_unlock(&preview_mutex);
-	if (frame) {
-		recycle_frame(frame);
-	}
-}
-
-uvc_frame_t *UVCPreview::waitPreviewFrame() {
-	uvc_frame_t *frame = NULL;
-	pthread_mutex_lock(&preview_mutex);
-	{
-		if (!previewFrames.size()) {
-			pthread_cond_wait(&preview_sync, &preview_mutex);
-		}
-		if (LIKELY(isRunning() && previewFrames.size() > 0)) {
-			frame = previewFrames.remove(0);
-		}
-	}
-	pthread_mutex_unlock(&preview_mutex);
-	return frame;
-}
-
-void UVCPreview::clearPreviewFrame() {
-	pthread_mutex_lock(&preview_mutex);
-	{
-		for (int i = 0; i < previewFrames.size(); i++)
-			recycle_frame(previewFrames[i]);
-		previewFrames.clear();
+		frame_queue_put(preview->mPreviewQueue, copy);
 	}
-	pthread_mutex_unlock(&preview_mutex);
 }
+#endif
 
 void *UVCPreview::preview_thread_func(void *vptr_args) {
 	int result;
@@ -503,6 +1051,15 @@ int UVCPreview::prepare_preview(uvc_stream_ctrl_t *ctrl) {
 		frameMode = requestMode;
 		frameBytes = frameWidth * frameHeight * (!requestMode ? 2 : 4);
 		previewBytes = frameWidth * frameHeight * PREVIEW_PIXEL_BYTES;
+		// pooled frames are shared by received frames and frames converted to RGBX/RGB565/NV21
+		// for preview/callback, so size them for the largest one to avoid reallocation on converting
+		poolFrameBytes = frameBytes;
+		if (poolFrameBytes < previewBytes) poolFrameBytes = previewBytes;
+		if (poolFrameBytes < callbackPixelBytes) poolFrameBytes = callbackPixelBytes;
+		if (mPreallocate) {
+			// allocate frames before streaming starts
+			init_pool(poolFrameBytes);
+		}
 	} else {
 		LOGE("could not negotiate with camera:err=%d", result);
 	}
@@ -514,11 +1071,19 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 
 	uvc_frame_t *frame = NULL;
 	uvc_frame_t *frame_mjpeg = NULL;
+#if defined(USE_POOL_FRAME_ASSEMBLY)
+	// let libuvc assemble payloads into pooled frames to avoid copying each frame
+	uvc_set_frame_pool(mDeviceHandle, uvc_preview_obtain_frame, uvc_preview_recycle_frame);
+	// libuvc never allocates frames, fill the pool before streaming
+	mPoolStarved = true;
+	refill_pool();
+#endif
+	uvc_set_transfer_config(mDeviceHandle, requestTransferBufs, requestPacketsPerTransfer);
 	uvc_error_t result = uvc_start_streaming_bandwidth(
 		mDeviceHandle, ctrl, uvc_preview_frame_callback, (void *)this, requestBandwidth, 0);
 
 	if (LIKELY(!result)) {
-		clearPreviewFrame();
+		frame_queue_clear(mPreviewQueue);
 		pthread_create(&capture_thread, NULL, capture_thread_func, (void *)this);
 
 #if LOCAL_DEBUG
@@ -527,30 +1092,69 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 		if (frameMode) {
 			// MJPEG mode
 			for ( ; LIKELY(isRunning()) ; ) {
-				frame_mjpeg = waitPreviewFrame();
+#if defined(USE_POOL_FRAME_ASSEMBLY)
+				refill_pool();
+#endif
+				frame_mjpeg = frame_queue_wait(mPreviewQueue);
 				if (LIKELY(frame_mjpeg)) {
+					mLatencyTracer.start(frame_mjpeg);
+					if (UNLIKELY(mRawFrameWaiting)) {
+						offerRawFrame(frame_mjpeg);
+					}
+					queueToPipeline(frame_mjpeg);
+					bool has_preview;
+					const bool for_callback = isMjpegForCallback(has_preview);
+					if (for_callback && !has_preview) {
+						// only frame callback needs this frame, it is decoded into callback pixel format
+						// directly on the capture thread without decoding into yuyv here
+						frame_queue_put(mCaptureQueue, frame_mjpeg);
+						continue;
+					}
 					frame = get_frame(frame_mjpeg->width * frame_mjpeg->height * 2);
 					result = uvc_mjpeg2yuyv(frame_mjpeg, frame);   // MJPEG => yuyv
-					recycle_frame(frame_mjpeg);
+					if (!for_callback) {
+						recycle_frame(frame_mjpeg);
+						frame_mjpeg = NULL;
+					}
 					if (LIKELY(!result)) {
 						frame = draw_preview_one(frame, &mPreviewWindow, uvc_any2rgbx, 4);
-						addCaptureFrame(frame);
+						if (frame_mjpeg) {
+							// yuyv frame is only for preview, frame callback decodes MJPEG frame
+							// into NV21/YUV420SP on the capture thread
+							recycle_frame(frame);
+							frame_queue_put(mCaptureQueue, frame_mjpeg);
+						} else {
+							frame_queue_put(mCaptureQueue, frame);
+						}
 					} else {
 						recycle_frame(frame);
+						if (frame_mjpeg) {
+							recycle_frame(frame_mjpeg);
+						}
 					}
 				}
 			}
 		} else {
 			// yuvyv mode
 			for ( ; LIKELY(isRunning()) ; ) {
-				frame = waitPreviewFrame();
+#if defined(USE_POOL_FRAME_ASSEMBLY)
+				refill_pool();
+#endif
+				frame = frame_queue_wait(mPreviewQueue);
 				if (LIKELY(frame)) {
+					mLatencyTracer.start(frame);
+					if (UNLIKELY(mRawFrameWaiting)) {
+						offerRawFrame(frame);
+					}
+					queueToPipeline(frame);
 					frame = draw_preview_one(frame, &mPreviewWindow, uvc_any2rgbx, 4);
-					addCaptureFrame(frame);
+					frame_queue_put(mCaptureQueue, frame);
 				}
 			}
 		}
-		pthread_cond_signal(&capture_sync);
+		pthread_mutex_lock(&capture_mutex);
+		pthread_cond_broadcast(&capture_sync);
+		pthread_mutex_unlock(&capture_mutex);
 #if LOCAL_DEBUG
 		LOGI("preview_thread_func:wait for all callbacks complete");
 #endif
@@ -565,6 +1169,31 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 	EXIT();
 }
 
+/**
+ * pass raw frame to the pipeline if it is set.
+ * the pipeline duplicates the frame into it's own buffer,
+ * so the caller still owns the frame after this call
+ */
+void UVCPreview::queueToPipeline(uvc_frame_t *frame) {
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		if (mPipeline) {
+			mPipeline->queueFrame(frame);
+		}
+	}
+	pthread_mutex_unlock(&pipeline_mutex);
+}
+
+int UVCPreview::setPipeline(IPipeline *pipeline) {
+	ENTER();
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		mPipeline = pipeline;
+	}
+	pthread_mutex_unlock(&pipeline_mutex);
+	RETURN(0, int);
+}
+
 static void copyFrame(const uint8_t *src, uint8_t *dest, const int width, int height, const int stride_src, const int stride_dest) {
 	const int h8 = height % 8;
 	for (int i = 0; i < h8; i++) {
@@ -638,11 +1267,15 @@ uvc_frame_t *UVCPreview::draw_preview_one(uvc_frame_t *frame, ANativeWindow **wi
 		if (convert_func) {
 			converted = get_frame(frame->width * frame->height * pixcelBytes);
 			if LIKELY(converted) {
-				b = convert_func(frame, converted);
+				b = mPreviewConverter.convert(convert_func, frame, converted);
 				if (!b) {
+					mLatencyTracer.mark(frame->sequence, LATENCY_STAGE_CONVERT);
 					pthread_mutex_lock(&preview_mutex);
-					copyToSurface(converted, window);
+					b = copyToSurface(converted, window);
 					pthread_mutex_unlock(&preview_mutex);
+					if (!b) {
+						mLatencyTracer.mark(frame->sequence, LATENCY_STAGE_DISPLAY);
+					}
 				} else {
 					LOGE("failed converting");
 				}
@@ -650,8 +1283,11 @@ uvc_frame_t *UVCPreview::draw_preview_one(uvc_frame_t *frame, ANativeWindow **wi
 			}
 		} else {
 			pthread_mutex_lock(&preview_mutex);
-			copyToSurface(frame, window);
+			b = copyToSurface(frame, window);
 			pthread_mutex_unlock(&preview_mutex);
+			if (!b) {
+				mLatencyTracer.mark(frame->sequence, LATENCY_STAGE_DISPLAY);
+			}
 		}
 	}
 	return frame; //RETURN(frame, uvc_frame_t *);
@@ -669,7 +1305,7 @@ int UVCPreview::setCaptureDisplay(ANativeWindow *capture_window) {
 		if (isRunning() && isCapturing()) {
 			mIsCapturing = false;
 			if (mCaptureWindow) {
-				pthread_cond_signal(&capture_sync);
+				pthread_cond_broadcast(&capture_sync);
 				pthread_cond_wait(&capture_sync, &capture_mutex);	// wait finishing capturing
 			}
 		}
@@ -698,51 +1334,6 @@ int UVCPreview::setCaptureDisplay(ANativeWindow *capture_window) {
 	RETURN(0, int);
 }
 
-void UVCPreview::addCaptureFrame(uvc_frame_t *frame) {
-	pthread_mutex_lock(&capture_mutex);
-	if (LIKELY(isRunning())) {
-		// keep only latest one
-		if (captureQueu) {
-			recycle_frame(captureQueu);
-		}
-		captureQueu = frame;
-		pthread_cond_broadcast(&capture_sync);
-	}
-	pthread_mutex_unlock(&capture_mutex);
-}
-
-/**
- * get frame data for capturing, if not exist, block and wait
- */
-uvc_frame_t *UVCPreview::waitCaptureFrame() {
-	uvc_frame_t *frame = NULL;
-	pthread_mutex_lock(&capture_mutex);
-	{
-		if (!captureQueu) {
-			pthread_cond_wait(&capture_sync, &capture_mutex);
-		}
-		if (LIKELY(isRunning() && captureQueu)) {
-			frame = captureQueu;
-			captureQueu = NULL;
-		}
-	}
-	pthread_mutex_unlock(&capture_mutex);
-	return frame;
-}
-
-/**
- * clear drame data for capturing
- */
-void UVCPreview::clearCaptureFrame() {
-	pthread_mutex_lock(&capture_mutex);
-	{
-		if (captureQueu)
-			recycle_frame(captureQueu);
-		captureQueu = NULL;
-	}
-	pthread_mutex_unlock(&capture_mutex);
-}
-
 //======================================================================
 /*
  * thread function
@@ -775,7 +1366,7 @@ void UVCPreview::do_capture(JNIEnv *env) {
 
 	ENTER();
 
-	clearCaptureFrame();
+	frame_queue_clear(mCaptureQueue);
 	callbackPixelFormatChanged();
 	for (; isRunning() ;) {
 		mIsCapturing = true;
@@ -789,11 +1380,50 @@ void UVCPreview::do_capture(JNIEnv *env) {
 	EXIT();
 }
 
+/**
+ * whether MJPEG frame should be passed to the capture thread as it is,
+ * frame callback decodes it directly into callback pixel format there.
+ * false if there is capture surface or batch callback or frame callback does not convert frames.
+ * while preview surface is attached, preview decodes its own yuyv frame and only NV21/YUV420SP
+ * callback(e.g. MediaVideoBufferEncoder) takes MJPEG frame, decoding into them skips yuyv
+ * called only from the preview thread
+ * @param has_preview set whether preview surface is attached
+ */
+bool UVCPreview::isMjpegForCallback(bool &has_preview) {
+	bool result;
+	pthread_mutex_lock(&preview_mutex);
+	{
+		has_preview = mPreviewWindow != NULL;
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	pthread_mutex_lock(&capture_mutex);
+	{
+		result = !mCaptureWindow && mFrameCallbackObj && mFrameCallbackFunc
+			&& (!has_preview
+				|| (mFrameCallbackFunc == uvc_any2yuv420SP) || (mFrameCallbackFunc == uvc_any2iyuv420SP));
+	}
+	pthread_mutex_unlock(&capture_mutex);
+	return result && !hasBatchCallback();
+}
+
+/**
+ * whether IBatchFrameCallback is set, setBatchFrameCallback may change it on other thread
+ */
+bool UVCPreview::hasBatchCallback() {
+	bool result;
+	pthread_mutex_lock(&batch_callback_mutex);
+	{
+		result = mBatchCallback != NULL;
+	}
+	pthread_mutex_unlock(&batch_callback_mutex);
+	return result;
+}
+
 void UVCPreview::do_capture_idle_loop(JNIEnv *env) {
 	ENTER();
 	
 	for (; isRunning() && isCapturing() ;) {
-		do_capture_callback(env, waitCaptureFrame());
+		do_capture_callback(env, frame_queue_wait(mCaptureQueue));
 	}
 	
 	EXIT();
@@ -810,15 +1440,15 @@ void UVCPreview::do_capture_surface(JNIEnv *env) {
 	char *local_picture_path;
 
 	for (; isRunning() && isCapturing() ;) {
-		frame = waitCaptureFrame();
+		frame = frame_queue_wait(mCaptureQueue);
 		if (LIKELY(frame)) {
-			// frame data is always YUYV format.
+			// frame data is YUYV format, or MJPEG when it is passed through from the preview thread.
 			if LIKELY(isCapturing()) {
 				if (UNLIKELY(!converted)) {
 					converted = get_frame(previewBytes);
 				}
 				if (LIKELY(converted)) {
-					int b = uvc_any2rgbx(frame, converted);
+					int b = mCaptureConverter.convert(uvc_any2rgbx, frame, converted);
 					if (!b) {
 						if (LIKELY(mCaptureWindow)) {
 							copyToSurface(converted, &mCaptureWindow);
@@ -846,13 +1476,46 @@ void UVCPreview::do_capture_surface(JNIEnv *env) {
 void UVCPreview::do_capture_callback(JNIEnv *env, uvc_frame_t *frame) {
 	ENTER();
 
-	if (LIKELY(frame)) {
+	const uint32_t sequence = frame ? frame->sequence : 0;
+	// read once, setBatchFrameCallback may change it while this frame is handled
+	const bool has_batch_callback = frame && hasBatchCallback();
+	if (UNLIKELY(frame && mStillCapture && mStillCapture->isWaiting())) {
+		mStillCapture->addFrame(env, frame);
+	}
+	if (UNLIKELY(frame && (frame->frame_format == UVC_FRAME_FORMAT_MJPEG)
+		&& (!mFrameCallbackFunc || has_batch_callback))) {
+		// callback settings were changed after this frame was passed through, decode it here
+		uvc_frame_t *yuyv = get_frame(frame->width * frame->height * 2);
+		if (LIKELY(yuyv) && UNLIKELY(uvc_mjpeg2yuyv(frame, yuyv))) {
+			recycle_frame(yuyv);
+			yuyv = NULL;
+		}
+		recycle_frame(frame);
+		frame = yuyv;
+	}
+	if (LIKELY(frame) && has_batch_callback) {
+		pthread_mutex_lock(&batch_callback_mutex);
+		{
+			// a callback that was set after the decision above skips this MJPEG frame
+			if (mBatchCallback && (frame->frame_format != UVC_FRAME_FORMAT_MJPEG)) {
+				mBatchCallback->addFrame(env, frame);
+			}
+		}
+		pthread_mutex_unlock(&batch_callback_mutex);
+	}
+	if (LIKELY(frame) && mFrameCallbackObj && (mCallbackBufferNum < 0)) {
+		do_capture_direct_callback(env, frame);
+		recycle_frame(frame);
+	} else if (LIKELY(frame) && mFrameCallbackObj && (mCallbackBufferNum > 0)) {
+		do_capture_buffer_callback(env, frame);
+		recycle_frame(frame);
+	} else if (LIKELY(frame)) {
 		uvc_frame_t *callback_frame = frame;
 		if (mFrameCallbackObj) {
 			if (mFrameCallbackFunc) {
 				callback_frame = get_frame(callbackPixelBytes);
 				if (LIKELY(callback_frame)) {
-					int b = mFrameCallbackFunc(frame, callback_frame);
+					int b = mCaptureConverter.convert(mFrameCallbackFunc, frame, callback_frame);
 					recycle_frame(frame);
 					if (UNLIKELY(b)) {
 						LOGW("failed to convert for callback frame");
@@ -868,9 +1531,153 @@ void UVCPreview::do_capture_callback(JNIEnv *env, uvc_frame_t *frame) {
 			env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
 			env->ExceptionClear();
 			env->DeleteLocalRef(buf);
+			mLatencyTracer.mark(sequence, LATENCY_STAGE_CALLBACK);
 		}
  SKIP:
 		recycle_frame(callback_frame);
 	}
 	EXIT();
 }
+
+/**
+ * call IPooledFrameCallback#onFrame with one of reused direct ByteBuffers and frame info.
+ * frame data is converted/copied directly into the ByteBuffer.
+ * this does not recycle the frame
+ */
+void UVCPreview::do_capture_buffer_callback(JNIEnv *env, uvc_frame_t *frame) {
+	ENTER();
+
+	const size_t bytes = mFrameCallbackFunc ? callbackPixelBytes : frame->actual_bytes;
+	callback_buffer_t *buf = obtainCallbackBuffer(env, bytes);
+	if (UNLIKELY(!buf)) {
+		LOGW("failed to allocate callback buffer");
+		EXIT();
+	}
+	if (mFrameCallbackFunc) {
+		uvc_frame_t out;
+		memset(&out, 0, sizeof(out));
+		out.data = buf->data;
+		out.data_bytes = buf->bytes;
+		out.library_owns_data = 0;
+		int b = mCaptureConverter.convert(mFrameCallbackFunc, frame, &out);
+		if (UNLIKELY(b)) {
+			LOGW("failed to convert for callback frame");
+			EXIT();
+		}
+	} else {
+		memcpy(buf->data, frame->data, bytes);
+	}
+	// host monotonic time translated from PTS/SCR of the device, same clock as System#nanoTime
+	const jlong pts = (jlong)frame->presentation_time_us;
+	env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf->buffer,
+		(jint)bytes, (jint)mPixelFormat, (jint)frame->width, (jint)frame->height, (jint)frame->sequence, pts);
+	env->ExceptionClear();
+	mLatencyTracer.mark(frame->sequence, LATENCY_STAGE_CALLBACK);
+
+	EXIT();
+}
+
+/**
+ * call IDirectFrameCallback#obtainBuffer to get the ByteBuffer(e.g. input buffer of MediaCodec),
+ * convert/copy frame data directly into it and then pass it back with IDirectFrameCallback#onFrame.
+ * this does not recycle the frame
+ */
+void UVCPreview::do_capture_direct_callback(JNIEnv *env, uvc_frame_t *frame) {
+	ENTER();
+
+	const size_t bytes = mFrameCallbackFunc ? callbackPixelBytes : frame->actual_bytes;
+	jobject buf = env->CallObjectMethod(mFrameCallbackObj, iframecallback_fields.obtainBuffer, (jint)bytes);
+	if (UNLIKELY(env->ExceptionCheck())) {
+		env->ExceptionClear();
+		if (buf) {
+			env->DeleteLocalRef(buf);
+		}
+		buf = NULL;
+	}
+	if (!buf) {
+		// callback skipped this frame
+		EXIT();
+	}
+	size_t written = 0;
+	uint8_t *data = (uint8_t *)env->GetDirectBufferAddress(buf);
+	const jlong capacity = env->GetDirectBufferCapacity(buf);
+	if (LIKELY(data && (capacity >= (jlong)bytes))) {
+		if (mFrameCallbackFunc) {
+			uvc_frame_t out;
+			memset(&out, 0, sizeof(out));
+			out.data = data;
+			out.data_bytes = (size_t)capacity;
+			out.library_owns_data = 0;
+			if (LIKELY(!mCaptureConverter.convert(mFrameCallbackFunc, frame, &out))) {
+				written = bytes;
+			} else {
+				LOGW("failed to convert for callback frame");
+			}
+		} else {
+			memcpy(data, frame->data, bytes);
+			written = bytes;
+		}
+	} else {
+		LOGW("ByteBuffer is not direct or too small:capacity=%lld,bytes=%d", (long long)capacity, (int)bytes);
+	}
+	// always pass back the ByteBuffer so that Java side can release it even if nothing was written
+	const jlong pts = (jlong)frame->presentation_time_us;
+	env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf,
+		(jint)written, (jint)mPixelFormat, (jint)frame->width, (jint)frame->height, (jint)frame->sequence, pts);
+	env->ExceptionClear();
+	env->DeleteLocalRef(buf);
+	if (LIKELY(written)) {
+		mLatencyTracer.mark(frame->sequence, LATENCY_STAGE_CALLBACK);
+	}
+
+	EXIT();
+}
+
+/**
+ * get next direct ByteBuffer for IPooledFrameCallback in round robin manner.
+ * ByteBuffer is allocated with ByteBuffer#allocateDirect on Java side,
+ * so it is safe even if Java code keeps old ByteBuffer after it is replaced
+ */
+callback_buffer_t *UVCPreview::obtainCallbackBuffer(JNIEnv *env, size_t bytes) {
+	callback_buffer_t *buf = &mCallbackBuffers[mCallbackBufferIx];
+	mCallbackBufferIx = (mCallbackBufferIx + 1) % mCallbackBufferNum;
+	if (UNLIKELY(!buf->buffer || (buf->bytes < bytes))) {
+		if (buf->buffer) {
+			env->DeleteGlobalRef(buf->buffer);
+		}
+		buf->buffer = NULL;
+		buf->data = NULL;
+		buf->bytes = 0;
+		jclass clazz = env->FindClass("java/nio/ByteBuffer");
+		if (LIKELY(clazz)) {
+			jmethodID allocateDirect = env->GetStaticMethodID(clazz, "allocateDirect", "(I)Ljava/nio/ByteBuffer;");
+			jobject local = allocateDirect ? env->CallStaticObjectMethod(clazz, allocateDirect, (jint)bytes) : NULL;
+			if (local && !env->ExceptionCheck()) {
+				buf->data = (uint8_t *)env->GetDirectBufferAddress(local);
+				if (LIKELY(buf->data)) {
+					buf->buffer = env->NewGlobalRef(local);
+					buf->bytes = bytes;
+				}
+			}
+			env->ExceptionClear();
+			if (local) {
+				env->DeleteLocalRef(local);
+			}
+			env->DeleteLocalRef(clazz);
+		}
+		env->ExceptionClear();
+	}
+	return LIKELY(buf->buffer) ? buf : NULL;
+}
+
+void UVCPreview::clearCallbackBuffers(JNIEnv *env) {
+	for (int i = 0; i < MAX_CALLBACK_BUFFER_NUM; i++) {
+		if (mCallbackBuffers[i].buffer) {
+			env->DeleteGlobalRef(mCallbackBuffers[i].buffer);
+		}
+		mCallbackBuffers[i].buffer = NULL;
+		mCallbackBuffers[i].data = NULL;
+		mCallbackBuffers[i].bytes = 0;
+	}
+	mCallbackBufferIx = 0;
+}
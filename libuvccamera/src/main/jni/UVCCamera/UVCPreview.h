@@ -29,6 +29,12 @@
 #include <pthread.h>
 #include <android/native_window.h>
 #include "objectarray.h"
+#include "framequeue.h"
+#include "IPipeline.h"
+#include "BatchFrameCallback.h"
+#include "StillCapture.h"
+#include "StripeConverter.h"
+#include "LatencyTracer.h"
 
 #pragma interface
 
@@ -38,20 +44,31 @@
 #define DEFAULT_PREVIEW_FPS_MAX 30
 #define DEFAULT_PREVIEW_MODE 0
 #define DEFAULT_BANDWIDTH 1.0f
+#define DEFAULT_QUEUE_DEPTH 4
+#define DEFAULT_POOL_SZ (DEFAULT_QUEUE_DEPTH + 2)
+#define POOL_REFILL_NUM 2				// number of frames the preview thread adds when libuvc found the pool empty
+#define MAX_CALLBACK_BUFFER_NUM 8
+#define MAX_QUEUE_TIMEOUT_MS 1000
 
-typedef uvc_error_t (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out);
+// consumer of frame queue
+#define QUEUE_CONSUMER_PREVIEW 0		// frames from libuvc to the preview thread
+#define QUEUE_CONSUMER_CAPTURE 1		// frames from the preview thread to the capture thread
 
-#define PIXEL_FORMAT_RAW 0		// same as PIXEL_FORMAT_YUV
-#define PIXEL_FORMAT_YUV 1
-#define PIXEL_FORMAT_RGB565 2
-#define PIXEL_FORMAT_RGBX 3
-#define PIXEL_FORMAT_YUV20SP 4
-#define PIXEL_FORMAT_NV21 5		// YVU420SemiPlanar
+// buffer_num of setFrameCallback for IDirectFrameCallback, ByteBuffers are supplied by the callback
+#define CALLBACK_BUFFER_DIRECT -1
 
-// for callback to Java object
-typedef struct {
-	jmethodID onFrame;
-} Fields_iframecallback;
+// direct ByteBuffer that is reused for IPooledFrameCallback
+typedef struct callback_buffer {
+	jobject buffer;			// global reference of direct ByteBuffer
+	uint8_t *data;
+	size_t bytes;
+} callback_buffer_t;
+
+// request of captureRawFrame, frame is filled by the preview thread
+typedef struct raw_frame_request {
+	uvc_frame_t *frame;		// copy of raw frame, NULL if copying failed
+	bool done;
+} raw_frame_request_t;
 
 class UVCPreview {
 private:
@@ -61,66 +78,116 @@ private:
 	int requestWidth, requestHeight, requestMode;
 	int requestMinFps, requestMaxFps;
 	float requestBandwidth;
+	int requestTransferBufs, requestPacketsPerTransfer;
 	int frameWidth, frameHeight;
 	int frameMode;
 	size_t frameBytes;
 	pthread_t preview_thread;
 	pthread_mutex_t preview_mutex;
 	pthread_cond_t preview_sync;
-	ObjectArray<uvc_frame_t *> previewFrames;
+	frame_queue_t mPreviewQueue;		// frames from libuvc to the preview thread
 	int previewFormat;
 	size_t previewBytes;
+	size_t poolFrameBytes;				// data size of pooled frames, large enough for any consumer format
 //
 	volatile bool mIsCapturing;
 	ANativeWindow *mCaptureWindow;
 	pthread_t capture_thread;
 	pthread_mutex_t capture_mutex;
 	pthread_cond_t capture_sync;
-	uvc_frame_t *captureQueu;			// keep latest frame
+	frame_queue_t mCaptureQueue;		// frames from the preview thread to the capture thread
 	jobject mFrameCallbackObj;
 	convFunc_t mFrameCallbackFunc;
 	Fields_iframecallback iframecallback_fields;
 	int mPixelFormat;
 	size_t callbackPixelBytes;
+	int mCallbackBufferNum;				// 0: create new ByteBuffer for each frame, CALLBACK_BUFFER_DIRECT: ByteBuffer from the callback
+	int mCallbackBufferIx;
+	callback_buffer_t mCallbackBuffers[MAX_CALLBACK_BUFFER_NUM];
+	pthread_mutex_t batch_callback_mutex;
+	BatchFrameCallback *mBatchCallback;	// IBatchFrameCallback, independent of mFrameCallbackObj
+	pthread_mutex_t still_capture_mutex;
+	StillCapture *mStillCapture;		// created on the first still capture request and kept until destruction
+	pthread_mutex_t raw_frame_mutex;
+	pthread_cond_t raw_frame_sync;
+	ObjectArray<raw_frame_request_t *> mRawFrameRequests;	// callers of captureRawFrame waiting for the next frame
+	volatile int mRawFrameWaiting;
+	int mRawFrameCallers;				// number of threads in captureRawFrame, guarded by raw_frame_mutex
 // improve performance by reducing memory allocation
 	pthread_mutex_t pool_mutex;
 	ObjectArray<uvc_frame_t *> mFramePool;
+	volatile int mPoolSize;				// max number of frames kept in mFramePool
+	bool mPreallocate;					// allocate mPoolSize frames when preview size is determined
+	volatile uint32_t mPoolMissCount;	// number of times the pool had no frame for the request
+	volatile bool mPoolStarved;			// libuvc could not get a frame from the pool, the preview thread refills it
+	volatile size_t mPoolRequestBytes;	// frame size that libuvc requested
+	volatile uint32_t mPoolOverflowCount;	// number of frames freed because the pool was full
+	volatile uint32_t mBrokenFrameCount;	// number of frames dropped because of unexpected size/format
+// stripe-parallel conversion, one for each of preview thread and capture thread
+	StripeConverter mPreviewConverter;
+	StripeConverter mCaptureConverter;
+	LatencyTracer mLatencyTracer;
+// downstream pipeline that receives raw frames
+	pthread_mutex_t pipeline_mutex;
+	IPipeline *mPipeline;
+	void queueToPipeline(uvc_frame_t *frame);
 	uvc_frame_t *get_frame(size_t data_bytes);
+	uvc_frame_t *get_pooled_frame(size_t data_bytes);
+	void refill_pool();
 	void recycle_frame(uvc_frame_t *frame);
 	void init_pool(size_t data_bytes);
 	void clear_pool();
 //
 	void clearDisplay();
 	static void uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args);
-	void addPreviewFrame(uvc_frame_t *frame);
-	uvc_frame_t *waitPreviewFrame();
-	void clearPreviewFrame();
+#if defined(USE_POOL_FRAME_ASSEMBLY)
+	static uvc_frame_t *uvc_preview_obtain_frame(size_t data_bytes, void *vptr_args);
+#endif
+	static void uvc_preview_recycle_frame(uvc_frame_t *frame, void *vptr_args);
 	static void *preview_thread_func(void *vptr_args);
 	int prepare_preview(uvc_stream_ctrl_t *ctrl);
 	void do_preview(uvc_stream_ctrl_t *ctrl);
 	uvc_frame_t *draw_preview_one(uvc_frame_t *frame, ANativeWindow **window, convFunc_t func, int pixelBytes);
+	bool isMjpegForCallback(bool &has_preview);
+	bool hasBatchCallback();
+	void offerRawFrame(uvc_frame_t *frame);
+	void cancelRawFrames();
 //
-	void addCaptureFrame(uvc_frame_t *frame);
-	uvc_frame_t *waitCaptureFrame();
-	void clearCaptureFrame();
 	static void *capture_thread_func(void *vptr_args);
 	void do_capture(JNIEnv *env);
 	void do_capture_surface(JNIEnv *env);
 	void do_capture_idle_loop(JNIEnv *env);
 	void do_capture_callback(JNIEnv *env, uvc_frame_t *frame);
+	void do_capture_buffer_callback(JNIEnv *env, uvc_frame_t *frame);
+	void do_capture_direct_callback(JNIEnv *env, uvc_frame_t *frame);
+	callback_buffer_t *obtainCallbackBuffer(JNIEnv *env, size_t bytes);
+	void clearCallbackBuffers(JNIEnv *env);
 	void callbackPixelFormatChanged();
 public:
 	UVCPreview(uvc_device_handle_t *devh);
 	~UVCPreview();
 
 	inline const bool isRunning() const;
-	int setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth = 1.0f);
+	int setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth = 1.0f,
+		int transfer_bufs = 0, int packets_per_transfer = 0);
 	int setPreviewDisplay(ANativeWindow *preview_window);
-	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
+	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int buffer_num = 0);
+	int setBatchFrameCallback(JNIEnv *env, jobject batch_callback_obj, int pixel_format, int max_frames, int window_ms);
+	int captureStill(JNIEnv *env, jobject callback_obj, const char *path, int format, int quality);
+	jbyteArray captureRawFrame(JNIEnv *env, int pixel_format, int timeout_ms);
 	int startPreview();
 	int stopPreview();
 	inline const bool isCapturing() const;
 	int setCaptureDisplay(ANativeWindow *capture_window);
+	int setPipeline(IPipeline *pipeline);
+	int setBufferPolicy(int queue_depth, int pool_size, bool preallocate);
+	int setQueuePolicy(int consumer, int policy, int queue_depth, int timeout_ms);
+	void getBufferStats(uint32_t &pool_miss, uint32_t &pool_overflow, uint32_t &queue_drop);
+	int getStreamStats(uvc_stream_stats_t *stats, uint32_t &broken_frames, uint32_t &queue_drop);
+	int setConvertThreads(int thread_num);
+	int setLatencyTrace(bool enabled);
+	int getLatencyHistogram(int stage, latency_histogram_t &histogram);
+	int dumpLatencyTrace(const char *path);
 };
 
 #endif /* UVCPREVIEW_H_ */
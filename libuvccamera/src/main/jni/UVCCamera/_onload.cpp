@@ -28,6 +28,16 @@
 #define LOCAL_DEBUG 0
 
 extern int register_uvccamera(JNIEnv *env);
+extern int register_abstract_pipeline(JNIEnv *env);
+extern int register_simple_buffered_pipeline(JNIEnv *env);
+extern int register_spool_buffered_pipeline(JNIEnv *env);
+extern int register_distribute_pipeline(JNIEnv *env);
+extern int register_convert_pipeline(JNIEnv *env);
+extern int register_callback_pipeline(JNIEnv *env);
+extern int register_preview_pipeline(JNIEnv *env);
+#if defined(USE_PUBLISHER_PIPELINE)
+extern int register_publisher_pipeline(JNIEnv *env);
+#endif
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
 #if LOCAL_DEBUG
@@ -40,6 +50,16 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     }
     // register native methods
     int result = register_uvccamera(env);
+    result |= register_abstract_pipeline(env);
+    result |= register_simple_buffered_pipeline(env);
+    result |= register_spool_buffered_pipeline(env);
+    result |= register_distribute_pipeline(env);
+    result |= register_convert_pipeline(env);
+    result |= register_callback_pipeline(env);
+    result |= register_preview_pipeline(env);
+#if defined(USE_PUBLISHER_PIPELINE)
+    result |= register_publisher_pipeline(env);
+#endif
 	setVM(vm);
 #if LOCAL_DEBUG
     LOGD("JNI_OnLoad:finshed:result=%d", result);
@@ -0,0 +1,38 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: common_utils.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef COMMON_UTILS_H_
+#define COMMON_UTILS_H_
+
+#include <jni.h>
+
+// helper functions to access fields of Java object, implemented in common_utils.cpp
+jlong setField_long(JNIEnv *env, jobject java_obj, const char *field_name, jlong val);
+jlong getField_long(JNIEnv *env, jobject java_obj, const char *field_name);
+jint getField_int(JNIEnv *env, jobject java_obj, const char *field_name);
+// implemented in serenegiant_usb_UVCCamera.cpp
+jint setField_int(JNIEnv *env, jobject java_obj, const char *field_name, jint val);
+jint registerNativeMethods(JNIEnv* env, const char *class_name, JNINativeMethod *methods, int num_methods);
+
+#endif /* COMMON_UTILS_H_ */
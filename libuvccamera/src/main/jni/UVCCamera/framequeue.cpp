@@ -0,0 +1,259 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: framequeue.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include <errno.h>
+#include <time.h>
+#include "framequeue.h"
+
+static inline bool is_running(const frame_queue_t &queue) {
+	return *queue.running;
+}
+
+static inline void recycle_frame(frame_queue_t &queue, uvc_frame_t *frame) {
+	queue.recycle_func(frame, queue.recycle_args);
+}
+
+#if defined(USE_SPSC_QUEUE)
+static inline bool offer_frame(frame_queue_t &queue, uvc_frame_t *frame) {
+	return (queue.frames.size() < (uint32_t)queue.depth) && queue.frames.put(frame);
+}
+
+static bool wait_for_room(frame_queue_t &queue, uvc_frame_t *frame);
+
+/**
+ * pass the frame to the consumer according to the policy of the queue,
+ * the frame is recycled if it is dropped
+ * called only from the producer thread of the queue
+ * @return true if the frame is queued
+ */
+bool frame_queue_put(frame_queue_t &queue, uvc_frame_t *frame) {
+	uvc_frame_t *dropped = frame;
+	if (LIKELY(is_running(queue))) {
+		const int policy = queue.policy;
+		if (policy == QUEUE_POLICY_LATEST_WINS) {
+			// keep only latest one
+			dropped = __atomic_exchange_n(&queue.latest, frame, __ATOMIC_ACQ_REL);
+		} else if (offer_frame(queue, frame)
+			|| ((policy == QUEUE_POLICY_BLOCK) && wait_for_room(queue, frame))) {
+			dropped = NULL;
+		}
+		if (dropped != frame) {
+			// full barrier between publishing the frame and checking consumerWaiting,
+			// pairs with the barrier in #frame_queue_wait
+			__sync_synchronize();
+			if (UNLIKELY(queue.consumerWaiting)) {
+				pthread_mutex_lock(queue.mutex);
+				pthread_cond_broadcast(queue.sync);
+				pthread_mutex_unlock(queue.mutex);
+			}
+		}
+		if (dropped) {
+			__sync_add_and_fetch(&queue.drop_count, 1);
+		}
+	}
+	if (dropped) {
+		recycle_frame(queue, dropped);
+	}
+	return dropped != frame;
+}
+
+/**
+ * wait until the consumer takes frames and the frame can be queued,
+ * called only from the producer thread when the policy is QUEUE_POLICY_BLOCK
+ * @return false if timed out or preview stopped
+ */
+static bool wait_for_room(frame_queue_t &queue, uvc_frame_t *frame) {
+	const int timeout_ms = queue.timeout_ms;
+	if (timeout_ms <= 0) return false;
+
+	struct timespec ts;
+	clock_gettime(CLOCK_REALTIME, &ts);
+	ts.tv_sec += timeout_ms / 1000;
+	ts.tv_nsec += (timeout_ms % 1000) * 1000000;
+	if (ts.tv_nsec >= 1000000000) {
+		ts.tv_nsec -= 1000000000;
+		ts.tv_sec += 1;
+	}
+	bool result = false;
+	pthread_mutex_lock(queue.mutex);
+	{
+		queue.producerWaiting = true;
+		__sync_synchronize();
+		for ( ; is_running(queue) && !(result = offer_frame(queue, frame)) ; ) {
+			if (pthread_cond_timedwait(queue.sync, queue.mutex, &ts) == ETIMEDOUT) {
+				result = is_running(queue) && offer_frame(queue, frame);
+				break;
+			}
+		}
+		queue.producerWaiting = false;
+	}
+	pthread_mutex_unlock(queue.mutex);
+	return result;
+}
+
+static inline uvc_frame_t *take_frame(frame_queue_t &queue) {
+	uvc_frame_t *frame = queue.frames.take();
+	if (!frame) {
+		frame = __atomic_exchange_n(&queue.latest, (uvc_frame_t *)NULL, __ATOMIC_ACQ_REL);
+	}
+	return frame;
+}
+
+/**
+ * get frame from the queue, if not exist, block and wait
+ * called only from the consumer thread of the queue
+ */
+uvc_frame_t *frame_queue_wait(frame_queue_t &queue) {
+	uvc_frame_t *frame = take_frame(queue);
+	if (!frame) {
+		pthread_mutex_lock(queue.mutex);
+		{
+			queue.consumerWaiting = true;
+			__sync_synchronize();
+			frame = take_frame(queue);
+			if (!frame && is_running(queue)) {
+				pthread_cond_wait(queue.sync, queue.mutex);
+				frame = take_frame(queue);
+			}
+			queue.consumerWaiting = false;
+		}
+		pthread_mutex_unlock(queue.mutex);
+	}
+	if (frame) {
+		// full barrier between releasing the slot and checking producerWaiting,
+		// pairs with the barrier in #wait_for_room
+		__sync_synchronize();
+		if (UNLIKELY(queue.producerWaiting)) {
+			pthread_mutex_lock(queue.mutex);
+			pthread_cond_broadcast(queue.sync);
+			pthread_mutex_unlock(queue.mutex);
+		}
+		if (UNLIKELY(!is_running(queue))) {
+			recycle_frame(queue, frame);
+			frame = NULL;
+		}
+	}
+	return frame;
+}
+
+/**
+ * called from the consumer thread or after the producer/consumer thread finished
+ */
+void frame_queue_clear(frame_queue_t &queue) {
+	for (uvc_frame_t *frame = take_frame(queue); frame; frame = take_frame(queue)) {
+		recycle_frame(queue, frame);
+	}
+}
+#else
+bool frame_queue_put(frame_queue_t &queue, uvc_frame_t *frame) {
+	uvc_frame_t *dropped = frame;
+	pthread_mutex_lock(queue.mutex);
+	if (LIKELY(is_running(queue))) {
+		const int policy = queue.policy;
+		if (policy == QUEUE_POLICY_LATEST_WINS) {
+			// keep only latest one
+			dropped = queue.latest;
+			queue.latest = frame;
+		} else {
+			if ((policy == QUEUE_POLICY_BLOCK) && (queue.timeout_ms > 0)
+				&& (queue.frames.size() >= queue.depth)) {
+				// wait until the consumer takes frames
+				const int timeout_ms = queue.timeout_ms;
+				struct timespec ts;
+				clock_gettime(CLOCK_REALTIME, &ts);
+				ts.tv_sec += timeout_ms / 1000;
+				ts.tv_nsec += (timeout_ms % 1000) * 1000000;
+				if (ts.tv_nsec >= 1000000000) {
+					ts.tv_nsec -= 1000000000;
+					ts.tv_sec += 1;
+				}
+				for ( ; is_running(queue) && (queue.frames.size() >= queue.depth) ; ) {
+					if (pthread_cond_timedwait(queue.sync, queue.mutex, &ts) == ETIMEDOUT) break;
+				}
+			}
+			if (is_running(queue) && (queue.frames.size() < queue.depth)) {
+				queue.frames.put(frame);
+				dropped = NULL;
+			}
+		}
+		if (dropped != frame) {
+			pthread_cond_broadcast(queue.sync);
+		}
+		if (dropped) {
+			__sync_add_and_fetch(&queue.drop_count, 1);
+		}
+	}
+	pthread_mutex_unlock(queue.mutex);
+	if (dropped) {
+		recycle_frame(queue, dropped);
+	}
+	return dropped != frame;
+}
+
+uvc_frame_t *frame_queue_wait(frame_queue_t &queue) {
+	uvc_frame_t *frame = NULL;
+	pthread_mutex_lock(queue.mutex);
+	{
+		if (!queue.frames.size() && !queue.latest && is_running(queue)) {
+			pthread_cond_wait(queue.sync, queue.mutex);
+		}
+		if (LIKELY(is_running(queue))) {
+			if (queue.frames.size() > 0) {
+				frame = queue.frames.remove(0);
+				// wake up the producer waiting for free space
+				pthread_cond_broadcast(queue.sync);
+			} else {
+				frame = queue.latest;
+				queue.latest = NULL;
+			}
+		}
+	}
+	pthread_mutex_unlock(queue.mutex);
+	return frame;
+}
+
+void frame_queue_clear(frame_queue_t &queue) {
+	pthread_mutex_lock(queue.mutex);
+	{
+		for (int i = 0; i < queue.frames.size(); i++)
+			recycle_frame(queue, queue.frames[i]);
+		queue.frames.clear();
+		if (queue.latest)
+			recycle_frame(queue, queue.latest);
+		queue.latest = NULL;
+	}
+	pthread_mutex_unlock(queue.mutex);
+}
+#endif
@@ -0,0 +1,91 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: framequeue.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef FRAMEQUEUE_H_
+#define FRAMEQUEUE_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+#include "objectarray.h"
+#if defined(USE_SPSC_QUEUE)
+#include "spscqueue.h"
+#endif
+
+#define MAX_QUEUE_DEPTH 32
+
+// how frame queue behaves when the consumer can not keep up with the producer
+#define QUEUE_POLICY_DROP_NEWEST 0		// FIFO, drop incoming frame when the queue is full
+#define QUEUE_POLICY_LATEST_WINS 1		// consumer always gets the latest frame, older frames are dropped
+#define QUEUE_POLICY_BLOCK 2			// FIFO, producer waits for free space until timeout, then drops incoming frame
+
+// returns the frame that the queue dropped/cleared to its owner
+typedef void (*frame_recycle_func_t)(uvc_frame_t *frame, void *vptr_args);
+
+// frame queue between producer thread and consumer thread
+typedef struct frame_queue {
+	pthread_mutex_t *mutex;		// used only when the producer/consumer needs to wait
+	pthread_cond_t *sync;
+#if defined(USE_SPSC_QUEUE)
+	SpscQueue<uvc_frame_t *> frames;
+	volatile bool consumerWaiting;
+	volatile bool producerWaiting;
+#else
+	ObjectArray<uvc_frame_t *> frames;
+#endif
+	uvc_frame_t *latest;		// frame for QUEUE_POLICY_LATEST_WINS
+	volatile int policy;
+	volatile int depth;			// max number of frames in the FIFO
+	volatile int timeout_ms;	// max wait time of the producer for QUEUE_POLICY_BLOCK
+	volatile uint32_t drop_count;	// number of frames dropped by the policy
+	volatile bool *running;		// running flag of the owner, frames are not passed while this is false
+	frame_recycle_func_t recycle_func;
+	void *recycle_args;
+
+	frame_queue(pthread_mutex_t *_mutex, pthread_cond_t *_sync, int _policy, int _depth,
+		volatile bool *_running, frame_recycle_func_t _recycle_func, void *_recycle_args)
+	:	mutex(_mutex),
+		sync(_sync),
+		frames(MAX_QUEUE_DEPTH),
+#if defined(USE_SPSC_QUEUE)
+		consumerWaiting(false),
+		producerWaiting(false),
+#endif
+		latest(NULL),
+		policy(_policy),
+		depth(_depth),
+		timeout_ms(0),
+		drop_count(0),
+		running(_running),
+		recycle_func(_recycle_func),
+		recycle_args(_recycle_args) {
+	}
+} frame_queue_t;
+
+// to wake up the consumer/producer waiting on the queue after clearing the running flag,
+// broadcast queue->sync while holding queue->mutex
+bool frame_queue_put(frame_queue_t &queue, uvc_frame_t *frame);
+uvc_frame_t *frame_queue_wait(frame_queue_t &queue);
+void frame_queue_clear(frame_queue_t &queue);
+
+#endif /* FRAMEQUEUE_H_ */
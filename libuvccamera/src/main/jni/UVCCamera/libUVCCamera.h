@@ -30,4 +30,19 @@
 #include "libuvc.h"
 #include "utilbase.h"
 
+typedef uvc_error_t (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out);
+
+#define PIXEL_FORMAT_RAW 0		// same as PIXEL_FORMAT_YUV
+#define PIXEL_FORMAT_YUV 1
+#define PIXEL_FORMAT_RGB565 2
+#define PIXEL_FORMAT_RGBX 3
+#define PIXEL_FORMAT_YUV20SP 4
+#define PIXEL_FORMAT_NV21 5		// YVU420SemiPlanar
+
+// for callback to Java object
+typedef struct {
+	jmethodID onFrame;
+	jmethodID obtainBuffer;		// only for IDirectFrameCallback
+} Fields_iframecallback;
+
 #endif /* LIBUVCCAMERA_H_ */
@@ -23,7 +23,8 @@ AbstractBufferedPipeline::AbstractBufferedPipeline(const int &_max_buffer_num, c
 	max_buffer_num(_max_buffer_num),
 	init_pool_num(_init_pool_num),
 	drop_frames(drop_frames_when_buffer_empty),
-	total_frame_num(0)
+	total_frame_num(0),
+	recycler(new FrameRecycler(this))
 {
 	ENTER();
 
@@ -34,6 +35,9 @@ AbstractBufferedPipeline::AbstractBufferedPipeline(const int &_max_buffer_num, c
 AbstractBufferedPipeline::~AbstractBufferedPipeline() {
 	ENTER();
 
+	// frames that are still shared with other pipelines are freed when they are released
+	recycler->detach();
+	recycler = NULL;
 	release();
 	setState(PIPELINE_STATE_UNINITIALIZED);
 
@@ -118,7 +122,7 @@ int AbstractBufferedPipeline::queueFrame(uvc_frame_t *frame) {
 		// duplicate frame buffer and pass copy to publisher
 		ret = uvc_duplicate_frame(frame, copy);
 		if (LIKELY(!ret)) {
-			ret = add_frame(copy);
+			ret = add_frame(share_frame(copy));
 		} else {
 			LOGW("uvc_duplicate_frame failed:%d", ret);
 			recycle_frame(copy);
@@ -128,6 +132,19 @@ int AbstractBufferedPipeline::queueFrame(uvc_frame_t *frame) {
 	RETURN(ret, int);
 }
 
+/*public*/
+int AbstractBufferedPipeline::queueSharedFrame(SharedFrame *frame) {
+	ENTER();
+
+	int ret = UVC_ERROR_OTHER;
+	if (LIKELY(frame)) {
+		// just add reference instead of duplicating frame data
+		ret = add_frame(frame->addRef());
+	}
+
+	RETURN(ret, int);
+}
+
 //********************************************************************************
 //
 //********************************************************************************
@@ -142,16 +159,19 @@ uvc_frame_t *AbstractBufferedPipeline::get_frame(const size_t &data_bytes) {
 	Mutex::Autolock lock(pool_mutex);
 
 	if (UNLIKELY(frame_pool.empty() && (total_frame_num < max_buffer_num))) {
-		uint32_t n = total_frame_num * 2;
+		uint32_t n = total_frame_num ? total_frame_num * 2 : init_pool_num;
 		if (n > max_buffer_num) {
 			n = max_buffer_num;
 		}
 		n -= total_frame_num;
 		if (LIKELY(n > 0)) {
-			for (int i = 0; i < n; i++) {
+			for (uint32_t i = 0; i < n; i++) {
 				frame = uvc_allocate_frame(data_bytes);
+				if (UNLIKELY(!frame)) break;
+				frame_pool.push_back(frame);
 				total_frame_num++;
 			}
+			frame = NULL;
 			LOGW("allocate new frame:%d", total_frame_num);
 		} else {
 			LOGW("number of allocated frame exceeds limit");
@@ -233,6 +253,14 @@ void AbstractBufferedPipeline::clear_pool() {
 	EXIT();
 }
 
+/**
+ * wrap the frame that came from the frame pool with SharedFrame,
+ * the frame is returned to the frame pool when the last reference is released
+ */
+SharedFrame *AbstractBufferedPipeline::share_frame(uvc_frame_t *frame) {
+	return LIKELY(frame) ? new SharedFrame(frame, recycler) : NULL;
+}
+
 //********************************************************************************
 //
 //********************************************************************************
@@ -241,12 +269,15 @@ void AbstractBufferedPipeline::clear_frames() {
 	Mutex::Autolock lock(buffer_mutex);
 
 	for (auto iter = frame_buffers.begin(); iter != frame_buffers.end(); iter++) {
-		recycle_frame(*iter);
+		(*iter)->release();
 	}
 	frame_buffers.clear();
 }
 
-int AbstractBufferedPipeline::add_frame(uvc_frame_t *frame) {
+/**
+ * add the frame to the frame buffers, this takes over the reference of the frame
+ */
+int AbstractBufferedPipeline::add_frame(SharedFrame *frame) {
 	ENTER();
 
 	buffer_mutex.lock();
@@ -256,8 +287,8 @@ int AbstractBufferedPipeline::add_frame(uvc_frame_t *frame) {
 			// erase old frames
 			int cnt = 0;
 			for (auto iter = frame_buffers.begin();
-				 (iter != frame_buffers.end()) && (cnt < 5); iter++, cnt++) {
-				recycle_frame(*iter);
+				 (iter != frame_buffers.end()) && (cnt < 5); cnt++) {
+				(*iter)->release();
 				iter = frame_buffers.erase(iter);
 			}
 			LOGW("droped frame data");
@@ -270,14 +301,14 @@ int AbstractBufferedPipeline::add_frame(uvc_frame_t *frame) {
 	}
 	buffer_mutex.unlock();
 	if (frame) {
-		recycle_frame(frame);
+		frame->release();
 	}
 
 	RETURN(0, int);
 }
 
-uvc_frame_t *AbstractBufferedPipeline::wait_frame() {
-	uvc_frame_t *frame = NULL;
+SharedFrame *AbstractBufferedPipeline::wait_frame() {
+	SharedFrame *frame = NULL;
 
 	Mutex::Autolock lock(buffer_mutex);
 
@@ -323,16 +354,16 @@ void AbstractBufferedPipeline::do_loop() {
 	on_start();
 	setState(PIPELINE_STATE_RUNNING);
 	for ( ; LIKELY(isRunning()) ; ) {
-		uvc_frame_t *frame = wait_frame();
+		SharedFrame *frame = wait_frame();
 		if ((LIKELY(frame))) {
 			try {
-				if (!handle_frame(frame)) {
+				if (!handle_shared_frame(frame)) {
 					chain_frame(frame);
 				}
 			} catch (...) {
 				LOGE("exception");
 			}
-			recycle_frame(frame);
+			frame->release();
 		}
 	}
 	setState(PIPELINE_STATE_STOPPING);
@@ -342,3 +373,7 @@ void AbstractBufferedPipeline::do_loop() {
 
 	EXIT();
 }
+
+int AbstractBufferedPipeline::handle_shared_frame(SharedFrame *frame) {
+	return handle_frame(frame->frame());
+}
@@ -13,6 +13,7 @@
 
 #include "libUVCCamera.h"
 #include "IPipeline.h"
+#include "SharedFrame.h"
 
 #pragma interface
 
@@ -24,6 +25,7 @@ using namespace android;
 class AbstractBufferedPipeline;
 
 class AbstractBufferedPipeline : virtual public IPipeline {
+	friend class FrameRecycler;
 private:
 	const uint32_t max_buffer_num;
 	const uint32_t init_pool_num;
@@ -34,11 +36,13 @@ private:
 	mutable Mutex pool_mutex;
 	Condition pool_sync;
 	std::list<uvc_frame_t *> frame_pool;
+	// return frames to frame_pool when the last reference of SharedFrame is released
+	FrameRecycler *recycler;
 // frame buffers
 	pthread_t handler_thread;
 	mutable Mutex buffer_mutex;
 	Condition buffer_sync;
-	std::list<uvc_frame_t *> frame_buffers;
+	std::list<SharedFrame *> frame_buffers;
 	static void *handler_thread_func(void *vptr_args);
 
 protected:
@@ -47,15 +51,21 @@ protected:
 	void recycle_frame(uvc_frame_t *frame);
 	void init_pool(const size_t &data_bytes);
 	void clear_pool();
+	SharedFrame *share_frame(uvc_frame_t *frame);
 // frame buffers
 	void clear_frames();
-	int add_frame(uvc_frame_t *frame);
-	uvc_frame_t *wait_frame();
+	int add_frame(SharedFrame *frame);
+	SharedFrame *wait_frame();
 	uint32_t get_frame_count();
 	virtual void do_loop();
 	virtual void on_start() = 0;
 	virtual void on_stop() = 0;
 	virtual int handle_frame(uvc_frame_t *frame) = 0;
+	/**
+	 * default implementation just calls #handle_frame,
+	 * override this if you want to pass frame to other pipelines without duplicating
+	 */
+	virtual int handle_shared_frame(SharedFrame *frame);
 public:
 	AbstractBufferedPipeline(const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM, const int &init_pool_num = DEFAULT_INIT_FRAME_POOL_SZ,
 		const size_t &default_frame_size = DEFAULT_FRAME_SZ, const bool &drop_frames_when_buffer_empty = true);
@@ -64,6 +74,7 @@ public:
 	virtual int start();
 	virtual int stop();
 	virtual int queueFrame(uvc_frame_t *frame);
+	virtual int queueSharedFrame(SharedFrame *frame);
 };
 
 
@@ -22,11 +22,14 @@
 #include "CallbackPipeline.h"
 
 #define INIT_FRAME_POOL_SZ 2
-#define MAX_FRAME_NUM 8
 
-CallbackPipeline::CallbackPipeline(const size_t &_data_bytes)
-:	CaptureBasePipeline(MAX_FRAME_NUM, INIT_FRAME_POOL_SZ, _data_bytes),
+CallbackPipeline::CallbackPipeline(const int &_max_buffer_num, const size_t &_data_bytes)
+:	IPipeline(_data_bytes),
+	AbstractBufferedPipeline(_max_buffer_num, INIT_FRAME_POOL_SZ, _data_bytes),
+	CaptureBasePipeline(_max_buffer_num, INIT_FRAME_POOL_SZ, _data_bytes),
+	mFrameCallbackObj(NULL),
 	mFrameCallbackFunc(NULL),
+	mPixelFormat(PIXEL_FORMAT_RAW),
 	callbackPixelBytes(0)
 {
 	ENTER();
@@ -39,6 +42,14 @@ CallbackPipeline::CallbackPipeline(const size_t &_data_bytes)
 CallbackPipeline::~CallbackPipeline() {
 	ENTER();
 
+	if (mFrameCallbackObj) {
+		JNIEnv *env = getEnv();
+		if (LIKELY(env)) {
+			env->DeleteGlobalRef(mFrameCallbackObj);
+		}
+		mFrameCallbackObj = NULL;
+	}
+
 	EXIT();
 }
 
@@ -106,14 +117,15 @@ void CallbackPipeline::callbackPixelFormatChanged(const uint32_t &width, const u
 		mFrameCallbackFunc = uvc_any2rgbx;
 		callbackPixelBytes = sz * 4;
 		break;
+	  // same mapping as UVCPreview::callbackPixelFormatChanged
 	  case PIXEL_FORMAT_YUV20SP:
 		LOGI("PIXEL_FORMAT_YUV20SP:");
-		mFrameCallbackFunc = uvc_any2yuv420SP;
+		mFrameCallbackFunc = uvc_any2iyuv420SP;
 		callbackPixelBytes = (sz * 3) / 2;
 		break;
 	  case PIXEL_FORMAT_NV21:
 		LOGI("PIXEL_FORMAT_NV21:");
-		mFrameCallbackFunc = uvc_any2iyuv420SP;
+		mFrameCallbackFunc = uvc_any2yuv420SP;
 		callbackPixelBytes = (sz * 3) / 2;
 		break;
 	}
@@ -122,16 +134,27 @@ void CallbackPipeline::callbackPixelFormatChanged(const uint32_t &width, const u
 void CallbackPipeline::do_capture(JNIEnv *env) {
 	ENTER();
 
+	SharedFrame *shared;
 	uvc_frame_t *frame;
 	uvc_frame_t *temp = get_frame(default_frame_size);
 	uvc_frame_t *callback_frame;
 	uint32_t width = 0, height = 0;
 	size_t sz = default_frame_size;
+	// raw frame is shared with other pipelines and the frame pool,
+	// so it is passed to Java as read-only ByteBuffer
+	jmethodID asReadOnlyBuffer = NULL;
+	jclass clazz = env->FindClass("java/nio/ByteBuffer");
+	if (LIKELY(clazz)) {
+		asReadOnlyBuffer = env->GetMethodID(clazz, "asReadOnlyBuffer", "()Ljava/nio/ByteBuffer;");
+		env->DeleteLocalRef(clazz);
+	}
+	env->ExceptionClear();
 
 	if (LIKELY(temp)) {
 		for (; isRunning() && isCapturing();) {
-			frame = waitCaptureFrame();
-			if ((LIKELY(frame))) {
+			shared = waitCaptureFrame();
+			if ((LIKELY(shared))) {
+				frame = shared->frame();
 				if (UNLIKELY((width != frame->width) || (height != frame->height))) {
 					width = frame->width;
 					height = frame->height;
@@ -150,14 +173,29 @@ void CallbackPipeline::do_capture(JNIEnv *env) {
 							LOGW("failed to convert to callback frame");
 							goto SKIP;
 						}
+					} else if (UNLIKELY(!asReadOnlyBuffer)) {
+						// can not protect shared frame, pass a copy instead
+						if (UNLIKELY(uvc_duplicate_frame(frame, temp))) {
+							LOGW("failed to copy callback frame");
+							goto SKIP;
+						}
+						callback_frame = temp;
+					}
+					jobject buf = env->NewDirectByteBuffer(callback_frame->data, sz);
+					if (LIKELY(buf) && (callback_frame == frame)) {
+						jobject ro = env->CallObjectMethod(buf, asReadOnlyBuffer);
+						env->ExceptionClear();
+						env->DeleteLocalRef(buf);
+						buf = ro;
+					}
+					if (LIKELY(buf)) {
+						env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
+						env->ExceptionClear();
+						env->DeleteLocalRef(buf);
 					}
-					jobject buf = env->NewDirectByteBuffer(callback_frame->data, callbackPixelBytes);
-					env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
-					env->ExceptionClear();
-					env->DeleteLocalRef(buf);
 				}
 SKIP:
-				recycle_frame(frame);
+				shared->release();
 			}
 		}
 		recycle_frame(temp);
@@ -169,10 +207,11 @@ SKIP:
 //**********************************************************************
 //
 //**********************************************************************
-static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz) {
+static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz, jint max_buffer_num) {
 
 	ENTER();
-	CallbackPipeline *pipeline = new CallbackPipeline();
+	CallbackPipeline *pipeline = new CallbackPipeline(
+		max_buffer_num > 0 ? max_buffer_num : DEFAULT_MAX_FRAME_NUM);
 	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
 	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
 }
@@ -190,57 +229,6 @@ static void nativeDestroy(JNIEnv *env, jobject thiz,
 	EXIT();
 }
 
-static jint nativeGetState(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-	jint result = 0;
-	CallbackPipeline *pipeline = reinterpret_cast<CallbackPipeline *>(id_pipeline);
-	if (pipeline) {
-		result = pipeline->getState();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline, jobject pipeline_obj) {
-
-	ENTER();
-	jint result = JNI_ERR;
-	CallbackPipeline *pipeline = reinterpret_cast<CallbackPipeline *>(id_pipeline);
-	if (pipeline) {
-		IPipeline *pipeline = getPipeline(env, pipeline_obj);
-		result = pipeline->setPipeline(pipeline);
-	}
-
-	RETURN(result, jint);
-}
-
-static jint nativeStart(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-
-	int result = JNI_ERR;
-	CallbackPipeline *pipeline = reinterpret_cast<CallbackPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->start();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeStop(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	jint result = JNI_ERR;
-	ENTER();
-	CallbackPipeline *pipeline = reinterpret_cast<CallbackPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->stop();
-	}
-	RETURN(result, jint);
-}
-
 static jint nativeSetFrameCallback(JNIEnv *env, jobject thiz,
 	ID_TYPE id_pipeline, jobject jIFrameCallback, jint pixel_format) {
 
@@ -258,15 +246,9 @@ static jint nativeSetFrameCallback(JNIEnv *env, jobject thiz,
 //
 //**********************************************************************
 static JNINativeMethod methods[] = {
-	{ "nativeCreate",					"()J", (void *) nativeCreate },
+	{ "nativeCreate",					"(I)J", (void *) nativeCreate },
 	{ "nativeDestroy",					"(J)V", (void *) nativeDestroy },
 
-	{ "nativeGetState",					"(J)I", (void *) nativeGetState },
-	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
-
-	{ "nativeStart",					"(J)I", (void *) nativeStart },
-	{ "nativeStop",						"(J)I", (void *) nativeStop },
-
 	{ "nativeSetFrameCallback",			"(JLcom/serenegiant/usb/IFrameCallback;I)I", (void *) nativeSetFrameCallback },
 };
 
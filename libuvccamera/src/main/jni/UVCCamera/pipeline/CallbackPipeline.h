@@ -19,7 +19,7 @@ private:
 protected:
 	virtual void do_capture(JNIEnv *env);
 public:
-	CallbackPipeline(const size_t &_data_bytes = DEFAULT_FRAME_SZ);
+	CallbackPipeline(const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM, const size_t &_data_bytes = DEFAULT_FRAME_SZ);
 	virtual ~CallbackPipeline();
 	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
 };
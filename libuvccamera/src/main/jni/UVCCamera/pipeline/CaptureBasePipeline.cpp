@@ -66,25 +66,25 @@ void CaptureBasePipeline::clearCaptureFrame() {
 	Mutex::Autolock lock(capture_mutex);
 
 	if (captureQueue)
-		recycle_frame(captureQueue);
+		captureQueue->release();
 	captureQueue = NULL;
 }
 
-void CaptureBasePipeline::addCaptureFrame(uvc_frame_t *frame) {
+void CaptureBasePipeline::addCaptureFrame(SharedFrame *frame) {
 //	ENTER();
 
 	Mutex::Autolock lock(capture_mutex);
 
 	// keep only latest one
 	if (captureQueue) {
-		recycle_frame(captureQueue);
+		captureQueue->release();
 		captureQueue = NULL;
 	}
 	if (LIKELY(isRunning())) {
 		captureQueue = frame;
 		capture_sync.signal();
 	} else {
-		recycle_frame(frame);
+		frame->release();
 	}
 
 //	EXIT();
@@ -93,8 +93,8 @@ void CaptureBasePipeline::addCaptureFrame(uvc_frame_t *frame) {
 /**
  * get frame data for capturing, if not exist, block and wait
  */
-uvc_frame_t *CaptureBasePipeline::waitCaptureFrame() {
-	uvc_frame_t *frame = NULL;
+SharedFrame *CaptureBasePipeline::waitCaptureFrame() {
+	SharedFrame *frame = NULL;
 	Mutex::Autolock lock(capture_mutex);
 
 	if (!captureQueue) {
@@ -142,7 +142,7 @@ int CaptureBasePipeline::handle_frame(uvc_frame_t *frame) {
 			// duplicate frame buffer and pass copy
 			uvc_error_t ret = uvc_duplicate_frame(frame, copy);
 			if (LIKELY(!ret)) {
-				addCaptureFrame(copy);
+				addCaptureFrame(share_frame(copy));
 			} else {
 				LOGW("uvc_duplicate_frame failed:%d", ret);
 				recycle_frame(copy);
@@ -155,6 +155,18 @@ int CaptureBasePipeline::handle_frame(uvc_frame_t *frame) {
 	return 0; // 	RETURN(0, int);
 }
 
+/* override protected */
+int CaptureBasePipeline::handle_shared_frame(SharedFrame *frame) {
+//	ENTER();
+
+	if (LIKELY(frame)) {
+		// just keep reference instead of duplicating frame data
+		addCaptureFrame(frame->addRef());
+	}
+
+	return 0; // 	RETURN(0, int);
+}
+
 /*
  * thread function
  * @param vptr_args pointer to UVCCameraControl instance
@@ -22,11 +22,12 @@
 #include "ConvertPipeline.h"
 
 #define INIT_FRAME_POOL_SZ 2
-#define MAX_FRAME_NUM 8
 
 /* public */
-ConvertPipeline::ConvertPipeline(const size_t &_data_bytes, const int &_target_pixel_format)
-:	AbstractBufferedPipeline(MAX_FRAME_NUM, INIT_FRAME_POOL_SZ, _data_bytes),
+ConvertPipeline::ConvertPipeline(const size_t &_data_bytes, const int &_target_pixel_format,
+	const int &_max_buffer_num)
+:	IPipeline(_data_bytes),
+	AbstractBufferedPipeline(_max_buffer_num, INIT_FRAME_POOL_SZ, _data_bytes),
 	target_pixel_format(_target_pixel_format),
 	mFrameConvFunc(NULL)
 {
@@ -66,13 +67,14 @@ void ConvertPipeline::updateConvFunc() {
 			LOGI("PIXEL_FORMAT_RGBX:");
 			mFrameConvFunc = uvc_any2rgbx;
 			break;
+		// same mapping as UVCPreview::callbackPixelFormatChanged
 		case PIXEL_FORMAT_YUV20SP:
 			LOGI("PIXEL_FORMAT_YUV20SP:");
-			mFrameConvFunc = uvc_any2yuv420SP;
+			mFrameConvFunc = uvc_any2iyuv420SP;
 			break;
 		case PIXEL_FORMAT_NV21:
 			LOGI("PIXEL_FORMAT_NV21:");
-			mFrameConvFunc = uvc_any2iyuv420SP;
+			mFrameConvFunc = uvc_any2yuv420SP;
 			break;
 	}
 
@@ -99,112 +101,90 @@ int ConvertPipeline::handle_frame(uvc_frame_t *frame) {
 	Mutex::Autolock lock(pipeline_mutex);
 
 	if (next_pipeline) {
-		uvc_frame_t *copy = frame;
-		if (mFrameConvFunc) {
-			copy = get_frame(frame->actual_bytes);
-			if (LIKELY(copy)) {
-				const uvc_error_t r = mFrameConvFunc(frame, copy);
-				if (UNLIKELY(r)) {
-					LOGW("failed to convert:%d", r);
-					recycle_frame(copy);
-					copy = frame;
-				}
-			}
+		uvc_frame_t *converted = convert(frame);
+		if (converted) {
+			next_pipeline->queueFrame(converted);
+			// next pipeline duplicates the frame, so we can recycle converted one here
+			recycle_frame(converted);
+		} else {
+			next_pipeline->queueFrame(frame);
 		}
-		next_pipeline->queueFrame(copy);
 	}
 
 	RETURN(1, int);
 }
 
-//**********************************************************************
-//
-//**********************************************************************
-static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz, jint pixel_format) {
-
+int ConvertPipeline::handle_shared_frame(SharedFrame *frame) {
 	ENTER();
-	ConvertPipeline *pipeline = new ConvertPipeline(DEFAULT_FRAME_SZ, pixel_format);
-	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
-	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
-}
 
-static void nativeDestroy(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
+	Mutex::Autolock lock(pipeline_mutex);
 
-	ENTER();
-	setField_long(env, thiz, "mNativePtr", 0);
-	ConvertPipeline *pipeline = reinterpret_cast<ConvertPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		pipeline->release();
-		SAFE_DELETE(pipeline);
+	if (next_pipeline) {
+		uvc_frame_t *converted = convert(frame->frame());
+		if (converted) {
+			SharedFrame *shared = share_frame(converted);
+			next_pipeline->queueSharedFrame(shared);
+			// converted frame returns to the frame pool when next pipeline releases it
+			shared->release();
+		} else {
+			next_pipeline->queueSharedFrame(frame);
+		}
 	}
-	EXIT();
-}
 
-static jint nativeGetState(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-	jint result = 0;
-	ConvertPipeline *pipeline = reinterpret_cast<ConvertPipeline *>(id_pipeline);
-	if (pipeline) {
-		result = pipeline->getState();
-	}
-	RETURN(result, jint);
+	RETURN(1, int);
 }
 
-static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline, jobject pipeline_obj) {
-
-	ENTER();
-	jint result = JNI_ERR;
-	ConvertPipeline *pipeline = reinterpret_cast<ConvertPipeline *>(id_pipeline);
-	if (pipeline) {
-		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
-		result = pipeline->setPipeline(target_pipeline);
+/**
+ * convert the frame into the frame that came from the frame pool
+ * @return NULL if no conversion is needed or conversion failed
+ */
+uvc_frame_t *ConvertPipeline::convert(uvc_frame_t *frame) {
+	uvc_frame_t *converted = NULL;
+	if (mFrameConvFunc) {
+		converted = get_frame(frame->actual_bytes);
+		if (LIKELY(converted)) {
+			const uvc_error_t r = mFrameConvFunc(frame, converted);
+			if (UNLIKELY(r)) {
+				LOGW("failed to convert:%d", r);
+				recycle_frame(converted);
+				converted = NULL;
+			}
+		}
 	}
-
-	RETURN(result, jint);
+	return converted;
 }
 
-static jint nativeStart(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
+//**********************************************************************
+//
+//**********************************************************************
+static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz, jint pixel_format, jint max_buffer_num) {
 
 	ENTER();
-
-	int result = JNI_ERR;
-	ConvertPipeline *pipeline = reinterpret_cast<ConvertPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->start();
-	}
-	RETURN(result, jint);
+	ConvertPipeline *pipeline = new ConvertPipeline(DEFAULT_FRAME_SZ, pixel_format,
+		max_buffer_num > 0 ? max_buffer_num : DEFAULT_MAX_FRAME_NUM);
+	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
+	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
 }
 
-static jint nativeStop(JNIEnv *env, jobject thiz,
+static void nativeDestroy(JNIEnv *env, jobject thiz,
 	ID_TYPE id_pipeline) {
 
-	jint result = JNI_ERR;
 	ENTER();
+	setField_long(env, thiz, "mNativePtr", 0);
 	ConvertPipeline *pipeline = reinterpret_cast<ConvertPipeline *>(id_pipeline);
 	if (LIKELY(pipeline)) {
-		result = pipeline->stop();
+		pipeline->release();
+		SAFE_DELETE(pipeline);
 	}
-	RETURN(result, jint);
+	EXIT();
 }
 
 //**********************************************************************
 //
 //**********************************************************************
 static JNINativeMethod methods[] = {
-	{ "nativeCreate",					"(I)J", (void *) nativeCreate },
+	{ "nativeCreate",					"(II)J", (void *) nativeCreate },
 	{ "nativeDestroy",					"(J)V", (void *) nativeDestroy },
-
-	{ "nativeGetState",					"(J)I", (void *) nativeGetState },
-	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
-
-	{ "nativeStart",					"(J)I", (void *) nativeStart },
-	{ "nativeStop",						"(J)I", (void *) nativeStop },
-
 };
 
 int register_convert_pipeline(JNIEnv *env) {
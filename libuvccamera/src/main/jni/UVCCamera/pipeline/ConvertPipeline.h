@@ -13,12 +13,15 @@ private:
 	const int target_pixel_format;
 	convFunc_t mFrameConvFunc;
 	void updateConvFunc();
+	uvc_frame_t *convert(uvc_frame_t *frame);
 protected:
 	virtual void on_start();
 	virtual void on_stop();
 	virtual int handle_frame(uvc_frame_t *frame);
+	virtual int handle_shared_frame(SharedFrame *frame);
 public:
-	ConvertPipeline(const size_t &_data_bytes, const int &target_pixel_format = PIXEL_FORMAT_RAW);
+	ConvertPipeline(const size_t &_data_bytes, const int &target_pixel_format = PIXEL_FORMAT_RAW,
+		const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM);
 	virtual ~ConvertPipeline();
 };
 
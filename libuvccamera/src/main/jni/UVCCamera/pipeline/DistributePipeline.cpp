@@ -12,7 +12,8 @@
 
 DistributePipeline::DistributePipeline(const int &_max_buffer_num, const int &init_pool_num,
 		const size_t &default_frame_size, const bool &drop_frames_when_buffer_empty)
-:	AbstractBufferedPipeline(_max_buffer_num, init_pool_num, default_frame_size, drop_frames_when_buffer_empty)
+:	IPipeline(default_frame_size),
+	AbstractBufferedPipeline(_max_buffer_num, init_pool_num, default_frame_size, drop_frames_when_buffer_empty)
 {
 	ENTER();
 
@@ -53,6 +54,22 @@ int DistributePipeline::handle_frame(uvc_frame_t *frame) {
 	RETURN(0, int);
 }
 
+/**
+ * pass the same frame to all pipelines with reference counting,
+ * the frame returns to the frame pool when all pipelines release it
+ */
+int DistributePipeline::handle_shared_frame(SharedFrame *frame) {
+	ENTER();
+
+	Mutex::Autolock lock(pipeline_mutex);
+
+	for (auto iter = pipelines.begin(); iter != pipelines.end(); iter++) {
+		(*iter)->queueSharedFrame(frame);
+	}
+
+	RETURN(0, int);
+}
+
 int DistributePipeline::addPipeline(IPipeline *pipeline) {
 	ENTER();
 
@@ -85,10 +102,11 @@ int DistributePipeline::removePipeline(IPipeline *pipeline) {
 //**********************************************************************
 //
 //**********************************************************************
-static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz) {
+static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz, jint max_buffer_num) {
 
 	ENTER();
-	DistributePipeline *pipeline = new DistributePipeline();
+	DistributePipeline *pipeline = new DistributePipeline(
+		max_buffer_num > 0 ? max_buffer_num : DEFAULT_MAX_FRAME_NUM);
 	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
 	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
 }
@@ -106,32 +124,6 @@ static void nativeDestroy(JNIEnv *env, jobject thiz,
 	EXIT();
 }
 
-static jint nativeGetState(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-	jint result = 0;
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (pipeline) {
-		result = pipeline->getState();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline, jobject pipeline_obj) {
-
-	ENTER();
-	jint result = JNI_ERR;
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (pipeline) {
-		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
-		result = pipeline->setPipeline(target_pipeline);
-	}
-
-	RETURN(result, jint);
-}
-
 static jint nativeAddPipeline(JNIEnv *env, jobject thiz,
 	ID_TYPE id_pipeline, jobject pipeline_obj) {
 
@@ -160,45 +152,15 @@ static jint nativeRemovePipeline(JNIEnv *env, jobject thiz,
 	RETURN(result, jint);
 }
 
-static jint nativeStart(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-
-	int result = JNI_ERR;
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->start();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeStop(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	jint result = JNI_ERR;
-	ENTER();
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->stop();
-	}
-	RETURN(result, jint);
-}
-
 //**********************************************************************
 //
 //**********************************************************************
 static JNINativeMethod methods[] = {
-	{ "nativeCreate",					"()J", (void *) nativeCreate },
+	{ "nativeCreate",					"(I)J", (void *) nativeCreate },
 	{ "nativeDestroy",					"(J)V", (void *) nativeDestroy },
 
-	{ "nativeGetState",					"(J)I", (void *) nativeGetState },
-	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
 	{ "nativeAddPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeAddPipeline },
 	{ "nativeRemovePipeline",			"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeRemovePipeline },
-
-	{ "nativeStart",					"(J)I", (void *) nativeStart },
-	{ "nativeStop",						"(J)I", (void *) nativeStop },
 };
 
 int register_distribute_pipeline(JNIEnv *env) {
@@ -79,3 +79,33 @@ int IPipeline::chain_frame(uvc_frame_t *frame) {
 
 	RETURN(result, int);
 }
+
+/**
+ * pass shared frame to next pipeline
+ * @return 0: success, other: failed or next pipeline is not set
+ */
+int IPipeline::chain_frame(SharedFrame *frame) {
+	ENTER();
+
+	int result = -1;
+	Mutex::Autolock lock(pipeline_mutex);
+
+	if (next_pipeline) {
+		next_pipeline->queueSharedFrame(frame);
+		result = 0;
+	}
+
+	RETURN(result, int);
+}
+
+/*public*/
+int IPipeline::queueSharedFrame(SharedFrame *frame) {
+	ENTER();
+
+	int result = UVC_ERROR_OTHER;
+	if (LIKELY(frame)) {
+		result = queueFrame(frame->frame());
+	}
+
+	RETURN(result, int);
+}
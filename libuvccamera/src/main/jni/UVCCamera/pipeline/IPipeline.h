@@ -10,6 +10,7 @@
 #include "Mutex.h"
 
 #include "libUVCCamera.h"
+#include "SharedFrame.h"
 
 #pragma interface
 
@@ -20,6 +21,7 @@ using namespace android;
 typedef enum pipeline_type {
 	PIPELINE_TYPE_SIMPLE_BUFFERED = 0,
 	PIPELINE_TYPE_SQLITE_BUFFERED = 10,
+	PIPELINE_TYPE_SPOOL_BUFFERED = 20,
 	PIPELINE_TYPE_UVC_CONTROL = 100,
 	PIPELINE_TYPE_CALLBACK = 200,
 	PIPELINE_TYPE_CONVERT = 300,
@@ -58,6 +60,11 @@ protected:
 	 * @return 0: success queueing, other: failed
 	 */
 	virtual int chain_frame(uvc_frame_t *frame);
+	/**
+	 * pass shared frame to next pipeline without duplicating frame data
+	 * @return 0: success queueing, other: failed
+	 */
+	virtual int chain_frame(SharedFrame *frame);
 public:
 	IPipeline(const size_t &default_frame_size = DEFAULT_FRAME_SZ);
 	virtual ~IPipeline();
@@ -68,6 +75,12 @@ public:
 	virtual int start() { return 0; };
 	virtual int stop() { return 0; };
 	virtual int queueFrame(uvc_frame_t *frame) = 0;
+	/**
+	 * queue reference counted frame, the pipeline should call SharedFrame#addRef if it keeps the frame
+	 * and SharedFrame#release when it finished using it. frame data should not be modified.
+	 * default implementation just calls #queueFrame with frame data, so it duplicates frame data
+	 */
+	virtual int queueSharedFrame(SharedFrame *frame);
 };
 
 
@@ -13,6 +13,7 @@
 	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
 #endif
 
+#include <string.h>
 #include <android/native_window_jni.h>
 
 #include "utilbase.h"
@@ -28,8 +29,10 @@
 
 #define CAPTURE_PIXEL_BYTES 2	// RGB565
 
-PreviewPipeline::PreviewPipeline(const size_t &_data_bytes)
-:	CaptureBasePipeline(MAX_FRAME_NUM, INIT_FRAME_POOL_SZ, _data_bytes),
+PreviewPipeline::PreviewPipeline(const int &_max_buffer_num, const size_t &_data_bytes)
+:	IPipeline(_data_bytes),
+	AbstractBufferedPipeline(_max_buffer_num, INIT_FRAME_POOL_SZ, _data_bytes),
+	CaptureBasePipeline(_max_buffer_num, INIT_FRAME_POOL_SZ, _data_bytes),
 	mCaptureWindow(NULL)
 {
 	ENTER();
@@ -148,13 +151,15 @@ void PreviewPipeline::do_capture(JNIEnv *env) {
 
 //	ENTER();
 
-	uvc_frame_t *frame = NULL;
+	SharedFrame *shared;
+	uvc_frame_t *frame;
 	uvc_frame_t *rgb565 = get_frame(default_frame_size);
 
 	if (LIKELY(rgb565)) {
 		for (; isRunning() && isCapturing() ;) {
-			frame = waitCaptureFrame();
-			if (LIKELY(frame)) {
+			shared = waitCaptureFrame();
+			if (LIKELY(shared)) {
+				frame = shared->frame();
 				if (LIKELY(isCapturing())) {
 					const bool need_update_geometry = (frame->width != frameWidth) || (frame->height != frameHeight);
 					capture_mutex.lock();
@@ -192,7 +197,7 @@ void PreviewPipeline::do_capture(JNIEnv *env) {
 					}
 					capture_mutex.unlock();
 				}
-				recycle_frame(frame);
+				shared->release();
 			}
 		}
 	}
@@ -213,10 +218,11 @@ void PreviewPipeline::do_capture(JNIEnv *env) {
 //**********************************************************************
 //
 //**********************************************************************
-static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz) {
+static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz, jint max_buffer_num) {
 
 	ENTER();
-	PreviewPipeline *pipeline = new PreviewPipeline();
+	PreviewPipeline *pipeline = new PreviewPipeline(
+		max_buffer_num > 0 ? max_buffer_num : MAX_FRAME_NUM);
 	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
 	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
 }
@@ -234,57 +240,6 @@ static void nativeDestroy(JNIEnv *env, jobject thiz,
 	EXIT();
 }
 
-static jint nativeGetState(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-	jint result = 0;
-	PreviewPipeline *pipeline = reinterpret_cast<PreviewPipeline *>(id_pipeline);
-	if (pipeline) {
-		result = pipeline->getState();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline, jobject pipeline_obj) {
-
-	ENTER();
-	jint result = JNI_ERR;
-	PreviewPipeline *pipeline = reinterpret_cast<PreviewPipeline *>(id_pipeline);
-	if (pipeline) {
-		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
-		result = pipeline->setPipeline(target_pipeline);
-	}
-
-	RETURN(result, jint);
-}
-
-static jint nativeStart(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-
-	int result = JNI_ERR;
-	PreviewPipeline *pipeline = reinterpret_cast<PreviewPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->start();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeStop(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	jint result = JNI_ERR;
-	ENTER();
-	PreviewPipeline *pipeline = reinterpret_cast<PreviewPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->stop();
-	}
-	RETURN(result, jint);
-}
-
 static jint nativeSetCaptureDisplay(JNIEnv *env, jobject thiz,
 	ID_TYPE id_pipeline, jobject jSurface) {
 
@@ -302,17 +257,10 @@ static jint nativeSetCaptureDisplay(JNIEnv *env, jobject thiz,
 //
 //**********************************************************************
 static JNINativeMethod methods[] = {
-	{ "nativeCreate",					"()J", (void *) nativeCreate },
+	{ "nativeCreate",					"(I)J", (void *) nativeCreate },
 	{ "nativeDestroy",					"(J)V", (void *) nativeDestroy },
 
-	{ "nativeGetState",					"(J)I", (void *) nativeGetState },
-	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
-
-	{ "nativeStart",					"(J)I", (void *) nativeStart },
-	{ "nativeStop",						"(J)I", (void *) nativeStop },
-
 	{ "nativeSetCaptureDisplay",		"(JLandroid/view/Surface;)I", (void *) nativeSetCaptureDisplay },
-
 };
 
 int register_preview_pipeline(JNIEnv *env) {
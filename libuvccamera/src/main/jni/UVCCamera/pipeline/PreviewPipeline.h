@@ -16,7 +16,7 @@ private:
 protected:
 	virtual void do_capture(JNIEnv *env);
 public:
-	PreviewPipeline(const size_t &_data_bytes = DEFAULT_FRAME_SZ);
+	PreviewPipeline(const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM, const size_t &_data_bytes = DEFAULT_FRAME_SZ);
 	virtual ~PreviewPipeline();
 	int setCaptureDisplay(ANativeWindow *capture_window);
 };
@@ -31,7 +31,7 @@
 #endif
 
 #include <stdlib.h>
-#include <linux/time.h>
+#include <string.h>
 #include <unistd.h>
 
 #include "utilbase.h"
@@ -48,17 +48,74 @@
 #define MAX_FRAME_NUM 8
 #define RETRY_INTERVALS_US 25000
 
+#define IPC_SCHEME "ipc://"
+#define INPROC_SCHEME "inproc://"
+
+/**
+ * counters of zero copy messages.
+ * libzmq may release messages on its I/O thread after the pipeline is deleted,
+ * so this is reference counted by the pipeline and by each message instead of being a member of the pipeline.
+ */
+typedef struct publisher_in_flight {
+	volatile int32_t ref_count;
+	volatile uint32_t count;
+	volatile uint32_t max_count;
+} publisher_in_flight_t;
+
+static publisher_in_flight_t *in_flight_create() {
+	publisher_in_flight_t *result = new publisher_in_flight_t;
+	result->ref_count = 1;
+	result->count = result->max_count = 0;
+	return result;
+}
+
+static inline void in_flight_add_ref(publisher_in_flight_t *in_flight) {
+	__sync_add_and_fetch(&in_flight->ref_count, 1);
+}
+
+static inline void in_flight_release(publisher_in_flight_t *in_flight) {
+	if (!__sync_sub_and_fetch(&in_flight->ref_count, 1)) {
+		delete in_flight;
+	}
+}
+
+typedef struct zero_copy_hint {
+	publisher_in_flight_t *in_flight;
+	SharedFrame *frame;
+} zero_copy_hint_t;
+
+static publisher_transport_t get_transport(const char *addr) {
+	if (addr && !strncmp(addr, IPC_SCHEME, strlen(IPC_SCHEME))) {
+		return PUBLISHER_TRANSPORT_IPC;
+	} else if (addr && !strncmp(addr, INPROC_SCHEME, strlen(INPROC_SCHEME))) {
+		return PUBLISHER_TRANSPORT_INPROC;
+	}
+	return PUBLISHER_TRANSPORT_TCP;
+}
+
 /* public */
-PublisherPipeline::PublisherPipeline(const size_t &_data_bytes, const char *addr, const char *_subscription_id)
+PublisherPipeline::PublisherPipeline(const size_t &_data_bytes, const char *addr, const char *_subscription_id,
+	const int &_hwm, const bool &_zero_copy)
 :	AbstractBufferedPipeline(MAX_FRAME_NUM, INIT_FRAME_POOL_SZ, _data_bytes),
-	host(addr),
-	subscription_id(_subscription_id),
+	in_flight(in_flight_create()),
+	host(addr ? addr : ""),
+	subscription_id(_subscription_id ? _subscription_id : ""),
+	hwm(_hwm > 0 ? _hwm : DEFAULT_PUBLISHER_HWM),
+	zero_copy(_zero_copy),
+	transport(get_transport(addr)),
 	data_bytes(_data_bytes),
 	context(NULL),
 	publisher(NULL)
 {
 	ENTER();
 
+	memset(&stats, 0, sizeof(stats));
+	if (transport == PUBLISHER_TRANSPORT_INPROC) {
+		// inproc does not need I/O thread, the context is kept until destructor
+		// so that the in-process subscriber can connect at any time
+		context = new zmq::context_t(0);
+	}
+
 	setState(PIPELINE_STATE_INITIALIZED);
 
 	EXIT();
@@ -74,6 +131,13 @@ PublisherPipeline::PublisherPipeline(const char *addr, const char *_subscription
 PublisherPipeline::~PublisherPipeline() {
 	ENTER();
 
+	if (context) {
+		// this waits until the in-process subscriber closes its socket
+		context->close();
+		SAFE_DELETE(context);
+	}
+	// messages that libzmq still holds keep the counters until they are released
+	in_flight_release(in_flight);
 	LOGI("destructor finished");
 
 	EXIT();
@@ -89,6 +153,28 @@ int PublisherPipeline::queueFrame(uvc_frame_t *frame) {
 	return result; // 	RETURN(result, int);
 }
 
+/*public*/
+int PublisherPipeline::queueSharedFrame(SharedFrame *frame) {
+//	ENTER();
+
+	int result = AbstractBufferedPipeline::queueSharedFrame(frame);
+	chain_frame(frame);
+
+	return result; // 	RETURN(result, int);
+}
+
+/*public*/
+void PublisherPipeline::getStats(publisher_stats_t &result) {
+	ENTER();
+
+	Mutex::Autolock lock(publisher_mutex);
+	result = stats;
+	result.in_flight = in_flight->count;
+	result.max_in_flight = in_flight->max_count;
+
+	EXIT();
+}
+
 //********************************************************************************
 //
 //********************************************************************************
@@ -115,7 +201,8 @@ static void build_header(publish_header_t &header, uvc_frame_t *frame) {
 	header.height_le = htole32(frame->height);
 	header.sequence_le = htole32(frame->sequence);
 //	header.presentation_time_us_le = htole64(systemTime() / 1000);
-	header.presentation_time_us_le = htole64(nsecs_t(frame->capture_time.tv_sec)*1000000LL + nsecs_t(frame->capture_time.tv_usec));
+	// libuvc never sets capture_time, use the capture time that is translated from the device clock
+	header.presentation_time_us_le = htole64(frame->presentation_time_us);
 	header.data_bytes_le = htole32(frame->actual_bytes);
 }
 
@@ -125,13 +212,31 @@ void PublisherPipeline::on_start() {
 
 	Mutex::Autolock lock(publisher_mutex);
 
-	context = new zmq::context_t();
+	if (!context) {
+		context = new zmq::context_t();
+	}
 	publisher = new zmq::socket_t(*context, ZMQ_PAIR/*ZMQ_PUB*/);
 	LOGV("set timeout value");
 	publisher->setsockopt(ZMQ_SNDTIMEO, 1000);
 	publisher->setsockopt(ZMQ_LINGER, 100);
+	// limit the number of queued messages, frames are dropped and counted when this is reached.
+	publisher->setsockopt(ZMQ_SNDHWM, hwm);
+	if (transport == PUBLISHER_TRANSPORT_IPC) {
+		// remove the socket file that remains when the previous process crashed, otherwise bind fails
+		unlink(host.c_str() + strlen(IPC_SCHEME));
+	}
+	// "ipc://" and "inproc://" let a local subscriber take frames without going through network stack,
+	// with "inproc://" zero copy messages reach the subscriber without copying
 	LOGV("bind");
-	publisher->bind(host.c_str());
+	try {
+		publisher->bind(host.c_str());
+	} catch (zmq::error_t e) {
+		// e.g. invalid address or the directory of "ipc://" is not writable,
+		// frames are not sent while publisher is NULL
+		LOGE("failed to bind %s:%d", host.c_str(), e.num());
+		publisher->close();
+		SAFE_DELETE(publisher);
+	}
 
 	EXIT();
 }
@@ -147,8 +252,12 @@ void PublisherPipeline::on_stop() {
 		publisher->close();
 		SAFE_DELETE(publisher);
 	}
+	if (transport == PUBLISHER_TRANSPORT_IPC) {
+		unlink(host.c_str() + strlen(IPC_SCHEME));
+	}
 	LOGI("stop publisher zmq::context");
-	if (context) {
+	if (context && (transport != PUBLISHER_TRANSPORT_INPROC)) {
+		// this waits until libzmq releases all messages(maximum ZMQ_LINGER)
 		context->close();
 		SAFE_DELETE(context);
 	}
@@ -157,23 +266,30 @@ void PublisherPipeline::on_stop() {
 	EXIT();
 }
 
-/* override protected */
-int PublisherPipeline::handle_frame(uvc_frame_t *frame) {
-//	ENTER();
-
-	// local cache
-	const int sub_sz = subscription_id.size();
-	const char *sub_str = subscription_id.c_str();
-//	LOGD("sub_str=%s,sub_sz=%d", sub_str, sub_sz);
+/**
+ * called from libzmq when it finished sending zero copy message or discarded it,
+ * this may be called on the I/O thread of libzmq even after the pipeline is deleted,
+ * so this only touches the counters and the frame that the message holds references of
+ */
+/*private, static*/
+void PublisherPipeline::release_message(void *data, void *hint) {
+	zero_copy_hint_t *h = reinterpret_cast<zero_copy_hint_t *>(hint);
+	if (LIKELY(h)) {
+		__sync_sub_and_fetch(&h->in_flight->count, 1);
+		h->frame->release();
+		in_flight_release(h->in_flight);
+		delete h;
+	}
+}
 
-	publish_header_t header;
-	// create payload
-	zmq::message_t payload(frame->actual_bytes + sizeof(publish_header_t));
-	// copy header to payload
-	build_header(header, frame);
-	memcpy(payload.data(), &header, sizeof(publish_header_t));
-	// copy frame data to payload
-	memcpy(((uint8_t *)payload.data()) + sizeof(publish_header_t), frame->data, frame->actual_bytes);
+/**
+ * send subscription id, header and payload(if exist) as a multipart message.
+ * libzmq accepts all remaining parts once the first part is queued,
+ * so the high water mark is only checked at the first part without blocking.
+ * @return 0 if sent, 1 if dropped at high water mark, -1 on error
+ */
+/*protected*/
+int PublisherPipeline::send_message(zmq::message_t &header, zmq::message_t *payload, const size_t &payload_bytes) {
 /*
 * zmq::socket_t#send(backed by zmq_msg_send of libzmq) just add message to the internal queue.
 * and we can't know how many entries we can send without exceeding queue
@@ -197,28 +313,91 @@ int PublisherPipeline::handle_frame(uvc_frame_t *frame) {
 * GALAXY S5(Android5.0) => 11n(2.4GHz) => router => 11n(5Ghz) => Nexus9(Android5.1.1) : OK
 * GALAXY S5(Android5.0) => 11n(2.4GHz) => router => 11n(2.4Ghz) => GALAXY note2(Android4.4.2) : NG, slow, periodically drops frames.
 * saki
+*
+* Now the first part is sent with ZMQ_DONTWAIT and the queue is limited by ZMQ_SNDHWM,
+* so frames that exceed the queue on this side are counted as frames_dropped instead of disappearing.
+* This still can't detect frames that are lost after they left the queue.
 */
-	for ( ; LIKELY(isRunning()) ; ) {
+	int result = -1;
+	Mutex::Autolock lock(publisher_mutex);
+	if (LIKELY(publisher && isRunning())) {
 		try {
 			// set subscribe id
-			if ((LIKELY(publisher->send(sub_str, sub_sz, ZMQ_SNDMORE)))) {
-				// send payload
-				if (LIKELY(publisher->send(payload))) {
-					// success to send
-					break;
+			if ((LIKELY(publisher->send(subscription_id.c_str(), subscription_id.size(), ZMQ_SNDMORE | ZMQ_DONTWAIT)))) {
+				// send header(and payload if it is not a part of header)
+				publisher->send(header, payload ? ZMQ_SNDMORE : 0);
+				if (payload) {
+					publisher->send(*payload);
 				}
+				stats.frames_sent++;
+				stats.bytes_sent += payload_bytes;
+				result = 0;
+			} else {
+				// send queue reached high water mark or no subscriber is connected
+				stats.frames_dropped++;
+				result = 1;
 			}
-			LOGD("failed to send");
-			usleep(RETRY_INTERVALS_US);
 		} catch (zmq::error_t e) {
 			// when error occur other than EAGAIN
 			LOGW("failed to send:%d", e.num());
-			break;
+			stats.send_errors++;
 		} catch (...) {
 			LOGW("publishing error");
+			stats.send_errors++;
+		}
+	}
+
+	return result;
+}
+
+/* override protected */
+int PublisherPipeline::handle_frame(uvc_frame_t *frame) {
+//	ENTER();
+
+	publish_header_t header;
+	// create payload
+	zmq::message_t payload(frame->actual_bytes + sizeof(publish_header_t));
+	// copy header to payload
+	build_header(header, frame);
+	memcpy(payload.data(), &header, sizeof(publish_header_t));
+	// copy frame data to payload
+	memcpy(((uint8_t *)payload.data()) + sizeof(publish_header_t), frame->data, frame->actual_bytes);
+	send_message(payload, NULL, frame->actual_bytes);
+
+	return 1; // RETURN(1, int);
+}
+
+/**
+ * zero copy mode sends header and frame data as separate message parts,
+ * frame data is referenced by libzmq until it is sent and then the frame is returned to the pool
+ */
+/* override protected */
+int PublisherPipeline::handle_shared_frame(SharedFrame *frame) {
+//	ENTER();
+
+	if (!zero_copy) {
+		return handle_frame(frame->frame());
+	}
+	uvc_frame_t *uvc_frame = frame->frame();
+	publish_header_t header;
+	build_header(header, uvc_frame);
+	zmq::message_t header_msg(sizeof(publish_header_t));
+	memcpy(header_msg.data(), &header, sizeof(publish_header_t));
+
+	zero_copy_hint_t *hint = new zero_copy_hint_t;
+	in_flight_add_ref(in_flight);
+	hint->in_flight = in_flight;
+	hint->frame = frame->addRef();
+	const uint32_t count = __sync_add_and_fetch(&in_flight->count, 1);
+	// max_count never decreases, so retry only while count is still larger than it
+	for (uint32_t max_count = in_flight->max_count; count > max_count; max_count = in_flight->max_count) {
+		if (__sync_bool_compare_and_swap(&in_flight->max_count, max_count, count)) {
 			break;
 		}
 	}
+	// the message releases the frame with #release_message even when it is not sent
+	zmq::message_t payload(uvc_frame->data, uvc_frame->actual_bytes, release_message, hint);
+	send_message(header_msg, &payload, uvc_frame->actual_bytes);
 
 	return 1; // RETURN(1, int);
 }
@@ -227,13 +406,13 @@ int PublisherPipeline::handle_frame(uvc_frame_t *frame) {
 //
 //********************************************************************************
 static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz,
-	jstring publisher_addr_str, jstring subscription_id_str) {
+	jstring publisher_addr_str, jstring subscription_id_str, jint hwm, jboolean zero_copy) {
 
 	ENTER();
 
 	const char *c_addr = env->GetStringUTFChars(publisher_addr_str, JNI_FALSE);
 	const char *c_sub_id = env->GetStringUTFChars(subscription_id_str, JNI_FALSE);
-	PublisherPipeline *pipeline = new PublisherPipeline(DEFAULT_FRAME_SZ, c_addr, c_sub_id);
+	PublisherPipeline *pipeline = new PublisherPipeline(DEFAULT_FRAME_SZ, c_addr, c_sub_id, hwm, zero_copy);
 	env->ReleaseStringUTFChars(publisher_addr_str, c_addr);
 	env->ReleaseStringUTFChars(subscription_id_str, c_sub_id);
 	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
@@ -254,55 +433,23 @@ static void nativeDestroy(JNIEnv *env, jobject thiz,
 	EXIT();
 }
 
-static jint nativeGetState(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-	jint result = 0;
-	PublisherPipeline *pipeline = reinterpret_cast<PublisherPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->getState();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline, jobject pipeline_obj) {
-
-	ENTER();
-	jint result = JNI_ERR;
-	PublisherPipeline *pipeline = reinterpret_cast<PublisherPipeline *>(id_pipeline);
-	if (pipeline) {
-		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
-		result = pipeline->setPipeline(target_pipeline);
-	}
-
-	RETURN(result, jint);
-}
-
-static jint nativeStart(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-
-	int result = JNI_ERR;
-	PublisherPipeline *pipeline = reinterpret_cast<PublisherPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->start();
-	}
-
-	RETURN(result, jint);
-}
-
-static jint nativeStop(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
+static jint nativeGetStats(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline, jlongArray values) {
 
 	ENTER();
 
 	jint result = JNI_ERR;
 	PublisherPipeline *pipeline = reinterpret_cast<PublisherPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->stop();
+	if (LIKELY(pipeline && values) && (env->GetArrayLength(values) >= PUBLISHER_STATS_NUM)) {
+		publisher_stats_t stats;
+		pipeline->getStats(stats);
+		const jlong v[PUBLISHER_STATS_NUM] = {
+			(jlong)stats.frames_sent, (jlong)stats.bytes_sent,
+			(jlong)stats.frames_dropped, (jlong)stats.send_errors,
+			stats.in_flight, stats.max_in_flight,
+		};
+		env->SetLongArrayRegion(values, 0, PUBLISHER_STATS_NUM, v);
+		result = 0;
 	}
 
 	RETURN(result, jint);
@@ -310,13 +457,11 @@ static jint nativeStop(JNIEnv *env, jobject thiz,
 
 //================================================================================
 static JNINativeMethod methods_publisher_pipeline[] = {
-	{ "nativeCreate", 		"(Ljava/lang/String;Ljava/lang/String;)J", (void *) nativeCreate},
+	{ "nativeCreate", 		"(Ljava/lang/String;Ljava/lang/String;IZ)J", (void *) nativeCreate},
 	{ "nativeDestroy",		"(J)V", (void *) nativeDestroy},
-	{ "nativeSetPipeline",	"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
+	// nativeGetState/nativeSetPipeline/nativeStart/nativeStop are registered by register_abstract_pipeline
 
-	{ "nativeGetState",		"(J)I", (void *) nativeGetState },
-	{ "nativeStart",		"(J)I", (void *) nativeStart },
-	{ "nativeStop",			"(J)I", (void *) nativeStop },
+	{ "nativeGetStats",		"(J[J)I", (void *) nativeGetStats },
 };
 
 int register_publisher_pipeline(JNIEnv *env) {
@@ -17,11 +17,40 @@
 
 using namespace android;
 
+#define DEFAULT_PUBLISHER_HWM 4
+
+/** transport of the address to bind, this is selected by the scheme of the address */
+typedef enum publisher_transport {
+	PUBLISHER_TRANSPORT_TCP = 0,	// "tcp://" and others, libzmq handles them
+	PUBLISHER_TRANSPORT_IPC,		// "ipc://", unix domain socket for a subscriber process on the same device
+	PUBLISHER_TRANSPORT_INPROC,		// "inproc://", in-process subscriber that shares the context of this pipeline
+} publisher_transport_t;
+
+typedef struct publisher_stats {
+	uint64_t frames_sent;
+	uint64_t bytes_sent;
+	uint64_t frames_dropped;		// dropped because the send queue reached high water mark
+	uint64_t send_errors;
+	uint32_t in_flight;				// zero copy messages that libzmq has not released yet
+	uint32_t max_in_flight;
+} publisher_stats_t;
+
+#define PUBLISHER_STATS_NUM 6
+
+// counters of zero copy messages that libzmq holds, this is shared with the messages
+struct publisher_in_flight;
+
 class PublisherPipeline : virtual public AbstractBufferedPipeline {
 private:
+	publisher_stats_t stats;
+	struct publisher_in_flight *in_flight;
+	static void release_message(void *data, void *hint);
 protected:
 	const std::string host;
 	const std::string subscription_id;
+	const int hwm;
+	const bool zero_copy;
+	const publisher_transport_t transport;
 	size_t data_bytes;
 	zmq::context_t *context;
 	zmq::socket_t *publisher;
@@ -29,11 +58,26 @@ protected:
 	virtual void on_start();
 	virtual void on_stop();
 	virtual int handle_frame(uvc_frame_t *frame);
+	virtual int handle_shared_frame(SharedFrame *frame);
+	int send_message(zmq::message_t &header, zmq::message_t *payload, const size_t &payload_bytes);
 public:
-	PublisherPipeline(const size_t &_data_bytes = DEFAULT_FRAME_SZ, const char *addr = NULL, const char *subscription_id = NULL);
+	PublisherPipeline(const size_t &_data_bytes = DEFAULT_FRAME_SZ, const char *addr = NULL, const char *subscription_id = NULL,
+		const int &hwm = DEFAULT_PUBLISHER_HWM, const bool &zero_copy = false);
 	PublisherPipeline(const char *addr, const char *subscription_id);
 	virtual ~PublisherPipeline();
 	virtual int queueFrame(uvc_frame_t *frame);
+	virtual int queueSharedFrame(SharedFrame *frame);
+	void getStats(publisher_stats_t &result);
+	inline publisher_transport_t getTransport() const { return transport; };
+	/**
+	 * return zmq context to connect in-process subscriber to "inproc://" address.
+	 * with "inproc://" the context is created in the constructor and kept until this pipeline is deleted,
+	 * so the subscriber can connect before starting and keeps connected while restarting.
+	 * the subscriber should close its socket before this pipeline is deleted,
+	 * otherwise the destructor waits for it.
+	 * with other addresses this is only available while the pipeline is running
+	 */
+	inline zmq::context_t *getContext() const { return context; };
 };
 
 #endif //PUPILMOBILE_PUBLISHER_PIPELINE_H
@@ -13,7 +13,8 @@
 	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
 #endif
 
-#include <vector>
+#include <string.h>
+#include <sys/time.h>
 
 #include "utilbase.h"
 #include "common_utils.h"
@@ -25,27 +26,44 @@
 #include "SQLiteBufferedPipeline.h"
 
 #define CHECK_INTERVAL_NSEC 5000000000LL	// every 5sec
+#define FLUSH_INTERVAL_NSEC 10000000LL		// 10msec, maximum delay until pending frames are inserted
+#define RETRY_INTERVAL_NSEC 3000000LL		// 3msec, wait when next pipeline rejected frame
 #define TABLE_NAME "backend"
 #define INSERT_FIELDS "dtime, format, width, height, sequence, data_bytes, data"
 #define ALL_FIELDS "id, dtime, format, width, height, sequence, data_bytes, data"
 
+/** current wall clock time as micro seconds, same time base as dtime column */
+static inline nsecs_t current_dtime() {
+	struct timeval tv;
+	gettimeofday(&tv, NULL);
+	return nsecs_t(tv.tv_sec) * 1000000LL + tv.tv_usec;
+}
+
 /*public*/
 SQLiteBufferedPipeline::SQLiteBufferedPipeline(const char *database_name, const bool &clear_table)
 :	IPipeline(0),db(NULL),
 	sql_insert_one(NULL),
-	sql_query_oldest_10(NULL),
-	sql_delete_one(NULL),
+	sql_query_oldest(NULL),
+	sql_delete_until(NULL),
 	sql_delete_older(NULL),
-	sql_count(NULL)
+	sql_count(NULL),
+	insert_batch_sz(DEFAULT_INSERT_BATCH_SZ),
+	drain_batch_sz(DEFAULT_DRAIN_BATCH_SZ),
+	start_time(0)
 {
 	ENTER();
 
+	memset(&stats, 0, sizeof(stats));
 	db = new sqlite3pp::database(database_name);
+	// write ahead log lets the reader and the writer work without blocking each other
+	// and synchronous=NORMAL is safe with WAL(only the last transactions may roll back on power loss)
+	db->execute("PRAGMA journal_mode=WAL;");
+	db->execute("PRAGMA synchronous=NORMAL;");
 	// 0:id, 1:dtime, 2:format, 3:width, 4:height, 5:sequence, 6:data_bytes, 7:data
 	sqlite3pp::command cmd(*db,
 		"CREATE TABLE IF NOT EXISTS " TABLE_NAME " ("
 	    "id INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT, "
-		"dtime INTEGER NOT NULL UNIQUE, "
+		"dtime INTEGER NOT NULL, "
 		"format INTEGER NOT NULL, "
 		"width INTEGER NOT NULL, "
 		"height INTEGER NOT NULL, "
@@ -55,6 +73,9 @@ SQLiteBufferedPipeline::SQLiteBufferedPipeline(const char *database_name, const
 		");"
 	);
 	cmd.execute();
+	sqlite3pp::command idx(*db,
+		"CREATE INDEX IF NOT EXISTS " TABLE_NAME "_dtime ON " TABLE_NAME " (dtime);");
+	idx.execute();
 
 	if (clear_table) {
 		clear();
@@ -62,8 +83,9 @@ SQLiteBufferedPipeline::SQLiteBufferedPipeline(const char *database_name, const
 	// sqlite3pp::statement and it's descendants that accessing table can only create when the specific table already exists.
 	sql_insert_one = new sqlite3pp::command(*db, "INSERT INTO " TABLE_NAME
 		" (" INSERT_FIELDS ") VALUES (?, ?, ?, ?, ?, ?, ?);");
-	sql_query_oldest_10 = new sqlite3pp::query(*db, "SELECT " ALL_FIELDS " FROM " TABLE_NAME " ORDER BY dtime LIMIT 10;");
-	sql_delete_one = new sqlite3pp::command(*db, "DELETE FROM " TABLE_NAME " WHERE (id=?);");
+	// id is assigned in the order of insertion, so this reads the oldest records without sorting
+	sql_query_oldest = new sqlite3pp::query(*db, "SELECT " ALL_FIELDS " FROM " TABLE_NAME " ORDER BY id LIMIT ?;");
+	sql_delete_until = new sqlite3pp::command(*db, "DELETE FROM " TABLE_NAME " WHERE (id<=?);");
 	sql_delete_older = new sqlite3pp::command(*db, "DELETE FROM " TABLE_NAME " WHERE (dtime<?);");
 	sql_count = new sqlite3pp::query(*db, "SELECT count(id) FROM " TABLE_NAME ";");
 
@@ -75,6 +97,7 @@ SQLiteBufferedPipeline::SQLiteBufferedPipeline(const char *database_name, const
 SQLiteBufferedPipeline::~SQLiteBufferedPipeline() {
 	ENTER();
 
+	clear_frames();
 	LOGD("deleting sql_count");
 	if (sql_count) {
 		sql_count->finish();
@@ -85,15 +108,15 @@ SQLiteBufferedPipeline::~SQLiteBufferedPipeline() {
 		sql_delete_older->finish();
 		SAFE_DELETE(sql_delete_older);
 	}
-	LOGD("deleting sql_delete_one");
-	if (sql_delete_one) {
-		sql_delete_one->finish();
-		SAFE_DELETE(sql_delete_one);
+	LOGD("deleting sql_delete_until");
+	if (sql_delete_until) {
+		sql_delete_until->finish();
+		SAFE_DELETE(sql_delete_until);
 	}
-	LOGD("deleting sql_query_oldest_10");
-	if (sql_query_oldest_10) {
-		sql_query_oldest_10->finish();
-		SAFE_DELETE(sql_query_oldest_10);
+	LOGD("deleting sql_query_oldest");
+	if (sql_query_oldest) {
+		sql_query_oldest->finish();
+		SAFE_DELETE(sql_query_oldest);
 	}
 	LOGD("deleting sql_insert_one");
 	if (sql_insert_one) {
@@ -156,6 +179,10 @@ int SQLiteBufferedPipeline::stop() {
 	RETURN(0, int);
 }
 
+/**
+ * copy the frame into the pending list, frames are inserted into the database
+ * by the handler thread within a single transaction per batch.
+ */
 /*public*/
 int SQLiteBufferedPipeline::queueFrame(uvc_frame_t *frame) {
 	ENTER();
@@ -166,22 +193,33 @@ int SQLiteBufferedPipeline::queueFrame(uvc_frame_t *frame) {
 	if (LIKELY(frame && isRunning())) {
 		// FIXME if the number of record exceeds specific limit, need to delete old records or drop newer frames
 		// FIXME otherwise device storage will become empty at some point.
-		try {
-			sql_insert_one->reset();
-			sql_insert_one->bind(1, nsecs_t(frame->capture_time.tv_sec) * 1000000LL +
-								nsecs_t(frame->capture_time.tv_usec));
-			sql_insert_one->bind(2, (int) frame->frame_format);
-			sql_insert_one->bind(3, (int) frame->width);
-			sql_insert_one->bind(4, (int) frame->height);
-			sql_insert_one->bind(5, (int) frame->sequence);
-			sql_insert_one->bind(6, (int) frame->actual_bytes);
-			sql_insert_one->bind(7, (void *) frame->data, frame->actual_bytes, false);
-			sql_insert_one->execute();
-			ret = UVC_SUCCESS;
-		} catch (...) {
-			LOGW("failed insert frame");
+		if (LIKELY(pending_frames.size() < insert_batch_sz * 4)) {
+			uvc_frame_t *copy = NULL;
+			if (!frame_pool.empty()) {
+				copy = frame_pool.front();
+				frame_pool.pop_front();
+			} else {
+				copy = uvc_allocate_frame(frame->data_bytes);
+			}
+			if (LIKELY(copy)) {
+				ret = uvc_duplicate_frame(frame, copy);
+				if (LIKELY(!ret)) {
+					// libuvc never sets capture_time, stamp the arrival time(wall clock)
+					// so that dtime column and purge_older share the same time base
+					gettimeofday(&copy->capture_time, NULL);
+					pending_frames.push_back(copy);
+				} else {
+					frame_pool.push_back(copy);
+				}
+			}
+		} else {
+			// handler thread could not keep up with incoming frames
+			ret = UVC_ERROR_NO_MEM;
+			stats.frames_dropped++;
+		}
+		if (pending_frames.size() >= insert_batch_sz) {
+			handler_sync.broadcast();
 		}
-		handler_sync.broadcast();
 	}
 
 	RETURN(ret, int);
@@ -191,12 +229,44 @@ int SQLiteBufferedPipeline::queueFrame(uvc_frame_t *frame) {
 void SQLiteBufferedPipeline::clear() {
 	ENTER();
 
-	sqlite3pp::command sql_truncate(*db, "TRUNCATE TABLE " TABLE_NAME ";");
+	// SQLite does not have TRUNCATE, DELETE without WHERE clause is optimized into truncation
+	sqlite3pp::command sql_truncate(*db, "DELETE FROM " TABLE_NAME ";");
 	sql_truncate.execute();
 
 	EXIT();
 }
 
+/**
+ * set the number of frames per insert transaction and the number of records that are read at once
+ */
+/*public*/
+int SQLiteBufferedPipeline::setBatchSize(const int &insert_batch, const int &drain_batch) {
+	ENTER();
+
+	int result = -1;
+	if (LIKELY((insert_batch > 0) && (insert_batch <= MAX_BATCH_SZ)
+		&& (drain_batch > 0) && (drain_batch <= MAX_BATCH_SZ))) {
+
+		Mutex::Autolock lock(handler_mutex);
+		insert_batch_sz = (uint32_t)insert_batch;
+		drain_batch_sz = (uint32_t)drain_batch;
+		result = 0;
+	}
+
+	RETURN(result, int);
+}
+
+/*public*/
+void SQLiteBufferedPipeline::getStats(sqlite_pipeline_stats_t &result) {
+	ENTER();
+
+	Mutex::Autolock lock(handler_mutex);
+	result = stats;
+	result.elapsed_nsec = start_time ? systemTime() - start_time : 0;
+
+	EXIT();
+}
+
 /**
  * delete record(s) older than specific dtime.
  * if you want to delete all record(s), use clear instead
@@ -232,7 +302,8 @@ int SQLiteBufferedPipeline::purge_older(const nsecs_t &limit_rel_nsec) {
 	int result = -1;
 
 	if (LIKELY(limit_rel_nsec)) {
-		result = delete_older(systemTime() - limit_rel_nsec);
+		// dtime is stored as wall clock micro seconds
+		result = delete_older(current_dtime() - ns2us(limit_rel_nsec));
 	}
 
 	RETURN(result, int);
@@ -265,90 +336,206 @@ void *SQLiteBufferedPipeline::handler_thread_func(void *vptr_args) {
 	pthread_exit(NULL);
 }
 
+/*private*/
+void SQLiteBufferedPipeline::recycle_frames(std::list<uvc_frame_t *> &frames) {
+	Mutex::Autolock lock(handler_mutex);
+	frame_pool.splice(frame_pool.end(), frames);
+}
+
+/*private*/
+void SQLiteBufferedPipeline::clear_frames() {
+	ENTER();
+
+	Mutex::Autolock lock(handler_mutex);
+	for (auto iter = pending_frames.begin(); iter != pending_frames.end(); iter++) {
+		uvc_free_frame(*iter);
+	}
+	pending_frames.clear();
+	for (auto iter = frame_pool.begin(); iter != frame_pool.end(); iter++) {
+		uvc_free_frame(*iter);
+	}
+	frame_pool.clear();
+
+	EXIT();
+}
+
+/**
+ * insert all pending frames within a single transaction
+ * @return number of inserted frames
+ */
+/*private*/
+int SQLiteBufferedPipeline::insert_pending() {
+	ENTER();
+
+	std::list<uvc_frame_t *> frames;
+	handler_mutex.lock();
+	{
+		frames.swap(pending_frames);
+	}
+	handler_mutex.unlock();
+
+	int result = 0;
+	if (!frames.empty()) {
+		uint64_t bytes = 0;
+		sqlite3pp::transaction xct(*db);
+		try {
+			for (auto iter = frames.begin(); iter != frames.end(); iter++) {
+				uvc_frame_t *frame = *iter;
+				sql_insert_one->reset();
+				// capture_time was stamped in queueFrame
+				sql_insert_one->bind(1, nsecs_t(frame->capture_time.tv_sec) * 1000000LL +
+									nsecs_t(frame->capture_time.tv_usec));
+				sql_insert_one->bind(2, (int) frame->frame_format);
+				sql_insert_one->bind(3, (int) frame->width);
+				sql_insert_one->bind(4, (int) frame->height);
+				sql_insert_one->bind(5, (int) frame->sequence);
+				sql_insert_one->bind(6, (int) frame->actual_bytes);
+				sql_insert_one->bind(7, (void *) frame->data, frame->actual_bytes, false);
+				sql_insert_one->execute();
+				bytes += frame->actual_bytes;
+				result++;
+			}
+			xct.commit();
+		} catch (std::exception &e) {
+			LOGW("failed insert frames:%s", e.what());
+			xct.rollback();    // this may redundant
+			result = 0;
+		}
+		Mutex::Autolock lock(handler_mutex);
+		if (LIKELY(result)) {
+			stats.frames_written += result;
+			stats.bytes_written += bytes;
+			stats.insert_transactions++;
+		} else {
+			stats.frames_dropped += frames.size();
+		}
+	}
+	recycle_frames(frames);
+
+	RETURN(result, int);
+}
+
+/**
+ * read oldest records and pass them to the next pipeline in the order of insertion,
+ * chained records are removed by a single range delete.
+ * @return number of chained frames, -1 if the next pipeline rejected the frame
+ */
+/*private*/
+int SQLiteBufferedPipeline::drain(uvc_frame_t *frame) {
+	ENTER();
+
+	int result = 0;
+	bool rejected = false;
+	int64_t last_id = -1;
+	uint64_t bytes = 0;
+	try {
+		sql_query_oldest->reset();
+		sql_query_oldest->bind(1, (int) drain_batch_sz);
+		for (auto iter = sql_query_oldest->begin(); iter != sql_query_oldest->end(); ++iter) {
+			if (UNLIKELY(!isRunning())) {
+				break;
+			}
+			// 0:id, 1:dtime, 2:format, 3:width, 4:height, 5:sequence, 6:data_bytes, 7:data
+			const int64_t id = (*iter).get<int64_t>(0);
+			const nsecs_t dtime = (*iter).get <nsecs_t> (1);
+			const size_t actual_bytes = (size_t)(*iter).get<int>(6);
+			if (LIKELY(!uvc_ensure_frame_size(frame, actual_bytes))) {
+				frame->capture_time.tv_sec = dtime / 1000000LL;
+				frame->capture_time.tv_usec = dtime % 1000000LL;
+				frame->frame_format = (uvc_frame_format)(*iter).get<int>(2);
+				frame->width = (uint32_t)(*iter).get<int>(3);
+				frame->height = (uint32_t)(*iter).get<int>(4);
+				frame->sequence = (uint32_t)((*iter).get <int> (5));
+				frame->actual_bytes = actual_bytes;
+				memcpy(frame->data, (*iter).get<const void *>(7), actual_bytes);
+				if (UNLIKELY(chain_frame(frame))) {
+					// next pipeline is full, keep this and following records and retry later
+					rejected = true;
+					break;
+				}
+				bytes += actual_bytes;
+				result++;
+			} else {
+				LOGW("uvc_ensure_frame_size failed:%lld,%lld,actual_bytes=%d", id, dtime, actual_bytes);
+			}
+			// records that could not be read are also removed, otherwise they block the queue forever
+			last_id = id;
+		} // end of for
+	} catch (std::exception &e) {
+		LOGW("failed to read records:%s", e.what());
+	}
+	sql_query_oldest->reset();
+	if (last_id >= 0) {
+		// delete chained record(s) at once
+		sqlite3pp::transaction xct(*db);
+		try {
+			sql_delete_until->reset();
+			sql_delete_until->bind(1, last_id);
+			sql_delete_until->execute();
+			xct.commit();
+		} catch (std::exception &e) {
+			LOGI("exception: failed to delate");
+			xct.rollback();    // this may redundant
+		}
+		Mutex::Autolock lock(handler_mutex);
+		stats.frames_read += result;
+		stats.bytes_read += bytes;
+		stats.delete_transactions++;
+	}
+
+	RETURN(rejected ? -1 : result, int);
+}
+
 /*private*/
 void SQLiteBufferedPipeline::do_loop() {
 	ENTER();
 
-	std::vector<int> queued_ids;
-	struct timespec ts, ws;
-	ts.tv_sec = 5; ts.tv_nsec = 0;	// wait maximum 5 sec
-//	ws.tv_sec = 0; ws.tv_nsec = 3000000;	// 3msec
 	uvc_frame_t *frame = uvc_allocate_frame(DEFAULT_FRAME_SZ);
 	if (LIKELY(frame)) {
+		handler_mutex.lock();
+		{
+			memset(&stats, 0, sizeof(stats));
+			start_time = systemTime();
+		}
+		handler_mutex.unlock();
 		setState(PIPELINE_STATE_RUNNING);
 		nsecs_t prev_time = systemTime();
+		int drained = 0;
 		for (; LIKELY(isRunning());) {
 			handler_mutex.lock();
 			{
-				// wait for new arriving frame data
-				handler_sync.waitRelative(handler_mutex, 3000000);
+				// wait for new arriving frame data,
+				// no need to wait when there may be more records to read
+				if ((pending_frames.size() < insert_batch_sz) && (drained <= 0)) {
+					handler_sync.waitRelative(handler_mutex,
+						drained < 0 ? RETRY_INTERVAL_NSEC : FLUSH_INTERVAL_NSEC);
+				}
 			}
 			handler_mutex.unlock();
 
 			if (LIKELY(isRunning())) {
-
-				if (next_pipeline) {
-					queued_ids.clear();
-					for (auto iter = sql_query_oldest_10->begin(); iter != sql_query_oldest_10->end(); ++iter) {
-						if (UNLIKELY(!isRunning())) {
-							break;
-						}
-						// 0:id, 1:dtime, 2:format, 3:width, 4:height, 5:sequence, 6:data_bytes, 7:data
-						const int64_t id = (*iter).get<int64_t>(0);	// XXX int64_t(long long int) may be better
-						const nsecs_t dtime = (*iter).get <nsecs_t> (1);
-						const uvc_frame_format format = (uvc_frame_format)(*iter).get<int>(2);
-						const uint32_t width = (uint32_t)(*iter).get<int>(3);
-						const uint32_t height = (uint32_t)(*iter).get<int>(4);
-						const uint32_t sequence = (uint32_t)((*iter).get <int> (5));
-						const size_t actual_bytes = (size_t)(*iter).get<int>(6);
-						const void *data = (*iter).get<const void *>(7);
-						if (LIKELY(!uvc_ensure_frame_size(frame, actual_bytes))) {
-							frame->capture_time.tv_sec = dtime / 1000000LL;
-							frame->capture_time.tv_usec = dtime % 1000000LL;
-							frame->frame_format = format;
-							frame->width = width;
-							frame->height = height;
-							frame->sequence = sequence;
-							frame->actual_bytes = actual_bytes;
-							memcpy(frame->data, data, actual_bytes);
-							if (!chain_frame(frame)) {
-								// if queueing success, delete the record
-								queued_ids.push_back(id);
-//								LOGI("chain_frame:%lld,%lld,(%d,%d),actual_bytes=%d", id, dtime, width, height, actual_bytes);
-								if (iter != sql_query_oldest_10->end()) {
-									// wait several msecs here if the record is not a last one, otherwise after pipeline will exceed buffer and drop frame(s)
-									handler_mutex.lock();
-									{
-										handler_sync.waitRelative(handler_mutex, 5000000000L);
-									}
-									handler_mutex.unlock();
-								}
-							}
-						} else {
-							LOGW("uvc_ensure_frame_size failed:%lld,%lld,(%d,%d),actual_bytes=%d", id, dtime, width, height, actual_bytes);
-						}
-					} // end of for
-					// delete chained record(s) if exist
-					sqlite3pp::transaction xct(*db);
-					try {
-						for (auto iter = queued_ids.begin(); iter != queued_ids.end(); iter++) {
-							sql_delete_one->reset();
-							sql_delete_one->bind(1, *iter);
-							sql_delete_one->execute();
-						}
-						xct.commit();
-					} catch (std::exception &e) {
-						LOGI("exception: failed to delate");
-						xct.rollback();    // this may redundant
-					}
-				} // end of if (next_pipeline)
+				insert_pending();
+				drained = next_pipeline ? drain(frame) : 0;
 				if (UNLIKELY(systemTime() > prev_time + CHECK_INTERVAL_NSEC)) {
 					prev_time = systemTime();
 					purge_older();
+#ifndef LOG_NDEBUG
+					sqlite_pipeline_stats_t s;
+					getStats(s);
+					const float sec = s.elapsed_nsec / 1000000000.0f;
+					if (sec > 0) {
+						LOGI("write:%5.1f frames/s,%6.2f MB/s, read:%5.1f frames/s,%6.2f MB/s, dropped=%lld",
+							s.frames_written / sec, s.bytes_written / sec / 1048576.0f,
+							s.frames_read / sec, s.bytes_read / sec / 1048576.0f,
+							(long long)s.frames_dropped);
+					}
+#endif
 				}
 			}
 		}
 		setState(PIPELINE_STATE_STOPPING);
+		// write remaining frames so that they are not lost
+		insert_pending();
 		uvc_free_frame(frame);
 	} else {
 		LOGW("uvc_allocate_frame failed");
@@ -444,6 +631,40 @@ static jint nativeStop(JNIEnv *env, jobject thiz,
 	RETURN(result, jint);
 }
 
+static jint nativeSetBatchSize(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline, jint insert_batch, jint drain_batch) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	SQLiteBufferedPipeline *pipeline = reinterpret_cast<SQLiteBufferedPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->setBatchSize(insert_batch, drain_batch);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeGetStats(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline, jlongArray values) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	SQLiteBufferedPipeline *pipeline = reinterpret_cast<SQLiteBufferedPipeline *>(id_pipeline);
+	if (LIKELY(pipeline && values) && (env->GetArrayLength(values) >= SQLITE_PIPELINE_STATS_NUM)) {
+		sqlite_pipeline_stats_t stats;
+		pipeline->getStats(stats);
+		const jlong v[SQLITE_PIPELINE_STATS_NUM] = {
+			(jlong)stats.frames_written, (jlong)stats.bytes_written,
+			(jlong)stats.frames_read, (jlong)stats.bytes_read,
+			(jlong)stats.frames_dropped,
+			(jlong)stats.insert_transactions, (jlong)stats.delete_transactions,
+			(jlong)stats.elapsed_nsec,
+		};
+		env->SetLongArrayRegion(values, 0, SQLITE_PIPELINE_STATS_NUM, v);
+		result = 0;
+	}
+	RETURN(result, jint);
+}
+
 //**********************************************************************
 //
 //**********************************************************************
@@ -457,6 +678,9 @@ static JNINativeMethod methods[] = {
 	{ "nativeStart",					"(J)I", (void *) nativeStart },
 	{ "nativeStop",						"(J)I", (void *) nativeStop },
 
+	{ "nativeSetBatchSize",				"(JII)I", (void *) nativeSetBatchSize },
+	{ "nativeGetStats",					"(J[J)I", (void *) nativeGetStats },
+
 };
 
 int register_sqlite_buffered_pipeline(JNIEnv *env) {
@@ -21,22 +21,51 @@
 using namespace android;
 
 #define DTIME_LIMIT_NSEC 30000000000LL		// 30sec
+#define DEFAULT_INSERT_BATCH_SZ 8			// number of frames that are inserted in one transaction
+#define DEFAULT_DRAIN_BATCH_SZ 32			// number of records that are read/deleted at once
+#define MAX_BATCH_SZ 256
+
+typedef struct sqlite_pipeline_stats {
+	uint64_t frames_written;
+	uint64_t bytes_written;
+	uint64_t frames_read;
+	uint64_t bytes_read;
+	uint64_t frames_dropped;
+	uint64_t insert_transactions;
+	uint64_t delete_transactions;
+	/** elapsed time since the pipeline started, use this to calculate frames/s and bytes/s */
+	nsecs_t elapsed_nsec;
+} sqlite_pipeline_stats_t;
+
+#define SQLITE_PIPELINE_STATS_NUM 8
 
 class SQLiteBufferedPipeline : virtual public IPipeline {
 private:
 	sqlite3pp::database *db;
 	// precompile statements
 	sqlite3pp::command *sql_insert_one;
-	sqlite3pp::query *sql_query_oldest_10;
-	sqlite3pp::command *sql_delete_one;
+	sqlite3pp::query *sql_query_oldest;
+	sqlite3pp::command *sql_delete_until;
 	sqlite3pp::command *sql_delete_older;
 	sqlite3pp::query *sql_count;
 
+	volatile uint32_t insert_batch_sz;
+	volatile uint32_t drain_batch_sz;
+	sqlite_pipeline_stats_t stats;
+	nsecs_t start_time;
+
 	pthread_t handler_thread;
 	mutable Mutex handler_mutex;
 	Condition handler_sync;
+	// frames waiting for insertion, only the handler thread accesses the database
+	std::list<uvc_frame_t *> pending_frames;
+	std::list<uvc_frame_t *> frame_pool;
 	static void *handler_thread_func(void *vptr_args);
 	void do_loop();
+	int insert_pending();
+	int drain(uvc_frame_t *frame);
+	void recycle_frames(std::list<uvc_frame_t *> &frames);
+	void clear_frames();
 protected:
 	int getCount();
 	/**
@@ -53,7 +82,11 @@ public:
 	virtual int start();
 	virtual int stop();
 	virtual int queueFrame(uvc_frame_t *frame);
+	// frame data is always written into the database
+	virtual int queueSharedFrame(SharedFrame *frame) { return IPipeline::queueSharedFrame(frame); };
 	virtual void clear();
+	int setBatchSize(const int &insert_batch, const int &drain_batch);
+	void getStats(sqlite_pipeline_stats_t &result);
 };
 
 
@@ -0,0 +1,126 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: SharedFrame.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#if 1	// set 1 if you don't need debug message
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// ignore LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
+#endif
+
+#include "utilbase.h"
+#include "AbstractBufferedPipeline.h"
+#include "SharedFrame.h"
+
+//********************************************************************************
+//
+//********************************************************************************
+FrameRecycler::FrameRecycler(AbstractBufferedPipeline *_owner)
+:	ref_count(1),
+	owner(_owner)
+{
+}
+
+/*private*/
+FrameRecycler::~FrameRecycler() {
+}
+
+void FrameRecycler::addRef() {
+	__sync_add_and_fetch(&ref_count, 1);
+}
+
+void FrameRecycler::release() {
+	if (!__sync_sub_and_fetch(&ref_count, 1)) {
+		delete this;
+	}
+}
+
+void FrameRecycler::detach() {
+	ENTER();
+
+	recycler_mutex.lock();
+	{
+		owner = NULL;
+	}
+	recycler_mutex.unlock();
+	release();
+
+	EXIT();
+}
+
+void FrameRecycler::recycle(uvc_frame_t *frame) {
+	if (LIKELY(frame)) {
+		Mutex::Autolock lock(recycler_mutex);
+		if (LIKELY(owner)) {
+			owner->recycle_frame(frame);
+		} else {
+			// owner pipeline is already released
+			uvc_free_frame(frame);
+		}
+	}
+}
+
+//********************************************************************************
+//
+//********************************************************************************
+SharedFrame::SharedFrame(uvc_frame_t *frame, FrameRecycler *recycler)
+:	ref_count(1),
+	mFrame(frame),
+	mRecycler(recycler)
+{
+	if (mRecycler) {
+		mRecycler->addRef();
+	}
+}
+
+/*private*/
+SharedFrame::~SharedFrame() {
+	if (mRecycler) {
+		mRecycler->recycle(mFrame);
+		mRecycler->release();
+	} else if (mFrame) {
+		uvc_free_frame(mFrame);
+	}
+	mFrame = NULL;
+	mRecycler = NULL;
+}
+
+SharedFrame *SharedFrame::addRef() {
+	__sync_add_and_fetch(&ref_count, 1);
+	return this;
+}
+
+/**
+ * decrease reference count, frame is recycled when the reference count becomes 0.
+ * you should not access this object after calling this function.
+ */
+void SharedFrame::release() {
+	if (!__sync_sub_and_fetch(&ref_count, 1)) {
+		delete this;
+	}
+}
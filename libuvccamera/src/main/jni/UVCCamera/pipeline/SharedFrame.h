@@ -0,0 +1,89 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: SharedFrame.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef SHAREDFRAME_H_
+#define SHAREDFRAME_H_
+
+#include <stdint.h>
+#include "Mutex.h"
+
+#include "libUVCCamera.h"
+
+using namespace android;
+
+class AbstractBufferedPipeline;
+
+/**
+ * return frames that SharedFrame released to the frame pool of the pipeline that allocated them.
+ * this object is kept until the owner pipeline is released and all frames it lent are released,
+ * frames that come back after the owner pipeline is released are just freed.
+ */
+class FrameRecycler {
+private:
+	mutable Mutex recycler_mutex;
+	volatile int32_t ref_count;
+	AbstractBufferedPipeline *owner;
+	~FrameRecycler();
+	// force inhibiting copy/assignment
+	FrameRecycler(const FrameRecycler &src);
+	void operator =(const FrameRecycler &src);
+public:
+	FrameRecycler(AbstractBufferedPipeline *owner);
+	void addRef();
+	void release();
+	/**
+	 * owner pipeline should call this when it is released instead of #release
+	 */
+	void detach();
+	void recycle(uvc_frame_t *frame);
+};
+
+/**
+ * reference counted wrapper of uvc_frame_t to pass the same frame
+ * to multiple pipelines without duplicating frame data.
+ * frame data should be treated as read only while it is shared.
+ */
+class SharedFrame {
+private:
+	volatile int32_t ref_count;
+	uvc_frame_t *mFrame;
+	FrameRecycler *mRecycler;
+	~SharedFrame();
+	// force inhibiting copy/assignment
+	SharedFrame(const SharedFrame &src);
+	void operator =(const SharedFrame &src);
+public:
+	/**
+	 * reference count is 1 when constructed
+	 * @param frame
+	 * @param recycler frame is returned to this recycler when the reference count becomes 0,
+	 *        if NULL, frame is freed with uvc_free_frame
+	 */
+	SharedFrame(uvc_frame_t *frame, FrameRecycler *recycler);
+	inline uvc_frame_t *frame() const { return mFrame; };
+	SharedFrame *addRef();
+	void release();
+};
+
+#endif /* SHAREDFRAME_H_ */
@@ -0,0 +1,738 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: SpoolBufferedPipeline.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#if 1	// set 1 if you don't need debug message
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// ignore LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
+#endif
+
+#include <string.h>
+#include <stdio.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <dirent.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <sys/time.h>
+#include <algorithm>
+#include <vector>
+#include <zlib.h>
+
+#include "utilbase.h"
+#include "common_utils.h"
+
+#include "libUVCCamera.h"
+#include "pipeline_helper.h"
+#include "IPipeline.h"
+#include "SpoolBufferedPipeline.h"
+
+#define CHECK_INTERVAL_NSEC 1000000000LL	// every 1sec
+#define WAIT_INTERVAL_NSEC 50000000LL		// 50msec, wait for new frame
+#define RETRY_INTERVAL_NSEC 3000000LL		// 3msec, wait when next pipeline rejected frame
+
+#define SEGMENT_MAGIC 0x31535053			// 'SPS1'
+#define SEGMENT_VERSION 2					// 2: added data_check to record header
+#define SEGMENT_HEADER_SZ 64
+#define RECORD_MAGIC 0x31434552				// 'REC1'
+#define RECORD_ALIGN 8
+#define SPOOL_RECORD_FLAG_CONSUMED 0x01
+#define SEGMENT_NAME_FORMAT "spool-%08u.seg"
+
+typedef struct spool_segment_header {
+	uint32_t magic;
+	uint32_t version;
+	uint32_t seq;
+	uint32_t segment_size;
+} spool_segment_header_t;
+
+static inline size_t record_size(const size_t &data_bytes) {
+	return (sizeof(spool_record_header_t) + data_bytes + RECORD_ALIGN - 1) & ~(size_t)(RECORD_ALIGN - 1);
+}
+
+/** FNV-1a like check sum of record header to detect partially written/broken header */
+static uint32_t record_check(const spool_record_header_t *h) {
+	const uint32_t values[] = {
+		(uint32_t)(h->dtime & 0xffffffff), (uint32_t)((uint64_t)h->dtime >> 32),
+		h->format, h->width, h->height, h->sequence, h->data_bytes, h->data_check,
+	};
+	uint32_t result = 2166136261U;
+	for (size_t i = 0; i < NUM_ARRAY_ELEMENTS(values); i++) {
+		result = (result ^ values[i]) * 16777619U;
+	}
+	return result;
+}
+
+/** current wall clock time as micro seconds, same time base as dtime */
+static inline nsecs_t current_dtime() {
+	struct timeval tv;
+	gettimeofday(&tv, NULL);
+	return nsecs_t(tv.tv_sec) * 1000000LL + tv.tv_usec;
+}
+
+/** adler32 of the payload to detect the record whose payload was not written completely */
+static inline uint32_t data_check(const void *data, const size_t &bytes) {
+	return (uint32_t)adler32(adler32(0L, Z_NULL, 0), (const Bytef *)data, (uInt)bytes);
+}
+
+static inline uint32_t limit_segments(const size_t &segment_size, const int &max_segments) {
+	const size_t limit = MAX_SPOOL_MAPPED_SZ / segment_size;
+	return (size_t)max_segments > limit ? (uint32_t)limit : (uint32_t)max_segments;
+}
+
+/*public*/
+SpoolBufferedPipeline::SpoolBufferedPipeline(const char *_dir_path,
+	const size_t &segment_size, const int &_max_segments, const nsecs_t &_retention_nsec)
+:	IPipeline(0),
+	dir_path(_dir_path),
+	segment_sz((segment_size > SEGMENT_HEADER_SZ * 2) && (segment_size <= MAX_SPOOL_MAPPED_SZ / 2)
+		? segment_size : DEFAULT_SPOOL_SEGMENT_SZ),
+	max_segments(limit_segments(segment_sz, _max_segments > 1 ? _max_segments : DEFAULT_SPOOL_MAX_SEGMENTS)),
+	retention_nsec(_retention_nsec),
+	next_seq(0)
+{
+	ENTER();
+
+	memset(&stats, 0, sizeof(stats));
+	mkdir(dir_path.c_str(), 0700);
+	recover();
+
+	setState(PIPELINE_STATE_INITIALIZED);
+	EXIT();
+}
+
+/*public*/
+SpoolBufferedPipeline::~SpoolBufferedPipeline() {
+	ENTER();
+
+	Mutex::Autolock lock(handler_mutex);
+	// keep segment files to replay unconsumed frames next time
+	for (auto iter = segments.begin(); iter != segments.end(); iter++) {
+		close_segment(*iter, false);
+	}
+	segments.clear();
+	index.clear();
+
+	EXIT();
+}
+
+/*public*/
+int SpoolBufferedPipeline::release() {
+	ENTER();
+
+	setState(PIPELINE_STATE_RELEASING);
+	stop();
+
+	RETURN(0, int);
+}
+
+/*public*/
+int SpoolBufferedPipeline::start() {
+	ENTER();
+
+	int result = EXIT_FAILURE;
+	if (!isRunning()) {
+		LOGD("start handler thread");
+		setState(PIPELINE_STATE_STARTING);
+		mIsRunning = true;
+		result = pthread_create(&handler_thread, NULL, handler_thread_func, (void *) this);
+		if (UNLIKELY(result != EXIT_SUCCESS)) {
+			LOGW("SpoolBufferedPipeline::already running/could not create thread etc.");
+			setState(PIPELINE_STATE_INITIALIZED);
+			mIsRunning = false;
+			handler_sync.signal();
+		}
+	}
+	RETURN(result, int);
+}
+
+/*public*/
+int SpoolBufferedPipeline::stop() {
+	ENTER();
+	bool b = isRunning();
+	if (LIKELY(b)) {
+		LOGD("waiting SpoolBufferedPipeline thread");
+		setState(PIPELINE_STATE_STOPPING);
+		mIsRunning = false;
+		handler_sync.broadcast();
+		if (pthread_join(handler_thread, NULL) != EXIT_SUCCESS) {
+			LOGW("SpoolBufferedPipeline::terminate SpoolBufferedPipeline thread: pthread_join failed");
+		}
+		LOGD("SpoolBufferedPipeline thread finished");
+	}
+	RETURN(0, int);
+}
+
+/**
+ * append the frame to the current segment.
+ * magic of the record is written at last, so recovery can detect the partial record.
+ */
+/*public*/
+int SpoolBufferedPipeline::queueFrame(uvc_frame_t *frame) {
+	ENTER();
+
+	uvc_error_t ret = UVC_ERROR_OTHER;
+	Mutex::Autolock lock(handler_mutex);
+
+	if (LIKELY(frame && isRunning())) {
+		// libuvc never sets capture_time, stamp the arrival time(wall clock)
+		// so that dtime and purge_older share the same time base even after recovery
+		const nsecs_t dtime = current_dtime();
+		const size_t bytes = record_size(frame->actual_bytes);
+		spool_segment_t *segment = writable_segment(bytes);
+		if (LIKELY(segment)) {
+			const uint32_t offset = (uint32_t)segment->write_offset;
+			spool_record_header_t *header = (spool_record_header_t *)(segment->base + offset);
+			header->magic = 0;
+			memcpy(header + 1, frame->data, frame->actual_bytes);
+			header->flags = 0;
+			header->dtime = dtime;
+			header->format = frame->frame_format;
+			header->width = frame->width;
+			header->height = frame->height;
+			header->sequence = frame->sequence;
+			header->data_bytes = (uint32_t)frame->actual_bytes;
+			header->data_check = data_check(header + 1, frame->actual_bytes);
+			header->check = record_check(header);
+			__sync_synchronize();
+			header->magic = RECORD_MAGIC;
+			segment->write_offset += bytes;
+			if (segment->write_offset + sizeof(spool_record_header_t) <= segment->size) {
+				// make sure the next record slot is not treated as a valid record on recovery
+				((spool_record_header_t *)(segment->base + segment->write_offset))->magic = 0;
+			}
+			segment->live_records++;
+			if (segment->write_offset - segment->synced_offset >= SPOOL_SYNC_BYTES) {
+				sync_segment(segment);
+			}
+			spool_index_t entry = {
+				header->dtime, header->format, header->data_bytes, segment->seq, offset,
+			};
+			index.push_back(entry);
+			stats.frames_written++;
+			stats.bytes_written += frame->actual_bytes;
+			ret = UVC_SUCCESS;
+			handler_sync.broadcast();
+		} else {
+			// spool is full or the frame is larger than the segment
+			ret = UVC_ERROR_NO_MEM;
+			stats.frames_dropped++;
+		}
+	}
+
+	RETURN(ret, int);
+}
+
+/**
+ * discard all spooled frames, this should be called while the pipeline is not running
+ */
+/*public*/
+void SpoolBufferedPipeline::clear() {
+	ENTER();
+
+	if (LIKELY(!isRunning())) {
+		Mutex::Autolock lock(handler_mutex);
+		for (auto iter = segments.begin(); iter != segments.end(); iter++) {
+			close_segment(*iter, true);
+		}
+		segments.clear();
+		index.clear();
+	} else {
+		LOGW("can not clear while running");
+	}
+
+	EXIT();
+}
+
+/*public*/
+void SpoolBufferedPipeline::getStats(spool_stats_t &result) {
+	ENTER();
+
+	Mutex::Autolock lock(handler_mutex);
+	result = stats;
+	result.segments = (uint32_t)segments.size();
+
+	EXIT();
+}
+
+/*protected*/
+int SpoolBufferedPipeline::delete_older(const nsecs_t &dtime) {
+	ENTER();
+
+	int result = 0;
+	Mutex::Autolock lock(handler_mutex);
+	for (; !index.empty() && (index.front().dtime < dtime); ) {
+		const spool_index_t &entry = index.front();
+		consume(entry, find_segment(entry.segment_seq));
+		index.pop_front();
+		stats.frames_expired++;
+		result++;
+	}
+	if (result) {
+		remove_unused_segments();
+	}
+
+	RETURN(result, int);
+}
+
+/*protected*/
+int SpoolBufferedPipeline::purge_older(const nsecs_t &limit_rel_nsec) {
+	ENTER();
+
+	int result = -1;
+
+	if (LIKELY(limit_rel_nsec)) {
+		// dtime is stored as wall clock micro seconds
+		result = delete_older(current_dtime() - ns2us(limit_rel_nsec));
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * rebuild the index from existing segment files.
+ * records are scanned until the first record without valid magic/check sum,
+ * so the partial record that was written while crashing is discarded
+ * and following frames are written over it.
+ * a record whose payload does not match data_check is skipped.
+ */
+/*private*/
+void SpoolBufferedPipeline::recover() {
+	ENTER();
+
+	std::vector<uint32_t> seqs;
+	DIR *dir = opendir(dir_path.c_str());
+	if (LIKELY(dir)) {
+		struct dirent *entry;
+		for (; (entry = readdir(dir)) != NULL; ) {
+			uint32_t seq;
+			char name[64];
+			if ((sscanf(entry->d_name, "spool-%08u.seg", &seq) == 1)) {
+				snprintf(name, sizeof(name), SEGMENT_NAME_FORMAT, seq);
+				if (!strcmp(name, entry->d_name)) {
+					seqs.push_back(seq);
+				}
+			}
+		}
+		closedir(dir);
+	}
+	std::sort(seqs.begin(), seqs.end());
+
+	Mutex::Autolock lock(handler_mutex);
+	for (auto iter = seqs.begin(); iter != seqs.end(); iter++) {
+		next_seq = *iter + 1;
+		spool_segment_t *segment = open_segment(*iter, false);
+		if (UNLIKELY(!segment)) continue;
+		size_t offset = SEGMENT_HEADER_SZ;
+		for (; offset + sizeof(spool_record_header_t) <= segment->size; ) {
+			const spool_record_header_t *header = (const spool_record_header_t *)(segment->base + offset);
+			if ((header->magic != RECORD_MAGIC)
+				|| (header->data_bytes > segment->size - offset - sizeof(spool_record_header_t))
+				|| (header->check != record_check(header))) {
+				break;
+			}
+			if (!(header->flags & SPOOL_RECORD_FLAG_CONSUMED)) {
+				if (UNLIKELY(header->data_check != data_check(header + 1, header->data_bytes))) {
+					// the header is valid but the payload was not written to the storage completely,
+					// skip only this record because following records are still reachable
+					LOGW("broken payload:seq=%u,offset=%u", segment->seq, (uint32_t)offset);
+					((spool_record_header_t *)header)->flags |= SPOOL_RECORD_FLAG_CONSUMED;
+					stats.frames_dropped++;
+					offset += record_size(header->data_bytes);
+					continue;
+				}
+				spool_index_t entry = {
+					header->dtime, header->format, header->data_bytes, segment->seq, (uint32_t)offset,
+				};
+				index.push_back(entry);
+				segment->live_records++;
+				stats.frames_recovered++;
+			}
+			offset += record_size(header->data_bytes);
+		}
+		segment->write_offset = segment->synced_offset = offset;
+		if (offset + sizeof(spool_record_header_t) <= segment->size) {
+			((spool_record_header_t *)(segment->base + offset))->magic = 0;
+		}
+		segments.push_back(segment);
+	}
+	remove_unused_segments();
+	LOGI("recovered %d frames in %d segments", (int)index.size(), (int)segments.size());
+
+	EXIT();
+}
+
+/*private*/
+spool_segment_t *SpoolBufferedPipeline::open_segment(const uint32_t &seq, const bool &create) {
+	ENTER();
+
+	char name[64];
+	snprintf(name, sizeof(name), "/" SEGMENT_NAME_FORMAT, seq);
+	const std::string path = dir_path + name;
+	spool_segment_t *result = NULL;
+	int fd = open(path.c_str(), create ? O_RDWR | O_CREAT | O_TRUNC : O_RDWR, 0600);
+	if (LIKELY(fd >= 0)) {
+		struct stat st;
+		size_t size = segment_sz;
+		if (create) {
+			if (UNLIKELY(ftruncate(fd, segment_sz))) {
+				LOGW("ftruncate failed:%s", path.c_str());
+				size = 0;
+			}
+		} else {
+			size = fstat(fd, &st) ? 0 : (size_t)st.st_size;
+		}
+		if (LIKELY(size > SEGMENT_HEADER_SZ)) {
+			uint8_t *base = (uint8_t *)mmap(NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+			if (LIKELY(base != MAP_FAILED)) {
+				spool_segment_header_t *header = (spool_segment_header_t *)base;
+				if (create) {
+					header->version = SEGMENT_VERSION;
+					header->seq = seq;
+					header->segment_size = (uint32_t)size;
+					header->magic = SEGMENT_MAGIC;
+				}
+				if (LIKELY((header->magic == SEGMENT_MAGIC) && (header->version == SEGMENT_VERSION))) {
+					result = new spool_segment_t;
+					result->seq = seq;
+					result->base = base;
+					result->size = size;
+					result->write_offset = result->synced_offset = SEGMENT_HEADER_SZ;
+					result->live_records = 0;
+					result->path = path;
+				} else {
+					munmap(base, size);
+				}
+			} else {
+				LOGW("mmap failed:%s", path.c_str());
+			}
+		}
+		close(fd);
+	}
+	if (UNLIKELY(!result)) {
+		LOGW("failed to open segment:%s", path.c_str());
+		unlink(path.c_str());
+	}
+
+	RETURN(result, spool_segment_t *);
+}
+
+/*private*/
+void SpoolBufferedPipeline::close_segment(spool_segment_t *segment, const bool &remove_file) {
+	ENTER();
+
+	if (LIKELY(segment)) {
+		if (!remove_file) {
+			msync(segment->base, segment->size, MS_ASYNC);
+		}
+		munmap(segment->base, segment->size);
+		if (remove_file) {
+			unlink(segment->path.c_str());
+		}
+		delete segment;
+	}
+
+	EXIT();
+}
+
+/*private*/
+spool_segment_t *SpoolBufferedPipeline::find_segment(const uint32_t &seq) {
+	for (auto iter = segments.begin(); iter != segments.end(); iter++) {
+		if ((*iter)->seq == seq) {
+			return *iter;
+		}
+	}
+	return NULL;
+}
+
+/**
+ * return the segment that has enough space for the record, open new segment if required
+ * handler_mutex should be locked
+ * @return NULL if spool is full
+ */
+/*private*/
+spool_segment_t *SpoolBufferedPipeline::writable_segment(const size_t &record_bytes) {
+	spool_segment_t *result = segments.empty() ? NULL : segments.back();
+	if (UNLIKELY(!result || (result->write_offset + record_bytes > result->size))) {
+		if (result) {
+			// the segment is full, write back rest of its records
+			sync_segment(result);
+		}
+		result = NULL;
+		if (record_bytes <= segment_sz - SEGMENT_HEADER_SZ) {
+			// remove the current segment if all records in it are already consumed
+			remove_unused_segments();
+			if (segments.size() < max_segments) {
+				result = open_segment(next_seq++, true);
+				if (LIKELY(result)) {
+					if (!segments.empty() && !segments.back()->live_records) {
+						close_segment(segments.back(), true);
+						segments.pop_back();
+					}
+					segments.push_back(result);
+				}
+			}
+		}
+	}
+	return result;
+}
+
+/**
+ * mark the record as consumed so that it is not replayed after recovery
+ * handler_mutex should be locked
+ */
+/*private*/
+void SpoolBufferedPipeline::consume(const spool_index_t &entry, spool_segment_t *segment) {
+	if (LIKELY(segment)) {
+		spool_record_header_t *header = (spool_record_header_t *)(segment->base + entry.offset);
+		header->flags |= SPOOL_RECORD_FLAG_CONSUMED;
+		if (LIKELY(segment->live_records)) {
+			segment->live_records--;
+		}
+	}
+}
+
+/**
+ * remove segments whose records are all consumed except the segment for writing
+ * handler_mutex should be locked
+ */
+/*private*/
+void SpoolBufferedPipeline::remove_unused_segments() {
+	for (auto iter = segments.begin(); iter != segments.end(); ) {
+		spool_segment_t *segment = *iter;
+		if (!segment->live_records && (segment != segments.back())) {
+			close_segment(segment, true);
+			iter = segments.erase(iter);
+		} else {
+			iter++;
+		}
+	}
+}
+
+/**
+ * start writing back records that were appended after the last call, this does not wait for the storage
+ * handler_mutex should be locked
+ */
+/*private*/
+void SpoolBufferedPipeline::sync_segment(spool_segment_t *segment) {
+	if (segment->write_offset > segment->synced_offset) {
+		// msync requires page aligned address
+		const size_t page_mask = (size_t)sysconf(_SC_PAGESIZE) - 1;
+		const size_t start = segment->synced_offset & ~page_mask;
+		if (UNLIKELY(msync(segment->base + start, segment->write_offset - start, MS_ASYNC))) {
+			LOGW("msync failed:seq=%u", segment->seq);
+		}
+		segment->synced_offset = segment->write_offset;
+	}
+}
+
+/**
+ * start writing back all segments including consumed flags of records
+ * handler_mutex should be locked
+ */
+/*private*/
+void SpoolBufferedPipeline::sync_segments() {
+	for (auto iter = segments.begin(); iter != segments.end(); iter++) {
+		spool_segment_t *segment = *iter;
+		msync(segment->base, segment->write_offset, MS_ASYNC);
+		segment->synced_offset = segment->write_offset;
+	}
+}
+
+/*private*/
+void *SpoolBufferedPipeline::handler_thread_func(void *vptr_args) {
+
+	ENTER();
+	SpoolBufferedPipeline *pipeline = reinterpret_cast<SpoolBufferedPipeline *>(vptr_args);
+	if (LIKELY(pipeline)) {
+		pipeline->do_loop();
+	}
+	PRE_EXIT();
+	pthread_exit(NULL);
+}
+
+/**
+ * replay spooled frames into the next pipeline in the order of arrival.
+ * frame data is passed directly from the mapped segment without copying,
+ * the record is kept until the next pipeline accepts it.
+ */
+/*private*/
+void SpoolBufferedPipeline::do_loop() {
+	ENTER();
+
+	uvc_frame_t frame;
+	memset(&frame, 0, sizeof(frame));
+	setState(PIPELINE_STATE_RUNNING);
+	nsecs_t prev_time = systemTime();
+	bool rejected = false;
+	for (; LIKELY(isRunning()); ) {
+		spool_index_t entry;
+		spool_segment_t *segment = NULL;
+		handler_mutex.lock();
+		{
+			if (rejected || index.empty() || !next_pipeline) {
+				handler_sync.waitRelative(handler_mutex,
+					rejected ? RETRY_INTERVAL_NSEC : WAIT_INTERVAL_NSEC);
+			}
+			if (LIKELY(isRunning() && next_pipeline && !index.empty())) {
+				entry = index.front();
+				segment = find_segment(entry.segment_seq);
+				if (UNLIKELY(!segment)) {
+					index.pop_front();
+				}
+			}
+		}
+		handler_mutex.unlock();
+
+		rejected = false;
+		if (LIKELY(segment)) {
+			// records in this segment are never unmapped until the record is consumed
+			const spool_record_header_t *header = (const spool_record_header_t *)(segment->base + entry.offset);
+			frame.data = (void *)(header + 1);
+			frame.data_bytes = frame.actual_bytes = header->data_bytes;
+			frame.width = header->width;
+			frame.height = header->height;
+			frame.frame_format = (uvc_frame_format)header->format;
+			frame.sequence = header->sequence;
+			frame.capture_time.tv_sec = header->dtime / 1000000LL;
+			frame.capture_time.tv_usec = header->dtime % 1000000LL;
+			frame.library_owns_data = 0;
+			if (LIKELY(!chain_frame(&frame))) {
+				Mutex::Autolock lock(handler_mutex);
+				consume(entry, segment);
+				index.pop_front();
+				stats.frames_read++;
+				stats.bytes_read += entry.data_bytes;
+				if (!segment->live_records) {
+					remove_unused_segments();
+				}
+			} else {
+				// next pipeline is full, retry later
+				rejected = true;
+			}
+		}
+		if (UNLIKELY(systemTime() > prev_time + CHECK_INTERVAL_NSEC)) {
+			prev_time = systemTime();
+			purge_older(retention_nsec);
+			Mutex::Autolock lock(handler_mutex);
+			sync_segments();
+		}
+	}
+	setState(PIPELINE_STATE_INITIALIZED);
+	mIsRunning = false;
+
+	EXIT();
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz,
+	jstring dir_path_str, jint segment_size, jint max_segments, jlong retention_ms) {
+
+	ENTER();
+
+	const char *c_dir_path = env->GetStringUTFChars(dir_path_str, JNI_FALSE);
+	SpoolBufferedPipeline *pipeline = new SpoolBufferedPipeline(c_dir_path,
+		segment_size > 0 ? segment_size : DEFAULT_SPOOL_SEGMENT_SZ,
+		max_segments > 0 ? max_segments : DEFAULT_SPOOL_MAX_SEGMENTS,
+		retention_ms >= 0 ? ms2ns(retention_ms) : DEFAULT_SPOOL_RETENTION_NSEC);
+	env->ReleaseStringUTFChars(dir_path_str, c_dir_path);
+
+	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
+	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
+}
+
+static void nativeDestroy(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	setField_long(env, thiz, "mNativePtr", 0);
+	SpoolBufferedPipeline *pipeline = reinterpret_cast<SpoolBufferedPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		pipeline->release();
+		SAFE_DELETE(pipeline);
+	}
+	EXIT();
+}
+
+static jint nativeClear(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	SpoolBufferedPipeline *pipeline = reinterpret_cast<SpoolBufferedPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		pipeline->clear();
+		result = 0;
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeGetStats(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline, jlongArray values) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	SpoolBufferedPipeline *pipeline = reinterpret_cast<SpoolBufferedPipeline *>(id_pipeline);
+	if (LIKELY(pipeline && values) && (env->GetArrayLength(values) >= SPOOL_STATS_NUM)) {
+		spool_stats_t stats;
+		pipeline->getStats(stats);
+		const jlong v[SPOOL_STATS_NUM] = {
+			(jlong)stats.frames_written, (jlong)stats.bytes_written,
+			(jlong)stats.frames_read, (jlong)stats.bytes_read,
+			(jlong)stats.frames_dropped, (jlong)stats.frames_expired,
+			(jlong)stats.frames_recovered, stats.segments,
+		};
+		env->SetLongArrayRegion(values, 0, SPOOL_STATS_NUM, v);
+		result = 0;
+	}
+	RETURN(result, jint);
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+static JNINativeMethod methods[] = {
+	{ "nativeCreate",					"(Ljava/lang/String;IIJ)J", (void *) nativeCreate },
+	{ "nativeDestroy",					"(J)V", (void *) nativeDestroy },
+
+	{ "nativeClear",					"(J)I", (void *) nativeClear },
+	{ "nativeGetStats",					"(J[J)I", (void *) nativeGetStats },
+};
+
+int register_spool_buffered_pipeline(JNIEnv *env) {
+	LOGV("register_spool_buffered_pipeline:");
+	if (registerNativeMethods(env,
+		"com/serenegiant/usb/SpoolBufferedPipeline",
+		methods, NUM_ARRAY_ELEMENTS(methods)) < 0) {
+		return -1;
+	}
+    return 0;
+}
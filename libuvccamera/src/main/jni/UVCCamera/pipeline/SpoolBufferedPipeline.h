@@ -0,0 +1,170 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: SpoolBufferedPipeline.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef SPOOLBUFFEREDPIPELINE_H_
+#define SPOOLBUFFEREDPIPELINE_H_
+
+#include <stdlib.h>
+#include <pthread.h>
+#include <list>
+#include <deque>
+#include <string>
+#include "Mutex.h"
+#include "Condition.h"
+
+#include "libUVCCamera.h"
+#include "Timers.h"
+#include "IPipeline.h"
+
+#pragma interface
+
+using namespace android;
+
+// all segments are mapped at the same time, keep the default small for 32bit address space
+#define DEFAULT_SPOOL_SEGMENT_SZ (4 * 1024 * 1024)	// 4MB
+#define DEFAULT_SPOOL_MAX_SEGMENTS 4
+// upper limit of segment_size x max_segments, max_segments is reduced to fit in this
+#define MAX_SPOOL_MAPPED_SZ (sizeof(void *) > 4 ? (size_t)1024 * 1024 * 1024 : (size_t)128 * 1024 * 1024)
+#define DEFAULT_SPOOL_RETENTION_NSEC 30000000000LL	// 30sec
+// appended records are passed to msync(MS_ASYNC) every this bytes
+#define SPOOL_SYNC_BYTES (256 * 1024)
+
+/**
+ * header at the beginning of each record in the segment file.
+ * magic is written after all other fields and the payload,
+ * so a record without valid magic is a partial record that was written while crashing.
+ */
+typedef struct spool_record_header {
+	volatile uint32_t magic;
+	volatile uint32_t flags;		// SPOOL_RECORD_FLAG_XXX
+	int64_t dtime;					// arrival time as wall clock micro seconds, same as SQLiteBufferedPipeline
+	uint32_t format;
+	uint32_t width;
+	uint32_t height;
+	uint32_t sequence;
+	uint32_t data_bytes;
+	uint32_t data_check;			// adler32 of the payload
+	uint32_t check;					// check sum of above fields except magic and flags
+} spool_record_header_t;
+
+/** compact in-memory index of unconsumed records, rebuilt from segment files on recovery */
+typedef struct spool_index {
+	int64_t dtime;
+	uint32_t format;
+	uint32_t data_bytes;
+	uint32_t segment_seq;
+	uint32_t offset;				// offset of spool_record_header in the segment
+} spool_index_t;
+
+typedef struct spool_segment {
+	uint32_t seq;
+	uint8_t *base;					// mmapped address of whole segment file
+	size_t size;
+	size_t write_offset;
+	size_t synced_offset;			// records before this offset were passed to msync
+	uint32_t live_records;			// number of records that are not consumed/expired yet
+	std::string path;
+} spool_segment_t;
+
+typedef struct spool_stats {
+	uint64_t frames_written;
+	uint64_t bytes_written;
+	uint64_t frames_read;
+	uint64_t bytes_read;
+	uint64_t frames_dropped;
+	uint64_t frames_expired;
+	uint64_t frames_recovered;
+	uint32_t segments;
+} spool_stats_t;
+
+#define SPOOL_STATS_NUM 8
+
+/**
+ * store-and-forward buffer that appends frames to fixed-size memory mapped segment files
+ * and replays them into the next pipeline without intermediate copy.
+ * A record survives a crash of this process as soon as #queueFrame returns,
+ * because the kernel keeps dirty pages of the shared mapping and writes them back.
+ * On power loss or kernel crash, only records that were already written back survive.
+ * msync(MS_ASYNC) is issued every SPOOL_SYNC_BYTES of appended records and periodically
+ * to start writing back early, it does not wait for the storage.
+ * Records whose payload did not reach the storage are skipped on recovery,
+ * consumed flags may be lost too and such frames are replayed again.
+ */
+class SpoolBufferedPipeline : virtual public IPipeline {
+private:
+	const std::string dir_path;
+	const size_t segment_sz;
+	const uint32_t max_segments;
+	const nsecs_t retention_nsec;
+	uint32_t next_seq;
+	std::list<spool_segment_t *> segments;	// ordered from oldest to newest, last one is for writing
+	std::deque<spool_index_t> index;		// ordered from oldest to newest
+	spool_stats_t stats;
+
+	pthread_t handler_thread;
+	mutable Mutex handler_mutex;
+	Condition handler_sync;
+	static void *handler_thread_func(void *vptr_args);
+	void do_loop();
+	void recover();
+	spool_segment_t *open_segment(const uint32_t &seq, const bool &create);
+	void close_segment(spool_segment_t *segment, const bool &remove_file);
+	spool_segment_t *find_segment(const uint32_t &seq);
+	spool_segment_t *writable_segment(const size_t &record_bytes);
+	void consume(const spool_index_t &entry, spool_segment_t *segment);
+	void remove_unused_segments();
+	void sync_segment(spool_segment_t *segment);
+	void sync_segments();
+protected:
+	/**
+	 * mark record(s) older than specific dtime as consumed and remove segments that become empty
+	 * @param dtime micro seconds
+	 */
+	int delete_older(const nsecs_t &dtime);
+	/** helper of delete_older */
+	int purge_older(const nsecs_t &limit_rel_nsec);
+public:
+	/**
+	 * @param dir_path directory to place segment files, unconsumed frames in this directory are recovered
+	 * @param segment_size size of each segment file, a frame larger than this can not be spooled
+	 * @param max_segments maximum number of segment files, new frames are dropped while spool is full.
+	 * 			this is reduced so that all segments fit in MAX_SPOOL_MAPPED_SZ
+	 * @param retention_nsec frames older than this are discarded, 0 means never
+	 */
+	SpoolBufferedPipeline(const char *dir_path,
+		const size_t &segment_size = DEFAULT_SPOOL_SEGMENT_SZ,
+		const int &max_segments = DEFAULT_SPOOL_MAX_SEGMENTS,
+		const nsecs_t &retention_nsec = DEFAULT_SPOOL_RETENTION_NSEC);
+	virtual ~SpoolBufferedPipeline();
+	virtual int release();
+	virtual int start();
+	virtual int stop();
+	virtual int queueFrame(uvc_frame_t *frame);
+	// frame data is always written into the segment file
+	virtual int queueSharedFrame(SharedFrame *frame) { return IPipeline::queueSharedFrame(frame); };
+	virtual void clear();
+	void getStats(spool_stats_t &result);
+};
+
+#endif /* SPOOLBUFFEREDPIPELINE_H_ */
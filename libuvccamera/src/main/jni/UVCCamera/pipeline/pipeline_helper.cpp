@@ -5,32 +5,39 @@
 #include "utilbase.h"
 #include "Timers.h"
 #include "SimpleBufferedPipeline.h"
+#if defined(USE_SQLITE_PIPELINE)
 #include "SQLiteBufferedPipeline.h"
-#include "UVCCameraControl.h"
+#endif
+#include "SpoolBufferedPipeline.h"
 #include "CallbackPipeline.h"
 #include "ConvertPipeline.h"
 #include "PreviewPipeline.h"
+#if defined(USE_PUBLISHER_PIPELINE)
 #include "PublisherPipeline.h"
+#endif
 #include "DistributePipeline.h"
 #include "pipeline_helper.h"
 
-IPipeline *getPipeline(JNIEnv *env, jobject pipeline_obj) {
+/**
+ * cast native pointer to IPipeline according to the pipeline type,
+ * this is necessary because pipelines inherit IPipeline as virtual base class
+ */
+static IPipeline *toPipeline(const jint &type, const ID_TYPE &id_pipeline) {
 	ENTER();
 
-	if (!pipeline_obj) return NULL;
-	ID_TYPE id_pipeline = getField_long(env, pipeline_obj, "mNativePtr");
-	jint type = getField_int(env, pipeline_obj, "mType");
-	env->ExceptionClear();
 	IPipeline *result = NULL;
+	if (!id_pipeline) RETURN(result, IPipeline *);
 	switch (type) {
 		case PIPELINE_TYPE_SIMPLE_BUFFERED:
 			result = reinterpret_cast<SimpleBufferedPipeline *>(id_pipeline);
 			break;
+#if defined(USE_SQLITE_PIPELINE)
 		case PIPELINE_TYPE_SQLITE_BUFFERED:
 			result = reinterpret_cast<SQLiteBufferedPipeline *>(id_pipeline);
 			break;
-		case PIPELINE_TYPE_UVC_CONTROL:
-			result = reinterpret_cast<UVCCameraControl *>(id_pipeline);
+#endif
+		case PIPELINE_TYPE_SPOOL_BUFFERED:
+			result = reinterpret_cast<SpoolBufferedPipeline *>(id_pipeline);
 			break;
 		case PIPELINE_TYPE_CALLBACK:
 			result = reinterpret_cast<CallbackPipeline *>(id_pipeline);
@@ -41,9 +48,11 @@ IPipeline *getPipeline(JNIEnv *env, jobject pipeline_obj) {
 		case PIPELINE_TYPE_PREVIEW:
 			result = reinterpret_cast<PreviewPipeline *>(id_pipeline);
 			break;
+#if defined(USE_PUBLISHER_PIPELINE)
 		case PIPELINE_TYPE_PUBLISHER:
 			result = reinterpret_cast<PublisherPipeline *>(id_pipeline);
 			break;
+#endif
 		case PIPELINE_TYPE_DISTRIBUTE:
 			result = reinterpret_cast<DistributePipeline *>(id_pipeline);
 			break;
@@ -54,3 +63,95 @@ IPipeline *getPipeline(JNIEnv *env, jobject pipeline_obj) {
 
 	RETURN(result, IPipeline *);
 }
+
+IPipeline *getPipeline(JNIEnv *env, jobject pipeline_obj) {
+	ENTER();
+
+	if (!pipeline_obj) return NULL;
+	ID_TYPE id_pipeline = getField_long(env, pipeline_obj, "mNativePtr");
+	jint type = getField_int(env, pipeline_obj, "mType");
+	env->ExceptionClear();
+
+	RETURN(toPipeline(type, id_pipeline), IPipeline *);
+}
+
+//**********************************************************************
+// native methods of AbstractPipeline that are common to all pipeline types
+//**********************************************************************
+static IPipeline *getThisPipeline(JNIEnv *env, jobject thiz, ID_TYPE id_pipeline) {
+	jint type = getField_int(env, thiz, "mType");
+	env->ExceptionClear();
+	return toPipeline(type, id_pipeline);
+}
+
+static jint nativeGetState(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	jint result = 0;
+	IPipeline *pipeline = getThisPipeline(env, thiz, id_pipeline);
+	if (pipeline) {
+		result = pipeline->getState();
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline, jobject pipeline_obj) {
+
+	ENTER();
+	jint result = JNI_ERR;
+	IPipeline *pipeline = getThisPipeline(env, thiz, id_pipeline);
+	if (pipeline) {
+		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
+		result = pipeline->setPipeline(target_pipeline);
+	}
+
+	RETURN(result, jint);
+}
+
+static jint nativeStart(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+
+	int result = JNI_ERR;
+	IPipeline *pipeline = getThisPipeline(env, thiz, id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->start();
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeStop(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	IPipeline *pipeline = getThisPipeline(env, thiz, id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->stop();
+	}
+	RETURN(result, jint);
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+static JNINativeMethod methods[] = {
+	{ "nativeGetState",					"(J)I", (void *) nativeGetState },
+	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
+
+	{ "nativeStart",					"(J)I", (void *) nativeStart },
+	{ "nativeStop",						"(J)I", (void *) nativeStop },
+};
+
+int register_abstract_pipeline(JNIEnv *env) {
+	LOGV("register_abstract_pipeline:");
+	if (registerNativeMethods(env,
+		"com/serenegiant/usb/AbstractPipeline",
+		methods, NUM_ARRAY_ELEMENTS(methods)) < 0) {
+		return -1;
+	}
+	return 0;
+}
@@ -37,32 +37,9 @@
 #include <android/native_window_jni.h>
 
 #include "libUVCCamera.h"
+#include "common_utils.h"
 #include "UVCCamera.h"
-
-/**
- * set the value into the long field
- * @param env: this param should not be null
- * @param bullet_obj: this param should not be null
- * @param field_name
- * @params val
- */
-static jlong setField_long(JNIEnv *env, jobject java_obj, const char *field_name, jlong val) {
-#if LOCAL_DEBUG
-	LOGV("setField_long:");
-#endif
-
-	jclass clazz = env->GetObjectClass(java_obj);
-	jfieldID field = env->GetFieldID(clazz, field_name, "J");
-	if (LIKELY(field))
-		env->SetLongField(java_obj, field, val);
-	else {
-		LOGE("__setField_long:field '%s' not found", field_name);
-	}
-#ifdef ANDROID_NDK
-	env->DeleteLocalRef(clazz);
-#endif
-	return val;
-}
+#include "pipeline_helper.h"
 
 /**
  * @param env: this param should not be null
@@ -231,13 +208,15 @@ static jobject nativeGetSupportedSize(JNIEnv *env, jobject thiz,
 //======================================================================
 // プレビュー画面の大きさをセット
 static jint nativeSetPreviewSize(JNIEnv *env, jobject thiz,
-	ID_TYPE id_camera, jint width, jint height, jint min_fps, jint max_fps, jint mode, jfloat bandwidth) {
+	ID_TYPE id_camera, jint width, jint height, jint min_fps, jint max_fps, jint mode, jfloat bandwidth,
+	jint transfer_bufs, jint packets_per_transfer) {
 
 	ENTER();
 
 	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
 	if (LIKELY(camera)) {
-		return camera->setPreviewSize(width, height, min_fps, max_fps, mode, bandwidth);
+		return camera->setPreviewSize(width, height, min_fps, max_fps, mode, bandwidth,
+			transfer_bufs, packets_per_transfer);
 	}
 
 	RETURN(JNI_ERR, jint);
@@ -304,6 +283,89 @@ static jint nativeSetFrameCallback(JNIEnv *env, jobject thiz,
 	RETURN(result, jint);
 }
 
+static jint nativeSetPooledFrameCallback(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject jIPooledFrameCallback, jint pixel_format, jint buffer_num) {
+
+	jint result = JNI_ERR;
+
+	ENTER();
+
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		jobject frame_callback_obj = env->NewGlobalRef(jIPooledFrameCallback);
+		result = camera->setFrameCallback(env, frame_callback_obj, pixel_format,
+			jIPooledFrameCallback ? (buffer_num > 0 ? buffer_num : 1) : 0);
+	}
+
+	RETURN(result, jint);
+}
+
+static jint nativeSetDirectFrameCallback(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject jIDirectFrameCallback, jint pixel_format) {
+
+	jint result = JNI_ERR;
+
+	ENTER();
+
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		jobject frame_callback_obj = env->NewGlobalRef(jIDirectFrameCallback);
+		result = camera->setFrameCallback(env, frame_callback_obj, pixel_format,
+			jIDirectFrameCallback ? CALLBACK_BUFFER_DIRECT : 0);
+	}
+
+	RETURN(result, jint);
+}
+
+static jint nativeSetBatchFrameCallback(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject jIBatchFrameCallback, jint pixel_format, jint max_frames, jint window_ms) {
+
+	jint result = JNI_ERR;
+
+	ENTER();
+
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		jobject batch_callback_obj = jIBatchFrameCallback ? env->NewGlobalRef(jIBatchFrameCallback) : NULL;
+		result = camera->setBatchFrameCallback(env, batch_callback_obj, pixel_format, max_frames, window_ms);
+	}
+
+	RETURN(result, jint);
+}
+
+static jint nativeCaptureStill(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jstring path_str, jint format, jint quality, jobject jIStillCaptureCallback) {
+
+	jint result = JNI_ERR;
+
+	ENTER();
+
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && path_str)) {
+		jobject callback_obj = jIStillCaptureCallback ? env->NewGlobalRef(jIStillCaptureCallback) : NULL;
+		const char *c_path = env->GetStringUTFChars(path_str, JNI_FALSE);
+		result = camera->captureStill(env, callback_obj, c_path, format, quality);
+		env->ReleaseStringUTFChars(path_str, c_path);
+	}
+
+	RETURN(result, jint);
+}
+
+static jbyteArray nativeCaptureRawFrame(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint pixel_format, jint timeout_ms) {
+
+	jbyteArray result = NULL;
+
+	ENTER();
+
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->captureRawFrame(env, pixel_format, timeout_ms);
+	}
+
+	RETURN(result, jbyteArray);
+}
+
 static jint nativeSetCaptureDisplay(JNIEnv *env, jobject thiz,
 	ID_TYPE id_camera, jobject jSurface) {
 
@@ -317,6 +379,153 @@ static jint nativeSetCaptureDisplay(JNIEnv *env, jobject thiz,
 	RETURN(result, jint);
 }
 
+static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject pipeline_obj) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		IPipeline *pipeline = getPipeline(env, pipeline_obj);
+		result = camera->setPipeline(pipeline);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetBufferPolicy(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint queue_depth, jint pool_size, jboolean preallocate) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setBufferPolicy(queue_depth, pool_size, preallocate);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetQueuePolicy(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint consumer, jint policy, jint queue_depth, jint timeout_ms) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setQueuePolicy(consumer, policy, queue_depth, timeout_ms);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetConvertThreads(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint thread_num) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setConvertThreads(thread_num);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeUpdateBufferStats(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		uint32_t pool_miss, pool_overflow, queue_drop;
+		result = camera->getBufferStats(pool_miss, pool_overflow, queue_drop);
+		if (!result) {
+			setField_int(env, thiz, "mPoolMissCount", pool_miss);
+			setField_int(env, thiz, "mPoolOverflowCount", pool_overflow);
+			setField_int(env, thiz, "mQueueDropCount", queue_drop);
+		}
+	}
+	RETURN(result, jint);
+}
+
+// number of values and their order should be same as StreamStats.java
+#define STREAM_STATS_NUM 15
+
+static jint nativeGetStreamStats(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jlongArray values) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && values) && (env->GetArrayLength(values) >= STREAM_STATS_NUM)) {
+		uvc_stream_stats_t stats;
+		uint32_t broken_frames, queue_drop;
+		result = camera->getStreamStats(&stats, broken_frames, queue_drop);
+		if (!result) {
+			const jlong v[STREAM_STATS_NUM] = {
+				stats.transfers_completed, stats.transfers_failed,
+				stats.iso_packet_errors, stats.header_errors, stats.bogus_headers,
+				(jlong)stats.bytes, stats.bytes_per_second,
+				stats.frames_assembled, stats.frames_incomplete, stats.frames_overwritten,
+				stats.frame_interval_us, stats.frame_jitter_us, stats.num_transfers,
+				broken_frames, queue_drop,
+			};
+			env->SetLongArrayRegion(values, 0, STREAM_STATS_NUM, v);
+		}
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetLatencyTrace(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jboolean enabled) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setLatencyTrace(enabled);
+	}
+	RETURN(result, jint);
+}
+
+// count, min, avg, max, p50, p95, p99 and buckets, the order should be same as LatencyHistogram.java
+#define LATENCY_HISTOGRAM_NUM (7 + LATENCY_HISTOGRAM_BUCKETS)
+
+static jint nativeGetLatencyHistogram(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint stage, jlongArray values) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && values) && (env->GetArrayLength(values) >= LATENCY_HISTOGRAM_NUM)) {
+		latency_histogram_t histogram;
+		result = camera->getLatencyHistogram(stage, histogram);
+		if (!result) {
+			jlong v[LATENCY_HISTOGRAM_NUM] = {
+				histogram.count, histogram.min_us, histogram.avg_us, histogram.max_us,
+				histogram.p50_us, histogram.p95_us, histogram.p99_us,
+			};
+			for (int i = 0; i < LATENCY_HISTOGRAM_BUCKETS; i++) {
+				v[7 + i] = histogram.buckets[i];
+			}
+			env->SetLongArrayRegion(values, 0, LATENCY_HISTOGRAM_NUM, v);
+		}
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeDumpLatencyTrace(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jstring path_str) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && path_str)) {
+		const char *c_path = env->GetStringUTFChars(path_str, JNI_FALSE);
+		result = camera->dumpLatencyTrace(c_path);
+		env->ReleaseStringUTFChars(path_str, c_path);
+	}
+	RETURN(result, jint);
+}
+
 //======================================================================
 // カメラコントロールでサポートしている機能を取得する
 static jlong nativeGetCtrlSupports(JNIEnv *env, jobject thiz,
@@ -2051,13 +2260,27 @@ static JNINativeMethod methods[] = {
 	{ "nativeSetButtonCallback",		"(JLcom/serenegiant/usb/IButtonCallback;)I", (void *) nativeSetButtonCallback },
 
 	{ "nativeGetSupportedSize",			"(J)Ljava/lang/String;", (void *) nativeGetSupportedSize },
-	{ "nativeSetPreviewSize",			"(JIIIIIF)I", (void *) nativeSetPreviewSize },
+	{ "nativeSetPreviewSize",			"(JIIIIIFII)I", (void *) nativeSetPreviewSize },
 	{ "nativeStartPreview",				"(J)I", (void *) nativeStartPreview },
 	{ "nativeStopPreview",				"(J)I", (void *) nativeStopPreview },
 	{ "nativeSetPreviewDisplay",		"(JLandroid/view/Surface;)I", (void *) nativeSetPreviewDisplay },
 	{ "nativeSetFrameCallback",			"(JLcom/serenegiant/usb/IFrameCallback;I)I", (void *) nativeSetFrameCallback },
+	{ "nativeSetPooledFrameCallback",	"(JLcom/serenegiant/usb/IPooledFrameCallback;II)I", (void *) nativeSetPooledFrameCallback },
+	{ "nativeSetDirectFrameCallback",	"(JLcom/serenegiant/usb/IDirectFrameCallback;I)I", (void *) nativeSetDirectFrameCallback },
+	{ "nativeSetBatchFrameCallback",	"(JLcom/serenegiant/usb/IBatchFrameCallback;III)I", (void *) nativeSetBatchFrameCallback },
+	{ "nativeCaptureRawFrame",			"(JII)[B", (void *) nativeCaptureRawFrame },
+	{ "nativeCaptureStill",				"(JLjava/lang/String;IILcom/serenegiant/usb/IStillCaptureCallback;)I", (void *) nativeCaptureStill },
 
 	{ "nativeSetCaptureDisplay",		"(JLandroid/view/Surface;)I", (void *) nativeSetCaptureDisplay },
+	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
+	{ "nativeSetBufferPolicy",			"(JIIZ)I", (void *) nativeSetBufferPolicy },
+	{ "nativeSetQueuePolicy",			"(JIIII)I", (void *) nativeSetQueuePolicy },
+	{ "nativeSetConvertThreads",		"(JI)I", (void *) nativeSetConvertThreads },
+	{ "nativeUpdateBufferStats",		"(J)I", (void *) nativeUpdateBufferStats },
+	{ "nativeGetStreamStats",			"(J[J)I", (void *) nativeGetStreamStats },
+	{ "nativeSetLatencyTrace",			"(JZ)I", (void *) nativeSetLatencyTrace },
+	{ "nativeGetLatencyHistogram",		"(JI[J)I", (void *) nativeGetLatencyHistogram },
+	{ "nativeDumpLatencyTrace",			"(JLjava/lang/String;)I", (void *) nativeDumpLatencyTrace },
 
 	{ "nativeGetCtrlSupports",			"(J)J", (void *) nativeGetCtrlSupports },
 	{ "nativeGetProcSupports",			"(J)J", (void *) nativeGetProcSupports },
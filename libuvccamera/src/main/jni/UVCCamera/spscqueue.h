@@ -0,0 +1,101 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: spscqueue.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef SPSCQUEUE_H_
+#define SPSCQUEUE_H_
+
+#include <stdint.h>
+#include "utilbase.h"
+
+/**
+ * bounded lock free queue for single producer and single consumer.
+ * #put must be called only from one thread and #take only from one other thread.
+ * capacity is rounded up to power of 2.
+ * this class does not block the caller, if you need to wait for new element,
+ * you need to combine this with mutex/condition variable on the slow path.
+ */
+template <class T>
+class SpscQueue {
+private:
+	T *m_elements;
+	uint32_t m_mask;
+	volatile uint32_t m_head;	// index to take next, only consumer writes this
+	volatile uint32_t m_tail;	// index to put next, only producer writes this
+	// force inhibiting copy/assignment
+	SpscQueue(const SpscQueue &src);
+	void operator =(const SpscQueue &src);
+	static uint32_t round_up(uint32_t v) {
+		uint32_t n = 1;
+		for ( ; n < v; n <<= 1) {}
+		return n;
+	}
+public:
+	SpscQueue(const uint32_t &capacity)
+		: m_elements(new T[round_up(capacity)]),
+		  m_mask(round_up(capacity) - 1),
+		  m_head(0),
+		  m_tail(0) {
+	}
+
+	~SpscQueue() { SAFE_DELETE_ARRAY(m_elements); }
+
+	inline uint32_t capacity() const { return m_mask + 1; }
+	/**
+	 * this is just a snapshot when it is called from other than producer/consumer thread
+	 */
+	inline uint32_t size() const {
+		return __atomic_load_n(&m_tail, __ATOMIC_ACQUIRE) - __atomic_load_n(&m_head, __ATOMIC_ACQUIRE);
+	}
+	inline bool isEmpty() const { return !size(); }
+	/**
+	 * add the object at the tail, call only from the producer thread
+	 * @return false if the queue is full
+	 */
+	bool put(T object) {
+		const uint32_t tail = m_tail;
+		if (UNLIKELY(tail - __atomic_load_n(&m_head, __ATOMIC_ACQUIRE) > m_mask)) {
+			return false;
+		}
+		m_elements[tail & m_mask] = object;
+		// publish the element after it is written
+		__atomic_store_n(&m_tail, tail + 1, __ATOMIC_RELEASE);
+		return true;
+	}
+	/**
+	 * remove and return the object at the head, call only from the consumer thread
+	 * @return NULL if the queue is empty
+	 */
+	T take() {
+		const uint32_t head = m_head;
+		if (head == __atomic_load_n(&m_tail, __ATOMIC_ACQUIRE)) {
+			return NULL;
+		}
+		T obj = m_elements[head & m_mask];
+		// release the slot after it is read
+		__atomic_store_n(&m_head, head + 1, __ATOMIC_RELEASE);
+		return obj;
+	}
+};
+
+#endif	// SPSCQUEUE_H_
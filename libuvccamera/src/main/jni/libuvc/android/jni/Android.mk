@@ -70,6 +70,21 @@ LOCAL_SRC_FILES := \
 	src/init.c \
 	src/stream.c
 
+# SIMD kernels for pixel format conversion, selected at runtime in frame.c
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+LOCAL_CFLAGS += -DHAVE_NEON
+LOCAL_SRC_FILES += src/frame-neon.c.neon
+LOCAL_STATIC_LIBRARIES += cpufeatures
+endif
+ifeq ($(TARGET_ARCH_ABI),arm64-v8a)
+LOCAL_CFLAGS += -DHAVE_NEON
+LOCAL_SRC_FILES += src/frame-neon.c
+endif
+ifneq ($(filter x86 x86_64,$(TARGET_ARCH_ABI)),)
+LOCAL_CFLAGS += -DHAVE_SSE2
+LOCAL_SRC_FILES += src/frame-sse2.c
+endif
+
 LOCAL_MODULE := libuvc_static
 include $(BUILD_STATIC_LIBRARY)
 
@@ -85,3 +100,5 @@ LOCAL_DISABLE_FATAL_LINKER_WARNINGS := true
 
 LOCAL_MODULE := uvc
 include $(BUILD_SHARED_LIBRARY)
+
+$(call import-module,android/cpufeatures)
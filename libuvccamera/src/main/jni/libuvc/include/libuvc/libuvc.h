@@ -482,6 +482,13 @@ typedef struct uvc_frame {
 	 * Set this field to zero if you are supplying the buffer.
 	 */
 	uint8_t library_owns_data;
+	/** XXX monotonic time in micro seconds when the first payload of this frame was received */
+	uint64_t payload_time_us;
+	/** XXX monotonic time in micro seconds when this frame was assembled */
+	uint64_t complete_time_us;
+	/** XXX estimated monotonic time in micro seconds when the device captured this frame,
+	 * translated from PTS/SCR of payload headers, or payload_time_us if the device does not send them */
+	uint64_t presentation_time_us;
 } uvc_frame_t;
 
 /** A callback function to handle incoming assembled UVC frames
@@ -489,6 +496,47 @@ typedef struct uvc_frame {
  */
 typedef void(uvc_frame_callback_t)(struct uvc_frame *frame, void *user_ptr);
 
+/** A callback function to obtain a frame that incoming payloads are assembled into,
+ * see uvc_set_frame_pool
+ * @ingroup streaming
+ */
+typedef uvc_frame_t *(uvc_frame_obtain_t)(size_t data_bytes, void *user_ptr);
+
+/** A callback function to return a frame obtained with uvc_frame_obtain_t
+ * that was not passed to the user callback function
+ * @ingroup streaming
+ */
+typedef void(uvc_frame_recycle_t)(uvc_frame_t *frame, void *user_ptr);
+
+/** Statistics of a stream since it started, see uvc_get_stream_stats
+ * @ingroup streaming
+ */
+typedef struct uvc_stream_stats {
+	uint32_t transfers_completed;
+	/** transfers finished with error, timeout, stall or overflow */
+	uint32_t transfers_failed;
+	/** isochronous packets with error status */
+	uint32_t iso_packet_errors;
+	/** payload headers with UVC_STREAM_ERR bit */
+	uint32_t header_errors;
+	/** payloads shorter than their header length */
+	uint32_t bogus_headers;
+	/** received payload bytes including headers */
+	uint64_t bytes;
+	/** throughput during the last second */
+	uint32_t bytes_per_second;
+	uint32_t frames_assembled;
+	/** frames with error or shorter than the size of uncompressed format, these are not usable */
+	uint32_t frames_incomplete;
+	/** frames dropped because the consumer had not taken previous frame yet */
+	uint32_t frames_overwritten;
+	/** smoothed interval between assembled frames and its variation in microseconds */
+	uint32_t frame_interval_us;
+	uint32_t frame_jitter_us;
+	/** number of transfers currently in use */
+	uint32_t num_transfers;
+} uvc_stream_stats_t;
+
 /** Streaming mode, includes all information needed to select stream
  * @ingroup streaming
  */
@@ -592,6 +640,12 @@ uvc_error_t uvc_start_iso_streaming(uvc_device_handle_t *devh,
 		uvc_stream_ctrl_t *ctrl, uvc_frame_callback_t *cb, void *user_ptr);
 
 void uvc_stop_streaming(uvc_device_handle_t *devh);
+void uvc_set_frame_pool(uvc_device_handle_t *devh,
+		uvc_frame_obtain_t *obtain, uvc_frame_recycle_t *recycle);	// XXX added saki
+/** pass as num_transfers of uvc_set_transfer_config to adjust the number of transfers while streaming */
+#define UVC_TRANSFER_BUFS_ADAPTIVE (-1)
+void uvc_set_transfer_config(uvc_device_handle_t *devh,
+		int num_transfers, int packets_per_transfer);	// XXX added saki
 
 uvc_error_t uvc_stream_open_ctrl(uvc_device_handle_t *devh,
 		uvc_stream_handle_t **strmh, uvc_stream_ctrl_t *ctrl);
@@ -606,6 +660,8 @@ uvc_error_t uvc_stream_start_iso(uvc_stream_handle_t *strmh,
 uvc_error_t uvc_stream_get_frame(uvc_stream_handle_t *strmh,
 		uvc_frame_t **frame, int32_t timeout_us);
 uvc_error_t uvc_stream_stop(uvc_stream_handle_t *strmh);
+uvc_error_t uvc_stream_get_stats(uvc_stream_handle_t *strmh, uvc_stream_stats_t *stats);	// XXX added saki
+uvc_error_t uvc_get_stream_stats(uvc_device_handle_t *devh, uvc_stream_stats_t *stats);	// XXX added saki
 void uvc_stream_close(uvc_stream_handle_t *strmh);
 
 // Generic Controls
@@ -801,6 +857,9 @@ uvc_error_t uvc_mjpeg2bgr(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_mjpeg2rgb565(uvc_frame_t *in, uvc_frame_t *out);	// XXX
 uvc_error_t uvc_mjpeg2rgbx(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out);		// XXX
+uvc_error_t uvc_mjpeg2yuv420SP(uvc_frame_t *in, uvc_frame_t *out);	// XXX
+uvc_error_t uvc_mjpeg2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out);	// XXX
+uvc_error_t uvc_mjpeg2yuv420P(uvc_frame_t *in, uvc_frame_t *out);	// XXX
 #endif
 
 uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out);		// XXX
@@ -217,6 +217,8 @@ typedef struct uvc_control_interface {
   struct uvc_processing_unit *processing_unit_descs;
   struct uvc_extension_unit *extension_unit_descs;
   uint16_t bcdUVC;
+  /** XXX device clock frequency for PTS/SCR of payload headers [Hz] */
+  uint32_t dwClockFrequency;
   uint8_t bEndpointAddress;
   /** Interface number */
   uint8_t bInterfaceNumber;
@@ -248,6 +250,13 @@ typedef struct uvc_device_info {
   and then allow the user to change the number of buffers as required.
  */
 #define LIBUVC_NUM_TRANSFER_BUFS 10
+/* range of the number of transfer buffers that can be set with uvc_set_transfer_config
+ * or that adaptive mode can change to */
+#define LIBUVC_MIN_TRANSFER_BUFS 2
+#define LIBUVC_MAX_TRANSFER_BUFS 32
+/* default/max limit of isochronous packets per transfer */
+#define LIBUVC_NUM_PACKETS_PER_TRANSFER 32
+#define LIBUVC_MAX_PACKETS_PER_TRANSFER 128
 
 #define LIBUVC_XFER_BUF_SIZE	( 16 * 1024 * 1024 )
 
@@ -269,6 +278,17 @@ struct uvc_stream_handle {
   uint32_t pts, hold_pts;
   uint32_t last_scr, hold_last_scr;
   size_t got_bytes, hold_bytes;
+  uint64_t payload_time_us, hold_payload_time_us, hold_complete_time_us;	// monotonic time for latency tracing
+  /** translation of the device clock(PTS/SCR) into host monotonic time */
+  uint32_t clock_freq;
+  uint8_t frame_has_scr;
+  uint32_t frame_stc;			// STC of SCR in the first payload of the current frame
+  uint32_t last_stc;
+  uint8_t clock_valid;
+  int64_t stc_ext;				// STC extended to 64 bits
+  int64_t clock_offset_min_us, clock_offset_prev_min_us;	// min of (host time - device time) in current/previous window
+  uint64_t clock_window_start_us;
+  uint64_t hold_presentation_time_us;
   size_t size_buf;	// XXX add for boundary check
   uint8_t *outbuf, *holdbuf;
   pthread_mutex_t cb_mutex;
@@ -277,8 +297,32 @@ struct uvc_stream_handle {
   uint32_t last_polled_seq;
   uvc_frame_callback_t *user_cb;
   void *user_ptr;
-  struct libusb_transfer *transfers[LIBUVC_NUM_TRANSFER_BUFS];
-  uint8_t *transfer_bufs[LIBUVC_NUM_TRANSFER_BUFS];
+  /** frame pool of the user, payloads are assembled into out_frame directly
+   * and hold_frame is passed to user_cb without copying when these are set */
+  uvc_frame_obtain_t *frame_obtain;
+  uvc_frame_recycle_t *frame_recycle;
+  uvc_frame_t *out_frame, *hold_frame;
+  uint8_t *xfer_bufs[2];	// outbuf/holdbuf allocated by the library
+  size_t pool_frame_bytes;
+  struct libusb_transfer *transfers[LIBUVC_MAX_TRANSFER_BUFS];
+  uint8_t *transfer_bufs[LIBUVC_MAX_TRANSFER_BUFS];
+  /** parameters to allocate transfers, also used when adding transfers while streaming */
+  uint8_t isochronous;
+  uint8_t endpoint;
+  int packets_per_transfer;
+  size_t transfer_bytes, packet_bytes;
+  /** number of transfers in use, this excludes transfers that will be released by shrink_transfers */
+  int num_transfer_bufs;
+  /** adaptive mode, see uvc_set_transfer_config */
+  uint8_t adaptive_transfers;
+  int shrink_transfers;
+  uint32_t adapt_frames, adapt_errors, adapt_stable_windows;
+  size_t min_frame_bytes;	// smaller frame than this is incomplete, only for uncompressed formats
+  /** statistics, updated on the thread handling libusb events without lock */
+  uvc_stream_stats_t stats;
+  uint64_t stats_window_start_us, stats_window_bytes;
+  uint64_t stats_last_frame_us;
+  int64_t stats_last_interval_us;
   struct uvc_frame frame;
   enum uvc_frame_format frame_format;
 };
@@ -302,7 +346,15 @@ struct uvc_device_handle {
   /** Function to call when we receive button events from the camera */
   uvc_button_callback_t *button_cb;
   void *button_user_ptr;
-
+  /** transfer settings that is applied to streams started after uvc_set_transfer_config */
+  int num_transfer_bufs;
+  int packets_per_transfer;
+  /** frame pool that is applied to streams opened after uvc_set_frame_pool */
+  uvc_frame_obtain_t *frame_obtain;
+  uvc_frame_recycle_t *frame_recycle;
+
+  /** guards streams against uvc_get_stream_stats called from other threads */
+  pthread_mutex_t streams_mutex;
   uvc_stream_handle_t *streams;
   /** Whether the camera is an iSight that sends one header per frame */
   uint8_t is_isight;
@@ -331,6 +383,29 @@ void uvc_start_handler_thread(uvc_context_t *ctx);
 uvc_error_t uvc_claim_if(uvc_device_handle_t *devh, int idx);
 uvc_error_t uvc_release_if(uvc_device_handle_t *devh, int idx);
 
+/** SIMD kernels for pixel format conversion, selected at runtime in frame.c.
+ * Each kernel converts pixels(multiple of align) pixels on a row and must be bit-exact to the scalar macros.
+ */
+typedef struct uvc_convert_kernels {
+	const char *name;
+	int align;
+	void (*yuyv2rgbx)(const uint8_t *src, uint8_t *dst, int pixels);
+	void (*uyvy2rgbx)(const uint8_t *src, uint8_t *dst, int pixels);
+	void (*yuyv2rgb565)(const uint8_t *src, uint8_t *dst, int pixels);
+	void (*uyvy2rgb565)(const uint8_t *src, uint8_t *dst, int pixels);
+	/* split YUYV into y plane and interleaved uv(vu if swap_uv is not zero), uv can be NULL */
+	void (*yuyv2yuv420SP)(const uint8_t *src, uint8_t *y, uint8_t *uv, int pixels, int swap_uv);
+} uvc_convert_kernels_t;
+
+#if defined(__ARM_NEON__) || defined(__ARM_NEON) || defined(HAVE_NEON)
+extern const uvc_convert_kernels_t uvc_neon_kernels;	// frame-neon.c
+#endif
+#if defined(__SSE2__)
+extern const uvc_convert_kernels_t uvc_sse2_kernels;	// frame-sse2.c
+#endif
+/* for test harness only, NULL forces the scalar code */
+const uvc_convert_kernels_t *uvc_override_convert_kernels(const uvc_convert_kernels_t *kernels);
+
 #endif // !def(LIBUVC_INTERNAL_H)
 /** @endcond */
 
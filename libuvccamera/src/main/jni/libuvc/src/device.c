@@ -292,6 +292,7 @@ uvc_error_t uvc_open(uvc_device_t *dev, uvc_device_handle_t **devh) {
 	internal_devh->reset_on_release_if = 0;	// XXX
 	ret = uvc_get_device_info(dev, &(internal_devh->info));
 	pthread_mutex_init(&internal_devh->status_mutex, NULL);	// XXX saki
+	pthread_mutex_init(&internal_devh->streams_mutex, NULL);
 
 	if (UNLIKELY(ret != UVC_SUCCESS))
 		goto fail2;	// uvc_claim_if was not called yet and we don't need to call uvc_release_if
@@ -991,6 +992,7 @@ uvc_error_t uvc_parse_vc_header(uvc_device_t *dev, uvc_device_info_t *info,
 	 */
 
 	info->ctrl_if.bcdUVC = SW_TO_SHORT(&block[3]);
+	info->ctrl_if.dwClockFrequency = DW_TO_INT(&block[7]);	// XXX deprecated since UVC 1.5
 
 	switch (info->ctrl_if.bcdUVC) {
 	case 0x0100:
@@ -1536,6 +1538,7 @@ void uvc_free_devh(uvc_device_handle_t *devh) {
 	UVC_ENTER();
 
 	pthread_mutex_destroy(&devh->status_mutex);	// XXX saki
+	pthread_mutex_destroy(&devh->streams_mutex);
 	if (devh->info)
 		uvc_free_device_info(devh->info);
 
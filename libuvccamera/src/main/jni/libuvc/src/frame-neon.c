@@ -0,0 +1,161 @@
+/*********************************************************************
+ * Software License Agreement (BSD License)
+ *
+ * Copyright (C)2014-2017 saki@serenegiant <t_saki@serenegiant.com>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the author nor other contributors may be
+ *     used to endorse or promote products derived from this software
+ *     without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+/**
+ * NEON version of pixel format conversion kernels for frame.c.
+ * results are same as the scalar macros in frame.c, including rounding by arithmetic shift.
+ * On armeabi-v7a this file is compiled with NEON(frame-neon.c.neon) and only used when the cpu supports it.
+ */
+#include <arm_neon.h>
+
+#include "libuvc/libuvc.h"
+#include "libuvc/libuvc_internal.h"
+
+#define SIMD_PIXELS 16
+
+/**
+ * (y + (coef * c) >> 14) with saturation
+ */
+static inline uint8x8_t add_sat(const int16x8_t y, const int16x8_t c) {
+	return vqmovun_s16(vaddq_s16(y, c));
+}
+
+static inline int16x8_t chroma1(const int16x8_t c, const int16_t coef) {
+	return vcombine_s16(
+		vshrn_n_s32(vmull_n_s16(vget_low_s16(c), coef), 14),
+		vshrn_n_s32(vmull_n_s16(vget_high_s16(c), coef), 14));
+}
+
+static inline int16x8_t chroma2(const int16x8_t u, const int16_t coef_u, const int16x8_t v, const int16_t coef_v) {
+	return vcombine_s16(
+		vshrn_n_s32(vmlal_n_s16(vmull_n_s16(vget_low_s16(u), coef_u), vget_low_s16(v), coef_v), 14),
+		vshrn_n_s32(vmlal_n_s16(vmull_n_s16(vget_high_s16(u), coef_u), vget_high_s16(v), coef_v), 14));
+}
+
+/**
+ * convert 16 pixels of YUYV/UYVY into saturated 8bit r, g, b
+ */
+static inline void yuv2rgb_16(const uint8_t *src, const int uyvy,
+	uint8x16_t *r, uint8x16_t *g, uint8x16_t *b) {
+
+	const uint8x8x4_t s = vld4_u8(src);
+	const uint8x8_t y0 = uyvy ? s.val[1] : s.val[0];
+	const uint8x8_t y1 = uyvy ? s.val[3] : s.val[2];
+	const uint8x8_t u8 = uyvy ? s.val[0] : s.val[1];
+	const uint8x8_t v8 = uyvy ? s.val[2] : s.val[3];
+	const uint8x8_t c128 = vdup_n_u8(128);
+	const int16x8_t u = vreinterpretq_s16_u16(vsubl_u8(u8, c128));
+	const int16x8_t v = vreinterpretq_s16_u16(vsubl_u8(v8, c128));
+	const int16x8_t cr = chroma1(v, 22987);
+	const int16x8_t cg = chroma2(u, -5636, v, -11698);
+	const int16x8_t cb = chroma1(u, 29049);
+	const int16x8_t ye = vreinterpretq_s16_u16(vmovl_u8(y0));
+	const int16x8_t yo = vreinterpretq_s16_u16(vmovl_u8(y1));
+	// interleave even and odd pixels
+	const uint8x8x2_t rr = vzip_u8(add_sat(ye, cr), add_sat(yo, cr));
+	const uint8x8x2_t gg = vzip_u8(add_sat(ye, cg), add_sat(yo, cg));
+	const uint8x8x2_t bb = vzip_u8(add_sat(ye, cb), add_sat(yo, cb));
+	*r = vcombine_u8(rr.val[0], rr.val[1]);
+	*g = vcombine_u8(gg.val[0], gg.val[1]);
+	*b = vcombine_u8(bb.val[0], bb.val[1]);
+}
+
+static inline void yuv2rgbx(const uint8_t *src, uint8_t *dst, int pixels, const int uyvy) {
+	uint8x16x4_t rgbx;
+	rgbx.val[3] = vdupq_n_u8(0xff);
+	for (; pixels >= SIMD_PIXELS; pixels -= SIMD_PIXELS) {
+		yuv2rgb_16(src, uyvy, &rgbx.val[0], &rgbx.val[1], &rgbx.val[2]);
+		vst4q_u8(dst, rgbx);
+		src += SIMD_PIXELS * 2;
+		dst += SIMD_PIXELS * 4;
+	}
+}
+
+/**
+ * pack 8 pixels of 8bit r, g, b into RGB565
+ */
+static inline uint16x8_t pack_rgb565(const uint8x8_t r, const uint8x8_t g, const uint8x8_t b) {
+	uint16x8_t result = vshll_n_u8(vand_u8(r, vdup_n_u8(0xf8)), 8);
+	result = vorrq_u16(result, vshll_n_u8(vand_u8(g, vdup_n_u8(0xfc)), 3));
+	return vorrq_u16(result, vmovl_u8(vshr_n_u8(b, 3)));
+}
+
+static inline void yuv2rgb565(const uint8_t *src, uint8_t *dst, int pixels, const int uyvy) {
+	uint8x16_t r, g, b;
+	for (; pixels >= SIMD_PIXELS; pixels -= SIMD_PIXELS) {
+		yuv2rgb_16(src, uyvy, &r, &g, &b);
+		vst1q_u16((uint16_t *)dst, pack_rgb565(vget_low_u8(r), vget_low_u8(g), vget_low_u8(b)));
+		vst1q_u16((uint16_t *)(dst + 16), pack_rgb565(vget_high_u8(r), vget_high_u8(g), vget_high_u8(b)));
+		src += SIMD_PIXELS * 2;
+		dst += SIMD_PIXELS * 2;
+	}
+}
+
+static void neon_yuyv2rgbx(const uint8_t *src, uint8_t *dst, int pixels) {
+	yuv2rgbx(src, dst, pixels, 0);
+}
+
+static void neon_uyvy2rgbx(const uint8_t *src, uint8_t *dst, int pixels) {
+	yuv2rgbx(src, dst, pixels, 1);
+}
+
+static void neon_yuyv2rgb565(const uint8_t *src, uint8_t *dst, int pixels) {
+	yuv2rgb565(src, dst, pixels, 0);
+}
+
+static void neon_uyvy2rgb565(const uint8_t *src, uint8_t *dst, int pixels) {
+	yuv2rgb565(src, dst, pixels, 1);
+}
+
+static void neon_yuyv2yuv420SP(const uint8_t *src, uint8_t *y, uint8_t *uv, int pixels, int swap_uv) {
+	for (; pixels >= SIMD_PIXELS; pixels -= SIMD_PIXELS) {
+		const uint8x16x2_t s = vld2q_u8(src);	// val[0]: y, val[1]: u, v, u, v...
+		vst1q_u8(y, s.val[0]);
+		if (uv) {
+			vst1q_u8(uv, swap_uv ? vrev16q_u8(s.val[1]) : s.val[1]);
+			uv += SIMD_PIXELS;
+		}
+		src += SIMD_PIXELS * 2;
+		y += SIMD_PIXELS;
+	}
+}
+
+const uvc_convert_kernels_t uvc_neon_kernels = {
+	.name = "neon",
+	.align = SIMD_PIXELS,
+	.yuyv2rgbx = neon_yuyv2rgbx,
+	.uyvy2rgbx = neon_uyvy2rgbx,
+	.yuyv2rgb565 = neon_yuyv2rgb565,
+	.uyvy2rgb565 = neon_uyvy2rgb565,
+	.yuyv2yuv420SP = neon_yuyv2yuv420SP,
+};
@@ -0,0 +1,173 @@
+/*********************************************************************
+ * Software License Agreement (BSD License)
+ *
+ * Copyright (C)2014-2017 saki@serenegiant <t_saki@serenegiant.com>
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the author nor other contributors may be
+ *     used to endorse or promote products derived from this software
+ *     without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+/**
+ * SSE2 version of pixel format conversion kernels for frame.c.
+ * results are same as the scalar macros in frame.c, including rounding by arithmetic shift.
+ */
+#include <emmintrin.h>
+
+#include "libuvc/libuvc.h"
+#include "libuvc/libuvc_internal.h"
+
+#if defined(__SSE2__)
+
+#define SIMD_PIXELS 16
+
+/**
+ * convert 8 pixels of YUYV/UYVY into 16bit r, g, b
+ */
+static inline void yuv2rgb_8(const __m128i src, const int uyvy,
+	__m128i *r, __m128i *g, __m128i *b) {
+
+	const __m128i mask = _mm_set1_epi16(0x00ff);
+	const __m128i y = uyvy ? _mm_srli_epi16(src, 8) : _mm_and_si128(src, mask);
+	// u, v, u, v... as signed 16bit
+	const __m128i uv = _mm_sub_epi16(uyvy ? _mm_and_si128(src, mask) : _mm_srli_epi16(src, 8), _mm_set1_epi16(128));
+	// (u, v) pair x coefficients => 32bit
+	__m128i cr = _mm_srai_epi32(_mm_madd_epi16(uv, _mm_set1_epi32(22987 << 16)), 14);
+	__m128i cg = _mm_srai_epi32(_mm_madd_epi16(uv, _mm_set1_epi32((int)(((uint32_t)-11698 << 16) | ((uint32_t)-5636 & 0xffff)))), 14);
+	__m128i cb = _mm_srai_epi32(_mm_madd_epi16(uv, _mm_set1_epi32(29049)), 14);
+	// same chroma for 2 pixels
+	cr = _mm_packs_epi32(cr, cr);
+	cg = _mm_packs_epi32(cg, cg);
+	cb = _mm_packs_epi32(cb, cb);
+	*r = _mm_add_epi16(y, _mm_unpacklo_epi16(cr, cr));
+	*g = _mm_add_epi16(y, _mm_unpacklo_epi16(cg, cg));
+	*b = _mm_add_epi16(y, _mm_unpacklo_epi16(cb, cb));
+}
+
+/**
+ * convert 16 pixels of YUYV/UYVY into saturated 8bit r, g, b
+ */
+static inline void yuv2rgb_16(const uint8_t *src, const int uyvy,
+	__m128i *r, __m128i *g, __m128i *b) {
+
+	__m128i r0, g0, b0, r1, g1, b1;
+	yuv2rgb_8(_mm_loadu_si128((const __m128i *)src), uyvy, &r0, &g0, &b0);
+	yuv2rgb_8(_mm_loadu_si128((const __m128i *)(src + 16)), uyvy, &r1, &g1, &b1);
+	*r = _mm_packus_epi16(r0, r1);
+	*g = _mm_packus_epi16(g0, g1);
+	*b = _mm_packus_epi16(b0, b1);
+}
+
+static inline void yuv2rgbx(const uint8_t *src, uint8_t *dst, int pixels, const int uyvy) {
+	const __m128i x = _mm_set1_epi8((char)0xff);
+	__m128i r, g, b;
+	for (; pixels >= SIMD_PIXELS; pixels -= SIMD_PIXELS) {
+		yuv2rgb_16(src, uyvy, &r, &g, &b);
+		const __m128i rg_lo = _mm_unpacklo_epi8(r, g);
+		const __m128i rg_hi = _mm_unpackhi_epi8(r, g);
+		const __m128i bx_lo = _mm_unpacklo_epi8(b, x);
+		const __m128i bx_hi = _mm_unpackhi_epi8(b, x);
+		_mm_storeu_si128((__m128i *)dst, _mm_unpacklo_epi16(rg_lo, bx_lo));
+		_mm_storeu_si128((__m128i *)(dst + 16), _mm_unpackhi_epi16(rg_lo, bx_lo));
+		_mm_storeu_si128((__m128i *)(dst + 32), _mm_unpacklo_epi16(rg_hi, bx_hi));
+		_mm_storeu_si128((__m128i *)(dst + 48), _mm_unpackhi_epi16(rg_hi, bx_hi));
+		src += SIMD_PIXELS * 2;
+		dst += SIMD_PIXELS * 4;
+	}
+}
+
+/**
+ * pack 8 pixels of 8bit r, g, b(in 16bit lanes) into RGB565
+ */
+static inline __m128i pack_rgb565(const __m128i r, const __m128i g, const __m128i b) {
+	return _mm_or_si128(
+		_mm_slli_epi16(_mm_and_si128(r, _mm_set1_epi16(0xf8)), 8),
+		_mm_or_si128(
+			_mm_slli_epi16(_mm_and_si128(g, _mm_set1_epi16(0xfc)), 3),
+			_mm_srli_epi16(b, 3)));
+}
+
+static inline void yuv2rgb565(const uint8_t *src, uint8_t *dst, int pixels, const int uyvy) {
+	const __m128i zero = _mm_setzero_si128();
+	__m128i r, g, b;
+	for (; pixels >= SIMD_PIXELS; pixels -= SIMD_PIXELS) {
+		yuv2rgb_16(src, uyvy, &r, &g, &b);
+		_mm_storeu_si128((__m128i *)dst, pack_rgb565(
+			_mm_unpacklo_epi8(r, zero), _mm_unpacklo_epi8(g, zero), _mm_unpacklo_epi8(b, zero)));
+		_mm_storeu_si128((__m128i *)(dst + 16), pack_rgb565(
+			_mm_unpackhi_epi8(r, zero), _mm_unpackhi_epi8(g, zero), _mm_unpackhi_epi8(b, zero)));
+		src += SIMD_PIXELS * 2;
+		dst += SIMD_PIXELS * 2;
+	}
+}
+
+static void sse2_yuyv2rgbx(const uint8_t *src, uint8_t *dst, int pixels) {
+	yuv2rgbx(src, dst, pixels, 0);
+}
+
+static void sse2_uyvy2rgbx(const uint8_t *src, uint8_t *dst, int pixels) {
+	yuv2rgbx(src, dst, pixels, 1);
+}
+
+static void sse2_yuyv2rgb565(const uint8_t *src, uint8_t *dst, int pixels) {
+	yuv2rgb565(src, dst, pixels, 0);
+}
+
+static void sse2_uyvy2rgb565(const uint8_t *src, uint8_t *dst, int pixels) {
+	yuv2rgb565(src, dst, pixels, 1);
+}
+
+static void sse2_yuyv2yuv420SP(const uint8_t *src, uint8_t *y, uint8_t *uv, int pixels, int swap_uv) {
+	const __m128i mask = _mm_set1_epi16(0x00ff);
+	for (; pixels >= SIMD_PIXELS; pixels -= SIMD_PIXELS) {
+		const __m128i s0 = _mm_loadu_si128((const __m128i *)src);
+		const __m128i s1 = _mm_loadu_si128((const __m128i *)(src + 16));
+		_mm_storeu_si128((__m128i *)y,
+			_mm_packus_epi16(_mm_and_si128(s0, mask), _mm_and_si128(s1, mask)));
+		if (uv) {
+			__m128i c = _mm_packus_epi16(_mm_srli_epi16(s0, 8), _mm_srli_epi16(s1, 8));
+			if (swap_uv) {
+				c = _mm_or_si128(_mm_slli_epi16(c, 8), _mm_srli_epi16(c, 8));
+			}
+			_mm_storeu_si128((__m128i *)uv, c);
+			uv += SIMD_PIXELS;
+		}
+		src += SIMD_PIXELS * 2;
+		y += SIMD_PIXELS;
+	}
+}
+
+const uvc_convert_kernels_t uvc_sse2_kernels = {
+	.name = "sse2",
+	.align = SIMD_PIXELS,
+	.yuyv2rgbx = sse2_yuyv2rgbx,
+	.uyvy2rgbx = sse2_uyvy2rgbx,
+	.yuyv2rgb565 = sse2_yuyv2rgb565,
+	.uyvy2rgb565 = sse2_uyvy2rgb565,
+	.yuyv2yuv420SP = sse2_yuyv2yuv420SP,
+};
+
+#endif // defined(__SSE2__)
@@ -51,7 +51,69 @@
 #include "libuvc/libuvc.h"
 #include "libuvc/libuvc_internal.h"
 
+#if defined(__ANDROID__) && defined(__arm__) && defined(HAVE_NEON)
+#include <cpu-features.h>
+#endif
+
 #define USE_STRIDE 1
+
+static const uvc_convert_kernels_t *convert_kernels = NULL;
+static pthread_once_t convert_kernels_once = PTHREAD_ONCE_INIT;
+
+/** @internal
+ * select SIMD kernels that the cpu supports, NULL if no SIMD kernels are available
+ */
+static void init_convert_kernels(void) {
+#if defined(__arm__) && defined(HAVE_NEON)
+	// armeabi-v7a does not always have NEON
+	if ((android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM)
+		&& (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON)) {
+		convert_kernels = &uvc_neon_kernels;
+	}
+#elif defined(__aarch64__) && defined(HAVE_NEON)
+	convert_kernels = &uvc_neon_kernels;
+#elif defined(__SSE2__) && defined(HAVE_SSE2)
+	convert_kernels = &uvc_sse2_kernels;
+#endif
+	if (convert_kernels) {
+		LOGI("use %s kernels for pixel format conversion", convert_kernels->name);
+	}
+}
+
+static inline const uvc_convert_kernels_t *get_convert_kernels(void) {
+	pthread_once(&convert_kernels_once, init_convert_kernels);
+	return convert_kernels;
+}
+
+/** @internal
+ * replace SIMD kernels selected at runtime, NULL forces the scalar code.
+ * this is only for test harness/benchmark to compare SIMD kernels with the scalar code,
+ * do not call this while any conversion is running.
+ * @return kernels that were selected before
+ */
+const uvc_convert_kernels_t *uvc_override_convert_kernels(const uvc_convert_kernels_t *kernels) {
+	const uvc_convert_kernels_t *prev = get_convert_kernels();
+	convert_kernels = kernels;
+	return prev;
+}
+
+/** @internal
+ * number of pixels that SIMD kernel can convert at once without exceeding the end of src/dst
+ */
+static inline int simd_pixels(const uvc_convert_kernels_t *simd, int pixels,
+	const uint8_t *src, const uint8_t *src_end, const int src_pixel_bytes,
+	const uint8_t *dst, const uint8_t *dst_end, const int dst_pixel_bytes) {
+
+	if (UNLIKELY((src >= src_end) || (dst >= dst_end)))
+		return 0;
+	const int src_pixels = (src_end - src) / src_pixel_bytes;
+	const int dst_pixels = (dst_end - dst) / dst_pixel_bytes;
+	if (pixels > src_pixels)
+		pixels = src_pixels;
+	if (pixels > dst_pixels)
+		pixels = dst_pixels;
+	return pixels - (pixels % simd->align);
+}
 /** @internal */
 uvc_error_t uvc_ensure_frame_size(uvc_frame_t *frame, size_t need_bytes) {
 	if LIKELY(frame->library_owns_data) {
@@ -135,8 +197,11 @@ uvc_error_t uvc_duplicate_frame(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->step;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->presentation_time_us = in->presentation_time_us;	// XXX
 	out->source = in->source;
 	out->actual_bytes = in->actual_bytes;	// XXX
+	out->payload_time_us = in->payload_time_us;	// XXX
+	out->complete_time_us = in->complete_time_us;	// XXX
 
 #if USE_STRIDE	 // XXX
 	if (in->step && out->step) {
@@ -241,6 +306,7 @@ uvc_error_t uvc_rgb2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->presentation_time_us = in->presentation_time_us;	// XXX
 	out->source = in->source;
 
 	uint8_t *prgb = in->data;
@@ -323,6 +389,7 @@ uvc_error_t uvc_rgb2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->presentation_time_us = in->presentation_time_us;	// XXX
 	out->source = in->source;
 
 	uint8_t *prgb = in->data;
@@ -426,6 +493,7 @@ uvc_error_t uvc_yuyv2rgb(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->presentation_time_us = in->presentation_time_us;	// XXX
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -490,12 +558,14 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->presentation_time_us = in->presentation_time_us;	// XXX
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
 	const uint8_t *pyuv_end = pyuv + in->data_bytes - PIXEL8_YUYV;
 	uint8_t *prgb565 = out->data;
 	const uint8_t *prgb565_end = prgb565 + out->data_bytes - PIXEL8_RGB565;
+	const uvc_convert_kernels_t *simd = get_convert_kernels();
 
 	uint8_t tmp[PIXEL8_RGB];	// for temporary rgb888 data(8pixel)
 
@@ -508,6 +578,14 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 			w = 0;
 			pyuv = in->data + in->step * h;
 			prgb565 = out->data + out->step * h;
+			if (simd) {
+				const int n = simd_pixels(simd, ww, pyuv, in->data + in->data_bytes, PIXEL_YUYV,
+					prgb565, out->data + out->data_bytes, PIXEL_RGB565);
+				simd->yuyv2rgb565(pyuv, prgb565, n);
+				pyuv += n * PIXEL_YUYV;
+				prgb565 += n * PIXEL_RGB565;
+				w = n;
+			}
 			for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) && (w < ww) ;) {
 				IYUYV2RGB_8(pyuv, tmp, 0, 0);
 				RGB2RGB565_8(tmp, prgb565, 0, 0);
@@ -519,6 +597,13 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	} else {
 		// compressed format? XXX if only one of the frame in / out has step, this may lead to crash...
+		if (simd) {
+			const int n = simd_pixels(simd, in->data_bytes / PIXEL_YUYV, pyuv, in->data + in->data_bytes, PIXEL_YUYV,
+				prgb565, out->data + out->data_bytes, PIXEL_RGB565);
+			simd->yuyv2rgb565(pyuv, prgb565, n);
+			pyuv += n * PIXEL_YUYV;
+			prgb565 += n * PIXEL_RGB565;
+		}
 		for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) ;) {
 			IYUYV2RGB_8(pyuv, tmp, 0, 0);
 			RGB2RGB565_8(tmp, prgb565, 0, 0);
@@ -528,6 +613,13 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	}
 #else
+	if (simd) {
+		const int n = simd_pixels(simd, in->data_bytes / PIXEL_YUYV, pyuv, in->data + in->data_bytes, PIXEL_YUYV,
+			prgb565, out->data + out->data_bytes, PIXEL_RGB565);
+		simd->yuyv2rgb565(pyuv, prgb565, n);
+		pyuv += n * PIXEL_YUYV;
+		prgb565 += n * PIXEL_RGB565;
+	}
 	// YUYV => RGB565
 	for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) ;) {
 		IYUYV2RGB_8(pyuv, tmp, 0, 0);
@@ -586,12 +678,14 @@ uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->presentation_time_us = in->presentation_time_us;	// XXX
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
 	const uint8_t *pyuv_end = pyuv + in->data_bytes - PIXEL8_YUYV;
 	uint8_t *prgbx = out->data;
 	const uint8_t *prgbx_end = prgbx + out->data_bytes - PIXEL8_RGBX;
+	const uvc_convert_kernels_t *simd = get_convert_kernels();
 
 	// YUYV => RGBX8888
 #if USE_STRIDE
@@ -603,6 +697,14 @@ uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 			w = 0;
 			pyuv = in->data + in->step * h;
 			prgbx = out->data + out->step * h;
+			if (simd) {
+				const int n = simd_pixels(simd, ww, pyuv, in->data + in->data_bytes, PIXEL_YUYV,
+					prgbx, out->data + out->data_bytes, PIXEL_RGBX);
+				simd->yuyv2rgbx(pyuv, prgbx, n);
+				pyuv += n * PIXEL_YUYV;
+				prgbx += n * PIXEL_RGBX;
+				w = n;
+			}
 			for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) && (w < ww) ;) {
 				IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
 
@@ -613,6 +715,13 @@ uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	} else {
 		// compressed format? XXX if only one of the frame in / out has step, this may lead to crash...
+		if (simd) {
+			const int n = simd_pixels(simd, in->data_bytes / PIXEL_YUYV, pyuv, in->data + in->data_bytes, PIXEL_YUYV,
+				prgbx, out->data + out->data_bytes, PIXEL_RGBX);
+			simd->yuyv2rgbx(pyuv, prgbx, n);
+			pyuv += n * PIXEL_YUYV;
+			prgbx += n * PIXEL_RGBX;
+		}
 		for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
 			IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
 
@@ -621,6 +730,13 @@ uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	}
 #else
+	if (simd) {
+		const int n = simd_pixels(simd, in->data_bytes / PIXEL_YUYV, pyuv, in->data + in->data_bytes, PIXEL_YUYV,
+			prgbx, out->data + out->data_bytes, PIXEL_RGBX);
+		simd->yuyv2rgbx(pyuv, prgbx, n);
+		pyuv += n * PIXEL_YUYV;
+		prgbx += n * PIXEL_RGBX;
+	}
 	for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
 		IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
 
@@ -676,6 +792,7 @@ uvc_error_t uvc_yuyv2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_BGR;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->presentation_time_us = in->presentation_time_us;	// XXX
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -765,6 +882,7 @@ uvc_error_t uvc_uyvy2rgb(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->presentation_time_us = in->presentation_time_us;	// XXX
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -829,12 +947,14 @@ uvc_error_t uvc_uyvy2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->presentation_time_us = in->presentation_time_us;	// XXX
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
 	const uint8_t *pyuv_end = pyuv + in->data_bytes - PIXEL8_UYVY;
 	uint8_t *prgb565 = out->data;
 	const uint8_t *prgb565_end = prgb565 + out->data_bytes - PIXEL8_RGB565;
+	const uvc_convert_kernels_t *simd = get_convert_kernels();
 
 	uint8_t tmp[PIXEL8_RGB];		// for temporary rgb888 data(8pixel)
 
@@ -848,6 +968,14 @@ uvc_error_t uvc_uyvy2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 			w = 0;
 			pyuv = in->data + in->step * h;
 			prgb565 = out->data + out->step * h;
+			if (simd) {
+				const int n = simd_pixels(simd, ww, pyuv, in->data + in->data_bytes, PIXEL_UYVY,
+					prgb565, out->data + out->data_bytes, PIXEL_RGB565);
+				simd->uyvy2rgb565(pyuv, prgb565, n);
+				pyuv += n * PIXEL_UYVY;
+				prgb565 += n * PIXEL_RGB565;
+				w = n;
+			}
 			for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) && (w < ww) ;) {
 				IUYVY2RGB_8(pyuv, tmp, 0, 0);
 				RGB2RGB565_8(tmp, prgb565, 0, 0);
@@ -859,6 +987,13 @@ uvc_error_t uvc_uyvy2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	} else {
 		// compressed format? XXX if only one of the frame in / out has step, this may lead to crash...
+		if (simd) {
+			const int n = simd_pixels(simd, in->data_bytes / PIXEL_UYVY, pyuv, in->data + in->data_bytes, PIXEL_UYVY,
+				prgb565, out->data + out->data_bytes, PIXEL_RGB565);
+			simd->uyvy2rgb565(pyuv, prgb565, n);
+			pyuv += n * PIXEL_UYVY;
+			prgb565 += n * PIXEL_RGB565;
+		}
 		for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) ;) {
 			IUYVY2RGB_8(pyuv, tmp, 0, 0);
 			RGB2RGB565_8(tmp, prgb565, 0, 0);
@@ -868,6 +1003,13 @@ uvc_error_t uvc_uyvy2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	}
 #else
+	if (simd) {
+		const int n = simd_pixels(simd, in->data_bytes / PIXEL_UYVY, pyuv, in->data + in->data_bytes, PIXEL_UYVY,
+			prgb565, out->data + out->data_bytes, PIXEL_RGB565);
+		simd->uyvy2rgb565(pyuv, prgb565, n);
+		pyuv += n * PIXEL_UYVY;
+		prgb565 += n * PIXEL_RGB565;
+	}
 	for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) ;) {
 		IUYVY2RGB_8(pyuv, tmp, 0, 0);
 		RGB2RGB565_8(tmp, prgb565, 0, 0);
@@ -925,12 +1067,14 @@ uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->presentation_time_us = in->presentation_time_us;	// XXX
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
 	const uint8_t *pyuv_end = pyuv + in->data_bytes - PIXEL8_UYVY;
 	uint8_t *prgbx = out->data;
 	const uint8_t *prgbx_end = prgbx + out->data_bytes - PIXEL8_RGBX;
+	const uvc_convert_kernels_t *simd = get_convert_kernels();
 
 	// UYVY => RGBX8888
 #if USE_STRIDE
@@ -942,6 +1086,14 @@ uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 			w = 0;
 			pyuv = in->data + in->step * h;
 			prgbx = out->data + out->step * h;
+			if (simd) {
+				const int n = simd_pixels(simd, ww, pyuv, in->data + in->data_bytes, PIXEL_UYVY,
+					prgbx, out->data + out->data_bytes, PIXEL_RGBX);
+				simd->uyvy2rgbx(pyuv, prgbx, n);
+				pyuv += n * PIXEL_UYVY;
+				prgbx += n * PIXEL_RGBX;
+				w = n;
+			}
 			for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) && (w < ww) ;) {
 				IUYVY2RGBX_8(pyuv, prgbx, 0, 0);
 
@@ -952,6 +1104,13 @@ uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	} else {
 		// compressed format? XXX if only one of the frame in / out has step, this may lead to crash...
+		if (simd) {
+			const int n = simd_pixels(simd, in->data_bytes / PIXEL_UYVY, pyuv, in->data + in->data_bytes, PIXEL_UYVY,
+				prgbx, out->data + out->data_bytes, PIXEL_RGBX);
+			simd->uyvy2rgbx(pyuv, prgbx, n);
+			pyuv += n * PIXEL_UYVY;
+			prgbx += n * PIXEL_RGBX;
+		}
 		for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
 			IUYVY2RGBX_8(pyuv, prgbx, 0, 0);
 
@@ -960,6 +1119,13 @@ uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		}
 	}
 #else
+	if (simd) {
+		const int n = simd_pixels(simd, in->data_bytes / PIXEL_UYVY, pyuv, in->data + in->data_bytes, PIXEL_UYVY,
+			prgbx, out->data + out->data_bytes, PIXEL_RGBX);
+		simd->uyvy2rgbx(pyuv, prgbx, n);
+		pyuv += n * PIXEL_UYVY;
+		prgbx += n * PIXEL_RGBX;
+	}
 	for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
 		IUYVY2RGBX_8(pyuv, prgbx, 0, 0);
 
@@ -1014,6 +1180,7 @@ uvc_error_t uvc_uyvy2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_BGR;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->presentation_time_us = in->presentation_time_us;	// XXX
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -1167,11 +1334,23 @@ uvc_error_t uvc_yuyv2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
 	const uint32_t hh = src_height < dest_height ? src_height : dest_height;
 	uint8_t *uv = dest + dest_width * dest_height;
 	int h, w;
+	const uvc_convert_kernels_t *simd = get_convert_kernels();
+	const int simd_width = simd ? width - (width % simd->align) : 0;
 	for (h = 0; h < hh - 1; h += 2) {
 		uint8_t *y0 = dest + width * h;
 		uint8_t *y1 = y0 + width;
 		const uint8_t *yuv = src + src_width * h;
-		for (w = 0; w < width; w += 4) {
+		w = 0;
+		if (simd_width) {
+			simd->yuyv2yuv420SP(yuv, y0, uv, simd_width, 0);
+			simd->yuyv2yuv420SP(yuv + src_width, y1, NULL, simd_width, 0);
+			y0 += simd_width;
+			y1 += simd_width;
+			uv += simd_width;
+			yuv += simd_width * PIXEL_YUYV;
+			w = simd_width;
+		}
+		for (; w < width; w += 4) {
 			*(y0++) = yuv[0];	// y
 			*(y0++) = yuv[2];	// y'
 			*(y0++) = yuv[4];	// y''
@@ -1212,11 +1391,23 @@ uvc_error_t uvc_yuyv2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
 	const uint32_t hh = src_height < dest_height ? src_height : dest_height;
 	uint8_t *uv = dest + dest_width * dest_height;
 	int h, w;
+	const uvc_convert_kernels_t *simd = get_convert_kernels();
+	const int simd_width = simd ? width - (width % simd->align) : 0;
 	for (h = 0; h < hh - 1; h += 2) {
 		uint8_t *y0 = dest + width * h;
 		uint8_t *y1 = y0 + width;
 		const uint8_t *yuv = src + src_width * h;
-		for (w = 0; w < width; w += 4) {
+		w = 0;
+		if (simd_width) {
+			simd->yuyv2yuv420SP(yuv, y0, uv, simd_width, 1);
+			simd->yuyv2yuv420SP(yuv + src_width, y1, NULL, simd_width, 0);
+			y0 += simd_width;
+			y1 += simd_width;
+			uv += simd_width;
+			yuv += simd_width * PIXEL_YUYV;
+			w = simd_width;
+		}
+		for (; w < width; w += 4) {
 			*(y0++) = yuv[0];	// y
 			*(y0++) = yuv[2];	// y'
 			*(y0++) = yuv[4];	// y''
@@ -1363,6 +1554,16 @@ uvc_error_t uvc_any2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
  * @param out yuv420sp frame
  */
 uvc_error_t uvc_any2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
+	switch (in->frame_format) {
+#ifdef LIBUVC_HAS_JPEG
+	case UVC_FRAME_FORMAT_MJPEG:
+		return uvc_mjpeg2yuv420SP(in, out);
+#endif
+	case UVC_FRAME_FORMAT_YUYV:
+		return uvc_yuyv2yuv420SP(in, out);
+	default:
+		break;
+	}
 	uvc_error_t result = UVC_ERROR_NO_MEM;
 	uvc_frame_t *yuv = uvc_allocate_frame((in->width * in->height * 3) / 2);
 	if (yuv) {
@@ -1382,6 +1583,16 @@ uvc_error_t uvc_any2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
  * @param out iyuv420SP(NV21) frame
  */
 uvc_error_t uvc_any2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
+	switch (in->frame_format) {
+#ifdef LIBUVC_HAS_JPEG
+	case UVC_FRAME_FORMAT_MJPEG:
+		return uvc_mjpeg2iyuv420SP(in, out);
+#endif
+	case UVC_FRAME_FORMAT_YUYV:
+		return uvc_yuyv2iyuv420SP(in, out);
+	default:
+		break;
+	}
 	uvc_error_t result = UVC_ERROR_NO_MEM;
 	uvc_frame_t *yuv = uvc_allocate_frame((in->width * in->height * 3) / 2);
 	if (yuv) {
@@ -68,6 +68,10 @@ uvc_frame_desc_t *uvc_find_frame_desc(uvc_device_handle_t *devh,
 		uint16_t format_id, uint16_t frame_id);
 static void *_uvc_user_caller(void *arg);
 static void _uvc_populate_frame(uvc_stream_handle_t *strmh);
+static void _uvc_populate_frame_info(uvc_stream_handle_t *strmh, uvc_frame_t *frame);
+static void _uvc_prepare_out_frame(uvc_stream_handle_t *strmh);
+static void _uvc_adapt_transfers(uvc_stream_handle_t *strmh, const int incomplete);
+static void _uvc_stream_callback(struct libusb_transfer *transfer);
 
 struct format_table_entry {
 	enum uvc_frame_format format;
@@ -602,30 +606,160 @@ uvc_error_t uvc_probe_stream_ctrl(uvc_device_handle_t *devh,
 	return UVC_SUCCESS;
 }
 
+/** @internal
+ * @brief Get a frame from the user's frame pool and use it as the working buffer
+ * payloads are dropped until this succeeds when the pool could not provide a frame.
+ * this is called on the thread handling libusb events, the pool should return NULL
+ * instead of allocating a frame, and frames larger than requested are used as is.
+ */
+static void _uvc_prepare_out_frame(uvc_stream_handle_t *strmh) {
+	uvc_frame_t *frame = strmh->frame_obtain(strmh->pool_frame_bytes, strmh->user_ptr);
+	if (LIKELY(frame) && UNLIKELY(frame->data_bytes < strmh->pool_frame_bytes)
+		&& UNLIKELY(uvc_ensure_frame_size(frame, strmh->pool_frame_bytes) < 0)) {
+		strmh->frame_recycle(frame, strmh->user_ptr);
+		frame = NULL;
+	}
+	strmh->out_frame = frame;
+	strmh->outbuf = frame ? frame->data : NULL;
+	strmh->size_buf = frame ? frame->data_bytes : 0;
+}
+
+static inline uint64_t _uvc_now_us(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000ULL + ts.tv_nsec / 1000;
+}
+
+/** @internal
+ * @brief Update statistics of frames when a frame is assembled
+ * called on the thread handling libusb events
+ */
+static void _uvc_update_frame_stats(uvc_stream_handle_t *strmh, const int incomplete, const uint64_t now) {
+	uvc_stream_stats_t *stats = &strmh->stats;
+
+	stats->frames_assembled++;
+	if (incomplete)
+		stats->frames_incomplete++;
+	if (LIKELY(strmh->stats_last_frame_us)) {
+		// smoothed same as interarrival jitter of RTP(RFC3550)
+		const int64_t interval = now - strmh->stats_last_frame_us;
+		if (LIKELY(strmh->stats_last_interval_us)) {
+			const int64_t d = interval - strmh->stats_last_interval_us;
+			stats->frame_jitter_us += ((d < 0 ? -d : d) - (int64_t)stats->frame_jitter_us) / 16;
+			stats->frame_interval_us += (interval - (int64_t)stats->frame_interval_us) / 16;
+		} else {
+			stats->frame_interval_us = interval;
+		}
+		strmh->stats_last_interval_us = interval;
+	}
+	strmh->stats_last_frame_us = now;
+	if (now - strmh->stats_window_start_us >= 1000000) {
+		stats->bytes_per_second = strmh->stats_window_bytes * 1000000 / (now - strmh->stats_window_start_us);
+		strmh->stats_window_start_us = now;
+		strmh->stats_window_bytes = 0;
+	}
+}
+
+static inline int64_t _uvc_ticks_to_us(const int64_t ticks, const uint32_t freq) {
+	return (ticks / freq) * 1000000LL + (ticks % freq) * 1000000LL / freq;
+}
+
+/** @internal
+ * @brief Estimate host monotonic time when the device captured the current frame
+ * PTS is translated with STC of SCR in the first payload of the frame and its receive time.
+ * Receive time includes variable delay of USB transfers and scheduling,
+ * so the least (host time - device time) in the last 1-2 seconds is used as the offset between both clocks.
+ * called on the thread handling libusb events
+ * @return payload_time_us if the device does not send PTS/SCR
+ */
+static uint64_t _uvc_presentation_time(uvc_stream_handle_t *strmh, const uint64_t now) {
+	const uint32_t freq = strmh->clock_freq;
+	if (!freq || !strmh->pts || !strmh->frame_has_scr || !strmh->payload_time_us)
+		return strmh->payload_time_us;
+
+	if (LIKELY(strmh->clock_valid)) {
+		// STC is 32 bits and wraps around, but frames come far more often than that
+		strmh->stc_ext += (uint32_t)(strmh->frame_stc - strmh->last_stc);
+	} else {
+		strmh->stc_ext = strmh->frame_stc;
+	}
+	strmh->last_stc = strmh->frame_stc;
+	const int64_t offset = (int64_t)strmh->payload_time_us - _uvc_ticks_to_us(strmh->stc_ext, freq);
+	if (UNLIKELY(!strmh->clock_valid)) {
+		strmh->clock_offset_min_us = strmh->clock_offset_prev_min_us = offset;
+		strmh->clock_window_start_us = now;
+		strmh->clock_valid = 1;
+	} else if (now - strmh->clock_window_start_us >= 1000000) {
+		// start new window to follow drift between both clocks
+		strmh->clock_offset_prev_min_us = strmh->clock_offset_min_us;
+		strmh->clock_offset_min_us = offset;
+		strmh->clock_window_start_us = now;
+	} else if (offset < strmh->clock_offset_min_us) {
+		strmh->clock_offset_min_us = offset;
+	}
+	const int64_t offset_us = strmh->clock_offset_min_us < strmh->clock_offset_prev_min_us
+		? strmh->clock_offset_min_us : strmh->clock_offset_prev_min_us;
+	// PTS is sampled before STC of the payload in the same device clock
+	const int64_t pts_ext = strmh->stc_ext - (int32_t)(strmh->frame_stc - strmh->pts);
+	const int64_t result = _uvc_ticks_to_us(pts_ext, freq) + offset_us;
+	return result > 0 ? (uint64_t)result : strmh->payload_time_us;
+}
+
 /** @internal
  * @brief Swap the working buffer with the presented buffer and notify consumers
  */
 static void _uvc_swap_buffers(uvc_stream_handle_t *strmh) {
 	uint8_t *tmp_buf;
+	uvc_frame_t *drop_frame = NULL;
+	const uint64_t now = _uvc_now_us();
+	const uint64_t presentation_time_us = _uvc_presentation_time(strmh, now);
 
 	pthread_mutex_lock(&strmh->cb_mutex);
 	{
-		/* swap the buffers */
-		tmp_buf = strmh->holdbuf;
+		if (strmh->frame_obtain) {
+			/* hand over the working frame itself,
+			 * previous one is dropped if the user callback thread has not taken it yet */
+			drop_frame = strmh->hold_frame;
+			strmh->hold_frame = strmh->out_frame;
+			strmh->holdbuf = strmh->outbuf;
+			strmh->out_frame = NULL;
+			strmh->outbuf = NULL;
+		} else {
+			/* swap the buffers */
+			tmp_buf = strmh->holdbuf;
+			strmh->holdbuf = strmh->outbuf;
+			strmh->outbuf = tmp_buf;
+		}
 		strmh->hold_bfh_err = strmh->bfh_err;	// XXX
 		strmh->hold_bytes = strmh->got_bytes;
-		strmh->holdbuf = strmh->outbuf;
-		strmh->outbuf = tmp_buf;
 		strmh->hold_last_scr = strmh->last_scr;
 		strmh->hold_pts = strmh->pts;
 		strmh->hold_seq = strmh->seq;
+		strmh->hold_payload_time_us = strmh->payload_time_us;
+		strmh->hold_complete_time_us = now;
+		strmh->hold_presentation_time_us = presentation_time_us;
 
 		pthread_cond_broadcast(&strmh->cb_cond);
 	}
 	pthread_mutex_unlock(&strmh->cb_mutex);
 
+	if (strmh->frame_obtain) {
+		if (drop_frame)
+			strmh->frame_recycle(drop_frame, strmh->user_ptr);
+		_uvc_prepare_out_frame(strmh);
+	}
+	const int incomplete = strmh->bfh_err || (strmh->got_bytes < strmh->min_frame_bytes);
+	if (drop_frame)
+		strmh->stats.frames_overwritten++;
+	_uvc_update_frame_stats(strmh, incomplete, now);
+	if (strmh->adaptive_transfers) {
+		_uvc_adapt_transfers(strmh, incomplete);
+	}
+
 	strmh->seq++;
 	strmh->got_bytes = 0;
+	strmh->payload_time_us = 0;
+	strmh->frame_has_scr = 0;
 	strmh->last_scr = 0;
 	strmh->pts = 0;
 	strmh->bfh_err = 0;	// XXX
@@ -642,7 +776,7 @@ static void _uvc_delete_transfer(struct libusb_transfer *transfer) {
 	pthread_mutex_lock(&strmh->cb_mutex);	// XXX crash while calling uvc_stop_streaming
 	{
 		// Mark transfer as deleted.
-		for (i = 0; i < LIBUVC_NUM_TRANSFER_BUFS; i++) {
+		for (i = 0; i < LIBUVC_MAX_TRANSFER_BUFS; i++) {
 			if (strmh->transfers[i] == transfer) {
 				libusb_cancel_transfer(strmh->transfers[i]);	// XXX 20141112追加
 				UVC_DEBUG("Freeing transfer %d (%p)", i, transfer);
@@ -652,7 +786,7 @@ static void _uvc_delete_transfer(struct libusb_transfer *transfer) {
 				break;
 			}
 		}
-		if (UNLIKELY(i == LIBUVC_NUM_TRANSFER_BUFS)) {
+		if (UNLIKELY(i == LIBUVC_MAX_TRANSFER_BUFS)) {
 			UVC_DEBUG("transfer %p not found; not freeing!", transfer);
 		}
 
@@ -689,8 +823,20 @@ static void _uvc_process_payload(uvc_stream_handle_t *strmh, const uint8_t *payl
 	};
 
 	// ignore empty payload transfers
-	if (UNLIKELY(!payload || !payload_len || !strmh->outbuf))
+	if (UNLIKELY(!payload || !payload_len))
 		return;
+	strmh->stats.bytes += payload_len;
+	strmh->stats_window_bytes += payload_len;
+
+	if (UNLIKELY(!strmh->outbuf)) {
+		if (strmh->frame_obtain) {
+			// retry because the frame pool was empty, the frame lost its head payloads
+			_uvc_prepare_out_frame(strmh);
+			strmh->bfh_err |= UVC_STREAM_ERR;
+		}
+		if (UNLIKELY(!strmh->outbuf))
+			return;
+	}
 
 	/* Certain iSight cameras have strange behavior: They send header
 	 * information in a packet with no image data, and then the following
@@ -711,6 +857,7 @@ static void _uvc_process_payload(uvc_stream_handle_t *strmh, const uint8_t *payl
 
 		if (UNLIKELY(header_len > payload_len)) {
 			strmh->bfh_err |= UVC_STREAM_ERR;
+			strmh->stats.bogus_headers++;
 			UVC_DEBUG("bogus packet: actual_len=%zd, header_len=%zd\n", payload_len, header_len);
 			return;
 		}
@@ -731,6 +878,7 @@ static void _uvc_process_payload(uvc_stream_handle_t *strmh, const uint8_t *payl
 
 		if (UNLIKELY(header_info & UVC_STREAM_ERR)) {
 //			strmh->bfh_err |= UVC_STREAM_ERR;
+			strmh->stats.header_errors++;
 			UVC_DEBUG("bad packet: error bit set");
 			libusb_clear_halt(strmh->devh->usb_devh, strmh->stream_if->bEndpointAddress);
 //			uvc_vc_get_error_code(strmh->devh, &vc_error_code, UVC_GET_CUR);
@@ -764,6 +912,11 @@ static void _uvc_process_payload(uvc_stream_handle_t *strmh, const uint8_t *payl
 			if (LIKELY(variable_offset + 4 <= header_len)) {
 				strmh->last_scr = DW_TO_INT(payload + variable_offset);
 				variable_offset += 4;
+				if (!strmh->frame_has_scr) {
+					// keep STC of the first SCR of the frame to translate PTS into host time
+					strmh->frame_stc = strmh->last_scr;
+					strmh->frame_has_scr = 1;
+				}
 			} else {
 				MARK("bogus packet: header info has UVC_STREAM_SCR, but no data");
 				strmh->last_scr = 0;
@@ -772,6 +925,8 @@ static void _uvc_process_payload(uvc_stream_handle_t *strmh, const uint8_t *payl
 	}
 
 	if (LIKELY(data_len > 0)) {
+		if (!strmh->payload_time_us)
+			strmh->payload_time_us = _uvc_now_us();
 		if (LIKELY(strmh->got_bytes + data_len < strmh->size_buf)) {
 			memcpy(strmh->outbuf + strmh->got_bytes, payload + header_len, data_len);
 			strmh->got_bytes += data_len;
@@ -824,6 +979,12 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 	uvc_vc_error_code_control_t vc_error_code;
 	uvc_vs_error_code_control_t vs_error_code;
 
+	if (UNLIKELY(!strmh->outbuf && strmh->frame_obtain)) {
+		// retry because the frame pool was empty, the frame lost its head payloads
+		_uvc_prepare_out_frame(strmh);
+		strmh->bfh_err |= UVC_STREAM_ERR;
+	}
+
 	for (packet_id = 0; packet_id < transfer->num_iso_packets; ++packet_id) {
 		check_header = 1;
 
@@ -831,6 +992,7 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 
 		if (UNLIKELY(pkt->status != 0)) {
 			MARK("bad packet:status=%d,actual_length=%d", pkt->status, pkt->actual_length);
+			strmh->stats.iso_packet_errors++;
 			strmh->bfh_err |= UVC_STREAM_ERR;
 			libusb_clear_halt(strmh->devh->usb_devh, strmh->stream_if->bEndpointAddress);
 //			uvc_vc_get_error_code(strmh->devh, &vc_error_code, UVC_GET_CUR);
@@ -843,6 +1005,8 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 //			strmh->bfh_err |= UVC_STREAM_ERR;	// don't set this flag here
 			continue;
 		}
+		strmh->stats.bytes += pkt->actual_length;
+		strmh->stats_window_bytes += pkt->actual_length;
 		// XXX accessing to pktbuf could lead to crash on the original implementation
 		// because the substances of pktbuf will be deleted in uvc_stream_stop.
 		pktbuf = libusb_get_iso_packet_buffer_simple(transfer, packet_id);
@@ -871,6 +1035,7 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 				header_info = pktbuf[1];
 				if (UNLIKELY(header_info & UVC_STREAM_ERR)) {
 //					strmh->bfh_err |= UVC_STREAM_ERR;
+					strmh->stats.header_errors++;
 					MARK("bad packet:status=0x%2x", header_info);
 					libusb_clear_halt(strmh->devh->usb_devh, strmh->stream_if->bEndpointAddress);
 //					uvc_vc_get_error_code(strmh->devh, &vc_error_code, UVC_GET_CUR);
@@ -905,6 +1070,11 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 					// XXX saki some camera may send broken packet or failed to receive all data
 					if (LIKELY(header_len >= 10)) {
 						strmh->last_scr = DW_TO_INT(pktbuf + 6);
+						if (!strmh->frame_has_scr) {
+							// keep STC of the first SCR of the frame to translate PTS into host time
+							strmh->frame_stc = strmh->last_scr;
+							strmh->frame_has_scr = 1;
+						}
 					} else {
 						MARK("bogus packet: header info has UVC_STREAM_SCR, but no data");
 						strmh->last_scr = 0;
@@ -925,6 +1095,7 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 			if (UNLIKELY(pkt->actual_length < header_len)) {
 				/* Bogus packet received */
 				strmh->bfh_err |= UVC_STREAM_ERR;
+				strmh->stats.bogus_headers++;
 				MARK("bogus packet: actual_len=%d, header_len=%zd", pkt->actual_length, header_len);
 				continue;
 			}
@@ -935,11 +1106,15 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 			// from "if (pkt->actual_length - header_len > 0)"
 			if (LIKELY(pkt->actual_length > header_len)) {
 				const size_t odd_bytes = pkt->actual_length - header_len;
-				assert(strmh->got_bytes + odd_bytes < strmh->size_buf);
-				assert(strmh->outbuf);
-				assert(pktbuf);
-				memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
-				strmh->got_bytes += odd_bytes;
+				if (!strmh->payload_time_us)
+					strmh->payload_time_us = _uvc_now_us();
+				// frames from the user's frame pool are not so large as LIBUVC_XFER_BUF_SIZE
+				if (LIKELY(strmh->outbuf && (strmh->got_bytes + odd_bytes < strmh->size_buf))) {
+					memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
+					strmh->got_bytes += odd_bytes;
+				} else {
+					strmh->bfh_err |= UVC_STREAM_ERR;
+				}
 			}
 #ifdef USE_EOF
 			if ((pktbuf[1] & UVC_STREAM_EOF) && strmh->got_bytes != 0) {
@@ -956,6 +1131,98 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 }
 #endif
 
+/** @internal
+ * @brief Allocate a transfer and its buffer with the parameters decided in uvc_stream_start_bandwidth
+ * @param transfer_id index of unused slot of strmh->transfers
+ */
+static struct libusb_transfer *_uvc_alloc_transfer(uvc_stream_handle_t *strmh, const int transfer_id) {
+	struct libusb_transfer *transfer = libusb_alloc_transfer(strmh->isochronous ? strmh->packets_per_transfer : 0);
+	uint8_t *buf = transfer ? malloc(strmh->transfer_bytes) : NULL;
+	if (UNLIKELY(!buf)) {
+		if (transfer)
+			libusb_free_transfer(transfer);
+		return NULL;
+	}
+	if (strmh->isochronous) {
+		libusb_fill_iso_transfer(transfer, strmh->devh->usb_devh,
+			strmh->endpoint, buf, strmh->transfer_bytes,
+			strmh->packets_per_transfer, _uvc_stream_callback,
+			(void *)strmh, 5000);
+		libusb_set_iso_packet_lengths(transfer, strmh->packet_bytes);
+	} else {
+		libusb_fill_bulk_transfer(transfer, strmh->devh->usb_devh,
+			strmh->endpoint, buf, strmh->transfer_bytes,
+			_uvc_stream_callback, (void *)strmh, 5000);
+	}
+	strmh->transfer_bufs[transfer_id] = buf;
+	strmh->transfers[transfer_id] = transfer;
+	return transfer;
+}
+
+/* frames to evaluate at once in adaptive mode */
+#define ADAPT_WINDOW_FRAMES 30
+/* add transfers when the window has this number of incomplete frames */
+#define ADAPT_GROW_ERRORS 2
+#define ADAPT_GROW_TRANSFERS 2
+/* remove a transfer after this number of windows without any incomplete frame */
+#define ADAPT_SHRINK_WINDOWS 10
+
+/** @internal
+ * @brief Adjust the number of transfers in adaptive mode.
+ * Quickly adds transfers when frames are incomplete and slowly removes them while stable.
+ * Called on the thread handling libusb events, same as _uvc_stream_callback
+ * @param incomplete whether the frame just assembled had error or was short
+ */
+static void _uvc_adapt_transfers(uvc_stream_handle_t *strmh, const int incomplete) {
+	struct libusb_transfer *added[ADAPT_GROW_TRANSFERS];
+	int i, j, n = 0;
+
+	strmh->adapt_frames++;
+	if (incomplete)
+		strmh->adapt_errors++;
+	if (strmh->adapt_frames < ADAPT_WINDOW_FRAMES)
+		return;
+
+	if (strmh->adapt_errors >= ADAPT_GROW_ERRORS) {
+		strmh->adapt_stable_windows = 0;
+		pthread_mutex_lock(&strmh->cb_mutex);
+		{
+			for (i = j = 0; strmh->running && (i < ADAPT_GROW_TRANSFERS)
+				&& (strmh->num_transfer_bufs < LIBUVC_MAX_TRANSFER_BUFS); i++) {
+
+				if (strmh->shrink_transfers > 0) {
+					// just cancel removing
+					strmh->shrink_transfers--;
+					strmh->num_transfer_bufs++;
+					continue;
+				}
+				for (; (j < LIBUVC_MAX_TRANSFER_BUFS) && strmh->transfers[j]; j++) {}
+				if (UNLIKELY((j >= LIBUVC_MAX_TRANSFER_BUFS) || !_uvc_alloc_transfer(strmh, j)))
+					break;
+				added[n++] = strmh->transfers[j];
+				strmh->num_transfer_bufs++;
+			}
+		}
+		pthread_mutex_unlock(&strmh->cb_mutex);
+		for (i = 0; i < n; i++) {
+			if (UNLIKELY(libusb_submit_transfer(added[i]))) {
+				strmh->num_transfer_bufs--;
+				_uvc_delete_transfer(added[i]);
+			}
+		}
+		MARK("transfers increased:num=%d", strmh->num_transfer_bufs);
+	} else if (!strmh->adapt_errors && (++strmh->adapt_stable_windows >= ADAPT_SHRINK_WINDOWS)) {
+		strmh->adapt_stable_windows = 0;
+		if (strmh->num_transfer_bufs > LIBUVC_MIN_TRANSFER_BUFS) {
+			// released when the transfer completes next time
+			strmh->num_transfer_bufs--;
+			strmh->shrink_transfers++;
+			MARK("transfers decreased:num=%d", strmh->num_transfer_bufs);
+		}
+	}
+	strmh->adapt_frames = strmh->adapt_errors = 0;
+}
+
 /** @internal
  * @brief Isochronous transfer callback
  * 
@@ -979,6 +1246,7 @@ static void _uvc_stream_callback(struct libusb_transfer *transfer) {
 #endif
 	switch (transfer->status) {
 	case LIBUSB_TRANSFER_COMPLETED:
+		strmh->stats.transfers_completed++;
 		if (!transfer->num_iso_packets) {
 			/* This is a bulk mode transfer, so it just has one payload transfer */
 			_uvc_process_payload(strmh, transfer->buffer, transfer->actual_length);
@@ -990,8 +1258,10 @@ static void _uvc_stream_callback(struct libusb_transfer *transfer) {
 	case LIBUSB_TRANSFER_NO_DEVICE:
 		strmh->running = 0;	// this needs for unexpected disconnect of cable otherwise hangup
 		// pass through to following lines
-	case LIBUSB_TRANSFER_CANCELLED:
 	case LIBUSB_TRANSFER_ERROR:
+		strmh->stats.transfers_failed++;
+		// pass through to following lines
+	case LIBUSB_TRANSFER_CANCELLED:
 		UVC_DEBUG("not retrying transfer, status = %d", transfer->status);
 //		MARK("not retrying transfer, status = %d", transfer->status);
 //		_uvc_delete_transfer(transfer);
@@ -1000,11 +1270,17 @@ static void _uvc_stream_callback(struct libusb_transfer *transfer) {
 	case LIBUSB_TRANSFER_TIMED_OUT:
 	case LIBUSB_TRANSFER_STALL:
 	case LIBUSB_TRANSFER_OVERFLOW:
+		strmh->stats.transfers_failed++;
 		UVC_DEBUG("retrying transfer, status = %d", transfer->status);
 //		MARK("retrying transfer, status = %d", transfer->status);
 		break;
 	}
 
+	if (UNLIKELY(resubmit && (strmh->shrink_transfers > 0))) {
+		// adaptive mode reduces transfers, do not reuse this one
+		strmh->shrink_transfers--;
+		resubmit = 0;
+	}
 	if (LIKELY(strmh->running && resubmit)) {
 		libusb_submit_transfer(transfer);
 	} else {
@@ -1343,11 +1619,17 @@ uvc_error_t uvc_stream_open_ctrl(uvc_device_handle_t *devh,
 	strmh->outbuf = malloc(LIBUVC_XFER_BUF_SIZE);
 	strmh->holdbuf = malloc(LIBUVC_XFER_BUF_SIZE);
 	strmh->size_buf = LIBUVC_XFER_BUF_SIZE;	// xxx for boundary check
+	strmh->xfer_bufs[0] = strmh->outbuf;
+	strmh->xfer_bufs[1] = strmh->holdbuf;
 
 	pthread_mutex_init(&strmh->cb_mutex, NULL);
 	pthread_cond_init(&strmh->cb_cond, NULL);
 
-	DL_APPEND(devh->streams, strmh);
+	pthread_mutex_lock(&devh->streams_mutex);
+	{
+		DL_APPEND(devh->streams, strmh);
+	}
+	pthread_mutex_unlock(&devh->streams_mutex);
 
 	*strmhp = strmh;
 
@@ -1395,7 +1677,6 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 	uvc_error_t ret;
 	/* Total amount of data per transfer */
 	size_t total_transfer_size;
-	struct libusb_transfer *transfer;
 	int transfer_id;
 
 	ctrl = &strmh->cur_ctrl;
@@ -1408,6 +1689,17 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 	}
 
 	strmh->running = 1;
+	memset(&strmh->stats, 0, sizeof(strmh->stats));
+	strmh->stats_window_start_us = _uvc_now_us();
+	strmh->stats_window_bytes = 0;
+	strmh->stats_last_frame_us = 0;
+	strmh->stats_last_interval_us = 0;
+	strmh->payload_time_us = 0;
+	strmh->frame_has_scr = 0;
+	strmh->clock_valid = 0;
+	// dwClockFrequency of probe/commit control is available since UVC 1.1
+	strmh->clock_freq = strmh->cur_ctrl.dwClockFrequency
+		? strmh->cur_ctrl.dwClockFrequency : strmh->devh->info->ctrl_if.dwClockFrequency;
 	strmh->seq = 0;
 	strmh->fid = 0;
 	strmh->pts = 0;
@@ -1430,6 +1722,15 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 	}
 	const uint32_t dwMaxVideoFrameSize = ctrl->dwMaxVideoFrameSize <= frame_desc->dwMaxVideoFrameBufferSize
 		? ctrl->dwMaxVideoFrameSize : frame_desc->dwMaxVideoFrameBufferSize;
+	// number of transfers and limit of packets per transfer set with uvc_set_transfer_config
+	const int num_transfers = strmh->devh->num_transfer_bufs > 0
+		? (strmh->devh->num_transfer_bufs < LIBUVC_MAX_TRANSFER_BUFS
+			? strmh->devh->num_transfer_bufs : LIBUVC_MAX_TRANSFER_BUFS)
+		: LIBUVC_NUM_TRANSFER_BUFS;
+	const size_t max_packets = strmh->devh->packets_per_transfer > 0
+		? (strmh->devh->packets_per_transfer < LIBUVC_MAX_PACKETS_PER_TRANSFER
+			? strmh->devh->packets_per_transfer : LIBUVC_MAX_PACKETS_PER_TRANSFER)
+		: LIBUVC_NUM_PACKETS_PER_TRANSFER;
 
 	// Get the interface that provides the chosen format and frame configuration
 	interface_id = strmh->stream_if->bInterfaceNumber;
@@ -1456,9 +1757,6 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 		size_t endpoint_bytes_per_packet;
 		/* Index of the altsetting */
 		int alt_idx, ep_idx;
-
-		struct libusb_transfer *transfer;
-		int transfer_id;
 		
 		if ((bandwidth_factor > 0) && (bandwidth_factor < 1.0f)) {
 			config_bytes_per_packet = (size_t)(strmh->cur_ctrl.dwMaxPayloadTransferSize * bandwidth_factor);
@@ -1516,8 +1814,8 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 							/ endpoint_bytes_per_packet;		// XXX cashed by zero divided exception occured
 
 					/* But keep a reasonable limit: Otherwise we start dropping data */
-					if (packets_per_transfer > 32)
-						packets_per_transfer = 32;
+					if (packets_per_transfer > max_packets)
+						packets_per_transfer = max_packets;
 
 					total_transfer_size = packets_per_transfer * endpoint_bytes_per_packet;
 					break;
@@ -1551,39 +1849,48 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 			goto fail;
 		}
 
-		/* Set up the transfers */
-		MARK("Set up the transfers");
-		for (transfer_id = 0; transfer_id < LIBUVC_NUM_TRANSFER_BUFS; ++transfer_id) {
-			transfer = libusb_alloc_transfer(packets_per_transfer);
-			strmh->transfers[transfer_id] = transfer;
-			strmh->transfer_bufs[transfer_id] = malloc(total_transfer_size);
-
-			libusb_fill_iso_transfer(transfer, strmh->devh->usb_devh,
-				format_desc->parent->bEndpointAddress,
-				strmh->transfer_bufs[transfer_id], total_transfer_size,
-				packets_per_transfer, _uvc_stream_callback,
-				(void*) strmh, 5000);
-
-			libusb_set_iso_packet_lengths(transfer, endpoint_bytes_per_packet);
-		}
+		strmh->packets_per_transfer = packets_per_transfer;
+		strmh->transfer_bytes = total_transfer_size;
+		strmh->packet_bytes = endpoint_bytes_per_packet;
 	} else {
 		MARK("bulk transfer mode");
-		/** prepare for bulk transfer */
-		for (transfer_id = 0; transfer_id < LIBUVC_NUM_TRANSFER_BUFS; ++transfer_id) {
-			transfer = libusb_alloc_transfer(0);
-			strmh->transfers[transfer_id] = transfer;
-			strmh->transfer_bufs[transfer_id] = malloc(strmh->cur_ctrl.dwMaxPayloadTransferSize);
-			libusb_fill_bulk_transfer(transfer, strmh->devh->usb_devh,
-				format_desc->parent->bEndpointAddress,
-				strmh->transfer_bufs[transfer_id],
-				strmh->cur_ctrl.dwMaxPayloadTransferSize, _uvc_stream_callback,
-				(void *)strmh, 5000);
+		strmh->packets_per_transfer = 0;
+		strmh->transfer_bytes = strmh->cur_ctrl.dwMaxPayloadTransferSize;
+		strmh->packet_bytes = 0;
+	}
+	strmh->isochronous = isochronous;
+	strmh->endpoint = format_desc->parent->bEndpointAddress;
+
+	/* Set up the transfers */
+	MARK("Set up the transfers:num=%d", num_transfers);
+	strmh->num_transfer_bufs = num_transfers;
+	strmh->adaptive_transfers = strmh->devh->num_transfer_bufs < 0;
+	strmh->shrink_transfers = 0;
+	strmh->adapt_frames = strmh->adapt_errors = strmh->adapt_stable_windows = 0;
+	strmh->min_frame_bytes = (strmh->frame_format == UVC_FRAME_FORMAT_YUYV)
+		|| (strmh->frame_format == UVC_FRAME_FORMAT_UYVY)
+			? frame_desc->wWidth * frame_desc->wHeight * 2 : 0;
+	for (transfer_id = 0; transfer_id < num_transfers; ++transfer_id) {
+		if (UNLIKELY(!_uvc_alloc_transfer(strmh, transfer_id))) {
+			ret = UVC_ERROR_NO_MEM;
+			goto fail;
 		}
 	}
 
 	strmh->user_cb = cb;
 	strmh->user_ptr = user_ptr;
 
+	if (cb && strmh->devh->frame_obtain && strmh->devh->frame_recycle) {
+		/* assemble payloads into frames of the user's frame pool directly.
+		 * some cameras send frames larger than dwMaxVideoFrameSize, so at least 2 bytes/pixel */
+		const size_t frame_bytes = frame_desc->wWidth * frame_desc->wHeight * 2;
+		strmh->frame_obtain = strmh->devh->frame_obtain;
+		strmh->frame_recycle = strmh->devh->frame_recycle;
+		strmh->pool_frame_bytes = dwMaxVideoFrameSize > frame_bytes ? dwMaxVideoFrameSize : frame_bytes;
+		strmh->got_bytes = 0;
+		_uvc_prepare_out_frame(strmh);
+	}
+
 	/* If the user wants it, set up a thread that calls the user's function
 	 * with the contents of each frame.
 	 */
@@ -1592,7 +1899,7 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 		pthread_create(&strmh->cb_thread, NULL, _uvc_user_caller, (void*) strmh);
 	}
 	MARK("submit transfers");
-	for (transfer_id = 0; transfer_id < LIBUVC_NUM_TRANSFER_BUFS; transfer_id++) {
+	for (transfer_id = 0; transfer_id < num_transfers; transfer_id++) {
 		ret = libusb_submit_transfer(strmh->transfers[transfer_id]);
 		if (UNLIKELY(ret != UVC_SUCCESS)) {
 			UVC_DEBUG("libusb_submit_transfer failed");
@@ -1639,6 +1946,8 @@ static void *_uvc_user_caller(void *arg) {
 	uvc_stream_handle_t *strmh = (uvc_stream_handle_t *) arg;
 
 	uint32_t last_seq = 0;
+	uvc_frame_t *frame;
+	uint8_t bfh_err;
 
 	for (; 1 ;) {
 		pthread_mutex_lock(&strmh->cb_mutex);
@@ -1652,26 +1961,40 @@ static void *_uvc_user_caller(void *arg) {
 				break;
 			}
 
+			if (!strmh->frame_obtain && (strmh->hold_seq - last_seq > 1))
+				strmh->stats.frames_overwritten += strmh->hold_seq - last_seq - 1;
 			last_seq = strmh->hold_seq;
-			if (LIKELY(!strmh->hold_bfh_err))	// XXX
-				_uvc_populate_frame(strmh);
+			bfh_err = strmh->hold_bfh_err;
+			if (strmh->frame_obtain) {
+				// take the assembled frame itself, the user callback function owns it
+				frame = strmh->hold_frame;
+				strmh->hold_frame = NULL;
+				strmh->holdbuf = NULL;
+				if (LIKELY(frame && !bfh_err))
+					_uvc_populate_frame_info(strmh, frame);
+			} else {
+				frame = &strmh->frame;
+				if (LIKELY(!bfh_err))	// XXX
+					_uvc_populate_frame(strmh);
+			}
 		}
 		pthread_mutex_unlock(&strmh->cb_mutex);
 
-		if (LIKELY(!strmh->hold_bfh_err))	// XXX
-			strmh->user_cb(&strmh->frame, strmh->user_ptr);	// call user callback function
+		if (LIKELY(frame && !bfh_err)) {	// XXX
+			strmh->user_cb(frame, strmh->user_ptr);	// call user callback function
+		} else if (frame && (frame != &strmh->frame)) {
+			strmh->frame_recycle(frame, strmh->user_ptr);
+		}
 	}
 
 	return NULL; // return value ignored
 }
 
 /** @internal
- * @brief Populate the fields of a frame to be handed to user code
+ * @brief Populate the fields of a frame to be handed to user code except image data
  * must be called with stream cb lock held!
  */
-void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
-	size_t alloc_size = strmh->cur_ctrl.dwMaxVideoFrameSize;
-	uvc_frame_t *frame = &strmh->frame;
+static void _uvc_populate_frame_info(uvc_stream_handle_t *strmh, uvc_frame_t *frame) {
 	uvc_frame_desc_t *frame_desc;
 
 	/** @todo this stuff that hits the main config cache should really happen
@@ -1700,6 +2023,20 @@ void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
 		frame->step = 0;
 		break;
 	}
+	frame->sequence = strmh->hold_seq;
+	frame->payload_time_us = strmh->hold_payload_time_us;
+	frame->complete_time_us = strmh->hold_complete_time_us;
+	frame->presentation_time_us = strmh->hold_presentation_time_us;
+}
+
+/** @internal
+ * @brief Populate the fields of a frame to be handed to user code
+ * must be called with stream cb lock held!
+ */
+void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
+	uvc_frame_t *frame = &strmh->frame;
+
+	_uvc_populate_frame_info(strmh, frame);
 
 	/* copy the image data from the hold buffer to the frame (unnecessary extra buf?) */
 	if (UNLIKELY(frame->data_bytes < strmh->hold_bytes)) {
@@ -1776,6 +2113,26 @@ uvc_error_t uvc_stream_get_frame(uvc_stream_handle_t *strmh,
 	return UVC_SUCCESS;
 }
 
+/** @internal
+ * @brief Return frames to the user's frame pool and restore the library's buffers
+ * must be called after the user callback thread finished
+ */
+static void _uvc_release_pool_frames(uvc_stream_handle_t *strmh) {
+	if (strmh->frame_obtain) {
+		if (strmh->out_frame)
+			strmh->frame_recycle(strmh->out_frame, strmh->user_ptr);
+		if (strmh->hold_frame)
+			strmh->frame_recycle(strmh->hold_frame, strmh->user_ptr);
+		strmh->out_frame = strmh->hold_frame = NULL;
+		strmh->outbuf = strmh->xfer_bufs[0];
+		strmh->holdbuf = strmh->xfer_bufs[1];
+		strmh->size_buf = LIBUVC_XFER_BUF_SIZE;
+		strmh->got_bytes = 0;
+		strmh->frame_obtain = NULL;
+		strmh->frame_recycle = NULL;
+	}
+}
+
 /** @brief Stop streaming video
  * @ingroup streaming
  *
@@ -1794,6 +2151,107 @@ void uvc_stop_streaming(uvc_device_handle_t *devh) {
 	UVC_EXIT_VOID();
 }
 
+/** @brief Set frame pool to assemble incoming payloads into
+ * @ingroup streaming
+ *
+ * Streams started with a callback function after this call assemble payloads
+ * into frames obtained with @p obtain instead of the library's buffers
+ * and pass them to the callback function without copying.
+ * The callback function owns the passed frame and should return it to the pool by itself.
+ * Frames that are not passed to the callback function are returned with @p recycle.
+ * Both functions are called with user_ptr of the stream.
+ *
+ * @param devh UVC device
+ * @param obtain function to get a frame that has at least data_bytes, NULL to disable
+ * @param recycle function to return a frame that the callback function did not receive
+ */
+void uvc_set_frame_pool(uvc_device_handle_t *devh,
+		uvc_frame_obtain_t *obtain, uvc_frame_recycle_t *recycle) {
+	UVC_ENTER();
+
+	devh->frame_obtain = obtain;
+	devh->frame_recycle = recycle;
+
+	UVC_EXIT_VOID();
+}
+
+/** @brief Set the number of transfers and packets per transfer
+ * @ingroup streaming
+ *
+ * This is applied to streams started after this call.
+ * More transfers are robust to scheduling delays under load,
+ * fewer transfers and packets reduce latency and memory usage.
+ *
+ * @param devh UVC device
+ * @param num_transfers [LIBUVC_MIN_TRANSFER_BUFS, LIBUVC_MAX_TRANSFER_BUFS], 0 for the default,
+ * 	or UVC_TRANSFER_BUFS_ADAPTIVE to start with the default and adjust it by incomplete frames while streaming
+ * @param packets_per_transfer upper limit of packets per isochronous transfer
+ * 	[1, LIBUVC_MAX_PACKETS_PER_TRANSFER], 0 for the default
+ */
+void uvc_set_transfer_config(uvc_device_handle_t *devh,
+		int num_transfers, int packets_per_transfer) {
+	UVC_ENTER();
+
+	if ((num_transfers > 0) && (num_transfers < LIBUVC_MIN_TRANSFER_BUFS))
+		num_transfers = LIBUVC_MIN_TRANSFER_BUFS;
+	devh->num_transfer_bufs = num_transfers;
+	devh->packets_per_transfer = packets_per_transfer;
+
+	UVC_EXIT_VOID();
+}
+
+/** @brief Get statistics of the stream since it started
+ * @ingroup streaming
+ *
+ * Values are updated while streaming without lock, so they may be slightly inconsistent each other.
+ *
+ * @param strmh UVC stream
+ * @param[out] stats
+ */
+uvc_error_t uvc_stream_get_stats(uvc_stream_handle_t *strmh, uvc_stream_stats_t *stats) {
+	if (UNLIKELY(!strmh || !stats))
+		return UVC_ERROR_INVALID_PARAM;
+
+	*stats = strmh->stats;
+	stats->num_transfers = strmh->num_transfer_bufs;
+	return UVC_SUCCESS;
+}
+
+/** @brief Get statistics of the first stream of the device
+ * @ingroup streaming
+ *
+ * This can be called from any thread, the stream list is locked while reading
+ * and the snapshot is taken under the lock of the stream.
+ *
+ * @param devh UVC device
+ * @param[out] stats
+ * @return UVC_ERROR_NOT_FOUND if the device has no opened stream,
+ * 	UVC_ERROR_INVALID_MODE if the stream is not streaming
+ */
+uvc_error_t uvc_get_stream_stats(uvc_device_handle_t *devh, uvc_stream_stats_t *stats) {
+	if (UNLIKELY(!devh || !stats))
+		return UVC_ERROR_INVALID_PARAM;
+
+	uvc_error_t ret = UVC_ERROR_NOT_FOUND;
+	pthread_mutex_lock(&devh->streams_mutex);
+	{
+		uvc_stream_handle_t *strmh = devh->streams;
+		if (strmh) {
+			pthread_mutex_lock(&strmh->cb_mutex);
+			{
+				if (LIKELY(strmh->running)) {
+					ret = uvc_stream_get_stats(strmh, stats);
+				} else {
+					ret = UVC_ERROR_INVALID_MODE;
+				}
+			}
+			pthread_mutex_unlock(&strmh->cb_mutex);
+		}
+	}
+	pthread_mutex_unlock(&devh->streams_mutex);
+	return ret;
+}
+
 /** @brief Stop stream.
  * @ingroup streaming
  *
@@ -1817,7 +2275,7 @@ uvc_error_t uvc_stream_stop(uvc_stream_handle_t *strmh) {
 
 	pthread_mutex_lock(&strmh->cb_mutex);
 	{
-		for (i = 0; i < LIBUVC_NUM_TRANSFER_BUFS; i++) {
+		for (i = 0; i < LIBUVC_MAX_TRANSFER_BUFS; i++) {
 			if (strmh->transfers[i]) {
 				int res = libusb_cancel_transfer(strmh->transfers[i]);
 				if ((res < 0) && (res != LIBUSB_ERROR_NOT_FOUND)) {
@@ -1835,11 +2293,11 @@ uvc_error_t uvc_stream_stop(uvc_stream_handle_t *strmh) {
 
 		/* Wait for transfers to complete/cancel */
 		for (; 1 ;) {
-			for (i = 0; i < LIBUVC_NUM_TRANSFER_BUFS; i++) {
+			for (i = 0; i < LIBUVC_MAX_TRANSFER_BUFS; i++) {
 				if (strmh->transfers[i] != NULL)
 					break;
 			}
-			if (i == LIBUVC_NUM_TRANSFER_BUFS)
+			if (i == LIBUVC_MAX_TRANSFER_BUFS)
 				break;
 			pthread_cond_wait(&strmh->cb_cond, &strmh->cb_mutex);
 		}
@@ -1855,6 +2313,8 @@ uvc_error_t uvc_stream_stop(uvc_stream_handle_t *strmh) {
 		pthread_join(strmh->cb_thread, NULL);
 	}
 
+	_uvc_release_pool_frames(strmh);
+
 	RETURN(UVC_SUCCESS, uvc_error_t);
 }
 
@@ -1873,7 +2333,16 @@ void uvc_stream_close(uvc_stream_handle_t *strmh) {
 	if (strmh->running)
 		uvc_stream_stop(strmh);
 
+	// remove from the list first so that uvc_get_stream_stats never touches the stream being freed
+	pthread_mutex_lock(&strmh->devh->streams_mutex);
+	{
+		DL_DELETE(strmh->devh->streams, strmh);
+	}
+	pthread_mutex_unlock(&strmh->devh->streams_mutex);
+
 	uvc_release_if(strmh->devh, strmh->stream_if->bInterfaceNumber);
+	// stream could be closed without stopping when it failed to start
+	_uvc_release_pool_frames(strmh);
 
 	if (strmh->frame.data) {
 		free(strmh->frame.data);
@@ -1892,7 +2361,6 @@ void uvc_stream_close(uvc_stream_handle_t *strmh) {
 	pthread_cond_destroy(&strmh->cb_cond);
 	pthread_mutex_destroy(&strmh->cb_mutex);
 
-	DL_DELETE(strmh->devh->streams, strmh);
 	free(strmh);
 
 	UVC_EXIT_VOID();
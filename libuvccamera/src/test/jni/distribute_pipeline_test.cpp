@@ -0,0 +1,182 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: distribute_pipeline_test.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+// host test of UVCCamera/pipeline/DistributePipeline.cpp with a fast branch and a slow branch.
+// frames are shared by the branches with reference counting, so frames that the slow branch holds
+// are not available to the root pipeline until it releases them. this checks that the slow branch
+// drops frames only for itself when the root pipeline has enough frames for all branches,
+// and that it starves the other branch when the root pipeline does not.
+
+// pipeline headers have "#pragma interface", gcc emits their vtables only in this file
+#pragma implementation "IPipeline.h"
+#pragma implementation "AbstractBufferedPipeline.h"
+#pragma implementation "DistributePipeline.h"
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdint.h>
+#include <unistd.h>
+#include "utilbase.h"
+#include "libUVCCamera.h"
+#include "DistributePipeline.h"
+
+#define WIDTH 64
+#define HEIGHT 48
+#define FRAME_BYTES (WIDTH * HEIGHT * 2)
+#define NUM_FRAMES 40
+#define FRAME_INTERVAL_US 10000
+#define BRANCH_DEPTH 4
+#define SLOW_HANDLE_US 100000
+
+static int failures = 0;
+
+// register_distribute_pipeline refers this that is defined in serenegiant_usb_UVCCamera.cpp
+jint registerNativeMethods(JNIEnv *env, const char *class_name, JNINativeMethod *methods, int num_methods) {
+	return JNI_ERR;
+}
+
+// nativeAddPipeline/nativeRemovePipeline refer this that is defined in pipeline_helper.cpp
+IPipeline *getPipeline(JNIEnv *env, jobject pipeline_obj) {
+	return NULL;
+}
+
+#define EXPECT(cond) do { \
+	if (!(cond)) { \
+		fprintf(stderr, "%s:%d:EXPECT(%s) failed\n", __FILE__, __LINE__, #cond); \
+		failures++; \
+	} \
+} while (0)
+
+/**
+ * branch pipeline that counts frames and takes handle_us for each frame
+ */
+class CountingPipeline : virtual public AbstractBufferedPipeline {
+private:
+	const useconds_t handle_us;
+	volatile uint32_t received;
+protected:
+	virtual void on_start() {}
+	virtual void on_stop() {}
+	virtual int handle_frame(uvc_frame_t *frame) {
+		received++;
+		if (handle_us) {
+			usleep(handle_us);
+		}
+		return 1;	// end of the chain
+	}
+public:
+	CountingPipeline(const int &depth, const useconds_t &_handle_us)
+	:	IPipeline(FRAME_BYTES),
+		AbstractBufferedPipeline(depth, DEFAULT_INIT_FRAME_POOL_SZ, FRAME_BYTES),
+		handle_us(_handle_us),
+		received(0) {
+		setState(PIPELINE_STATE_INITIALIZED);
+	}
+	virtual ~CountingPipeline() {}
+	inline uint32_t getReceived() const { return received; }
+};
+
+typedef struct distribute_result {
+	uint32_t root_dropped;	// frames that the root pipeline could not queue
+	uint32_t fast_received;
+	uint32_t slow_received;
+} distribute_result_t;
+
+static void run_distribute(const int &root_depth, distribute_result_t &result) {
+	DistributePipeline *root = new DistributePipeline(root_depth, DEFAULT_INIT_FRAME_POOL_SZ, FRAME_BYTES);
+	CountingPipeline *fast = new CountingPipeline(BRANCH_DEPTH, 0);
+	CountingPipeline *slow = new CountingPipeline(BRANCH_DEPTH, SLOW_HANDLE_US);
+	root->addPipeline(fast);
+	root->addPipeline(slow);
+	fast->start();
+	slow->start();
+	root->start();
+	usleep(20000);	// let the handler threads start
+
+	uvc_frame_t *frame = uvc_allocate_frame(FRAME_BYTES);
+	frame->frame_format = UVC_FRAME_FORMAT_YUYV;
+	frame->width = WIDTH;
+	frame->height = HEIGHT;
+	frame->step = WIDTH * 2;
+	frame->actual_bytes = FRAME_BYTES;
+	memset(&result, 0, sizeof(result));
+	for (uint32_t i = 0; i < NUM_FRAMES; i++) {
+		frame->sequence = i;
+		if (root->queueFrame(frame)) {
+			result.root_dropped++;
+		}
+		usleep(FRAME_INTERVAL_US);
+	}
+	usleep(FRAME_INTERVAL_US * 5);	// let the fast branch handle the last frames
+	root->stop();
+	fast->stop();
+	slow->stop();
+	result.fast_received = fast->getReceived();
+	result.slow_received = slow->getReceived();
+	printf("root_depth=%d,root_dropped=%u,fast_received=%u,slow_received=%u\n",
+		root_depth, result.root_dropped, result.fast_received, result.slow_received);
+
+	root->removePipeline(fast);
+	root->removePipeline(slow);
+	fast->release();
+	slow->release();
+	delete fast;
+	delete slow;
+	root->release();
+	delete root;
+	uvc_free_frame(frame);
+}
+
+/**
+ * root pipeline has frames for all branches(each branch holds up to its depth + 1 frames),
+ * the slow branch drops frames that exceed its queue and the fast branch receives all frames
+ */
+static void test_slow_branch_drops_only_itself() {
+	distribute_result_t result;
+	run_distribute((BRANCH_DEPTH + 1) * 2 + 4, result);
+	EXPECT(!result.root_dropped);
+	EXPECT(result.fast_received == NUM_FRAMES);
+	EXPECT(result.slow_received < NUM_FRAMES);
+}
+
+/**
+ * the slow branch holds all frames of the root pipeline,
+ * the root pipeline drops incoming frames and the fast branch misses them too
+ */
+static void test_slow_branch_starves_others() {
+	distribute_result_t result;
+	run_distribute(BRANCH_DEPTH, result);
+	EXPECT(result.root_dropped > 0);
+	EXPECT(result.fast_received < NUM_FRAMES);
+	EXPECT(result.fast_received + result.root_dropped == NUM_FRAMES);
+}
+
+int main(int argc, char *argv[]) {
+	setvbuf(stdout, NULL, _IONBF, 0);
+	test_slow_branch_drops_only_itself();
+	test_slow_branch_starves_others();
+	printf("%s\n", failures ? "FAILED" : "OK");
+	return failures ? 1 : 0;
+}
@@ -0,0 +1,179 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: frame_simd_test.c
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+// host test harness of SIMD pixel format conversion kernels in libuvc/src/frame.c.
+// each conversion runs with the scalar code and with the SIMD kernels of the host cpu
+// (SSE2 on x86/x86_64, NEON on arm) and the results must be bit-exact.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdint.h>
+#include "libuvc/libuvc.h"
+#include "libuvc/libuvc_internal.h"
+
+#if defined(__SSE2__)
+#define TEST_KERNELS uvc_sse2_kernels
+#elif defined(__ARM_NEON__) || defined(__ARM_NEON)
+#define TEST_KERNELS uvc_neon_kernels
+#endif
+
+// this harness does not link frame-mjpeg.c(libjpeg-turbo)
+#define MJPEG_STUB(name) \
+	uvc_error_t name(uvc_frame_t *in, uvc_frame_t *out) { return UVC_ERROR_NOT_SUPPORTED; }
+MJPEG_STUB(uvc_mjpeg2bgr)
+MJPEG_STUB(uvc_mjpeg2rgb)
+MJPEG_STUB(uvc_mjpeg2rgb565)
+MJPEG_STUB(uvc_mjpeg2rgbx)
+MJPEG_STUB(uvc_mjpeg2yuyv)
+MJPEG_STUB(uvc_mjpeg2yuv420SP)
+MJPEG_STUB(uvc_mjpeg2iyuv420SP)
+
+typedef uvc_error_t (*convert_func_t)(uvc_frame_t *in, uvc_frame_t *out);
+
+typedef struct test_func {
+	const char *name;
+	convert_func_t func;
+	enum uvc_frame_format format;
+	int width_align;		// scalar code of yuv420SP requires multiple of 4 pixels
+} test_func_t;
+
+static const test_func_t funcs[] = {
+	{ "yuyv2rgbx", uvc_yuyv2rgbx, UVC_FRAME_FORMAT_YUYV, 2 },
+	{ "uyvy2rgbx", uvc_uyvy2rgbx, UVC_FRAME_FORMAT_UYVY, 2 },
+	{ "yuyv2rgb565", uvc_yuyv2rgb565, UVC_FRAME_FORMAT_YUYV, 2 },
+	{ "uyvy2rgb565", uvc_uyvy2rgb565, UVC_FRAME_FORMAT_UYVY, 2 },
+	{ "yuyv2yuv420SP", uvc_yuyv2yuv420SP, UVC_FRAME_FORMAT_YUYV, 4 },
+	{ "yuyv2iyuv420SP", uvc_yuyv2iyuv420SP, UVC_FRAME_FORMAT_YUYV, 4 },
+};
+
+enum {
+	PATTERN_RANDOM,
+	PATTERN_ZERO,	// saturates at 0
+	PATTERN_FULL,	// saturates at 255
+	PATTERN_EXTREME,// random mix of 0 and 255 to hit the largest chroma values
+	PATTERN_NUM,
+};
+static const char *pattern_names[] = { "random", "zero", "full", "extreme" };
+
+static uint32_t seed = 0x2545f491;
+static inline uint32_t xorshift(void) {
+	seed ^= seed << 13; seed ^= seed >> 17; seed ^= seed << 5;
+	return seed;
+}
+
+static void fill(uint8_t *data, size_t bytes, int pattern) {
+	size_t i;
+	for (i = 0; i < bytes; i++) {
+		switch (pattern) {
+		case PATTERN_ZERO:		data[i] = 0; break;
+		case PATTERN_FULL:		data[i] = 0xff; break;
+		case PATTERN_EXTREME:	data[i] = (xorshift() & 0x100) ? 0xff : 0; break;
+		default:				data[i] = (uint8_t)xorshift(); break;
+		}
+	}
+}
+
+static uvc_frame_t *convert(const test_func_t *test, uvc_frame_t *in,
+	const uvc_convert_kernels_t *kernels, uvc_error_t *result) {
+
+	uvc_frame_t *out = uvc_allocate_frame(in->width * in->height * 4);
+	memset(out->data, 0xa5, out->data_bytes);	// same garbage for both so that unwritten bytes also match
+	uvc_override_convert_kernels(kernels);
+	*result = test->func(in, out);
+	return out;
+}
+
+static int run_one(const test_func_t *test, const int width, const int height,
+	const int padding, const int pattern) {
+
+	const int step = padding >= 0 ? width * 2 + padding : 0;
+	const size_t bytes = (step ? step : width * 2) * height;
+	uvc_frame_t *in = uvc_allocate_frame(bytes);
+	in->width = width;
+	in->height = height;
+	in->step = step;
+	in->frame_format = test->format;
+	fill(in->data, bytes, pattern);
+
+	uvc_error_t r0, r1;
+	uvc_frame_t *expected = convert(test, in, NULL, &r0);
+	uvc_frame_t *actual = convert(test, in, &TEST_KERNELS, &r1);
+	int errors = 0;
+	if ((r0 != r1) || (expected->data_bytes != actual->data_bytes)) {
+		errors++;
+	} else {
+		const uint8_t *e = expected->data, *a = actual->data;
+		size_t i;
+		for (i = 0; i < expected->data_bytes; i++) {
+			if (e[i] != a[i]) {
+				if (errors < 4) {
+					fprintf(stderr, "%s(%dx%d,step=%d,%s):mismatch at %zu,expected=%d,actual=%d\n",
+						test->name, width, height, step, pattern_names[pattern], i, e[i], a[i]);
+				}
+				errors++;
+			}
+		}
+	}
+	uvc_free_frame(expected);
+	uvc_free_frame(actual);
+	uvc_free_frame(in);
+	return errors;
+}
+
+int main(int argc, char *argv[]) {
+#if defined(TEST_KERNELS)
+	// odd multiples of 2/4 and non multiples of kernel alignment exercise the scalar tail
+	static const int sizes[][2] = {
+		{ 4, 2 }, { 16, 2 }, { 20, 2 }, { 32, 4 }, { 36, 6 }, { 60, 3 },
+		{ 100, 10 }, { 176, 144 }, { 642, 8 }, { 640, 480 }, { 1284, 4 }, { 1920, 1080 },
+	};
+	static const int paddings[] = { -1, 0, 8, 30 };	// -1: no step(packed), others: row padding bytes
+	int result = 0;
+	size_t f, s, p;
+	int pattern;
+
+	setvbuf(stdout, NULL, _IONBF, 0);
+	printf("kernels:%s\n", TEST_KERNELS.name);
+	for (f = 0; f < sizeof(funcs) / sizeof(funcs[0]); f++) {
+		int errors = 0, cases = 0;
+		for (s = 0; s < sizeof(sizes) / sizeof(sizes[0]); s++) {
+			if (sizes[s][0] % funcs[f].width_align) continue;
+			for (p = 0; p < sizeof(paddings) / sizeof(paddings[0]); p++) {
+				for (pattern = 0; pattern < PATTERN_NUM; pattern++) {
+					errors += run_one(&funcs[f], sizes[s][0], sizes[s][1], paddings[p], pattern);
+					cases++;
+				}
+			}
+		}
+		printf("%s %s:cases=%d,errors=%d\n", errors ? "FAIL" : "OK  ", funcs[f].name, cases, errors);
+		result |= errors ? 1 : 0;
+	}
+	printf(result ? "FAILED\n" : "PASSED\n");
+	return result;
+#else
+	printf("no SIMD kernels for this cpu, skipped\n");
+	return 0;
+#endif
+}
@@ -0,0 +1,283 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: framequeue_test.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+// host test of UVCCamera/framequeue.cpp that UVCPreview uses between its threads.
+// the producer puts frames paced at camera frame rate and the consumer blocks in frame_queue_wait,
+// so every frame goes through the wait/notify handshake(consumerWaiting/producerWaiting with SPSC queue).
+// Makefile builds this twice, with USE_SPSC_QUEUE(same as Android.mk) and without it(mutex/condvar),
+// and each binary reports p50/p99 of the latency from frame_queue_put to frame_queue_wait returning.
+
+// utilbase.h refers __android_log_assert without LOG_NDEBUG
+#define LOG_NDEBUG
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdint.h>
+#include <time.h>
+#include <pthread.h>
+#include <unistd.h>
+#include <algorithm>
+#include "framequeue.h"
+
+#if defined(USE_SPSC_QUEUE)
+	#define QUEUE_NAME "spsc"
+#else
+	#define QUEUE_NAME "mutex"
+#endif
+
+#define NUM_FRAMES 240
+#define DEFAULT_FPS 60
+
+static int failures = 0;
+
+#define EXPECT(cond) do { \
+	if (!(cond)) { \
+		fprintf(stderr, "%s:%d:EXPECT(%s) failed\n", __FILE__, __LINE__, #cond); \
+		failures++; \
+	} \
+} while (0)
+
+static inline uint64_t now_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+typedef struct queue_test {
+	pthread_mutex_t mutex;
+	pthread_cond_t sync;
+	volatile bool running;
+	frame_queue_t *queue;
+	uvc_frame_t *frames;		// frame->sequence is the index
+	uint32_t num_frames;
+	uint32_t fps;				// 0: put as fast as possible
+	uint32_t consume_us;		// time the consumer spends for each frame
+	uint64_t *put_ns;			// time each frame was put
+	uint64_t *latency_ns;		// time from put to taken, 0 if not taken
+	uint32_t queued;			// number of frames frame_queue_put accepted
+	uint32_t taken;
+	uint32_t recycled;			// frames returned by the queue(dropped or cleared)
+	uint32_t order_errors;
+	uint64_t producer_ns;		// time the producer took to put all frames
+} queue_test_t;
+
+static void recycle_func(uvc_frame_t *frame, void *vptr_args) {
+	queue_test_t *test = (queue_test_t *)vptr_args;
+	__sync_add_and_fetch(&test->recycled, 1);
+}
+
+static void init_test(queue_test_t &test, const int policy, const int depth, const int timeout_ms,
+	const uint32_t num_frames, const uint32_t fps, const uint32_t consume_us) {
+
+	memset(&test, 0, sizeof(test));
+	pthread_mutex_init(&test.mutex, NULL);
+	pthread_cond_init(&test.sync, NULL);
+	test.running = true;
+	test.queue = new frame_queue_t(&test.mutex, &test.sync, policy, depth,
+		&test.running, recycle_func, &test);
+	test.queue->timeout_ms = timeout_ms;
+	test.num_frames = num_frames;
+	test.fps = fps;
+	test.consume_us = consume_us;
+	test.frames = (uvc_frame_t *)calloc(num_frames, sizeof(uvc_frame_t));
+	test.put_ns = (uint64_t *)calloc(num_frames, sizeof(uint64_t));
+	test.latency_ns = (uint64_t *)calloc(num_frames, sizeof(uint64_t));
+	for (uint32_t i = 0; i < num_frames; i++) {
+		test.frames[i].sequence = i;
+	}
+}
+
+static void release_test(queue_test_t &test) {
+	delete test.queue;
+	free(test.frames);
+	free(test.put_ns);
+	free(test.latency_ns);
+	pthread_cond_destroy(&test.sync);
+	pthread_mutex_destroy(&test.mutex);
+}
+
+/**
+ * clear the running flag and wake up the consumer same as UVCPreview#stopPreview
+ */
+static void stop_queue(queue_test_t &test) {
+	test.running = false;
+	pthread_mutex_lock(&test.mutex);
+	pthread_cond_broadcast(&test.sync);
+	pthread_mutex_unlock(&test.mutex);
+}
+
+static void *consumer_func(void *vptr_args) {
+	queue_test_t *test = (queue_test_t *)vptr_args;
+	int64_t last = -1;
+	for ( ; test->running ; ) {
+		uvc_frame_t *frame = frame_queue_wait(*test->queue);
+		if (!frame) continue;
+		const uint64_t t = now_ns();
+		const uint32_t ix = frame->sequence;
+		test->latency_ns[ix] = t - test->put_ns[ix];
+		if ((int64_t)ix <= last) {
+			test->order_errors++;
+		}
+		last = ix;
+		test->taken++;
+		if (test->consume_us) {
+			usleep(test->consume_us);
+		}
+	}
+	return NULL;
+}
+
+/**
+ * put all frames paced at test.fps from this thread while the consumer thread takes them
+ */
+static void run_producer(queue_test_t &test) {
+	pthread_t consumer;
+	pthread_create(&consumer, NULL, consumer_func, &test);
+	const uint64_t interval_ns = test.fps ? 1000000000ULL / test.fps : 0;
+	uint64_t next = now_ns();
+	for (uint32_t i = 0; i < test.num_frames; i++) {
+		if (interval_ns) {
+			next += interval_ns;
+			struct timespec ts;
+			ts.tv_sec = next / 1000000000ULL;
+			ts.tv_nsec = next % 1000000000ULL;
+			clock_nanosleep(CLOCK_MONOTONIC, TIMER_ABSTIME, &ts, NULL);
+		}
+		test.put_ns[i] = now_ns();
+		if (frame_queue_put(*test.queue, &test.frames[i])) {
+			test.queued++;
+		}
+	}
+	test.producer_ns = now_ns() - test.put_ns[0];
+	// let the consumer take the rest of frames
+	for (int i = 0; (i < 200) && (test.taken + test.queue->drop_count < test.queued); i++) {
+		usleep(5000);
+	}
+	stop_queue(test);
+	pthread_join(consumer, NULL);
+	frame_queue_clear(*test.queue);
+}
+
+static void report(const char *name, const queue_test_t &test) {
+	uint64_t *sorted = (uint64_t *)malloc(sizeof(uint64_t) * test.num_frames);
+	uint32_t n = 0;
+	for (uint32_t i = 0; i < test.num_frames; i++) {
+		if (test.latency_ns[i]) {
+			sorted[n++] = test.latency_ns[i];
+		}
+	}
+	std::sort(sorted, sorted + n);
+	if (n) {
+		printf("%-6s %-14s frames=%u,fps=%u,p50=%.1fus,p99=%.1fus,max=%.1fus,dropped=%u\n",
+			QUEUE_NAME, name, n, test.fps,
+			sorted[(n * 50) / 100] / 1000.0, sorted[(n * 99) / 100] / 1000.0,
+			sorted[n - 1] / 1000.0, test.queue->drop_count);
+	}
+	free(sorted);
+}
+
+/**
+ * consumer is faster than the producer and waits on the queue for every frame,
+ * no frame should be dropped, lost or reordered
+ */
+static void test_paced(const uint32_t num_frames, const uint32_t fps) {
+	queue_test_t test;
+	init_test(test, QUEUE_POLICY_DROP_NEWEST, 4, 0, num_frames, fps, 0);
+	run_producer(test);
+	report("paced", test);
+	EXPECT(test.queued == num_frames);
+	EXPECT(test.taken == num_frames);
+	EXPECT(!test.queue->drop_count);
+	EXPECT(!test.order_errors);
+	EXPECT(!test.recycled);
+	release_test(test);
+}
+
+/**
+ * consumer is slower than the producer with QUEUE_POLICY_BLOCK,
+ * the producer waits for room until the consumer takes a frame and wakes it up
+ */
+static void test_block(const uint32_t num_frames) {
+	queue_test_t test;
+	init_test(test, QUEUE_POLICY_BLOCK, 2, 1000, num_frames, 0, 2000);
+	run_producer(test);
+	report("block", test);
+	EXPECT(test.queued == num_frames);
+	EXPECT(test.taken == num_frames);
+	EXPECT(!test.queue->drop_count);
+	EXPECT(!test.order_errors);
+	// the producer could not run ahead of the consumer
+	EXPECT(test.producer_ns >= (uint64_t)(num_frames - 4) * 2000 * 1000);
+	release_test(test);
+}
+
+/**
+ * QUEUE_POLICY_LATEST_WINS with slow consumer, older frames are recycled
+ * and every frame is either taken or recycled
+ */
+static void test_latest_wins(const uint32_t num_frames, const uint32_t fps) {
+	queue_test_t test;
+	init_test(test, QUEUE_POLICY_LATEST_WINS, 1, 0, num_frames, fps, 3 * 1000000 / fps);
+	run_producer(test);
+	report("latest_wins", test);
+	EXPECT(test.queued == num_frames);
+	EXPECT(test.taken > 0);
+	EXPECT(test.queue->drop_count > 0);
+	EXPECT(!test.order_errors);
+	EXPECT(test.taken + test.recycled == num_frames);
+	release_test(test);
+}
+
+/**
+ * clearing the running flag wakes up the consumer blocked in frame_queue_wait
+ */
+static void test_stop_wakes_consumer() {
+	queue_test_t test;
+	init_test(test, QUEUE_POLICY_DROP_NEWEST, 4, 0, 1, 0, 0);
+	pthread_t consumer;
+	pthread_create(&consumer, NULL, consumer_func, &test);
+	usleep(20000);	// let the consumer wait
+	const uint64_t start = now_ns();
+	stop_queue(test);
+	pthread_join(consumer, NULL);
+	EXPECT(now_ns() - start < 1000000000ULL);
+	EXPECT(!test.taken);
+	// the queue does not accept frames after stopping, the frame is returned to the owner
+	EXPECT(!frame_queue_put(*test.queue, &test.frames[0]));
+	EXPECT(test.recycled == 1);
+	release_test(test);
+}
+
+int main(int argc, char *argv[]) {
+	const uint32_t fps = argc > 1 ? (uint32_t)strtoul(argv[1], NULL, 10) : DEFAULT_FPS;
+	const uint32_t num_frames = argc > 2 ? (uint32_t)strtoul(argv[2], NULL, 10) : NUM_FRAMES;
+	setvbuf(stdout, NULL, _IONBF, 0);
+	test_paced(num_frames, fps);
+	test_block(num_frames);
+	test_latest_wins(num_frames, fps);
+	test_stop_wakes_consumer();
+	printf("%s\n", failures ? "FAILED" : "OK");
+	return failures ? 1 : 0;
+}
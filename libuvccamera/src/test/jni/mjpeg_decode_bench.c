@@ -0,0 +1,278 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: mjpeg_decode_bench.c
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+// host microbenchmark of MJPEG decoding in libuvc/src/frame-mjpeg.c.
+// "libjpeg" is the previous implementation that created/destroyed a libjpeg decompressor
+// for every frame, "current" is uvc_mjpeg2xxx that decodes with the per-thread decoder
+// (TurboJPEG for yuyv/yuv420SP, libjpeg API with the kept decompressor for rgbx).
+// frames are encoded from a synthetic image with 4:2:2 and 4:2:0 chroma subsampling.
+// usage: mjpeg_decode_bench [width height [frames]]
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdint.h>
+#include <setjmp.h>
+#include <time.h>
+#include <jpeglib.h>
+#include <turbojpeg.h>
+#include "libuvc/libuvc.h"
+#include "libuvc/libuvc_internal.h"
+
+#define MAX_READLINE 8
+
+struct error_mgr {
+	struct jpeg_error_mgr super;
+	jmp_buf jmp;
+};
+
+static void _error_exit(j_common_ptr dinfo) {
+	struct error_mgr *myerr = (struct error_mgr *) dinfo->err;
+	(*dinfo->err->output_message)(dinfo);
+	longjmp(myerr->jmp, 1);
+}
+
+/**
+ * decode with the libjpeg decompressor that is created for each frame,
+ * same as the previous implementation of uvc_mjpeg2rgbx/uvc_mjpeg2yuyv
+ */
+static uvc_error_t libjpeg_decode(uvc_frame_t *in, uvc_frame_t *out, J_COLOR_SPACE color_space) {
+	struct jpeg_decompress_struct dinfo;
+	struct error_mgr jerr;
+	const int yuyv = color_space == JCS_YCbCr;
+	const int out_step = in->width * (yuyv ? 2 : 4);
+	JSAMPROW buffer[MAX_READLINE];
+	size_t lines_read = 0;
+	int i, j;
+
+	if (uvc_ensure_frame_size(out, out_step * in->height) < 0)
+		return UVC_ERROR_NO_MEM;
+	out->width = in->width;
+	out->height = in->height;
+	out->step = out_step;
+
+	dinfo.err = jpeg_std_error(&jerr.super);
+	jerr.super.error_exit = _error_exit;
+	if (setjmp(jerr.jmp)) {
+		jpeg_destroy_decompress(&dinfo);
+		return UVC_ERROR_OTHER;
+	}
+	jpeg_create_decompress(&dinfo);
+	jpeg_mem_src(&dinfo, in->data, in->actual_bytes);
+	jpeg_read_header(&dinfo, TRUE);
+	dinfo.out_color_space = color_space;
+	dinfo.dct_method = JDCT_IFAST;
+	jpeg_start_decompress(&dinfo);
+
+	uint8_t *data = out->data;
+	if (yuyv) {
+		// decode into YCbCr and average chroma of 2 pixels
+		const int row_stride = dinfo.output_width * dinfo.output_components;
+		JSAMPARRAY rows = (*dinfo.mem->alloc_sarray)
+			((j_common_ptr) &dinfo, JPOOL_IMAGE, row_stride, MAX_READLINE);
+		for (; dinfo.output_scanline < dinfo.output_height ;) {
+			const int num_scanlines = jpeg_read_scanlines(&dinfo, rows, MAX_READLINE);
+			for (j = 0; j < num_scanlines; j++) {
+				uint8_t *dst = data + (lines_read + j) * out_step;
+				const uint8_t *ycbcr = rows[j];
+				for (i = 0; i < row_stride; i += 6) {
+					*(dst++) = ycbcr[i + 0];
+					*(dst++) = (ycbcr[i + 1] + ycbcr[i + 4]) >> 1;
+					*(dst++) = ycbcr[i + 3];
+					*(dst++) = (ycbcr[i + 2] + ycbcr[i + 5]) >> 1;
+				}
+			}
+			lines_read += num_scanlines;
+		}
+	} else {
+		for (; dinfo.output_scanline < dinfo.output_height ;) {
+			buffer[0] = data + lines_read * out_step;
+			for (i = 1; i < MAX_READLINE; i++)
+				buffer[i] = buffer[i - 1] + out_step;
+			lines_read += jpeg_read_scanlines(&dinfo, buffer, MAX_READLINE);
+		}
+	}
+	jpeg_finish_decompress(&dinfo);
+	jpeg_destroy_decompress(&dinfo);
+	return lines_read == (size_t)in->height ? UVC_SUCCESS : UVC_ERROR_OTHER;
+}
+
+static uvc_error_t libjpeg_mjpeg2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
+	return libjpeg_decode(in, out, JCS_EXT_RGBX);
+}
+
+static uvc_error_t libjpeg_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
+	return libjpeg_decode(in, out, JCS_YCbCr);
+}
+
+/** previous uvc_mjpeg2yuv420SP decoded into a temporary YUYV frame that was allocated for every frame */
+static uvc_error_t libjpeg_mjpeg2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
+	uvc_frame_t *yuv = uvc_allocate_frame(in->width * in->height * 2);
+	if (!yuv)
+		return UVC_ERROR_NO_MEM;
+	uvc_error_t result = libjpeg_mjpeg2yuyv(in, yuv);
+	if (!result) {
+		yuv->frame_format = UVC_FRAME_FORMAT_YUYV;
+		result = uvc_yuyv2yuv420SP(yuv, out);
+	}
+	uvc_free_frame(yuv);
+	return result;
+}
+
+/** synthetic image with gradients and noise, so that the frame has typical amount of AC coefficients */
+static uint8_t *create_image(const int width, const int height) {
+	uint8_t *rgb = malloc(width * height * 3);
+	uint32_t seed = 0x2545f491;
+	int x, y;
+	for (y = 0; y < height; y++) {
+		for (x = 0; x < width; x++) {
+			uint8_t *p = rgb + (y * width + x) * 3;
+			seed ^= seed << 13; seed ^= seed >> 17; seed ^= seed << 5;
+			const int noise = (int)(seed & 0x1f) - 16;
+			const int r = (x * 255) / width + noise;
+			const int g = (y * 255) / height + noise;
+			const int b = ((x + y) & 0x40) ? 192 + noise : 64 - noise;
+			p[0] = r < 0 ? 0 : (r > 255 ? 255 : r);
+			p[1] = g < 0 ? 0 : (g > 255 ? 255 : g);
+			p[2] = b < 0 ? 0 : (b > 255 ? 255 : b);
+		}
+	}
+	return rgb;
+}
+
+static uvc_frame_t *create_mjpeg(const uint8_t *rgb, const int width, const int height, const int subsamp) {
+	tjhandle tj = tjInitCompress();
+	unsigned char *jpeg = NULL;
+	unsigned long jpeg_bytes = 0;
+	uvc_frame_t *frame = NULL;
+	if (!tjCompress2(tj, (unsigned char *)rgb, width, width * 3, height, TJPF_RGB,
+		&jpeg, &jpeg_bytes, subsamp, 85, 0)) {
+
+		frame = uvc_allocate_frame(jpeg_bytes);
+		memcpy(frame->data, jpeg, jpeg_bytes);
+		frame->actual_bytes = jpeg_bytes;
+		frame->width = width;
+		frame->height = height;
+		frame->frame_format = UVC_FRAME_FORMAT_MJPEG;
+	}
+	tjFree(jpeg);
+	tjDestroy(tj);
+	return frame;
+}
+
+static double now_ms(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+typedef uvc_error_t (*convert_func_t)(uvc_frame_t *in, uvc_frame_t *out);
+
+// number of rounds of each implementation, see #bench_pair
+#define ROUNDS 5
+
+static double bench(convert_func_t func, uvc_frame_t *in, uvc_frame_t *out, const int frames) {
+	int i;
+	const double start = now_ms();
+	for (i = 0; i < frames; i++) {
+		if (func(in, out)) {
+			fprintf(stderr, "decode failed\n");
+			break;
+		}
+	}
+	const double elapsed = now_ms() - start;
+	return elapsed / frames;
+}
+
+/**
+ * measure both implementations in ROUNDS alternating rounds and take the fastest round of each,
+ * the implementation that runs second was measured a few % slower on a single core host
+ */
+static void bench_pair(convert_func_t old_func, convert_func_t new_func, uvc_frame_t *in, const int frames,
+	double *old_ms, double *new_ms) {
+
+	uvc_frame_t *out = uvc_allocate_frame(in->width * in->height * 4);
+	const int n = frames / ROUNDS > 0 ? frames / ROUNDS : 1;
+	int r;
+	// warm up, the current implementation creates the decoder of this thread here
+	old_func(in, out);
+	new_func(in, out);
+	*old_ms = *new_ms = 1e9;
+	for (r = 0; r < ROUNDS; r++) {
+		double o, c;
+		if (r & 1) {
+			c = bench(new_func, in, out, n);
+			o = bench(old_func, in, out, n);
+		} else {
+			o = bench(old_func, in, out, n);
+			c = bench(new_func, in, out, n);
+		}
+		if (o < *old_ms) *old_ms = o;
+		if (c < *new_ms) *new_ms = c;
+	}
+	uvc_free_frame(out);
+}
+
+int main(int argc, char *argv[]) {
+	const int width = argc > 2 ? atoi(argv[1]) : 1280;
+	const int height = argc > 2 ? atoi(argv[2]) : 720;
+	const int frames = argc > 3 ? atoi(argv[3]) : 100;
+	static const struct {
+		const char *name;
+		convert_func_t libjpeg;
+		convert_func_t current;
+	} funcs[] = {
+		{ "mjpeg2rgbx", libjpeg_mjpeg2rgbx, uvc_mjpeg2rgbx },
+		{ "mjpeg2yuyv", libjpeg_mjpeg2yuyv, uvc_mjpeg2yuyv },
+		{ "mjpeg2yuv420SP", libjpeg_mjpeg2yuv420SP, uvc_mjpeg2yuv420SP },
+	};
+	static const struct {
+		const char *name;
+		int subsamp;
+	} subsamps[] = {
+		{ "4:2:2", TJSAMP_422 },
+		{ "4:2:0", TJSAMP_420 },
+	};
+	size_t f, s;
+
+	setvbuf(stdout, NULL, _IONBF, 0);
+	printf("%dx%d,%d frames, ms/frame of the fastest of %d rounds\n", width, height, frames, ROUNDS);
+	uint8_t *rgb = create_image(width, height);
+	for (s = 0; s < sizeof(subsamps) / sizeof(subsamps[0]); s++) {
+		uvc_frame_t *mjpeg = create_mjpeg(rgb, width, height, subsamps[s].subsamp);
+		if (!mjpeg) {
+			fprintf(stderr, "failed to encode test frame\n");
+			return 1;
+		}
+		for (f = 0; f < sizeof(funcs) / sizeof(funcs[0]); f++) {
+			double old_ms, new_ms;
+			bench_pair(funcs[f].libjpeg, funcs[f].current, mjpeg, frames, &old_ms, &new_ms);
+			printf("%s %-15s libjpeg=%7.3f,current=%7.3f,%+.1f%%\n",
+				subsamps[s].name, funcs[f].name, old_ms, new_ms, (new_ms - old_ms) * 100.0 / old_ms);
+		}
+		uvc_free_frame(mjpeg);
+	}
+	free(rgb);
+	return 0;
+}
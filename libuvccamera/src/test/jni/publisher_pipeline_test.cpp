@@ -0,0 +1,299 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: publisher_pipeline_test.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+// host test of UVCCamera/pipeline/PublisherPipeline.cpp, a subscriber stand-in connects to
+// "inproc://" address with the context of the pipeline and checks the messages and statistics.
+// this needs libzmq/zmq.hpp and pupilmobile_defs.h/endian_unaligned.h that are not in this tree,
+// see PUBLISHER_DEPS_DIR in Makefile.
+
+// pipeline headers have "#pragma interface", gcc emits their vtables only in this file
+#pragma implementation "IPipeline.h"
+#pragma implementation "AbstractBufferedPipeline.h"
+#pragma implementation "PublisherPipeline.h"
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdint.h>
+#include <unistd.h>
+#include <vector>
+#include "utilbase.h"
+#include "libUVCCamera.h"
+#include "endian_unaligned.h"
+#include "PublisherPipeline.h"
+#include "pupilmobile_defs.h"
+
+#define WIDTH 64
+#define HEIGHT 48
+#define FRAME_BYTES (WIDTH * HEIGHT * 2)
+#define SUBSCRIPTION_ID "uvc"
+#define RECV_TIMEOUT_MS 1000
+#define NUM_FRAMES 10
+
+static int failures = 0;
+
+// register_publisher_pipeline refers this that is defined in serenegiant_usb_UVCCamera.cpp
+jint registerNativeMethods(JNIEnv *env, const char *class_name, JNINativeMethod *methods, int num_methods) {
+	return JNI_ERR;
+}
+
+#define EXPECT(cond) do { \
+	if (!(cond)) { \
+		fprintf(stderr, "%s:%d:EXPECT(%s) failed\n", __FILE__, __LINE__, #cond); \
+		failures++; \
+	} \
+} while (0)
+
+static uvc_frame_t *create_frame() {
+	uvc_frame_t *frame = uvc_allocate_frame(FRAME_BYTES);
+	frame->frame_format = UVC_FRAME_FORMAT_YUYV;
+	frame->width = WIDTH;
+	frame->height = HEIGHT;
+	frame->step = WIDTH * 2;
+	frame->actual_bytes = FRAME_BYTES;
+	return frame;
+}
+
+/**
+ * queue a frame that has the sequence number as its contents
+ */
+static void queue_frame(PublisherPipeline *pipeline, uvc_frame_t *frame, const uint32_t &sequence) {
+	frame->sequence = sequence;
+	frame->presentation_time_us = 1000000LL + sequence;
+	memset(frame->data, (int)(sequence & 0xff), FRAME_BYTES);
+	pipeline->queueFrame(frame);
+}
+
+static void check_header(const void *data, const uint32_t &sequence) {
+	publish_header_t header;
+	memcpy(&header, data, sizeof(header));
+	EXPECT(le32toh(header.format_le) == VIDEO_FRAME_FORMAT_YUYV);
+	EXPECT(le32toh(header.width_le) == WIDTH);
+	EXPECT(le32toh(header.height_le) == HEIGHT);
+	EXPECT(le32toh(header.sequence_le) == sequence);
+	EXPECT(le64toh(header.presentation_time_us_le) == (uint64_t)(1000000LL + sequence));
+	EXPECT(le32toh(header.data_bytes_le) == FRAME_BYTES);
+}
+
+static void check_data(const void *data, const uint32_t &sequence) {
+	const uint8_t *p = (const uint8_t *)data;
+	EXPECT((p[0] == (sequence & 0xff)) && (p[FRAME_BYTES - 1] == (sequence & 0xff)));
+}
+
+/**
+ * @param rcvhwm receive high water mark of the subscriber, 0 means default
+ */
+static zmq::socket_t *connect_subscriber(PublisherPipeline *pipeline, const char *addr, const int &rcvhwm = 0) {
+	EXPECT(pipeline->getTransport() == PUBLISHER_TRANSPORT_INPROC);
+	EXPECT(pipeline->getContext() != NULL);
+	zmq::socket_t *subscriber = new zmq::socket_t(*pipeline->getContext(), ZMQ_PAIR);
+	subscriber->setsockopt(ZMQ_RCVTIMEO, RECV_TIMEOUT_MS);
+	subscriber->setsockopt(ZMQ_LINGER, 0);
+	if (rcvhwm > 0) {
+		subscriber->setsockopt(ZMQ_RCVHWM, rcvhwm);
+	}
+	// inproc accepts connect before bind, the pipeline binds on its handler thread
+	subscriber->connect(addr);
+	return subscriber;
+}
+
+static bool recv_part(zmq::socket_t *subscriber, zmq::message_t &msg, const bool &expect_more) {
+	const bool received = subscriber->recv(&msg);
+	EXPECT(received);
+	EXPECT(received && (msg.more() == expect_more));
+	return received;
+}
+
+static bool recv_id(zmq::socket_t *subscriber) {
+	zmq::message_t id;
+	if (recv_part(subscriber, id, true)) {
+		EXPECT((id.size() == strlen(SUBSCRIPTION_ID)) && !memcmp(id.data(), SUBSCRIPTION_ID, id.size()));
+		return true;
+	}
+	return false;
+}
+
+static void wait_in_flight(PublisherPipeline *pipeline, publisher_stats_t &stats) {
+	for (int i = 0; i < 100; i++) {
+		pipeline->getStats(stats);
+		if (!stats.in_flight) break;
+		usleep(10000);
+	}
+}
+
+/**
+ * copy mode sends [subscription id][header + frame data]
+ */
+static void test_copy() {
+	const char *addr = "inproc://publisher_test_copy";
+	PublisherPipeline *pipeline = new PublisherPipeline(FRAME_BYTES, addr, SUBSCRIPTION_ID, DEFAULT_PUBLISHER_HWM, false);
+	zmq::socket_t *subscriber = connect_subscriber(pipeline, addr);
+	uvc_frame_t *frame = create_frame();
+	pipeline->start();
+	for (uint32_t i = 0; i < NUM_FRAMES; i++) {
+		queue_frame(pipeline, frame, i);
+		if (!recv_id(subscriber)) break;
+		zmq::message_t payload;
+		if (recv_part(subscriber, payload, false)) {
+			EXPECT(payload.size() == sizeof(publish_header_t) + FRAME_BYTES);
+			check_header(payload.data(), i);
+			check_data((const uint8_t *)payload.data() + sizeof(publish_header_t), i);
+		}
+	}
+	pipeline->stop();
+	publisher_stats_t stats;
+	pipeline->getStats(stats);
+	EXPECT(stats.frames_sent == NUM_FRAMES);
+	EXPECT(stats.bytes_sent == (uint64_t)NUM_FRAMES * FRAME_BYTES);
+	EXPECT(!stats.send_errors && !stats.in_flight && !stats.max_in_flight);
+
+	subscriber->close();
+	delete subscriber;
+	pipeline->release();
+	delete pipeline;
+	uvc_free_frame(frame);
+}
+
+/**
+ * zero copy mode sends [subscription id][header][frame data],
+ * all frames are released after the subscriber received them
+ */
+static void test_zero_copy() {
+	const char *addr = "inproc://publisher_test_zero_copy";
+	PublisherPipeline *pipeline = new PublisherPipeline(FRAME_BYTES, addr, SUBSCRIPTION_ID, DEFAULT_PUBLISHER_HWM, true);
+	zmq::socket_t *subscriber = connect_subscriber(pipeline, addr);
+	uvc_frame_t *frame = create_frame();
+	pipeline->start();
+	for (uint32_t i = 0; i < NUM_FRAMES; i++) {
+		queue_frame(pipeline, frame, i);
+		if (!recv_id(subscriber)) break;
+		zmq::message_t header, payload;
+		if (recv_part(subscriber, header, true)) {
+			EXPECT(header.size() == sizeof(publish_header_t));
+			check_header(header.data(), i);
+		}
+		if (recv_part(subscriber, payload, false)) {
+			EXPECT(payload.size() == FRAME_BYTES);
+			check_data(payload.data(), i);
+		}
+	}
+	publisher_stats_t stats;
+	wait_in_flight(pipeline, stats);
+	EXPECT(stats.frames_sent == NUM_FRAMES);
+	EXPECT(!stats.in_flight);
+	EXPECT(stats.max_in_flight >= 1);
+	pipeline->stop();
+
+	subscriber->close();
+	delete subscriber;
+	pipeline->release();
+	delete pipeline;
+	uvc_free_frame(frame);
+}
+
+/**
+ * frames that exceed the send queue are dropped and counted while the subscriber does not receive
+ */
+static void test_hwm_drop() {
+	const char *addr = "inproc://publisher_test_hwm";
+	PublisherPipeline *pipeline = new PublisherPipeline(FRAME_BYTES, addr, SUBSCRIPTION_ID, 1, false);
+	zmq::socket_t *subscriber = connect_subscriber(pipeline, addr, 1);
+	uvc_frame_t *frame = create_frame();
+	pipeline->start();
+	for (uint32_t i = 0; i < NUM_FRAMES * 2; i++) {
+		queue_frame(pipeline, frame, i);
+		usleep(5000);	// let the handler thread send each frame
+	}
+	pipeline->stop();
+	publisher_stats_t stats;
+	pipeline->getStats(stats);
+	EXPECT(stats.frames_dropped > 0);
+	EXPECT(stats.frames_sent < NUM_FRAMES * 2);
+	EXPECT(!stats.send_errors);
+	// sent frames are still received in order
+	for (uint32_t i = 0; i < stats.frames_sent; i++) {
+		if (!recv_id(subscriber)) break;
+		zmq::message_t payload;
+		if (recv_part(subscriber, payload, false)) {
+			check_header(payload.data(), i);
+		}
+	}
+
+	subscriber->close();
+	delete subscriber;
+	pipeline->release();
+	delete pipeline;
+	uvc_free_frame(frame);
+}
+
+/**
+ * messages that the subscriber still holds are released after the pipeline was deleted,
+ * release_message must not touch the pipeline and the frame data must stay valid
+ */
+static void test_release_after_delete() {
+	const char *addr = "inproc://publisher_test_release";
+	PublisherPipeline *pipeline = new PublisherPipeline(FRAME_BYTES, addr, SUBSCRIPTION_ID, DEFAULT_PUBLISHER_HWM, true);
+	zmq::socket_t *subscriber = connect_subscriber(pipeline, addr);
+	uvc_frame_t *frame = create_frame();
+	std::vector<zmq::message_t *> held;
+	pipeline->start();
+	for (uint32_t i = 0; i < DEFAULT_PUBLISHER_HWM; i++) {
+		queue_frame(pipeline, frame, i);
+		if (!recv_id(subscriber)) break;
+		zmq::message_t header;
+		recv_part(subscriber, header, true);
+		zmq::message_t *payload = new zmq::message_t();
+		if (recv_part(subscriber, *payload, false)) {
+			held.push_back(payload);
+		} else {
+			delete payload;
+		}
+	}
+	publisher_stats_t stats;
+	pipeline->getStats(stats);
+	EXPECT(stats.in_flight == held.size());
+	EXPECT(stats.max_in_flight == held.size());
+	pipeline->stop();
+	subscriber->close();
+	delete subscriber;
+	pipeline->release();
+	delete pipeline;
+	// frame data is kept by the messages until they are released
+	for (uint32_t i = 0; i < held.size(); i++) {
+		EXPECT(held[i]->size() == FRAME_BYTES);
+		check_data(held[i]->data(), i);
+		delete held[i];
+	}
+	uvc_free_frame(frame);
+}
+
+int main(int argc, char *argv[]) {
+	setvbuf(stdout, NULL, _IONBF, 0);
+	test_copy();
+	test_zero_copy();
+	test_hwm_drop();
+	test_release_after_delete();
+	printf("%s\n", failures ? "FAILED" : "OK");
+	return failures ? 1 : 0;
+}
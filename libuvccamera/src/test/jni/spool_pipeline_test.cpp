@@ -0,0 +1,229 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: spool_pipeline_test.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+// host test of UVCCamera/pipeline/SpoolBufferedPipeline.cpp recovery.
+// a child process appends records and exits without closing the pipeline, so its mapping is dropped
+// as if the process crashed. then the segment file is damaged like a payload that did not reach
+// the storage and a record that was written partially, and a new pipeline recovers the rest.
+
+// pipeline headers have "#pragma interface", gcc emits their vtables only in this file
+#pragma implementation "IPipeline.h"
+#pragma implementation "AbstractBufferedPipeline.h"
+#pragma implementation "SpoolBufferedPipeline.h"
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdint.h>
+#include <stddef.h>
+#include <unistd.h>
+#include <fcntl.h>
+#include <sys/wait.h>
+#include <vector>
+#include "utilbase.h"
+#include "libUVCCamera.h"
+#include "AbstractBufferedPipeline.h"
+#include "SpoolBufferedPipeline.h"
+
+#define WIDTH 64
+#define HEIGHT 48
+#define FRAME_BYTES (WIDTH * HEIGHT * 2)
+#define NUM_FRAMES 10
+#define SEGMENT_SZ (1024 * 1024)
+// same as SpoolBufferedPipeline.cpp
+#define SEGMENT_HEADER_SZ 64
+#define RECORD_ALIGN 8
+#define BROKEN_PAYLOAD_IX 3		// payload of this record did not reach the storage
+#define PARTIAL_RECORD_IX 8		// this record was written partially, it and following records are lost
+#define NEW_FRAME_SEQUENCE 100
+
+static int failures = 0;
+
+// register_spool_buffered_pipeline refers this that is defined in serenegiant_usb_UVCCamera.cpp
+jint registerNativeMethods(JNIEnv *env, const char *class_name, JNINativeMethod *methods, int num_methods) {
+	return JNI_ERR;
+}
+
+#define EXPECT(cond) do { \
+	if (!(cond)) { \
+		fprintf(stderr, "%s:%d:EXPECT(%s) failed\n", __FILE__, __LINE__, #cond); \
+		failures++; \
+	} \
+} while (0)
+
+/**
+ * next pipeline that keeps sequence numbers of replayed frames
+ */
+class CollectPipeline : virtual public IPipeline {
+public:
+	std::vector<uint32_t> sequences;
+	uint32_t broken;		// number of frames whose data does not match its sequence number
+
+	CollectPipeline() : IPipeline(FRAME_BYTES), broken(0) {}
+	virtual ~CollectPipeline() {}
+	virtual int queueFrame(uvc_frame_t *frame) {
+		const uint8_t *p = (const uint8_t *)frame->data;
+		const uint8_t v = (uint8_t)(frame->sequence & 0xff);
+		if ((frame->actual_bytes != FRAME_BYTES) || (p[0] != v) || (p[FRAME_BYTES - 1] != v)) {
+			broken++;
+		}
+		sequences.push_back(frame->sequence);
+		return 0;
+	}
+};
+
+static size_t record_size(const size_t &data_bytes) {
+	return (sizeof(spool_record_header_t) + data_bytes + RECORD_ALIGN - 1) & ~(size_t)(RECORD_ALIGN - 1);
+}
+
+static off_t record_offset(const int &ix) {
+	return SEGMENT_HEADER_SZ + ix * record_size(FRAME_BYTES);
+}
+
+static void queue_frames(SpoolBufferedPipeline *pipeline, const uint32_t &first, const int &num) {
+	uvc_frame_t frame;
+	uint8_t *data = new uint8_t[FRAME_BYTES];
+	memset(&frame, 0, sizeof(frame));
+	frame.data = data;
+	frame.data_bytes = frame.actual_bytes = FRAME_BYTES;
+	frame.frame_format = UVC_FRAME_FORMAT_YUYV;
+	frame.width = WIDTH;
+	frame.height = HEIGHT;
+	for (int i = 0; i < num; i++) {
+		frame.sequence = first + i;
+		memset(data, (int)(frame.sequence & 0xff), FRAME_BYTES);
+		EXPECT(!pipeline->queueFrame(&frame));
+	}
+	delete [] data;
+}
+
+/**
+ * append frames in a child process and exit without releasing the pipeline
+ */
+static void crash_after_writing(const char *dir) {
+	const pid_t pid = fork();
+	if (!pid) {
+		SpoolBufferedPipeline *pipeline = new SpoolBufferedPipeline(dir, SEGMENT_SZ, 4, 0);
+		pipeline->start();	// no next pipeline, frames are kept in the spool
+		queue_frames(pipeline, 0, NUM_FRAMES);
+		_exit(0);
+	}
+	int status = -1;
+	waitpid(pid, &status, 0);
+	EXPECT(WIFEXITED(status) && !WEXITSTATUS(status));
+}
+
+/**
+ * break the payload of one record and the magic of another record in the segment file
+ */
+static void damage_segment(const char *dir) {
+	char path[256];
+	snprintf(path, sizeof(path), "%s/spool-%08u.seg", dir, 0);
+	const int fd = open(path, O_RDWR);
+	EXPECT(fd >= 0);
+	if (fd < 0) return;
+	uint8_t v = 0xff;
+	EXPECT(pwrite(fd, &v, 1, record_offset(BROKEN_PAYLOAD_IX) + sizeof(spool_record_header_t)) == 1);
+	uint32_t magic = 0;
+	EXPECT(pwrite(fd, &magic, sizeof(magic),
+		record_offset(PARTIAL_RECORD_IX) + offsetof(spool_record_header_t, magic)) == sizeof(magic));
+	close(fd);
+}
+
+/**
+ * start the pipeline with CollectPipeline and wait until it replays all recovered frames
+ */
+static void replay(SpoolBufferedPipeline *pipeline, CollectPipeline *collector, const uint64_t &expected) {
+	pipeline->setPipeline(collector);
+	pipeline->start();
+	spool_stats_t stats;
+	for (int i = 0; i < 200; i++) {
+		pipeline->getStats(stats);
+		if (stats.frames_read >= expected) break;
+		usleep(10000);
+	}
+	pipeline->stop();
+	pipeline->setPipeline(NULL);
+}
+
+static void test_recover_after_crash(const char *dir) {
+	crash_after_writing(dir);
+	damage_segment(dir);
+
+	SpoolBufferedPipeline *pipeline = new SpoolBufferedPipeline(dir, SEGMENT_SZ, 4, 0);
+	spool_stats_t stats;
+	pipeline->getStats(stats);
+	printf("recovered=%llu,dropped=%llu\n",
+		(unsigned long long)stats.frames_recovered, (unsigned long long)stats.frames_dropped);
+	// records before the partial record except the broken payload
+	EXPECT(stats.frames_recovered == PARTIAL_RECORD_IX - 1);
+	EXPECT(stats.frames_dropped == 1);
+	EXPECT(stats.segments == 1);
+
+	CollectPipeline *collector = new CollectPipeline();
+	replay(pipeline, collector, stats.frames_recovered);
+	EXPECT(collector->sequences.size() == PARTIAL_RECORD_IX - 1);
+	uint32_t expected = 0;
+	for (size_t i = 0; i < collector->sequences.size(); i++, expected++) {
+		if (expected == BROKEN_PAYLOAD_IX) expected++;
+		EXPECT(collector->sequences[i] == expected);
+	}
+	EXPECT(!collector->broken);
+
+	// new frame is written over the partial record, replayed frames are not recovered again
+	pipeline->start();
+	queue_frames(pipeline, NEW_FRAME_SEQUENCE, 1);
+	pipeline->stop();
+	pipeline->release();
+	delete pipeline;
+
+	pipeline = new SpoolBufferedPipeline(dir, SEGMENT_SZ, 4, 0);
+	pipeline->getStats(stats);
+	EXPECT(stats.frames_recovered == 1);
+	EXPECT(!stats.frames_dropped);
+	delete collector;
+	collector = new CollectPipeline();
+	replay(pipeline, collector, 1);
+	EXPECT((collector->sequences.size() == 1) && (collector->sequences[0] == NEW_FRAME_SEQUENCE));
+	EXPECT(!collector->broken);
+
+	pipeline->stop();
+	pipeline->clear();
+	pipeline->release();
+	delete pipeline;
+	delete collector;
+}
+
+int main(int argc, char *argv[]) {
+	setvbuf(stdout, NULL, _IONBF, 0);
+	char dir[] = "/tmp/spool_pipeline_testXXXXXX";
+	if (!mkdtemp(dir)) {
+		perror("mkdtemp");
+		return 1;
+	}
+	test_recover_after_crash(dir);
+	rmdir(dir);
+	printf("%s\n", failures ? "FAILED" : "OK");
+	return failures ? 1 : 0;
+}
@@ -0,0 +1,148 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: spscqueue_test.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+// host stress test of SpscQueue, producer and consumer threads hammer the queue
+// and the consumer checks that every element arrives exactly once and in order.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <stdint.h>
+#include <pthread.h>
+#include <sched.h>
+#include "spscqueue.h"
+
+typedef struct stress_param {
+	SpscQueue<void *> *queue;
+	uint64_t count;			// number of elements to pass
+	uint32_t jitter;		// 0: busy loop, other: yield randomly to change interleaving
+	uint64_t full_count;	// number of times producer found the queue full
+	uint64_t empty_count;	// number of times consumer found the queue empty
+	uint64_t errors;
+	uint64_t received;
+} stress_param_t;
+
+static inline uint32_t xorshift(uint32_t &s) {
+	s ^= s << 13; s ^= s >> 17; s ^= s << 5;
+	return s;
+}
+
+static void *producer_func(void *vptr_args) {
+	stress_param_t *param = (stress_param_t *)vptr_args;
+	uint32_t seed = 0x12345678;
+	// element value is sequence number + 1 because take returns NULL when the queue is empty
+	for (uint64_t i = 1; i <= param->count; ) {
+		if (param->queue->put((void *)(uintptr_t)i)) {
+			i++;
+		} else {
+			param->full_count++;
+			sched_yield();	// let the consumer run, this may run on a single core
+		}
+		if (param->jitter && !(xorshift(seed) % param->jitter)) {
+			sched_yield();
+		}
+	}
+	return NULL;
+}
+
+static void *consumer_func(void *vptr_args) {
+	stress_param_t *param = (stress_param_t *)vptr_args;
+	uint32_t seed = 0x9abcdef0;
+	uint64_t expected = 1;
+	for ( ; expected <= param->count; ) {
+		void *obj = param->queue->take();
+		if (obj) {
+			const uint64_t v = (uintptr_t)obj;
+			if (v != expected) {
+				// lost, duplicated or reordered element
+				if (param->errors < 10) {
+					fprintf(stderr, "unexpected element:expected=%llu,actual=%llu\n",
+						(unsigned long long)expected, (unsigned long long)v);
+				}
+				param->errors++;
+				expected = v;	// resync to report following errors separately
+			}
+			expected++;
+			param->received++;
+		} else {
+			param->empty_count++;
+			sched_yield();	// let the producer run, this may run on a single core
+		}
+		if (param->jitter && !(xorshift(seed) % param->jitter)) {
+			sched_yield();
+		}
+	}
+	return NULL;
+}
+
+static int run_stress(const uint32_t capacity, const uint64_t count, const uint32_t jitter) {
+	SpscQueue<void *> queue(capacity);
+	stress_param_t param = { &queue, count, jitter, 0, 0, 0, 0 };
+	pthread_t producer, consumer;
+	pthread_create(&consumer, NULL, consumer_func, &param);
+	pthread_create(&producer, NULL, producer_func, &param);
+	pthread_join(producer, NULL);
+	pthread_join(consumer, NULL);
+	const bool ok = !param.errors && (param.received == count)
+		&& !queue.take() && queue.isEmpty();
+	printf("%s capacity=%u(%u),count=%llu,jitter=%u,full=%llu,empty=%llu,errors=%llu\n",
+		ok ? "OK  " : "FAIL", capacity, queue.capacity(), (unsigned long long)count, jitter,
+		(unsigned long long)param.full_count, (unsigned long long)param.empty_count,
+		(unsigned long long)param.errors);
+	return ok ? 0 : 1;
+}
+
+/** single thread check of boundary conditions */
+static int run_basic() {
+	int errors = 0;
+	SpscQueue<void *> queue(3);
+	if (queue.capacity() != 4) errors++;
+	if (queue.take() || !queue.isEmpty()) errors++;
+	for (uintptr_t i = 1; i <= 4; i++) {
+		if (!queue.put((void *)i)) errors++;
+	}
+	if (queue.put((void *)5)) errors++;	// full
+	if (queue.size() != 4) errors++;
+	for (uintptr_t i = 1; i <= 4; i++) {
+		if ((uintptr_t)queue.take() != i) errors++;
+	}
+	if (queue.take() || queue.size()) errors++;
+	printf("%s basic\n", errors ? "FAIL" : "OK  ");
+	return errors ? 1 : 0;
+}
+
+int main(int argc, char *argv[]) {
+	const uint64_t count = argc > 1 ? strtoull(argv[1], NULL, 10) : 2000000ULL;
+	setvbuf(stdout, NULL, _IONBF, 0);
+	int result = run_basic();
+	// small capacity makes the queue full/empty very frequently
+	const uint32_t capacities[] = { 1, 2, 4, 5, 32, 1024 };
+	const uint32_t jitters[] = { 0, 7, 101 };
+	for (size_t i = 0; i < sizeof(capacities) / sizeof(capacities[0]); i++) {
+		for (size_t j = 0; j < sizeof(jitters) / sizeof(jitters[0]); j++) {
+			result |= run_stress(capacities[i], jitters[j] ? count / 10 : count, jitters[j]);
+		}
+	}
+	printf(result ? "FAILED\n" : "PASSED\n");
+	return result;
+}
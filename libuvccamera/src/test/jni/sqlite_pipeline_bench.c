@@ -0,0 +1,237 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: sqlite_pipeline_bench.c
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+// host microbenchmark of the database access of UVCCamera/pipeline/SQLiteBufferedPipeline.cpp.
+// SQLiteBufferedPipeline uses sqlite3pp that is not vendored, so this issues the same SQL
+// statements with the SQLite C API.
+// "previous" is the implementation that inserted each frame in its own transaction
+// and deleted chained records one by one, "current" inserts frames in batches in WAL mode
+// and deletes chained records with a single range delete.
+// usage: sqlite_pipeline_bench [database_path [frame_bytes [frames]]]
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdint.h>
+#include <unistd.h>
+#include <time.h>
+#include <sys/time.h>
+#include <sqlite3.h>
+
+#define TABLE_NAME "backend"
+#define INSERT_FIELDS "dtime, format, width, height, sequence, data_bytes, data"
+#define ALL_FIELDS "id, dtime, format, width, height, sequence, data_bytes, data"
+
+#define INSERT_BATCH_SZ 8		// DEFAULT_INSERT_BATCH_SZ
+#define DRAIN_BATCH_SZ 32		// DEFAULT_DRAIN_BATCH_SZ
+#define PREVIOUS_DRAIN_SZ 10	// LIMIT of previous sql_query_oldest_10
+
+typedef struct bench_db {
+	sqlite3 *db;
+	sqlite3_stmt *insert_one;
+	sqlite3_stmt *query_oldest;
+	sqlite3_stmt *delete_one;
+	sqlite3_stmt *delete_until;
+	int current;
+} bench_db_t;
+
+static double now_ms(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+static int64_t current_dtime(void) {
+	struct timeval tv;
+	gettimeofday(&tv, NULL);
+	return (int64_t)tv.tv_sec * 1000000LL + tv.tv_usec;
+}
+
+static int exec(sqlite3 *db, const char *sql) {
+	char *err = NULL;
+	const int r = sqlite3_exec(db, sql, NULL, NULL, &err);
+	if (r != SQLITE_OK) {
+		fprintf(stderr, "%s:%s\n", sql, err ? err : "");
+		sqlite3_free(err);
+	}
+	return r;
+}
+
+static int open_db(bench_db_t *b, const char *path, const int current) {
+	memset(b, 0, sizeof(*b));
+	b->current = current;
+	unlink(path);
+	if (sqlite3_open(path, &b->db) != SQLITE_OK) {
+		fprintf(stderr, "failed to open %s\n", path);
+		return -1;
+	}
+	if (current) {
+		exec(b->db, "PRAGMA journal_mode=WAL;");
+		exec(b->db, "PRAGMA synchronous=NORMAL;");
+	}
+	if (exec(b->db, current
+		? "CREATE TABLE IF NOT EXISTS " TABLE_NAME " ("
+			"id INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT, dtime INTEGER NOT NULL, "
+			"format INTEGER NOT NULL, width INTEGER NOT NULL, height INTEGER NOT NULL, "
+			"sequence INTEGER NOT NULL, data_bytes INTEGER NOT NULL, data BLOB NOT NULL);"
+			"CREATE INDEX IF NOT EXISTS " TABLE_NAME "_dtime ON " TABLE_NAME " (dtime);"
+		: "CREATE TABLE IF NOT EXISTS " TABLE_NAME " ("
+			"id INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT, dtime INTEGER NOT NULL UNIQUE, "
+			"format INTEGER NOT NULL, width INTEGER NOT NULL, height INTEGER NOT NULL, "
+			"sequence INTEGER NOT NULL, data_bytes INTEGER NOT NULL, data BLOB NOT NULL);")) {
+		return -1;
+	}
+	sqlite3_prepare_v2(b->db, "INSERT INTO " TABLE_NAME
+		" (" INSERT_FIELDS ") VALUES (?, ?, ?, ?, ?, ?, ?);", -1, &b->insert_one, NULL);
+	sqlite3_prepare_v2(b->db, current
+		? "SELECT " ALL_FIELDS " FROM " TABLE_NAME " ORDER BY id LIMIT ?;"
+		: "SELECT " ALL_FIELDS " FROM " TABLE_NAME " ORDER BY dtime LIMIT ?;", -1, &b->query_oldest, NULL);
+	sqlite3_prepare_v2(b->db, "DELETE FROM " TABLE_NAME " WHERE (id=?);", -1, &b->delete_one, NULL);
+	sqlite3_prepare_v2(b->db, "DELETE FROM " TABLE_NAME " WHERE (id<=?);", -1, &b->delete_until, NULL);
+	return (b->insert_one && b->query_oldest && b->delete_one && b->delete_until) ? 0 : -1;
+}
+
+static void close_db(bench_db_t *b, const char *path) {
+	sqlite3_finalize(b->insert_one);
+	sqlite3_finalize(b->query_oldest);
+	sqlite3_finalize(b->delete_one);
+	sqlite3_finalize(b->delete_until);
+	sqlite3_close(b->db);
+	unlink(path);
+}
+
+static int insert_frames(bench_db_t *b, const uint8_t *data, const int bytes,
+	const int first_sequence, const int n) {
+
+	int i, result = 0;
+	if (b->current) exec(b->db, "BEGIN;");
+	for (i = 0; i < n; i++) {
+		// previous implementation inserted each frame with autocommit in queueFrame
+		sqlite3_reset(b->insert_one);
+		sqlite3_bind_int64(b->insert_one, 1, current_dtime() + first_sequence + i);	// dtime was UNIQUE
+		sqlite3_bind_int(b->insert_one, 2, 4);
+		sqlite3_bind_int(b->insert_one, 3, 640);
+		sqlite3_bind_int(b->insert_one, 4, 480);
+		sqlite3_bind_int(b->insert_one, 5, first_sequence + i);
+		sqlite3_bind_int(b->insert_one, 6, bytes);
+		sqlite3_bind_blob(b->insert_one, 7, data, bytes, SQLITE_STATIC);
+		if (sqlite3_step(b->insert_one) != SQLITE_DONE) {
+			fprintf(stderr, "insert failed:%s\n", sqlite3_errmsg(b->db));
+			result = -1;
+			break;
+		}
+	}
+	if (b->current) exec(b->db, "COMMIT;");
+	return result;
+}
+
+/**
+ * read oldest records into out and delete them
+ * @return number of records
+ */
+static int drain(bench_db_t *b, uint8_t *out) {
+	int64_t ids[DRAIN_BATCH_SZ];
+	int i, n = 0;
+	sqlite3_reset(b->query_oldest);
+	sqlite3_bind_int(b->query_oldest, 1, b->current ? DRAIN_BATCH_SZ : PREVIOUS_DRAIN_SZ);
+	while (sqlite3_step(b->query_oldest) == SQLITE_ROW) {
+		ids[n++] = sqlite3_column_int64(b->query_oldest, 0);
+		const int bytes = sqlite3_column_int(b->query_oldest, 6);
+		memcpy(out, sqlite3_column_blob(b->query_oldest, 7), bytes);
+	}
+	sqlite3_reset(b->query_oldest);
+	if (n) {
+		exec(b->db, "BEGIN;");
+		if (b->current) {
+			sqlite3_reset(b->delete_until);
+			sqlite3_bind_int64(b->delete_until, 1, ids[n - 1]);
+			sqlite3_step(b->delete_until);
+		} else {
+			for (i = 0; i < n; i++) {
+				sqlite3_reset(b->delete_one);
+				sqlite3_bind_int64(b->delete_one, 1, ids[i]);
+				sqlite3_step(b->delete_one);
+			}
+		}
+		exec(b->db, "COMMIT;");
+	}
+	return n;
+}
+
+/**
+ * insert frames in INSERT_BATCH_SZ and drain them after every insert like the handler thread
+ * @return elapsed time [ms], negative on error
+ */
+static double bench(const char *path, const int current, const int bytes, const int frames) {
+	bench_db_t b;
+	uint8_t *data = malloc(bytes);
+	uint8_t *out = malloc(bytes);
+	int i, read = 0;
+	for (i = 0; i < bytes; i++) {
+		data[i] = (uint8_t)(i * 31);
+	}
+	double elapsed = -1;
+	if (!open_db(&b, path, current)) {
+		const double start = now_ms();
+		for (i = 0; i < frames; i += INSERT_BATCH_SZ) {
+			const int n = frames - i < INSERT_BATCH_SZ ? frames - i : INSERT_BATCH_SZ;
+			if (insert_frames(&b, data, bytes, i, n)) break;
+			read += drain(&b, out);
+		}
+		for ( ; read < frames ; ) {
+			const int n = drain(&b, out);
+			if (!n) break;
+			read += n;
+		}
+		elapsed = now_ms() - start;
+		if (read != frames) {
+			fprintf(stderr, "read %d of %d frames\n", read, frames);
+			elapsed = -1;
+		}
+	}
+	close_db(&b, path);
+	free(data);
+	free(out);
+	return elapsed;
+}
+
+int main(int argc, char *argv[]) {
+	const char *path = argc > 1 ? argv[1] : "sqlite_pipeline_bench.db";
+	const int bytes = argc > 2 ? atoi(argv[2]) : 640 * 480 * 2;
+	const int frames = argc > 3 ? atoi(argv[3]) : 300;
+
+	setvbuf(stdout, NULL, _IONBF, 0);
+	printf("%d bytes/frame,%d frames\n", bytes, frames);
+	const double old_ms = bench(path, 0, bytes, frames);
+	const double new_ms = bench(path, 1, bytes, frames);
+	if ((old_ms <= 0) || (new_ms <= 0)) {
+		return 1;
+	}
+	printf("previous=%8.1f ms,%6.1f frames/s,%7.2f MB/s\n",
+		old_ms, frames * 1000.0 / old_ms, (double)bytes * frames / 1048.576 / old_ms);
+	printf("current =%8.1f ms,%6.1f frames/s,%7.2f MB/s,%+.1f%%\n",
+		new_ms, frames * 1000.0 / new_ms, (double)bytes * frames / 1048.576 / new_ms,
+		(new_ms - old_ms) * 100.0 / old_ms);
+	return 0;
+}
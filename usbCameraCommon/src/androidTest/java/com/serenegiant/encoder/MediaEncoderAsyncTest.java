@@ -0,0 +1,376 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.media.MediaCodec;
+import android.os.Build;
+import android.os.Handler;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Instrumented test of the asynchronous mode(MediaCodec.Callback) of MediaEncoder.
+ * The encoder runs with a fake codec and the test calls the callbacks on the shared codec thread
+ * of the muxer in the same way as MediaCodec does, so no hardware encoder is used.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MediaEncoderAsyncTest {
+	private static final int WIDTH = 64;
+	private static final int HEIGHT = 48;
+	private static final int FRAME_BYTES = WIDTH * HEIGHT * 3 / 2;
+	/** shorter than EOS_TIMEOUT_MS of MediaEncoder */
+	private static final long SHORT_WAIT_MS = 500;
+	private static final long LONG_WAIT_MS = 3000;
+
+	/**
+	 * arguments of MediaCodec#queueInputBuffer
+	 */
+	private static final class QueuedInput {
+		final int index;
+		final int size;
+		final int flags;
+
+		QueuedInput(final int index, final int size, final int flags) {
+			this.index = index;
+			this.size = size;
+			this.flags = flags;
+		}
+	}
+
+	/**
+	 * MediaVideoBufferEncoder that records access to MediaCodec instead of encoding
+	 */
+	private static final class FakeCodecEncoder extends MediaVideoBufferEncoder {
+		final List<QueuedInput> queued = Collections.synchronizedList(new ArrayList<QueuedInput>());
+		final List<Integer> releasedOutputs = Collections.synchronizedList(new ArrayList<Integer>());
+		volatile boolean codecReleased;
+		/** number of input buffers queued after the codec was released */
+		volatile int lateInputs;
+
+		FakeCodecEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
+			super(muxer, WIDTH, HEIGHT, listener);
+		}
+
+		@Override
+		protected void prepare() throws IOException {
+			mTrackIndex = -1;
+			mMuxerStarted = mIsEOS = false;
+		}
+
+		@Override
+		protected ByteBuffer getInputBuffer(final int index) {
+			return ByteBuffer.allocateDirect(FRAME_BYTES);
+		}
+
+		@Override
+		void queueInputBuffer(final int index, final int offset, final int size,
+			final long presentationTimeUs, final int flags) {
+
+			if (codecReleased) lateInputs++;
+			queued.add(new QueuedInput(index, size, flags));
+		}
+
+		@Override
+		boolean hasCodec() {
+			return !codecReleased;
+		}
+
+		@Override
+		ByteBuffer getOutputBuffer(final int index) {
+			return ByteBuffer.allocateDirect(FRAME_BYTES);
+		}
+
+		@Override
+		void releaseOutputBuffer(final int index) {
+			releasedOutputs.add(index);
+		}
+
+		@Override
+		protected void release() {
+			// MediaVideoBufferEncoder#release waits for the input buffer that the producer holds,
+			// MediaCodec is released after that
+			super.release();
+			codecReleased = true;
+		}
+	}
+
+	private final AtomicInteger mStoppedCount = new AtomicInteger();
+	private final CountDownLatch mStopped = new CountDownLatch(1);
+	private final MediaEncoder.MediaEncoderListener mListener = new MediaEncoder.MediaEncoderListener() {
+		@Override
+		public void onPrepared(final MediaEncoder encoder) {
+		}
+
+		@Override
+		public void onStopped(final MediaEncoder encoder) {
+			mStoppedCount.incrementAndGet();
+			mStopped.countDown();
+		}
+	};
+
+	private MediaMuxerWrapper mMuxer;
+	private FakeCodecEncoder mEncoder;
+	private Handler mCodecHandler;
+
+	@Before
+	public void setUp() throws IOException {
+		assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+		// pre-record mode does not create the output file until recording starts
+		mMuxer = new MediaMuxerWrapper(".mp4", true, 1000000L, 64 * 1024);
+		mEncoder = new FakeCodecEncoder(mMuxer, mListener);
+		assertTrue(mEncoder.mIsAsync);
+		// copy into the input buffer on the caller thread so that starvation is visible to #encode
+		mEncoder.setInputQueue(0, MediaVideoBufferEncoder.OVERFLOW_DROP);
+		mEncoder.prepare();
+		// keep the codec thread alive while the test checks the encoder after it released
+		mCodecHandler = mMuxer.obtainCodecHandler();
+		mEncoder.startRecording();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		if (mEncoder != null) {
+			mEncoder.stopRecording();
+			mStopped.await(LONG_WAIT_MS, TimeUnit.MILLISECONDS);
+		}
+		if (mMuxer != null) {
+			mMuxer.releaseCodecHandler();
+		}
+	}
+
+	@Test
+	public void inputStarvationDropsFrame() throws InterruptedException {
+		final ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_BYTES);
+		// no input buffer is available yet, #encode must return without waiting
+		final long start = System.nanoTime();
+		mEncoder.encode(frame, FRAME_BYTES, 1000L);
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(SHORT_WAIT_MS));
+		assertEquals(0, mEncoder.queued.size());
+
+		inputBufferAvailable(2);
+		mEncoder.encode(frame, FRAME_BYTES, 2000L);
+		assertEquals(1, mEncoder.queued.size());
+		assertEquals(2, mEncoder.queued.get(0).index);
+		assertEquals(FRAME_BYTES, mEncoder.queued.get(0).size);
+		assertEquals(0, mEncoder.queued.get(0).flags);
+
+		// the index was consumed, next frame is dropped again
+		mEncoder.encode(frame, FRAME_BYTES, 3000L);
+		assertEquals(1, mEncoder.queued.size());
+		assertEquals(0, mStoppedCount.get());
+	}
+
+	@Test
+	public void pendingEOSIsQueuedOnNextInputBuffer() throws InterruptedException {
+		mEncoder.stopRecording();
+		runOnCodecThread(null);	// wait for mStopTask
+		// no input buffer was available, EOS waits for the next one
+		assertEquals(0, mEncoder.queued.size());
+
+		inputBufferAvailable(5);
+		assertEquals(1, mEncoder.queued.size());
+		assertEquals(5, mEncoder.queued.get(0).index);
+		assertEquals(0, mEncoder.queued.get(0).size);
+		assertEquals(MediaCodec.BUFFER_FLAG_END_OF_STREAM, mEncoder.queued.get(0).flags);
+		assertEquals(0, mStoppedCount.get());
+
+		outputBufferAvailable(7, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+		// released by EOS from the codec, not by EOS_TIMEOUT_MS
+		assertTrue(mStopped.await(SHORT_WAIT_MS, TimeUnit.MILLISECONDS));
+		runOnCodecThread(null);	// wait for the rest of mReleaseTask
+		assertEquals(Collections.singletonList(7), mEncoder.releasedOutputs);
+		assertTrue(mEncoder.codecReleased);
+		assertFalse(mEncoder.frameAvailableSoon());
+	}
+
+	@Test
+	public void eosUsesAvailableInputBuffer() throws InterruptedException {
+		inputBufferAvailable(1);
+		mEncoder.stopRecording();
+		runOnCodecThread(null);
+		assertEquals(1, mEncoder.queued.size());
+		assertEquals(1, mEncoder.queued.get(0).index);
+		assertEquals(MediaCodec.BUFFER_FLAG_END_OF_STREAM, mEncoder.queued.get(0).flags);
+	}
+
+	@Test
+	public void releaseWithoutEOSFromCodec() throws InterruptedException {
+		mEncoder.stopRecording();
+		// the codec never returns EOS, the encoder releases after EOS_TIMEOUT_MS
+		assertFalse(mStopped.await(SHORT_WAIT_MS, TimeUnit.MILLISECONDS));
+		assertTrue(mStopped.await(LONG_WAIT_MS, TimeUnit.MILLISECONDS));
+		runOnCodecThread(null);
+		assertTrue(mEncoder.codecReleased);
+	}
+
+	@Test
+	public void errorReleasesEncoder() throws InterruptedException {
+		runOnCodecThread(new Runnable() {
+			@Override
+			public void run() {
+				mEncoder.handleError(new IllegalStateException("fake codec error"));
+			}
+		});
+		assertTrue(mStopped.await(SHORT_WAIT_MS, TimeUnit.MILLISECONDS));
+		runOnCodecThread(null);
+		assertTrue(mEncoder.codecReleased);
+		assertFalse(mEncoder.frameAvailableSoon());
+
+		// frames and late callbacks after the error must not reach the released codec
+		inputBufferAvailable(3);
+		mEncoder.encode(ByteBuffer.allocateDirect(FRAME_BYTES), FRAME_BYTES, 1000L);
+		outputBufferAvailable(4, 0);
+		assertEquals(0, mEncoder.queued.size());
+		assertEquals(0, mEncoder.releasedOutputs.size());
+
+		mEncoder.stopRecording();
+		runOnCodecThread(null);
+		assertEquals(1, mStoppedCount.get());
+	}
+
+	@Test
+	public void errorWaitsForObtainedInputBuffer() throws InterruptedException {
+		inputBufferAvailable(6);
+		// the producer(capture thread) obtained the input buffer and is writing a frame into it
+		final ByteBuffer buffer = mEncoder.obtainBuffer(FRAME_BYTES);
+		assertNotNull(buffer);
+		mCodecHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mEncoder.handleError(new IllegalStateException("fake codec error"));
+			}
+		});
+		// the codec is not released while the producer holds its input buffer
+		assertFalse(mStopped.await(SHORT_WAIT_MS, TimeUnit.MILLISECONDS));
+		assertFalse(mEncoder.codecReleased);
+		assertNull(mEncoder.obtainBuffer(FRAME_BYTES));
+
+		buffer.put(new byte[FRAME_BYTES]);
+		mEncoder.onFrame(buffer, FRAME_BYTES, 0, WIDTH, HEIGHT, 0, 1000L);
+		assertTrue(mStopped.await(LONG_WAIT_MS, TimeUnit.MILLISECONDS));
+		runOnCodecThread(null);
+		assertTrue(mEncoder.codecReleased);
+		// the buffer was given back without data before the codec was released
+		assertEquals(1, mEncoder.queued.size());
+		assertEquals(6, mEncoder.queued.get(0).index);
+		assertEquals(0, mEncoder.queued.get(0).size);
+		assertEquals(0, mEncoder.lateInputs);
+		assertNull(mEncoder.obtainBuffer(FRAME_BYTES));
+		assertEquals(1, mStoppedCount.get());
+	}
+
+	@Test
+	public void directFrameUsesInputQueueWithoutInputBuffer() throws InterruptedException {
+		mEncoder.setInputQueue(2, MediaVideoBufferEncoder.OVERFLOW_DROP);
+		// MediaCodec has no free input buffer, frames are written into the input queue until it is full
+		for (int i = 0; i < 3; i++) {
+			final ByteBuffer buffer = mEncoder.obtainBuffer(FRAME_BYTES);
+			if (i < 2) {
+				assertNotNull(buffer);
+				buffer.put(new byte[FRAME_BYTES]);
+				mEncoder.onFrame(buffer, FRAME_BYTES, 0, WIDTH, HEIGHT, i, 1000L * (i + 1));
+			} else {
+				assertNull(buffer);
+			}
+		}
+		runOnCodecThread(null);
+		EncoderStats stats = mEncoder.getStats();
+		assertEquals(2, stats.queueDepth);
+		assertEquals(1, stats.framesDropped);
+		assertEquals(0, mEncoder.queued.size());
+
+		// queued frames go first even if an input buffer is available for the next frame
+		inputBufferAvailable(8);
+		assertEquals(1, mEncoder.queued.size());
+		assertEquals(8, mEncoder.queued.get(0).index);
+		assertEquals(FRAME_BYTES, mEncoder.queued.get(0).size);
+		final ByteBuffer buffer = mEncoder.obtainBuffer(FRAME_BYTES);
+		assertNotNull(buffer);
+		mEncoder.onFrame(buffer, FRAME_BYTES, 0, WIDTH, HEIGHT, 2, 3000L);
+		inputBufferAvailable(9);
+		inputBufferAvailable(10);
+		stats = mEncoder.getStats();
+		assertEquals(0, stats.queueDepth);
+		assertEquals(2, stats.maxQueueDepth);
+		assertEquals(3, stats.framesInput);
+		assertEquals(3, mEncoder.queued.size());
+		assertEquals(10, mEncoder.queued.get(2).index);
+	}
+
+	private void inputBufferAvailable(final int index) throws InterruptedException {
+		runOnCodecThread(new Runnable() {
+			@Override
+			public void run() {
+				mEncoder.handleInputBufferAvailable(index);
+			}
+		});
+	}
+
+	private void outputBufferAvailable(final int index, final int flags) throws InterruptedException {
+		runOnCodecThread(new Runnable() {
+			@Override
+			public void run() {
+				final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+				info.set(0, 0, 1000L, flags);
+				mEncoder.handleOutputBufferAvailable(index, info);
+			}
+		});
+	}
+
+	/**
+	 * run the task on the shared codec thread like MediaCodec.Callback and wait for it.
+	 * tasks that were posted before this are also finished on return.
+	 * @param task null: only wait for preceding tasks
+	 */
+	private void runOnCodecThread(final Runnable task) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		mCodecHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (task != null) task.run();
+				} finally {
+					done.countDown();
+				}
+			}
+		});
+		assertTrue(done.await(LONG_WAIT_MS, TimeUnit.MILLISECONDS));
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.media.MediaCodec;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test of PreRecordRing, samples are flushed into a writer that records them
+ * instead of MediaMuxer. Each sample is filled with a byte value so that its data can be checked.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PreRecordRingTest {
+	private static final int VIDEO_TRACK = 0;
+	private static final int AUDIO_TRACK = 1;
+	private static final long LONG_DURATION_US = 60000000L;
+
+	/**
+	 * copy of sample that was flushed
+	 */
+	private static final class Written {
+		final int trackIndex;
+		final long presentationTimeUs;
+		final int flags;
+		final byte[] data;
+
+		Written(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo info) {
+			this.trackIndex = trackIndex;
+			presentationTimeUs = info.presentationTimeUs;
+			flags = info.flags;
+			data = new byte[info.size];
+			final ByteBuffer src = byteBuf.duplicate();
+			src.limit(info.offset + info.size);
+			src.position(info.offset);
+			src.get(data);
+		}
+
+		void assertSample(final int trackIndex, final long presentationTimeUs, final int size, final int value) {
+			assertEquals(trackIndex, this.trackIndex);
+			assertEquals(presentationTimeUs, this.presentationTimeUs);
+			assertEquals(size, data.length);
+			for (int i = 0; i < size; i++) {
+				assertEquals(value, data[i]);
+			}
+		}
+	}
+
+	private static final class RecordingWriter implements PreRecordRing.SampleWriter {
+		final List<Written> written = new ArrayList<Written>();
+
+		@Override
+		public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+			written.add(new Written(trackIndex, byteBuf, bufferInfo));
+		}
+	}
+
+	/**
+	 * write a sample filled with value, the source buffer has other data around the sample
+	 */
+	private static void write(final PreRecordRing ring, final int trackIndex,
+		final int size, final long presentationTimeUs, final int flags, final int value) {
+
+		final ByteBuffer src = ByteBuffer.allocateDirect(size + 8);
+		for (int i = 0; i < src.capacity(); i++) {
+			src.put(i, (byte)0xff);
+		}
+		for (int i = 0; i < size; i++) {
+			src.put(4 + i, (byte)value);
+		}
+		final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		info.set(4, size, presentationTimeUs, flags);
+		ring.write(trackIndex, src, info);
+	}
+
+	@SuppressWarnings("deprecation")
+	private static final int SYNC = MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+
+	@Test
+	public void wrapAround() {
+		final PreRecordRing ring = new PreRecordRing(LONG_DURATION_US, 100);
+		// 3 samples of 30 bytes fit, 4th and 5th are written from the head of the ring
+		for (int i = 0; i < 5; i++) {
+			write(ring, VIDEO_TRACK, 30, i * 1000L, SYNC, i + 1);
+		}
+		final RecordingWriter writer = new RecordingWriter();
+		assertEquals(3, ring.flush(writer, -1));
+		for (int i = 0; i < 3; i++) {
+			writer.written.get(i).assertSample(VIDEO_TRACK, (i + 2) * 1000L, 30, i + 3);
+		}
+		// the ring is empty after flushing
+		assertEquals(0, ring.flush(new RecordingWriter(), -1));
+	}
+
+	@Test
+	public void evictByDuration() {
+		final PreRecordRing ring = new PreRecordRing(2500, 64 * 1024);
+		for (int i = 0; i < 5; i++) {
+			write(ring, VIDEO_TRACK, 16, i * 1000L, SYNC, i + 1);
+		}
+		// samples older than 2500us from the newest one(4000us) were evicted
+		final RecordingWriter writer = new RecordingWriter();
+		assertEquals(3, ring.flush(writer, -1));
+		for (int i = 0; i < 3; i++) {
+			writer.written.get(i).assertSample(VIDEO_TRACK, (i + 2) * 1000L, 16, i + 3);
+		}
+	}
+
+	@Test
+	public void evictByBytes() {
+		final PreRecordRing ring = new PreRecordRing(LONG_DURATION_US, 100);
+		write(ring, VIDEO_TRACK, 40, 0, SYNC, 1);
+		write(ring, VIDEO_TRACK, 40, 1000L, 0, 2);
+		// no room for 3rd sample, the oldest one is evicted although its duration is short
+		write(ring, VIDEO_TRACK, 40, 2000L, 0, 3);
+		// larger than the ring, this is dropped without evicting others
+		write(ring, VIDEO_TRACK, 101, 3000L, 0, 4);
+		final RecordingWriter writer = new RecordingWriter();
+		assertEquals(2, ring.flush(writer, -1));
+		writer.written.get(0).assertSample(VIDEO_TRACK, 1000L, 40, 2);
+		writer.written.get(1).assertSample(VIDEO_TRACK, 2000L, 40, 3);
+	}
+
+	@Test
+	public void flushFromOldestVideoSyncFrame() {
+		final PreRecordRing ring = new PreRecordRing(LONG_DURATION_US, 64 * 1024);
+		write(ring, AUDIO_TRACK, 8, 0, 0, 1);
+		write(ring, VIDEO_TRACK, 32, 500L, 0, 2);
+		write(ring, AUDIO_TRACK, 8, 1000L, 0, 3);
+		write(ring, VIDEO_TRACK, 32, 1500L, SYNC, 4);
+		write(ring, AUDIO_TRACK, 8, 2000L, 0, 5);
+		write(ring, VIDEO_TRACK, 32, 2500L, 0, 6);
+		write(ring, VIDEO_TRACK, 32, 3000L, SYNC, 7);
+		// samples before the oldest key frame of video track can not be decoded, they are discarded
+		final RecordingWriter writer = new RecordingWriter();
+		assertEquals(4, ring.flush(writer, VIDEO_TRACK));
+		writer.written.get(0).assertSample(VIDEO_TRACK, 1500L, 32, 4);
+		assertEquals(SYNC, writer.written.get(0).flags & SYNC);
+		writer.written.get(1).assertSample(AUDIO_TRACK, 2000L, 8, 5);
+		writer.written.get(2).assertSample(VIDEO_TRACK, 2500L, 32, 6);
+		writer.written.get(3).assertSample(VIDEO_TRACK, 3000L, 32, 7);
+	}
+
+	@Test
+	public void flushWithoutVideoSyncFrame() {
+		final PreRecordRing ring = new PreRecordRing(LONG_DURATION_US, 64 * 1024);
+		write(ring, AUDIO_TRACK, 8, 0, 0, 1);
+		write(ring, VIDEO_TRACK, 32, 500L, 0, 2);
+		write(ring, AUDIO_TRACK, 8, 1000L, 0, 3);
+		final RecordingWriter writer = new RecordingWriter();
+		assertEquals(0, ring.flush(writer, VIDEO_TRACK));
+		assertEquals(0, writer.written.size());
+	}
+}
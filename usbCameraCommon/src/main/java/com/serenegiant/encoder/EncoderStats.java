@@ -0,0 +1,76 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of input queue/backpressure statistics of MediaVideoBufferEncoder since recording started,
+ * see MediaVideoBufferEncoder#getStats and MediaEncoder.MediaEncoderStatsListener.
+ * Dropped/skipped frames mean MediaCodec can not keep up with the camera.
+ */
+public final class EncoderStats {
+	/** capacity of the input queue, 0 if frames are not queued(e.g. written directly into MediaCodec) */
+	public final int queueCapacity;
+	/** number of frames in the input queue now and its maximum */
+	public final int queueDepth, maxQueueDepth;
+	/** number of frames passed to MediaCodec */
+	public final long framesInput;
+	/** number of encoded frames written to the muxer */
+	public final long framesEncoded;
+	/** number of frames dropped because the input queue or MediaCodec was full */
+	public final long framesDropped;
+	/** number of frames skipped to reduce frame rate with MediaVideoBufferEncoder#OVERFLOW_REDUCE_FPS */
+	public final long framesSkipped;
+	/** current frame skip, 1 of (frameSkip + 1) frames is encoded */
+	public final int frameSkip;
+	/** latency from receiving a frame to writing its encoded data [micro seconds] */
+	public final long lastLatencyUs, avgLatencyUs, maxLatencyUs;
+
+	/*package*/ EncoderStats(final int queueCapacity, final int queueDepth, final int maxQueueDepth,
+		final long framesInput, final long framesEncoded, final long framesDropped, final long framesSkipped,
+		final int frameSkip, final long lastLatencyUs, final long avgLatencyUs, final long maxLatencyUs) {
+
+		this.queueCapacity = queueCapacity;
+		this.queueDepth = queueDepth;
+		this.maxQueueDepth = maxQueueDepth;
+		this.framesInput = framesInput;
+		this.framesEncoded = framesEncoded;
+		this.framesDropped = framesDropped;
+		this.framesSkipped = framesSkipped;
+		this.frameSkip = frameSkip;
+		this.lastLatencyUs = lastLatencyUs;
+		this.avgLatencyUs = avgLatencyUs;
+		this.maxLatencyUs = maxLatencyUs;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US,
+			"EncoderStats(queue=%d/%d,max=%d,input=%d,encoded=%d,dropped=%d,skipped=%d,skip=%d,"
+			+ "latency=%dus/avg=%dus/max=%dus)",
+			queueDepth, queueCapacity, maxQueueDepth, framesInput, framesEncoded, framesDropped, framesSkipped,
+			frameSkip, lastLatencyUs, avgLatencyUs, maxLatencyUs);
+	}
+}
@@ -26,9 +26,13 @@ package com.serenegiant.encoder;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
 import android.util.Log;
 
 public abstract class MediaEncoder implements Runnable {
@@ -38,12 +42,33 @@ public abstract class MediaEncoder implements Runnable {
 	protected static final int TIMEOUT_USEC = 10000;	// 10[msec]
 	protected static final int MSG_FRAME_AVAILABLE = 1;
 	protected static final int MSG_STOP_RECORDING = 9;
+	/**
+	 * max waiting time for EOS from MediaCodec after requesting stop in async mode
+	 */
+	private static final long EOS_TIMEOUT_MS = 1000;
+	/**
+	 * interval to check whether the muxer started when encoded data is kept in async mode
+	 */
+	private static final long PENDING_OUTPUT_INTERVAL_MS = 10;
 
 	public interface MediaEncoderListener {
 		public void onPrepared(MediaEncoder encoder);
 		public void onStopped(MediaEncoder encoder);
 	}
 
+	/**
+	 * MediaEncoderListener that also receives statistics of the encoder
+	 */
+	public interface MediaEncoderStatsListener extends MediaEncoderListener {
+		/**
+		 * called about every second while encoding on the thread that writes encoded data,
+		 * currently only MediaVideoBufferEncoder calls this
+		 * @param encoder
+		 * @param stats
+		 */
+		public void onStats(MediaEncoder encoder, EncoderStats stats);
+	}
+
 	protected final Object mSync = new Object();
 	/**
 	 * Flag that indicate this encoder is capturing now.
@@ -69,10 +94,19 @@ public abstract class MediaEncoder implements Runnable {
      * Track Number
      */
     protected int mTrackIndex;
+    /**
+     * Flag that indicate presentationTimeUs of input data is written to the muxer as it is,
+     * otherwise the time of writing each encoded data is used
+     */
+    protected volatile boolean mUseInputPTS;
     /**
      * MediaCodec instance for encoding
      */
     protected MediaCodec mMediaCodec;				// API >= 16(Android4.1.2)
+    /**
+     * cache of MediaCodec#getInputBuffers, only used on API < 21
+     */
+    private volatile ByteBuffer[] mInputBuffers;
     /**
      * Weak refarence of MediaMuxerWarapper instance
      */
@@ -81,6 +115,30 @@ public abstract class MediaEncoder implements Runnable {
      * BufferInfo instance for dequeuing
      */
     private MediaCodec.BufferInfo mBufferInfo;		// API >= 16(Android4.1.2)
+    /**
+     * Flag that indicate MediaCodec runs in asynchronous mode with MediaCodec.Callback
+     * on the shared handler of the muxer instead of polling on private thread of this encoder.
+     * This is true only when MediaMuxerWrapper#isAsyncCodec and API >= 23
+     */
+    protected final boolean mIsAsync;
+    /**
+     * Handler that MediaCodec.Callback is called on, only used in async mode
+     */
+    private Handler mCodecHandler;
+    /**
+     * indices of input buffers that MediaCodec made available, only used in async mode
+     */
+    private final ArrayDeque<Integer> mInputIndices = new ArrayDeque<Integer>();
+    /**
+     * Flag that indicate EOS should be sent with next available input buffer, only used in async mode
+     */
+    private boolean mEOSPending;
+    /**
+     * indices and BufferInfo of encoded data that is kept until the muxer starts, only used in async mode
+     */
+    private final ArrayDeque<Integer> mPendingOutputs = new ArrayDeque<Integer>();
+    private final ArrayDeque<MediaCodec.BufferInfo> mPendingInfos = new ArrayDeque<MediaCodec.BufferInfo>();
+    private boolean mReleased;
 
     protected final MediaEncoderListener mListener;
 
@@ -90,14 +148,22 @@ public abstract class MediaEncoder implements Runnable {
 		mWeakMuxer = new WeakReference<MediaMuxerWrapper>(muxer);
 		muxer.addEncoder(this);
 		mListener = listener;
+		mIsAsync = muxer.isAsyncCodec() && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
         synchronized (mSync) {
             // create BufferInfo here for effectiveness(to reduce GC)
             mBufferInfo = new MediaCodec.BufferInfo();
-            // wait for starting thread
-            new Thread(this, getClass().getSimpleName()).start();
-            try {
-            	mSync.wait();
-            } catch (final InterruptedException e) {
+            if (mIsAsync) {
+            	// MediaCodec calls back on the handler shared with other encoders, no private thread
+            	mRequestStop = false;
+            	mRequestDrain = 0;
+            	mCodecHandler = muxer.obtainCodecHandler();
+            } else {
+	            // wait for starting thread
+	            new Thread(this, getClass().getSimpleName()).start();
+	            try {
+	            	mSync.wait();
+	            } catch (final InterruptedException e) {
+	            }
             }
         }
 	}
@@ -117,8 +183,11 @@ public abstract class MediaEncoder implements Runnable {
             if (!mIsCapturing || mRequestStop) {
                 return false;
             }
-            mRequestDrain++;
-            mSync.notifyAll();
+            if (!mIsAsync) {
+            	// MediaCodec.Callback notifies encoded data in async mode
+	            mRequestDrain++;
+	            mSync.notifyAll();
+            }
         }
         return true;
     }
@@ -145,6 +214,7 @@ public abstract class MediaEncoder implements Runnable {
         			mRequestDrain--;
         	}
 	        if (localRequestStop) {
+	        	feedInput();
 	           	drain();
 	           	// request stop recording
 	           	signalEndOfInputStream();
@@ -155,6 +225,7 @@ public abstract class MediaEncoder implements Runnable {
 	           	break;
 	        }
 	        if (localRequestDrain) {
+	        	feedInput();
 	        	drain();
 	        } else {
 	        	synchronized (mSync) {
@@ -203,6 +274,9 @@ public abstract class MediaEncoder implements Runnable {
 	        // We can not know when the encoding and writing finish.
 	        // so we return immediately after request to avoid delay of caller thread
 		}
+		if (mIsAsync) {
+			mCodecHandler.post(mStopTask);
+		}
 	}
 
 //********************************************************************************
@@ -223,6 +297,10 @@ public abstract class MediaEncoder implements Runnable {
 	            mMediaCodec.stop();
 	            mMediaCodec.release();
 	            mMediaCodec = null;
+	            mInputBuffers = null;
+	            synchronized (mInputIndices) {
+	            	mInputIndices.clear();
+	            }
 			} catch (final Exception e) {
 				Log.e(TAG, "failed releasing MediaCodec", e);
 			}
@@ -242,6 +320,10 @@ public abstract class MediaEncoder implements Runnable {
 
     protected void signalEndOfInputStream() {
 		if (DEBUG) Log.d(TAG, "sending EOS to encoder");
+		if (mIsAsync) {
+			signalEndOfInputStreamAsync();
+			return;
+		}
         // signalEndOfInputStream is only avairable for video encoding with surface
         // and equivalent sending a empty buffer with BUFFER_FLAG_END_OF_STREAM flag.
 //		mMediaCodec.signalEndOfInputStream();	// API >= 18
@@ -254,16 +336,14 @@ public abstract class MediaEncoder implements Runnable {
      * @param length　length of byte array, zero means EOS.
      * @param presentationTimeUs
      */
-    @SuppressWarnings("deprecation")
 	protected void encode(final byte[] buffer, final int length, final long presentationTimeUs) {
 //    	if (DEBUG) Log.v(TAG, "encode:buffer=" + buffer);
     	if (!mIsCapturing) return;
     	int ix = 0, sz;
-        final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
         while (mIsCapturing && ix < length) {
-	        final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+	        final int inputBufferIndex = dequeueInputBuffer();
 	        if (inputBufferIndex >= 0) {
-	            final ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
+	            final ByteBuffer inputBuffer = getInputBuffer(inputBufferIndex);
 	            inputBuffer.clear();
 	            sz = inputBuffer.remaining();
 	            sz = (ix + sz < length) ? sz : length - ix;
@@ -276,17 +356,21 @@ public abstract class MediaEncoder implements Runnable {
 	            	// send EOS
 	            	mIsEOS = true;
 	            	if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
-	            	mMediaCodec.queueInputBuffer(inputBufferIndex, 0, 0,
+	            	queueInputBuffer(inputBufferIndex, 0, 0,
 	            		presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
 		            break;
 	            } else {
-	            	mMediaCodec.queueInputBuffer(inputBufferIndex, 0, sz,
+	            	queueInputBuffer(inputBufferIndex, 0, sz,
 	            		presentationTimeUs, 0);
 	            }
 	        } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
 	        	// wait for MediaCodec encoder is ready to encode
 	        	// nothing to do here because MediaCodec#dequeueInputBuffer(TIMEOUT_USEC)
 	        	// will wait for maximum TIMEOUT_USEC(10msec) on each call
+	        	if (mIsAsync) {
+	        		// drop the rest of data instead of blocking the caller
+	        		break;
+	        	}
 	        }
         }
     }
@@ -296,16 +380,14 @@ public abstract class MediaEncoder implements Runnable {
      * @param buffer null means EOS
      * @param presentationTimeUs
      */
-    @SuppressWarnings("deprecation")
 	protected void encode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
 //    	if (DEBUG) Log.v(TAG, "encode:buffer=" + buffer);
     	if (!mIsCapturing) return;
     	int ix = 0, sz;
-        final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
         while (mIsCapturing && ix < length) {
-	        final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+	        final int inputBufferIndex = dequeueInputBuffer();
 	        if (inputBufferIndex >= 0) {
-	            final ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
+	            final ByteBuffer inputBuffer = getInputBuffer(inputBufferIndex);
 	            inputBuffer.clear();
 	            sz = inputBuffer.remaining();
 	            sz = (ix + sz < length) ? sz : length - ix;
@@ -320,21 +402,104 @@ public abstract class MediaEncoder implements Runnable {
 	            	// send EOS
 	            	mIsEOS = true;
 	            	if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
-	            	mMediaCodec.queueInputBuffer(inputBufferIndex, 0, 0,
+	            	queueInputBuffer(inputBufferIndex, 0, 0,
 	            		presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
 		            break;
 	            } else {
-	            	mMediaCodec.queueInputBuffer(inputBufferIndex, 0, sz,
+	            	queueInputBuffer(inputBufferIndex, 0, sz,
 	            		presentationTimeUs, 0);
 	            }
 	        } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
 	        	// wait for MediaCodec encoder is ready to encode
 	        	// nothing to do here because MediaCodec#dequeueInputBuffer(TIMEOUT_USEC)
 	        	// will wait for maximum TIMEOUT_USEC(10msec) on each call
+	        	if (mIsAsync) {
+	        		// drop the rest of data instead of blocking the caller
+	        		break;
+	        	}
 	        }
         }
     }
 
+    /**
+     * pass queued input data to MediaCodec, subclass that keeps input data by itself should override this.
+     * this is called on private thread of this encoder before draining,
+     * or on the handler of the muxer when input buffer is available in async mode
+     */
+    protected void feedInput() {
+    }
+
+    /**
+     * request calling #feedInput after subclass queued input data
+     */
+    protected void requestFeedInput() {
+    	if (mIsAsync) {
+    		mCodecHandler.post(mFeedInputTask);
+    	} else {
+    		frameAvailableSoon();
+    	}
+    }
+
+    /**
+     * called when encoded data is written to the muxer
+     * @param info BufferInfo of encoded data, presentationTimeUs is the value passed to MediaCodec
+     */
+    protected void onEncoded(final MediaCodec.BufferInfo info) {
+    }
+
+    /**
+     * get index of input buffer of MediaCodec.
+     * This waits for maximum TIMEOUT_USEC with MediaCodec#dequeueInputBuffer,
+     * but never blocks in async mode and returns the index that MediaCodec.Callback made available.
+     * @return index of input buffer or MediaCodec#INFO_TRY_AGAIN_LATER
+     */
+    protected int dequeueInputBuffer() {
+    	if (mIsAsync) {
+    		synchronized (mInputIndices) {
+    			final Integer index = mInputIndices.pollFirst();
+    			return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+    		}
+    	}
+    	return mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+    }
+
+    /**
+     * get input buffer of MediaCodec that is dequeued with #dequeueInputBuffer.
+     * this uses MediaCodec#getInputBuffer on API >= 21 instead of deprecated MediaCodec#getInputBuffers,
+     * that is called only once and cached on older API.
+     * @param index index of input buffer returned by MediaCodec#dequeueInputBuffer
+     * @return cleared input buffer
+     */
+    @SuppressWarnings("deprecation")
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	protected ByteBuffer getInputBuffer(final int index) {
+    	final ByteBuffer result;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			result = mMediaCodec.getInputBuffer(index);
+		} else {
+			if (mInputBuffers == null) {
+				mInputBuffers = mMediaCodec.getInputBuffers();
+			}
+			result = mInputBuffers[index];
+			result.clear();
+		}
+		return result;
+	}
+
+    /**
+     * queue input buffer that is dequeued with #dequeueInputBuffer to MediaCodec
+     * @param index
+     * @param offset
+     * @param size
+     * @param presentationTimeUs
+     * @param flags
+     */
+	/*package*/ void queueInputBuffer(final int index, final int offset, final int size,
+		final long presentationTimeUs, final int flags) {
+
+		mMediaCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+	}
+
     /**
      * drain encoded data and write them to muxer
      */
@@ -412,10 +577,7 @@ LOOP:	while (mIsCapturing) {
                     	// muxer is not ready...this will prrograming failure.
                         throw new RuntimeException("drain:muxer hasn't started");
                     }
-                    // write encoded data to muxer(need to adjust presentationTimeUs.
-                   	mBufferInfo.presentationTimeUs = getPTSUs();
-                   	muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-					prevOutputPTSUs = mBufferInfo.presentationTimeUs;
+                    writeSampleData(muxer, encodedData, mBufferInfo);
                 }
                 // return buffer to encoder
                 mMediaCodec.releaseOutputBuffer(encoderStatus, false);
@@ -428,6 +590,281 @@ LOOP:	while (mIsCapturing) {
         }
     }
 
+    /**
+     * write encoded data to muxer with adjusting presentationTimeUs
+     * @param muxer
+     * @param encodedData
+     * @param info
+     */
+    private void writeSampleData(final MediaMuxerWrapper muxer,
+    	final ByteBuffer encodedData, final MediaCodec.BufferInfo info) {
+
+    	onEncoded(info);
+        if (!mUseInputPTS) {
+        	info.presentationTimeUs = getPTSUs();
+        } else if (info.presentationTimeUs < prevOutputPTSUs) {
+        	// presentationTimeUs should be monotonic otherwise muxer fail to write
+        	info.presentationTimeUs = prevOutputPTSUs;
+        }
+       	muxer.writeSampleData(mTrackIndex, encodedData, info);
+		prevOutputPTSUs = info.presentationTimeUs;
+    }
+
+//********************************************************************************
+// asynchronous mode, following methods are called on the handler of the muxer
+//********************************************************************************
+    /**
+     * create MediaCodec encoder, this also sets MediaCodec.Callback in async mode
+     * so subclass should call this instead of MediaCodec#createEncoderByType before MediaCodec#configure
+     * @param mimeType
+     * @return
+     * @throws IOException
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+	protected MediaCodec createEncoder(final String mimeType) throws IOException {
+    	final MediaCodec codec = MediaCodec.createEncoderByType(mimeType);
+    	if (mIsAsync) {
+    		codec.setCallback(new CodecCallback(), mCodecHandler);
+    	}
+    	return codec;
+    }
+
+    /**
+     * I-frame interval for video encoder, this is shortened while pre-recording
+     * so that encoded samples kept in memory contain key frames
+     * @param defaultInterval [seconds]
+     * @return
+     */
+    protected int getIFrameInterval(final int defaultInterval) {
+    	final MediaMuxerWrapper muxer = mWeakMuxer.get();
+    	return muxer != null ? muxer.getIFrameInterval(defaultInterval) : defaultInterval;
+    }
+
+    /**
+     * whether the encoder receives input data with Surface, subclass that uses
+     * MediaCodec#createInputSurface should override this to send EOS with MediaCodec#signalEndOfInputStream
+     * @return
+     */
+    protected boolean isSurfaceInput() {
+    	return false;
+    }
+
+	/**
+	 * adapter from MediaCodec.Callback to this encoder
+	 */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private final class CodecCallback extends MediaCodec.Callback {
+		@Override
+		public void onInputBufferAvailable(final MediaCodec codec, final int index) {
+			handleInputBufferAvailable(index);
+		}
+
+		@Override
+		public void onOutputBufferAvailable(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+			handleOutputBufferAvailable(index, info);
+		}
+
+		@Override
+		public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+			handleOutputFormatChanged(format);
+		}
+
+		@Override
+		public void onError(final MediaCodec codec, final MediaCodec.CodecException e) {
+			handleError(e);
+		}
+	}
+
+	/*package*/ void handleError(final Exception e) {
+		Log.e(TAG, "onError:", e);
+		synchronized (mSync) {
+			mRequestStop = true;
+			mIsCapturing = false;
+		}
+		mCodecHandler.post(mReleaseTask);
+	}
+
+	/*package*/ void handleInputBufferAvailable(final int index) {
+		final boolean eos;
+		synchronized (mInputIndices) {
+			eos = mEOSPending;
+			mEOSPending = false;
+			if (!eos) {
+				mInputIndices.addLast(index);
+			}
+		}
+		if (eos) {
+			queueEndOfStream(index);
+		} else {
+			feedInput();
+		}
+	}
+
+	/*package*/ void handleOutputFormatChanged(final MediaFormat format) {
+		if (DEBUG) Log.v(TAG, "handleOutputFormatChanged:" + format);
+		final MediaMuxerWrapper muxer = mWeakMuxer.get();
+		if ((muxer == null) || mMuxerStarted) {
+			// second time request is error
+			Log.w(TAG, "handleOutputFormatChanged:unexpected, muxer=" + muxer);
+			return;
+		}
+		mTrackIndex = muxer.addTrack(format);
+		mMuxerStarted = true;
+		// this does not wait for other encoders unlike #drain,
+		// encoded data is kept in mPendingOutputs until the muxer starts
+		muxer.start();
+	}
+
+	/*package*/ void handleOutputBufferAvailable(final int index, final MediaCodec.BufferInfo info) {
+		final MediaMuxerWrapper muxer = mWeakMuxer.get();
+		if ((muxer != null) && !muxer.isStarted() && !mRequestStop
+			&& ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0)) {
+			// keep encoded data until other encoders add their track and the muxer starts
+			final MediaCodec.BufferInfo pending = new MediaCodec.BufferInfo();
+			pending.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+			mPendingOutputs.addLast(index);
+			mPendingInfos.addLast(pending);
+			if (mPendingOutputs.size() == 1) {
+				mCodecHandler.postDelayed(mPendingOutputTask, PENDING_OUTPUT_INTERVAL_MS);
+			}
+		} else {
+			writePendingOutputs(muxer);
+			writeOutput(muxer, index, info);
+		}
+	}
+
+	private void writePendingOutputs(final MediaMuxerWrapper muxer) {
+		mCodecHandler.removeCallbacks(mPendingOutputTask);
+		for ( ; !mPendingOutputs.isEmpty() ; ) {
+			writeOutput(muxer, mPendingOutputs.pollFirst(), mPendingInfos.pollFirst());
+		}
+	}
+
+	private void writeOutput(final MediaMuxerWrapper muxer, final int index, final MediaCodec.BufferInfo info) {
+		if (!hasCodec()) return;
+		if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+			// the muxer gets codec specific data from the output format
+			info.size = 0;
+		}
+		try {
+			if ((info.size != 0) && mMuxerStarted && (muxer != null) && muxer.isStarted()) {
+				writeSampleData(muxer, getOutputBuffer(index), info);
+			}
+			releaseOutputBuffer(index);
+		} catch (final Exception e) {
+			Log.w(TAG, "writeOutput:", e);
+		}
+		if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+			// mMuxerStarted is kept so that #release stops the muxer
+			mIsCapturing = false;
+			mCodecHandler.post(mReleaseTask);
+		}
+	}
+
+	/**
+	 * access to MediaCodec from the async path,
+	 * these are package private so that tests can run the path with a fake codec
+	 */
+	/*package*/ boolean hasCodec() {
+		return mMediaCodec != null;
+	}
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	/*package*/ ByteBuffer getOutputBuffer(final int index) {
+		return mMediaCodec.getOutputBuffer(index);
+	}
+
+	/*package*/ void releaseOutputBuffer(final int index) {
+		mMediaCodec.releaseOutputBuffer(index, false);
+	}
+
+	private void signalEndOfInputStreamAsync() {
+		// pass remaining input data before EOS as far as input buffers are available
+		feedInput();
+		mIsEOS = true;
+		if (!hasCodec()) {
+			// failed to prepare, there is nothing to wait for
+			mCodecHandler.post(mReleaseTask);
+			return;
+		}
+		if (isSurfaceInput()) {
+			try {
+				mMediaCodec.signalEndOfInputStream();	// API >= 18
+			} catch (final Exception e) {
+				Log.w(TAG, "signalEndOfInputStreamAsync:", e);
+			}
+		} else {
+			final Integer index;
+			synchronized (mInputIndices) {
+				index = mInputIndices.pollFirst();
+				mEOSPending = (index == null);
+			}
+			if (index != null) {
+				queueEndOfStream(index);
+			}
+		}
+		// release even if EOS does not come back from MediaCodec
+		mCodecHandler.postDelayed(mReleaseTask, EOS_TIMEOUT_MS);
+	}
+
+	private void queueEndOfStream(final int index) {
+		if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
+		try {
+			queueInputBuffer(index, 0, 0, getPTSUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+		} catch (final Exception e) {
+			Log.w(TAG, "queueEndOfStream:", e);
+		}
+	}
+
+	private final Runnable mStopTask = new Runnable() {
+		@Override
+		public void run() {
+			signalEndOfInputStream();
+		}
+	};
+
+	private final Runnable mFeedInputTask = new Runnable() {
+		@Override
+		public void run() {
+			feedInput();
+		}
+	};
+
+	private final Runnable mPendingOutputTask = new Runnable() {
+		@Override
+		public void run() {
+			final MediaMuxerWrapper muxer = mWeakMuxer.get();
+			if ((muxer == null) || muxer.isStarted() || mRequestStop) {
+				// write them, or release them without writing if the muxer never starts
+				writePendingOutputs(muxer);
+			} else {
+				mCodecHandler.postDelayed(this, PENDING_OUTPUT_INTERVAL_MS);
+			}
+		}
+	};
+
+	private final Runnable mReleaseTask = new Runnable() {
+		@Override
+		public void run() {
+			if (mReleased) return;
+			mReleased = true;
+			// the handler is shared with other encoders, remove only tasks of this encoder
+			mCodecHandler.removeCallbacks(mStopTask);
+			mCodecHandler.removeCallbacks(mFeedInputTask);
+			mCodecHandler.removeCallbacks(mReleaseTask);
+			writePendingOutputs(mWeakMuxer.get());
+			release();
+			synchronized (mSync) {
+				mRequestStop = true;
+				mIsCapturing = false;
+			}
+			final MediaMuxerWrapper muxer = mWeakMuxer.get();
+			if (muxer != null) {
+				muxer.releaseCodecHandler();
+			}
+		}
+	};
+
     /**
      * previous presentationTimeUs for writing
      */
@@ -27,6 +27,8 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.GregorianCalendar;
 import java.util.Locale;
 
@@ -34,6 +36,8 @@ import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -44,33 +48,105 @@ public class MediaMuxerWrapper {
 	private static final String DIR_NAME = "USBCameraTest";
     private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
 
-	private String mOutputPath;
-	private final MediaMuxer mMediaMuxer;	// API >= 18
+	/**
+	 * I-frame interval of video encoders while pre-recording [seconds],
+	 * the ring should contain key frames to start the movie from
+	 */
+	/*package*/ static final int PRE_RECORD_I_FRAME_INTERVAL = 1;
+
+	private final String mExt;
+	private volatile String mOutputPath;
+	private MediaMuxer mMediaMuxer;	// API >= 18, null until recording starts in pre-record mode
 	private int mEncoderCount, mStatredCount;
 	private boolean mIsStarted;
 	private MediaEncoder mVideoEncoder, mAudioEncoder;
+	private final boolean mAsyncCodec;
+	/**
+	 * thread and its handler that MediaCodec.Callback of all encoders are called on in async mode
+	 */
+	private HandlerThread mCodecThread;
+	private Handler mCodecHandler;
+	private int mCodecHandlerCount;
+	/**
+	 * ring of encoded samples while pre-recording, null if this is not in pre-record mode or after flushing
+	 */
+	private PreRecordRing mPreRecord;
+	private final boolean mIsPreRecordMode;
+	private boolean mPreRecording, mRecordRequested;
+	/**
+	 * output formats of tracks that are added while pre-recording and index of video track
+	 */
+	private final List<MediaFormat> mTrackFormats = new ArrayList<MediaFormat>();
+	private int mVideoTrackIndex = -1;
+
+	/**
+	 * Constructor
+	 * @param ext extension of output file
+	 * @throws IOException
+	 */
+	public MediaMuxerWrapper(final String ext) throws IOException {
+		this(ext, false);
+	}
 
 	/**
 	 * Constructor
 	 * @param ext extension of output file
+	 * @param asyncCodec true: encoders run MediaCodec in asynchronous mode with MediaCodec.Callback
+	 * 		on a thread shared by all encoders of this muxer(API >= 23), instead of polling on their own thread.
+	 * 		this is ignored on older API
 	 * @throws IOException
 	 */
-	public MediaMuxerWrapper(String ext) throws IOException {
+	public MediaMuxerWrapper(final String ext, final boolean asyncCodec) throws IOException {
+		this(ext, asyncCodec, 0, 0);
+	}
+
+	/**
+	 * Constructor
+	 * @param ext extension of output file
+	 * @param asyncCodec see #MediaMuxerWrapper(String, boolean)
+	 * @param preRecordUs > 0: pre-record mode, encoders started with #startPreRecording keep encoded samples
+	 * 		of this duration [micro seconds] in memory and #startRecording writes them to the output file
+	 * 		from the oldest key frame. the output file is created when #startRecording is called.
+	 * @param preRecordBytes max bytes of encoded samples kept in memory while pre-recording, this is allocated at once
+	 * @throws IOException
+	 */
+	public MediaMuxerWrapper(String ext, final boolean asyncCodec,
+		final long preRecordUs, final int preRecordBytes) throws IOException {
+
 		if (TextUtils.isEmpty(ext)) ext = ".mp4";
+		mExt = ext;
+		mIsPreRecordMode = (preRecordUs > 0) && (preRecordBytes > 0);
+		if (mIsPreRecordMode) {
+			mPreRecord = new PreRecordRing(preRecordUs, preRecordBytes);
+		} else {
+			createMuxer();
+		}
+		mEncoderCount = mStatredCount = 0;
+		mIsStarted = false;
+		mAsyncCodec = asyncCodec;
+	}
+
+	private void createMuxer() throws IOException {
 		try {
-			mOutputPath = getCaptureFile(Environment.DIRECTORY_MOVIES, ext).toString();
+			mOutputPath = getCaptureFile(Environment.DIRECTORY_MOVIES, mExt).toString();
 		} catch (final NullPointerException e) {
 			throw new RuntimeException("This app has no permission of writing external storage");
 		}
 		mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-		mEncoderCount = mStatredCount = 0;
-		mIsStarted = false;
 	}
 
+	/**
+	 * get path of output file
+	 * @return null until #startRecording is called in pre-record mode
+	 */
 	public String getOutputPath() {
 		return mOutputPath;
 	}
 
+	public boolean isPreRecordMode() {
+		return mIsPreRecordMode;
+	}
+
 	public void prepare() throws IOException {
 		if (mVideoEncoder != null)
 			mVideoEncoder.prepare();
@@ -78,7 +154,40 @@ public class MediaMuxerWrapper {
 			mAudioEncoder.prepare();
 	}
 
+	/**
+	 * start encoders without writing the output file in pre-record mode,
+	 * encoded samples are kept in memory until #startRecording
+	 * @throws IllegalStateException this is not in pre-record mode
+	 */
+	public void startPreRecording() {
+		if (!mIsPreRecordMode) {
+			throw new IllegalStateException("not in pre-record mode");
+		}
+		synchronized (this) {
+			if (mPreRecording) return;
+			mPreRecording = true;
+		}
+		startEncoders();
+	}
+
+	/**
+	 * start recording, in pre-record mode this creates the output file
+	 * and writes encoded samples kept in memory from the oldest key frame
+	 */
 	public void startRecording() {
+		final boolean preRecording;
+		synchronized (this) {
+			preRecording = mPreRecording;
+		}
+		if (!preRecording) {
+			startEncoders();
+		}
+		if (mIsPreRecordMode) {
+			requestRecording();
+		}
+	}
+
+	private void startEncoders() {
 		if (mVideoEncoder != null)
 			mVideoEncoder.startRecording();
 		if (mAudioEncoder != null)
@@ -98,6 +207,10 @@ public class MediaMuxerWrapper {
 		return mIsStarted;
 	}
 
+	public boolean isAsyncCodec() {
+		return mAsyncCodec;
+	}
+
 //**********************************************************************
 //**********************************************************************
 	/**
@@ -126,6 +239,33 @@ public class MediaMuxerWrapper {
 		mEncoderCount = (mVideoEncoder != null ? 1 : 0) + (mAudioEncoder != null ? 1 : 0);
 	}
 
+	/**
+	 * get the handler that MediaCodec.Callback is called on, this is shared by all encoders in async mode.
+	 * encoder should call #releaseCodecHandler when it finished.
+	 * @return
+	 */
+	/*package*/ synchronized Handler obtainCodecHandler() {
+		if (mCodecHandler == null) {
+			mCodecThread = new HandlerThread(TAG);
+			mCodecThread.start();
+			mCodecHandler = new Handler(mCodecThread.getLooper());
+		}
+		mCodecHandlerCount++;
+		return mCodecHandler;
+	}
+
+	/**
+	 * quit the thread for MediaCodec.Callback when all encoders released
+	 */
+	/*package*/ synchronized void releaseCodecHandler() {
+		if ((--mCodecHandlerCount <= 0) && (mCodecThread != null)) {
+			mCodecThread.quitSafely();	// API >= 18
+			mCodecThread = null;
+			mCodecHandler = null;
+			mCodecHandlerCount = 0;
+		}
+	}
+
 	/**
 	 * request start recording from encoder
 	 * @return true when muxer is ready to write
@@ -134,10 +274,16 @@ public class MediaMuxerWrapper {
 		if (DEBUG) Log.v(TAG,  "start:");
 		mStatredCount++;
 		if ((mEncoderCount > 0) && (mStatredCount == mEncoderCount)) {
-			mMediaMuxer.start();
+			if (mMediaMuxer != null) {
+				mMediaMuxer.start();
+			}
+			// encoded samples go into mPreRecord until recording starts in pre-record mode
 			mIsStarted = true;
 			notifyAll();
 			if (DEBUG) Log.v(TAG,  "MediaMuxer started:");
+			if (mRecordRequested && (mMediaMuxer == null)) {
+				openAndFlush();
+			}
 		}
 		return mIsStarted;
 	}
@@ -149,11 +295,15 @@ public class MediaMuxerWrapper {
 		if (DEBUG) Log.v(TAG,  "stop:mStatredCount=" + mStatredCount);
 		mStatredCount--;
 		if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
-			try {
-				mMediaMuxer.stop();
-			} catch (final Exception e) {
-				Log.w(TAG, e);
+			if (mMediaMuxer != null) {
+				try {
+					mMediaMuxer.stop();
+				} catch (final Exception e) {
+					Log.w(TAG, e);
+				}
 			}
+			// discard samples that were not written because recording did not start
+			mPreRecord = null;
 			mIsStarted = false;
 			if (DEBUG) Log.v(TAG,  "MediaMuxer stopped:");
 		}
@@ -167,7 +317,18 @@ public class MediaMuxerWrapper {
 	/*package*/ synchronized int addTrack(final MediaFormat format) {
 		if (mIsStarted)
 			throw new IllegalStateException("muxer already started");
-		final int trackIx = mMediaMuxer.addTrack(format);
+		final int trackIx;
+		if (mMediaMuxer != null) {
+			trackIx = mMediaMuxer.addTrack(format);
+		} else {
+			// MediaMuxer is created later in pre-record mode, tracks are added in the same order then
+			trackIx = mTrackFormats.size();
+			mTrackFormats.add(format);
+			final String mime = format.getString(MediaFormat.KEY_MIME);
+			if ((mime != null) && mime.startsWith("video/")) {
+				mVideoTrackIndex = trackIx;
+			}
+		}
 		if (DEBUG) Log.i(TAG, "addTrack:trackNum=" + mEncoderCount + ",trackIx=" + trackIx + ",format=" + format);
 		return trackIx;
 	}
@@ -179,8 +340,64 @@ public class MediaMuxerWrapper {
 	 * @param bufferInfo
 	 */
 	/*package*/ synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-		if (mStatredCount > 0)
-			mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+		if (mStatredCount > 0) {
+			if (mMediaMuxer != null) {
+				mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+			} else if (mPreRecord != null) {
+				mPreRecord.write(trackIndex, byteBuf, bufferInfo);
+			}
+		}
+	}
+
+	/**
+	 * start writing the output file in pre-record mode,
+	 * this is deferred until all encoders added their track
+	 */
+	private synchronized void requestRecording() {
+		mRecordRequested = true;
+		if (mIsStarted && (mMediaMuxer == null)) {
+			openAndFlush();
+		}
+	}
+
+	/**
+	 * create MediaMuxer with tracks added while pre-recording and write samples kept in memory,
+	 * should be called with lock of this
+	 */
+	private void openAndFlush() {
+		try {
+			createMuxer();
+			for (final MediaFormat format: mTrackFormats) {
+				mMediaMuxer.addTrack(format);
+			}
+			mMediaMuxer.start();
+			if (mPreRecord != null) {
+				final MediaMuxer muxer = mMediaMuxer;
+				mPreRecord.flush(new PreRecordRing.SampleWriter() {
+					@Override
+					public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+						muxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+					}
+				}, mVideoTrackIndex);
+			}
+		} catch (final Exception e) {
+			Log.e(TAG, "openAndFlush:", e);
+			if (mMediaMuxer != null) {
+				mMediaMuxer.release();
+				mMediaMuxer = null;
+			}
+		}
+		mPreRecord = null;
+		mPreRecording = false;
+	}
+
+	/**
+	 * I-frame interval for video encoders of this muxer
+	 * @param defaultInterval [seconds]
+	 * @return
+	 */
+	/*package*/ int getIFrameInterval(final int defaultInterval) {
+		return mIsPreRecordMode ? Math.min(defaultInterval, PRE_RECORD_I_FRAME_INTERVAL) : defaultInterval;
 	}
 
 //**********************************************************************
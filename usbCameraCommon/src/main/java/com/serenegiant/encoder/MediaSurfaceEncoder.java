@@ -75,10 +75,10 @@ public class MediaSurfaceEncoder extends MediaEncoder implements IVideoEncoder {
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);	// API >= 18
         format.setInteger(MediaFormat.KEY_BIT_RATE, calcBitRate());
         format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, getIFrameInterval(10));
 		if (DEBUG) Log.i(TAG, "format: " + format);
 
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        mMediaCodec = createEncoder(MIME_TYPE);
         mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         // get Surface for encoder input
         // this method only can call between #configure and #start
@@ -94,6 +94,11 @@ public class MediaSurfaceEncoder extends MediaEncoder implements IVideoEncoder {
         }
 	}
 
+	@Override
+	protected boolean isSurfaceInput() {
+		return true;
+	}
+
 	@Override
     protected void release() {
 		if (DEBUG) Log.i(TAG, "release:");
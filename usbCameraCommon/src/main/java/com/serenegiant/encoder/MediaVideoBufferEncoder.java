@@ -33,14 +33,26 @@ import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.util.Log;
 
+import com.serenegiant.usb.IDirectFrameCallback;
+
 /**
  * This class receives video images as ByteBuffer(strongly recommend direct ByteBuffer) as NV21(YUV420SP)
  * and encode them to h.264.
  * If you use this directly with IFrameCallback, you should know UVCCamera and it backend native libraries
  * never execute color space conversion. This means that color tone of resulted movie will be different
  * from that you expected/can see on screen.
+ * This class also implements IDirectFrameCallback, set it with UVCCamera#setDirectFrameCallback
+ * so that native library converts each frame directly into the input buffer of MediaCodec.
+ * In that case you should remove the callback with UVCCamera#setDirectFrameCallback(null, 0)
+ * when this encoder stops(MediaEncoderListener#onStopped is also called on MediaCodec error),
+ * MediaCodec is released after the input buffer that native library is writing into was passed back.
+ * Frames passed with #encode are copied into a bounded input queue of preallocated buffers
+ * and passed to MediaCodec on the encoder thread, so the caller(e.g. capture thread) never waits for MediaCodec.
+ * IDirectFrameCallback also writes into the input queue while MediaCodec has no free input buffer
+ * or earlier frames are still waiting in the queue. Use only one of #encode and IDirectFrameCallback at a time.
+ * Statistics are available with #getStats or MediaEncoder.MediaEncoderStatsListener.
  */
-public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncoder {
+public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncoder, IDirectFrameCallback {
 	private static final boolean DEBUG = true;	// TODO set false on release
 	private static final String TAG = "MediaVideoBufferEncoder";
 
@@ -49,8 +61,60 @@ public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncod
     private static final int FRAME_RATE = 15;
     private static final float BPP = 0.50f;
 
+	/** drop incoming frame when the input queue(or MediaCodec) is full */
+	public static final int OVERFLOW_DROP = 0;
+	/** drop incoming frame and skip more frames(reduce frame rate) while the input queue(or MediaCodec) overflows */
+	public static final int OVERFLOW_REDUCE_FPS = 1;
+	public static final int DEFAULT_INPUT_QUEUE_SIZE = 4;
+	public static final int MAX_INPUT_QUEUE_SIZE = 16;
+	/** max frame skip with OVERFLOW_REDUCE_FPS, 1 of (MAX_FRAME_SKIP + 1) frames is encoded */
+	private static final int MAX_FRAME_SKIP = 4;
+	/** number of frames without overflow to decrease frame skip */
+	private static final int RECOVER_FRAMES = 30;
+	/** number of frames that latency is measured at the same time */
+	private static final int LATENCY_SLOTS = 32;
+	private static final long STATS_INTERVAL_NS = 1000000000L;
+
 	private final int mWidth, mHeight;
     protected int mColorFormat;
+	/**
+	 * index of input buffer of MediaCodec or slot of the input queue that is passed to native library
+	 * with #obtainBuffer and the time, guarded by mDirectSync
+	 */
+	private int mDirectInputIndex = -1;
+	private int mDirectSlot = -1;
+	private long mDirectArrivalNs;
+	/**
+	 * handshake between the capture thread and #release, MediaCodec is not released
+	 * while the capture thread holds the input buffer between #obtainBuffer and #onFrame,
+	 * and #obtainBuffer returns null after #release started. guarded by mDirectSync
+	 */
+	private final Object mDirectSync = new Object();
+	private boolean mDirectHeld, mDirectReleased;
+	/**
+	 * input queue, ring buffer of preallocated direct ByteBuffers and frame information
+	 */
+	private final Object mQueueSync = new Object();
+	private int mQueueCapacity = DEFAULT_INPUT_QUEUE_SIZE;
+	private int mOverflowPolicy = OVERFLOW_DROP;
+	private ByteBuffer[] mQueueBuffers;
+	private int[] mQueueSizes;
+	private long[] mQueuePts;
+	private long[] mQueueArrivalNs;
+	private int mQueueHead, mQueueCount, mMaxQueueDepth;
+	/**
+	 * frame skip for OVERFLOW_REDUCE_FPS
+	 */
+	private int mFrameSkip, mSkipCounter, mRecoverCounter;
+	/**
+	 * statistics, guarded by mQueueSync
+	 */
+	private long mFramesInput, mFramesEncoded, mFramesDropped, mFramesSkipped;
+	private long mLastLatencyUs, mTotalLatencyUs, mMaxLatencyUs, mLatencyCount;
+	private final long[] mLatencyPts = new long[LATENCY_SLOTS];
+	private final long[] mLatencyArrivalNs = new long[LATENCY_SLOTS];
+	private int mLatencyIx;
+	private long mLastStatsNs;
 
 	public MediaVideoBufferEncoder(final MediaMuxerWrapper muxer, final int width, final int height, final MediaEncoderListener listener) {
 		super(muxer, listener);
@@ -59,14 +123,407 @@ public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncod
 		mHeight = height;
 	}
 
+	/**
+	 * set capacity and overflow policy of the input queue between #encode and MediaCodec.
+	 * this should be called before the first frame is passed.
+	 * @param capacity [0, MAX_INPUT_QUEUE_SIZE], 0: copy into MediaCodec on the caller thread,
+	 * 		that may block the caller while MediaCodec is busy
+	 * @param overflowPolicy OVERFLOW_DROP or OVERFLOW_REDUCE_FPS, this is also applied to IDirectFrameCallback
+	 * 		that uses the input queue while MediaCodec has no free input buffer
+	 * @throws IllegalArgumentException
+	 * @throws IllegalStateException the input queue is already in use
+	 */
+	public void setInputQueue(final int capacity, final int overflowPolicy) {
+		if ((capacity < 0) || (capacity > MAX_INPUT_QUEUE_SIZE)
+			|| ((overflowPolicy != OVERFLOW_DROP) && (overflowPolicy != OVERFLOW_REDUCE_FPS))) {
+			throw new IllegalArgumentException("capacity=" + capacity + ",overflowPolicy=" + overflowPolicy);
+		}
+		synchronized (mQueueSync) {
+			if ((mQueueBuffers != null) && (mQueueBuffers.length != capacity)) {
+				throw new IllegalStateException("input queue is already in use");
+			}
+			mQueueCapacity = capacity;
+			mOverflowPolicy = overflowPolicy;
+		}
+	}
+
+	/**
+	 * get snapshot of statistics of the input queue/backpressure
+	 * @return
+	 */
+	public EncoderStats getStats() {
+		synchronized (mQueueSync) {
+			return new EncoderStats(mQueueBuffers != null ? mQueueBuffers.length : 0,
+				mQueueCount, mMaxQueueDepth, mFramesInput, mFramesEncoded, mFramesDropped, mFramesSkipped,
+				mFrameSkip, mLastLatencyUs, mLatencyCount > 0 ? mTotalLatencyUs / mLatencyCount : 0, mMaxLatencyUs);
+		}
+	}
+
 	public void encode(final ByteBuffer buffer) {
 //    	if (DEBUG) Log.v(TAG, "encode:buffer=" + buffer);
 		synchronized (mSync) {
 			if (!mIsCapturing || mRequestStop) return;
 		}
-		encode(buffer, buffer.capacity(), getPTSUs());
+		if (mQueueCapacity > 0) {
+			enqueue(buffer, buffer.capacity(), getPTSUs());
+		} else {
+			super.encode(buffer, buffer.capacity(), getPTSUs());
+		}
     }
 
+	/**
+	 * encode a frame with its capture time, e.g. presentationTimeUs of IPooledFrameCallback
+	 * that is translated from the device clock. The time is written to the muxer as it is
+	 * so that jitter of queueing and thread scheduling does not affect frame pacing.
+	 * @param buffer
+	 * @param length number of bytes of the frame from the head of buffer
+	 * @param presentationTimeUs [micro seconds] in the same clock as System#nanoTime
+	 */
+	@Override
+	public void encode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
+		synchronized (mSync) {
+			if (!mIsCapturing || mRequestStop) return;
+		}
+		mUseInputPTS = true;
+		if (mQueueCapacity > 0) {
+			enqueue(buffer, length, presentationTimeUs);
+		} else {
+			super.encode(buffer, length, presentationTimeUs);
+		}
+	}
+
+	/**
+	 * copy a frame into the input queue, this never waits for MediaCodec
+	 * @param buffer
+	 * @param length
+	 * @param presentationTimeUs
+	 */
+	private void enqueue(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
+		final long arrivalNs = System.nanoTime();
+		final int slot;
+		synchronized (mQueueSync) {
+			if (!acceptFrame()) return;
+			slot = reserveSlot();
+			if (slot < 0) return;
+		}
+		// only the caller thread writes into the slot after the tail, so copy it without lock
+		final ByteBuffer dst = mQueueBuffers[slot];
+		if (length > dst.capacity()) {
+			Log.w(TAG, "enqueue:unexpected frame size " + length);
+			synchronized (mQueueSync) {
+				mFramesDropped++;
+			}
+			return;
+		}
+		buffer.clear();
+		buffer.limit(length);
+		dst.clear();
+		dst.put(buffer);
+		synchronized (mQueueSync) {
+			commitSlot(slot, length, presentationTimeUs, arrivalNs);
+		}
+		requestFeedInput();
+	}
+
+	/**
+	 * get the slot after the tail of the input queue, should be called with mQueueSync.
+	 * all buffers are allocated on the first frame so that no allocation happens while recording
+	 * @return index of the slot, -1 if the input queue is full
+	 */
+	private int reserveSlot() {
+		if (mQueueBuffers == null) {
+			final int n = mQueueCapacity;
+			final int bytes = mWidth * mHeight * 3 / 2;
+			mQueueBuffers = new ByteBuffer[n];
+			for (int i = 0; i < n; i++) {
+				mQueueBuffers[i] = ByteBuffer.allocateDirect(bytes);
+			}
+			mQueueSizes = new int[n];
+			mQueuePts = new long[n];
+			mQueueArrivalNs = new long[n];
+		}
+		if (mQueueCount >= mQueueBuffers.length) {
+			onOverflow();
+			return -1;
+		}
+		return (mQueueHead + mQueueCount) % mQueueBuffers.length;
+	}
+
+	/**
+	 * add the frame written into the slot from #reserveSlot to the input queue, should be called with mQueueSync
+	 * @param slot
+	 * @param length
+	 * @param presentationTimeUs
+	 * @param arrivalNs
+	 */
+	private void commitSlot(final int slot, final int length, final long presentationTimeUs, final long arrivalNs) {
+		mQueueSizes[slot] = length;
+		mQueuePts[slot] = presentationTimeUs;
+		mQueueArrivalNs[slot] = arrivalNs;
+		mQueueCount++;
+		if (mQueueCount > mMaxQueueDepth) {
+			mMaxQueueDepth = mQueueCount;
+		}
+		onAccepted();
+	}
+
+	/**
+	 * pass queued frames to MediaCodec as far as its input buffers are available
+	 */
+	@Override
+	protected void feedInput() {
+		for ( ; ; ) {
+			final int slot;
+			synchronized (mQueueSync) {
+				if (mQueueCount == 0) break;
+				slot = mQueueHead;
+			}
+			final MediaCodec codec = mMediaCodec;
+			if ((codec == null) || !mIsCapturing) break;
+			final int inputBufferIndex;
+			try {
+				inputBufferIndex = dequeueInputBuffer();
+			} catch (final Exception e) {
+				Log.w(TAG, "feedInput:", e);
+				break;
+			}
+			if (inputBufferIndex < 0) {
+				// retry when MediaCodec is ready, frames are kept in the queue until then
+				break;
+			}
+			final int size = mQueueSizes[slot];
+			final long pts = mQueuePts[slot];
+			boolean queued = false;
+			try {
+				final ByteBuffer inputBuffer = getInputBuffer(inputBufferIndex);
+				if (inputBuffer.remaining() >= size) {
+					final ByteBuffer src = mQueueBuffers[slot];
+					src.clear();
+					src.limit(size);
+					inputBuffer.put(src);
+					codec.queueInputBuffer(inputBufferIndex, 0, size, pts, 0);
+					queued = true;
+				} else {
+					codec.queueInputBuffer(inputBufferIndex, 0, 0, pts, 0);
+				}
+			} catch (final Exception e) {
+				Log.w(TAG, "feedInput:", e);
+			}
+			synchronized (mQueueSync) {
+				if (queued) {
+					mFramesInput++;
+					addLatencyEntry(pts, mQueueArrivalNs[slot]);
+				} else {
+					mFramesDropped++;
+				}
+				mQueueHead = (mQueueHead + 1) % mQueueBuffers.length;
+				mQueueCount--;
+			}
+		}
+	}
+
+	/**
+	 * apply frame skip of OVERFLOW_REDUCE_FPS, should be called with mQueueSync
+	 * @return false if the frame should be skipped
+	 */
+	private boolean acceptFrame() {
+		if ((mFrameSkip > 0) && ((mSkipCounter++ % (mFrameSkip + 1)) != 0)) {
+			mFramesSkipped++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * should be called with mQueueSync when incoming frame is dropped because of overflow
+	 */
+	private void onOverflow() {
+		mFramesDropped++;
+		mRecoverCounter = 0;
+		if ((mOverflowPolicy == OVERFLOW_REDUCE_FPS) && (mFrameSkip < MAX_FRAME_SKIP)) {
+			mFrameSkip++;
+			mSkipCounter = 1;
+		}
+	}
+
+	/**
+	 * should be called with mQueueSync when incoming frame is accepted
+	 */
+	private void onAccepted() {
+		if ((mFrameSkip > 0) && (++mRecoverCounter >= RECOVER_FRAMES)) {
+			mFrameSkip--;
+			mRecoverCounter = 0;
+		}
+	}
+
+	/**
+	 * remember when the frame arrived to measure encoding latency, should be called with mQueueSync
+	 * @param presentationTimeUs
+	 * @param arrivalNs
+	 */
+	private void addLatencyEntry(final long presentationTimeUs, final long arrivalNs) {
+		mLatencyPts[mLatencyIx] = presentationTimeUs;
+		mLatencyArrivalNs[mLatencyIx] = arrivalNs;
+		mLatencyIx = (mLatencyIx + 1) % LATENCY_SLOTS;
+	}
+
+	@Override
+	protected void onEncoded(final MediaCodec.BufferInfo info) {
+		final long now = System.nanoTime();
+		synchronized (mQueueSync) {
+			mFramesEncoded++;
+			for (int i = 0; i < LATENCY_SLOTS; i++) {
+				if ((mLatencyArrivalNs[i] != 0) && (mLatencyPts[i] == info.presentationTimeUs)) {
+					mLastLatencyUs = (now - mLatencyArrivalNs[i]) / 1000L;
+					mTotalLatencyUs += mLastLatencyUs;
+					mLatencyCount++;
+					if (mLastLatencyUs > mMaxLatencyUs) {
+						mMaxLatencyUs = mLastLatencyUs;
+					}
+					mLatencyArrivalNs[i] = 0;
+					break;
+				}
+			}
+		}
+		if ((mListener instanceof MediaEncoderStatsListener)
+			&& (now - mLastStatsNs >= STATS_INTERVAL_NS)) {
+
+			mLastStatsNs = now;
+			try {
+				((MediaEncoderStatsListener)mListener).onStats(this, getStats());
+			} catch (final Exception e) {
+				Log.w(TAG, "onEncoded:", e);
+			}
+		}
+	}
+
+	/**
+	 * IDirectFrameCallback#obtainBuffer, dequeue input buffer of MediaCodec for next frame,
+	 * or get the slot of the input queue if MediaCodec has no free input buffer now
+	 * @param size
+	 * @return null if encoder is not capturing or both MediaCodec and the input queue are full
+	 */
+	@Override
+	public ByteBuffer obtainBuffer(final int size) {
+		synchronized (mSync) {
+			if (!mIsCapturing || mRequestStop) return null;
+		}
+		synchronized (mDirectSync) {
+			// #release may have started after checking mIsCapturing, e.g. with MediaCodec error
+			if (mDirectReleased || !hasCodec()) return null;
+			final boolean hasQueued;
+			synchronized (mQueueSync) {
+				if (!acceptFrame()) return null;
+				hasQueued = mQueueCount > 0;
+			}
+			mDirectArrivalNs = System.nanoTime();
+			if (!hasQueued) {
+				try {
+					// this never blocks the capture thread in async mode
+					final int inputBufferIndex = dequeueInputBuffer();
+					if (inputBufferIndex >= 0) {
+						// onFrame is called with size=0 if the capacity is not enough
+						final ByteBuffer result = getInputBuffer(inputBufferIndex);
+						mDirectInputIndex = inputBufferIndex;
+						mDirectHeld = true;
+						return result;
+					}
+				} catch (final Exception e) {
+					Log.w(TAG, "obtainBuffer:", e);
+				}
+			}
+			synchronized (mQueueSync) {
+				if (mQueueCapacity > 0) {
+					// write into the input queue and keep the order of the frames waiting in it,
+					// #feedInput passes them to MediaCodec when its input buffers become available
+					final int slot = reserveSlot();
+					if (slot >= 0) {
+						final ByteBuffer result = mQueueBuffers[slot];
+						result.clear();
+						mDirectSlot = slot;
+						mDirectHeld = true;
+						return result;
+					}
+				} else {
+					onOverflow();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * IDirectFrameCallback#onFrame, queue the input buffer that native library wrote the frame into
+	 * with its capture time translated from the device clock
+	 */
+	@Override
+	public void onFrame(final ByteBuffer frame, final int size, final int pixelFormat,
+		final int width, final int height, final int sequence, final long presentationTimeUs) {
+
+		boolean queued = false, enqueued = false;
+		synchronized (mDirectSync) {
+			final int inputBufferIndex = mDirectInputIndex;
+			final int slot = mDirectSlot;
+			mDirectInputIndex = mDirectSlot = -1;
+			if (!mDirectHeld) return;
+			try {
+				if (slot >= 0) {
+					// the slot is reused for next frame without adding to the input queue if nothing was written
+					if ((size > 0) && mIsCapturing) {
+						mUseInputPTS = true;
+						synchronized (mQueueSync) {
+							commitSlot(slot, size, presentationTimeUs, mDirectArrivalNs);
+						}
+						enqueued = true;
+					}
+				} else if ((size > 0) && mIsCapturing) {
+					mUseInputPTS = true;
+					queueInputBuffer(inputBufferIndex, 0, size, presentationTimeUs, 0);
+					synchronized (mQueueSync) {
+						mFramesInput++;
+						addLatencyEntry(presentationTimeUs, mDirectArrivalNs);
+						onAccepted();
+					}
+					queued = true;
+				} else {
+					// give back the input buffer without data
+					queueInputBuffer(inputBufferIndex, 0, 0, presentationTimeUs, 0);
+				}
+			} catch (final Exception e) {
+				Log.w(TAG, "onFrame:", e);
+			} finally {
+				// MediaCodec can be released now
+				mDirectHeld = false;
+				mDirectSync.notifyAll();
+			}
+		}
+		if (queued) {
+			frameAvailableSoon();
+		} else if (enqueued) {
+			requestFeedInput();
+		}
+	}
+
+	/**
+	 * wait until the capture thread passes back the input buffer it obtained with #obtainBuffer
+	 * before releasing MediaCodec. This is called on the thread of this encoder on stop, and also
+	 * on the handler of the muxer on MediaCodec error while the direct callback may be still set.
+	 */
+	@Override
+	protected void release() {
+		synchronized (mDirectSync) {
+			mDirectReleased = true;
+			while (mDirectHeld) {
+				try {
+					mDirectSync.wait();
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+		}
+		super.release();
+	}
+
 	@Override
 	protected void prepare() throws IOException {
 		if (DEBUG) Log.i(TAG, "prepare: ");
@@ -84,10 +541,10 @@ public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncod
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, mColorFormat);
         format.setInteger(MediaFormat.KEY_BIT_RATE, calcBitRate());
         format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, getIFrameInterval(10));
 		if (DEBUG) Log.i(TAG, "format: " + format);
 
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        mMediaCodec = createEncoder(MIME_TYPE);
         mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mMediaCodec.start();
         if (DEBUG) Log.i(TAG, "prepare finishing");
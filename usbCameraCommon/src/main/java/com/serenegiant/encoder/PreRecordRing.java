@@ -0,0 +1,198 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+/**
+ * In-memory ring of encoded samples for pre-recording of MediaMuxerWrapper.
+ * This keeps samples of the last durationUs within preallocated maxBytes
+ * and writes them to MediaMuxer from the oldest key frame of video track when recording starts.
+ * This class is not thread safe, MediaMuxerWrapper calls this with its lock.
+ */
+/*package*/ final class PreRecordRing {
+	private static final boolean DEBUG = true;	// TODO set false on release
+	private static final String TAG = "PreRecordRing";
+
+	/**
+	 * destination of #flush, MediaMuxerWrapper passes its MediaMuxer
+	 */
+	/*package*/ interface SampleWriter {
+		public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo);
+	}
+
+	/**
+	 * encoded sample in the ring
+	 */
+	private static final class Sample {
+		int trackIndex;
+		int offset;
+		int size;
+		long presentationTimeUs;
+		int flags;
+	}
+
+	private final long mDurationUs;
+	private final ByteBuffer mBuffer;
+	/** samples in the ring from oldest to newest */
+	private final ArrayDeque<Sample> mSamples = new ArrayDeque<Sample>();
+	/** evicted Sample objects to reuse */
+	private final ArrayDeque<Sample> mPool = new ArrayDeque<Sample>();
+	/** next write position in mBuffer */
+	private int mWritePos;
+	private long mDroppedSamples;
+
+	/**
+	 * Constructor
+	 * @param durationUs duration of samples to keep [micro seconds]
+	 * @param maxBytes size of the ring, this is allocated at once
+	 */
+	/*package*/ PreRecordRing(final long durationUs, final int maxBytes) {
+		mDurationUs = durationUs;
+		mBuffer = ByteBuffer.allocateDirect(maxBytes);
+	}
+
+	/**
+	 * copy encoded sample into the ring, oldest samples are evicted
+	 * when the ring is full or they are older than durationUs
+	 * @param trackIndex
+	 * @param byteBuf
+	 * @param bufferInfo
+	 */
+	/*package*/ void write(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		final int size = bufferInfo.size;
+		if ((size <= 0) || (size > mBuffer.capacity())) {
+			mDroppedSamples++;
+			return;
+		}
+		for ( ; !hasRoom(size) && !mSamples.isEmpty() ; ) {
+			mPool.addLast(mSamples.pollFirst());
+		}
+		if (mSamples.isEmpty()) {
+			mWritePos = 0;
+		}
+		byteBuf.limit(bufferInfo.offset + size);
+		byteBuf.position(bufferInfo.offset);
+		mBuffer.limit(mWritePos + size);
+		mBuffer.position(mWritePos);
+		mBuffer.put(byteBuf);
+		final Sample sample = mPool.isEmpty() ? new Sample() : mPool.pollFirst();
+		sample.trackIndex = trackIndex;
+		sample.offset = mWritePos;
+		sample.size = size;
+		sample.presentationTimeUs = bufferInfo.presentationTimeUs;
+		sample.flags = bufferInfo.flags;
+		mSamples.addLast(sample);
+		mWritePos += size;
+		// evict samples older than durationUs
+		for ( ; mSamples.size() > 1 ; ) {
+			final Sample oldest = mSamples.peekFirst();
+			if (sample.presentationTimeUs - oldest.presentationTimeUs <= mDurationUs) break;
+			mPool.addLast(mSamples.pollFirst());
+		}
+	}
+
+	/**
+	 * check whether the sample can be written at mWritePos without overwriting samples in the ring,
+	 * this moves mWritePos to the head of the ring when there is no room at the end
+	 * @param size
+	 * @return
+	 */
+	private boolean hasRoom(final int size) {
+		if (mSamples.isEmpty()) {
+			return true;
+		}
+		final int head = mSamples.peekFirst().offset;
+		if (mWritePos > head) {
+			// samples are in [head, mWritePos)
+			if (mBuffer.capacity() - mWritePos >= size) {
+				return true;
+			} else if (head >= size) {
+				mWritePos = 0;
+				return true;
+			}
+			return false;
+		} else if (mWritePos < head) {
+			// samples are in [head, end of the ring) and [0, mWritePos)
+			return head - mWritePos >= size;
+		}
+		// mWritePos == head, the ring is full
+		return false;
+	}
+
+	/**
+	 * write samples in the ring to the muxer from the oldest key frame of video track,
+	 * samples of other tracks before the key frame are discarded.
+	 * all samples are written from the head of the ring if videoTrackIndex is negative.
+	 * @param writer writes samples to started MediaMuxer
+	 * @param videoTrackIndex
+	 * @return number of written samples
+	 */
+	@SuppressWarnings("deprecation")
+	/*package*/ int flush(final SampleWriter writer, final int videoTrackIndex) {
+		long startTimeUs = Long.MIN_VALUE;
+		if (videoTrackIndex >= 0) {
+			for (final Sample sample: mSamples) {
+				if ((sample.trackIndex == videoTrackIndex)
+					&& ((sample.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0)) {
+					startTimeUs = sample.presentationTimeUs;
+					break;
+				}
+			}
+			if (startTimeUs == Long.MIN_VALUE) {
+				// no key frame, video can not be decoded from any sample in the ring
+				startTimeUs = Long.MAX_VALUE;
+			}
+		}
+		final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		boolean keyFrameFound = videoTrackIndex < 0;
+		int result = 0;
+		mBuffer.clear();
+		for (final Sample sample: mSamples) {
+			if (sample.trackIndex == videoTrackIndex) {
+				keyFrameFound |= (sample.presentationTimeUs == startTimeUs)
+					&& ((sample.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+				if (!keyFrameFound) continue;
+			} else if (sample.presentationTimeUs < startTimeUs) {
+				continue;
+			}
+			info.set(sample.offset, sample.size, sample.presentationTimeUs, sample.flags);
+			try {
+				writer.writeSampleData(sample.trackIndex, mBuffer, info);
+				result++;
+			} catch (final Exception e) {
+				Log.w(TAG, "flush:", e);
+			}
+		}
+		if (DEBUG) Log.v(TAG, "flush:samples=" + mSamples.size() + ",written=" + result + ",dropped=" + mDroppedSamples);
+		mSamples.clear();
+		mPool.clear();
+		mWritePos = 0;
+		return result;
+	}
+}
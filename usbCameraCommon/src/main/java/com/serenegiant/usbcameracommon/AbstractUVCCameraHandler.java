@@ -40,13 +40,14 @@ import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
+import com.serenegiant.encoder.EncoderStats;
 import com.serenegiant.encoder.MediaAudioEncoder;
 import com.serenegiant.encoder.MediaEncoder;
 import com.serenegiant.encoder.MediaMuxerWrapper;
 import com.serenegiant.encoder.MediaSurfaceEncoder;
 import com.serenegiant.encoder.MediaVideoBufferEncoder;
 import com.serenegiant.encoder.MediaVideoEncoder;
-import com.serenegiant.usb.IFrameCallback;
+import com.serenegiant.usb.IStillCaptureCallback;
 import com.serenegiant.usb.USBMonitor;
 import com.serenegiant.usb.UVCCamera;
 import com.serenegiant.widget.CameraViewInterface;
@@ -59,7 +60,6 @@ import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.nio.ByteBuffer;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
@@ -79,7 +79,8 @@ import java.util.concurrent.CopyOnWriteArraySet;
 * （6）MSG_CAPTURE_START = 5;	开始录制
 * （7）MSG_CAPTURE_STOP = 6;		停止录制
 * （8）MSG_MEDIA_UPDATE = 7;		刷新媒体库
-* （9）MSG_RELEASE = 9;			释放资源
+* （9）MSG_PRE_RECORD = 8;		开始预录制(pre-record模式)
+* （10）MSG_RELEASE = 9;			释放资源
 *  注意：（8）（9）实际上Demo未使用
 *
 * 2 在handleMessage()方法中调用CameraThread处理摄像头
@@ -120,6 +121,8 @@ import java.util.concurrent.CopyOnWriteArraySet;
 * 6 摄像头生命周期回调注册方法
 * （1）addCallback()		添加生命周期回调注册
 * （2）removeCallback()	移除声明周期回调注册
+* （3）addStillCaptureCallback()	添加拍照完成回调注册
+* （4）removeStillCaptureCallback()	移除拍照完成回调注册
 * 摄像头生命周期回调使用方式：
 * （1） 继承 CameraCallback接口，处理生命周期；
 * （2） 调用 addCallback()方法传入对象；
@@ -165,6 +168,14 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		public void onError(final Exception e);	/** 返回错误码 */
 	}
 
+	/**
+	 * 拍照完成回调, 与CameraCallback分开注册
+	 * 在native编码线程中触发
+	 */
+	public interface StillCaptureCallback {
+		public void onCaptureStill(final String path);	/** 拍照完成 */
+	}
+
 	/**
 	 * 消息-MSG_OPEN:打开设备
 	 */
@@ -205,6 +216,11 @@ abstract class AbstractUVCCameraHandler extends Handler {
 	 */
 	private static final int MSG_MEDIA_UPDATE = 7;
 
+	/**
+	 * 消息-MSG_PRE_RECORD:开始预录制
+	 */
+	private static final int MSG_PRE_RECORD = 8;
+
 	/**
 	 * 消息-MSG_RELEASE:
 	 */
@@ -414,6 +430,26 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		sendEmptyMessage(MSG_CAPTURE_STOP);
 	}
 
+	/**
+	 * 摄像头操作方法-设置预录制(pre-record模式)
+	 * encoders start with preview and keep encoded samples of the last durationUs in memory,
+	 * #startRecording writes them to the movie from the oldest key frame.
+	 * this is applied from next #startPreview
+	 * @param durationUs [micro seconds], 0 disables pre-record mode
+	 * @param maxBytes max bytes of encoded samples kept in memory, this is allocated at once
+	 * @throws IllegalArgumentException
+	 */
+	public void setPreRecording(final long durationUs, final int maxBytes) {
+		checkReleased();
+		if ((durationUs < 0) || ((durationUs > 0) && (maxBytes <= 0))) {
+			throw new IllegalArgumentException("durationUs=" + durationUs + ",maxBytes=" + maxBytes);
+		}
+		final CameraThread thread = mWeakThread.get();
+		if (thread != null) {
+			thread.setPreRecording(durationUs, maxBytes);
+		}
+	}
+
 	/**
 	 * 摄像头操作方法-释放资源
 	 */
@@ -450,6 +486,33 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		}
 	}
 
+	/**
+	 * 拍照完成回调注册方法—注册
+	 * @param callback
+	 */
+	public void addStillCaptureCallback(final StillCaptureCallback callback) {
+		checkReleased();
+		if (!mReleased && (callback != null)) {
+			final CameraThread thread = mWeakThread.get();
+			if (thread != null) {
+				thread.mStillCaptureCallbacks.add(callback);
+			}
+		}
+	}
+
+	/**
+	 * 拍照完成回调注册方法—注销
+	 * @param callback
+	 */
+	public void removeStillCaptureCallback(final StillCaptureCallback callback) {
+		if (callback != null) {
+			final CameraThread thread = mWeakThread.get();
+			if (thread != null) {
+				thread.mStillCaptureCallbacks.remove(callback);
+			}
+		}
+	}
+
 	/**
 	 * 摄像头操作方法-更新媒体库
 	 * @param path
@@ -573,6 +636,10 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			Log.d(TAG, "handleMessage: MSG_MEDIA_UPDATE");
 			thread.handleUpdateMedia((String)msg.obj);
 			break;
+		case MSG_PRE_RECORD:
+			Log.d(TAG, "handleMessage: MSG_PRE_RECORD");
+			thread.handleStartPreRecording();
+			break;
 		case MSG_RELEASE:
 			Log.d(TAG, "handleMessage: MSG_RELEASE");
 			thread.handleRelease();
@@ -605,6 +672,7 @@ abstract class AbstractUVCCameraHandler extends Handler {
 	 * （7）handleStopRecording()	停止录制
 	 * （8）handleUpdateMedia()		刷新媒体库
 	 * （9）handleRelease()			释放资源
+	 * （10）handleStartPreRecording()	开始预录制
 	 * 注意：
 	 * （1）调用UVCCamera实现摄像头控制
 	 * （2）在同名方法中会触发CameraCallback，如handleOpen()触发callOnOpen()
@@ -640,8 +708,8 @@ abstract class AbstractUVCCameraHandler extends Handler {
 	 * （14）mUVCCamera
 	 * （15）mMuxer
 	 * （16）mVideoEncoder
-	 * （17）mIFrameCallback
-	 * （18）mMediaEncoderListener
+	 * （17）mMediaEncoderListener
+	 * （18）mPreRecordUs, mPreRecordBytes, mPreRecording
 	 *
 	 * 6相关资料
 	 * 6.1 Android中Thread的三种使用方式：
@@ -697,6 +765,11 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		 */
 		private final Set<CameraCallback> mCallbacks = new CopyOnWriteArraySet<CameraCallback>();
 
+		/**
+		 * StillCaptureCallback集合
+		 */
+		private final Set<StillCaptureCallback> mStillCaptureCallbacks = new CopyOnWriteArraySet<StillCaptureCallback>();
+
 		/**
 		 * mWidth 视频宽度
 		 * mHeight 视频高度
@@ -750,6 +823,21 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		 */
 		private MediaVideoBufferEncoder mVideoEncoder;
 
+		/**
+		 * 预录制(pre-record模式)
+		 * mPreRecordUs/mPreRecordBytes: 0 disables pre-record mode
+		 * mPreRecording: mMuxer keeps encoded samples in memory and does not write the movie yet
+		 */
+		private long mPreRecordUs;
+		private int mPreRecordBytes;
+		private boolean mPreRecording;
+
+		/**
+		 * MediaVideoEncoder/MediaSurfaceEncoder that the camera view or UVCCamera#startCapture passes frames to,
+		 * encoder of previous movie that stops later should not stop capturing of the next one
+		 */
+		private MediaEncoder mCaptureEncoder;
+
 		/**
 		 * 构造函数
 		 * @param clazz Class extends AbstractUVCCameraHandler
@@ -874,7 +962,19 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		 */
 		public boolean isRecording() {
 			synchronized (mSync) {
-				return (mUVCCamera != null) && (mMuxer != null);
+				return (mUVCCamera != null) && (mMuxer != null) && !mPreRecording;
+			}
+		}
+
+		/**
+		 * 属性方法——设置预录制
+		 * @param durationUs
+		 * @param maxBytes
+		 */
+		public void setPreRecording(final long durationUs, final int maxBytes) {
+			synchronized (mSync) {
+				mPreRecordUs = durationUs;
+				mPreRecordBytes = durationUs > 0 ? maxBytes : 0;
 			}
 		}
 
@@ -912,7 +1012,7 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		 */
 		public void handleClose() {
 			if (DEBUG) Log.v(TAG_THREAD, "handleClose:");
-			handleStopRecording();
+			stopMuxer();
 			final UVCCamera camera;
 			synchronized (mSync) {
 				camera = mUVCCamera;
@@ -956,6 +1056,7 @@ abstract class AbstractUVCCameraHandler extends Handler {
 				mIsPreviewing = true;
 			}
 			callOnStartPreview();
+			handleStartPreRecording();
 		}
 
 		/**
@@ -963,6 +1064,8 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		 */
 		public void handleStopPreview() {
 			if (DEBUG) Log.v(TAG_THREAD, "handleStopPreview:");
+			// stop pre-recording, recording was already stopped by #stopPreview
+			stopMuxer();
 			if (mIsPreviewing) {
 				if (mUVCCamera != null) {
 					mUVCCamera.stopPreview();
@@ -985,6 +1088,22 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			final Activity parent = mWeakParent.get();
 			if (parent == null) return;
 			mSoundPool.play(mSoundId, 0.2f, 0.2f, 0, 0, 1.0f);	// play shutter sound
+			// encode the next raw frame on native worker threads so that camera thread is not blocked
+			if ((mUVCCamera != null) && mIsPreviewing) {
+				final File outputFile = TextUtils.isEmpty(path)
+					? MediaMuxerWrapper.getCaptureFile(Environment.DIRECTORY_DCIM, ".jpg")
+					: new File(path);
+				if (outputFile != null) {
+					final boolean isPng = outputFile.getName().toLowerCase().endsWith(".png");
+					if (mUVCCamera.captureStill(outputFile.getPath(),
+						isPng ? UVCCamera.STILL_FORMAT_PNG : UVCCamera.STILL_FORMAT_JPEG,
+						90, mStillCaptureCallback) == 0) {
+
+						return;
+					}
+				}
+			}
+			// fallback to capture the image on the preview display
 			try {
 				final Bitmap bitmap = mWeakCameraView.get().captureStillImage();
 				// get buffered output stream for saving a captured still image as a file on external storage.
@@ -999,6 +1118,7 @@ abstract class AbstractUVCCameraHandler extends Handler {
 						bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
 						os.flush();
 						mHandler.sendMessage(mHandler.obtainMessage(MSG_MEDIA_UPDATE, outputFile.getPath()));
+						callOnCaptureStill(outputFile.getPath());
 					} catch (final IOException e) {
 					}
 				} finally {
@@ -1009,40 +1129,49 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			}
 		}
 
+		/**
+		 * 拍照回调，在native编码线程中触发
+		 */
+		private final IStillCaptureCallback mStillCaptureCallback = new IStillCaptureCallback() {
+			@Override
+			public void onCaptureStill(final String path, final int result) {
+				if (DEBUG) Log.v(TAG_THREAD, "onCaptureStill:result=" + result + ",path=" + path);
+				final AbstractUVCCameraHandler handler = mHandler;
+				if (result == 0) {
+					if ((handler != null) && !handler.mReleased) {
+						handler.sendMessage(handler.obtainMessage(MSG_MEDIA_UPDATE, path));
+					}
+					callOnCaptureStill(path);
+				} else {
+					callOnError(new IOException("failed to capture still image:result=" + result + ",path=" + path));
+				}
+			}
+		};
+
 		/**
 		 * 摄像头控制方法——开始录制
+		 * in pre-record mode this writes the movie from encoded samples kept in memory
 		 */
 		public void handleStartRecording() {
 			if (DEBUG) Log.v(TAG_THREAD, "handleStartRecording:");
+			if (mUVCCamera == null) return;
+			final MediaMuxerWrapper preRecordMuxer;
+			synchronized (mSync) {
+				preRecordMuxer = mPreRecording ? mMuxer : null;
+				mPreRecording = false;
+			}
+			if (preRecordMuxer != null) {
+				preRecordMuxer.startRecording();
+				callOnStartRecording();
+				return;
+			}
+			if (mMuxer != null) return;
 			try {
-				if ((mUVCCamera == null) || (mMuxer != null)) return;
-				final MediaMuxerWrapper muxer = new MediaMuxerWrapper(".mp4");	// if you record audio only, ".m4a" is also OK.
-				MediaVideoBufferEncoder videoEncoder = null;
-				switch (mEncoderType) {
-				case 1:	// for video capturing using MediaVideoEncoder
-					new MediaVideoEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
-					break;
-				case 2:	// for video capturing using MediaVideoBufferEncoder
-					videoEncoder = new MediaVideoBufferEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
-					break;
-				// case 0:	// for video capturing using MediaSurfaceEncoder
-				default:
-					new MediaSurfaceEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
-					break;
-				}
-				if (true) {
-					// for audio capturing
-					new MediaAudioEncoder(muxer, mMediaEncoderListener);
-				}
-				muxer.prepare();
+				// encoders run MediaCodec with MediaCodec.Callback on API >= 23 so that the capture thread never blocks
+				final MediaMuxerWrapper muxer = new MediaMuxerWrapper(".mp4", true);	// if you record audio only, ".m4a" is also OK.
+				prepareEncoders(muxer);
 				muxer.startRecording();
-				if (videoEncoder != null) {
-					mUVCCamera.setFrameCallback(mIFrameCallback, UVCCamera.PIXEL_FORMAT_NV21);
-				}
-				synchronized (mSync) {
-					mMuxer = muxer;
-					mVideoEncoder = videoEncoder;
-				}
+				startDirectFrameCallback();
 				callOnStartRecording();
 			} catch (final IOException e) {
 				callOnError(e);
@@ -1050,16 +1179,106 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			}
 		}
 
+		/**
+		 * 摄像头控制方法——开始预录制
+		 * start encoders without writing the movie while previewing in pre-record mode
+		 */
+		public void handleStartPreRecording() {
+			if (DEBUG) Log.v(TAG_THREAD, "handleStartPreRecording:");
+			final long durationUs;
+			final int maxBytes;
+			synchronized (mSync) {
+				durationUs = mPreRecordUs;
+				maxBytes = mPreRecordBytes;
+			}
+			if ((durationUs <= 0) || (mUVCCamera == null) || !mIsPreviewing
+				|| (mMuxer != null) || (mHandler == null) || mHandler.mReleased) return;
+			try {
+				final MediaMuxerWrapper muxer = new MediaMuxerWrapper(".mp4", true, durationUs, maxBytes);
+				synchronized (mSync) {
+					mPreRecording = true;
+				}
+				prepareEncoders(muxer);
+				muxer.startPreRecording();
+				startDirectFrameCallback();
+			} catch (final IOException e) {
+				synchronized (mSync) {
+					mPreRecording = false;
+				}
+				callOnError(e);
+				Log.e(TAG, "handleStartPreRecording:", e);
+			}
+		}
+
+		/**
+		 * create encoders of mEncoderType for the muxer and prepare them, the muxer is set to mMuxer
+		 * @param muxer
+		 * @throws IOException
+		 */
+		private void prepareEncoders(final MediaMuxerWrapper muxer) throws IOException {
+			MediaVideoBufferEncoder videoEncoder = null;
+			switch (mEncoderType) {
+			case 1:	// for video capturing using MediaVideoEncoder
+				new MediaVideoEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
+				break;
+			case 2:	// for video capturing using MediaVideoBufferEncoder
+				videoEncoder = new MediaVideoBufferEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
+				break;
+			// case 0:	// for video capturing using MediaSurfaceEncoder
+			default:
+				new MediaSurfaceEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
+				break;
+			}
+			if (true) {
+				// for audio capturing
+				new MediaAudioEncoder(muxer, mMediaEncoderListener);
+			}
+			muxer.prepare();
+			synchronized (mSync) {
+				mMuxer = muxer;
+				mVideoEncoder = videoEncoder;
+			}
+		}
+
+		/**
+		 * pass frames to MediaVideoBufferEncoder after its muxer started
+		 */
+		private void startDirectFrameCallback() {
+			final MediaVideoBufferEncoder videoEncoder;
+			synchronized (mSync) {
+				videoEncoder = mVideoEncoder;
+			}
+			if (videoEncoder != null) {
+				// frames are converted directly into the input buffers of the encoder,
+				// or into its bounded input queue while MediaCodec has no free input buffer
+				mUVCCamera.setDirectFrameCallback(videoEncoder, UVCCamera.PIXEL_FORMAT_NV21);
+			}
+		}
+
 		/**
 		 * 摄像头控制方法——停止录制
+		 * this does not stop pre-recording, that continues while previewing
 		 */
 		public void handleStopRecording() {
 			if (DEBUG) Log.v(TAG_THREAD, "handleStopRecording:mMuxer=" + mMuxer);
+			synchronized (mSync) {
+				if (mPreRecording) return;
+			}
+			stopMuxer();
+		}
+
+		/**
+		 * stop recording or pre-recording
+		 */
+		private void stopMuxer() {
 			final MediaMuxerWrapper muxer;
+			final boolean preRecording;
 			synchronized (mSync) {
 				muxer = mMuxer;
+				preRecording = mPreRecording;
 				mMuxer = null;
 				mVideoEncoder = null;
+				mPreRecording = false;
 				if (mUVCCamera != null) {
 					mUVCCamera.stopCapture();
 				}
@@ -1070,30 +1289,17 @@ abstract class AbstractUVCCameraHandler extends Handler {
 				// ignore
 			}
 			if (muxer != null) {
+				// remove the callback before the encoder releases its input buffers
+				if (mUVCCamera != null) {
+					mUVCCamera.setDirectFrameCallback(null, 0);
+				}
 				muxer.stopRecording();
-				mUVCCamera.setFrameCallback(null, 0);
 				// you should not wait here
-				callOnStopRecording();
-			}
-		}
-
-		/**
-		 * 录制时帧回调处理
-		 * UVCCamera.setFrameCallback(mIFrameCallback, UVCCamera.PIXEL_FORMAT_NV21);
-		 */
-		private final IFrameCallback mIFrameCallback = new IFrameCallback() {
-			@Override
-			public void onFrame(final ByteBuffer frame) {
-				final MediaVideoBufferEncoder videoEncoder;
-				synchronized (mSync) {
-					videoEncoder = mVideoEncoder;
-				}
-				if (videoEncoder != null) {
-					videoEncoder.frameAvailableSoon();
-					videoEncoder.encode(frame);
+				if (!preRecording) {
+					callOnStopRecording();
 				}
 			}
-		};
+		}
 
 		/**
 		 * 摄像头控制方法——刷新媒体库
@@ -1138,11 +1344,23 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		 * 视频编码器
 		 * new MediaVideoEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
 		 */
-		private final MediaEncoder.MediaEncoderListener mMediaEncoderListener = new MediaEncoder.MediaEncoderListener() {
+		private final MediaEncoder.MediaEncoderListener mMediaEncoderListener = new MediaEncoder.MediaEncoderStatsListener() {
+			@Override
+			public void onStats(final MediaEncoder encoder, final EncoderStats stats) {
+				// dropped/skipped frames mean MediaCodec can not keep up with the camera
+				if (DEBUG) Log.v(TAG, "onStats:" + stats);
+			}
+
 			@Override
 			public void onPrepared(final MediaEncoder encoder) {
 				if (DEBUG) Log.v(TAG, "onPrepared:encoder=" + encoder);
 				mIsRecording = true;
+				if ((encoder instanceof MediaVideoEncoder)
+					|| (encoder instanceof MediaSurfaceEncoder)) {
+					synchronized (mSync) {
+						mCaptureEncoder = encoder;
+					}
+				}
 				if (encoder instanceof MediaVideoEncoder)
 				try {
 					mWeakCameraView.get().setVideoEncoder((MediaVideoEncoder)encoder);
@@ -1161,17 +1379,34 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			@Override
 			public void onStopped(final MediaEncoder encoder) {
 				if (DEBUG) Log.v(TAG_THREAD, "onStopped:encoder=" + encoder);
+				if (encoder instanceof MediaVideoBufferEncoder) {
+					// the encoder stopped by itself(e.g. MediaCodec error) while recording,
+					// remove the callback before the encoder releases its input buffers
+					synchronized (mSync) {
+						if ((encoder == mVideoEncoder) && (mUVCCamera != null)) {
+							mUVCCamera.setDirectFrameCallback(null, 0);
+							mVideoEncoder = null;
+						}
+					}
+				}
 				if ((encoder instanceof MediaVideoEncoder)
 					|| (encoder instanceof MediaSurfaceEncoder))
 				try {
 					mIsRecording = false;
 					final Activity parent = mWeakParent.get();
-					mWeakCameraView.get().setVideoEncoder(null);
+					final boolean current;
 					synchronized (mSync) {
-						if (mUVCCamera != null) {
-							mUVCCamera.stopCapture();
+						current = (encoder == mCaptureEncoder);
+						if (current) {
+							mCaptureEncoder = null;
+							if (mUVCCamera != null) {
+								mUVCCamera.stopCapture();
+							}
 						}
 					}
+					if (current) {
+						mWeakCameraView.get().setVideoEncoder(null);
+					}
 					final String path = encoder.getOutputPath();
 					if (!TextUtils.isEmpty(path)) {
 						mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_MEDIA_UPDATE, path), 1000);
@@ -1184,6 +1419,12 @@ abstract class AbstractUVCCameraHandler extends Handler {
 				} catch (final Exception e) {
 					Log.e(TAG, "onPrepared:", e);
 				}
+				final AbstractUVCCameraHandler handler = mHandler;
+				if (!(encoder instanceof MediaAudioEncoder)
+					&& !TextUtils.isEmpty(encoder.getOutputPath()) && (handler != null)) {
+					// resume pre-recording after the video encoder of the movie stopped capturing
+					handler.sendEmptyMessage(MSG_PRE_RECORD);
+				}
 			}
 		};
 
@@ -1252,6 +1493,7 @@ abstract class AbstractUVCCameraHandler extends Handler {
 				}
 			}
 			mCallbacks.clear();
+			mStillCaptureCallbacks.clear();
 			synchronized (mSync) {
 				mHandler = null;
 				mSync.notifyAll();
@@ -1343,6 +1585,21 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			}
 		}
 
+		/**
+		 * 触发 StillCaptureCallback.onCaptureStill()
+		 * @param path
+		 */
+		private void callOnCaptureStill(final String path) {
+			for (final StillCaptureCallback callback: mStillCaptureCallbacks) {
+				try {
+					callback.onCaptureStill(path);
+				} catch (final Exception e) {
+					mStillCaptureCallbacks.remove(callback);
+					Log.w(TAG, e);
+				}
+			}
+		}
+
 		/**
 		 * 触发 CameraCallback.onError()
 		 * @param e